@@ -0,0 +1,100 @@
+package com.rubiconproject.oss.kv;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import com.rubiconproject.oss.kv.transcoder.Transcoder;
+
+/**
+ * Non-blocking companion to {@link KeyValueStore}. Each method issues the
+ * request and returns immediately. Failures of the request itself are reported
+ * through {@link Future#get()} as an ExecutionException wrapping the
+ * underlying KeyValueStoreException or IOException.
+ *
+ * Backends with an asynchronous transport (memcached, thrift) implement this
+ * interface natively. Any other backend can be wrapped with a
+ * {@link ThreadPoolAsyncKeyValueStore}.
+ *
+ * @author sam
+ *
+ */
+public interface AsyncKeyValueStore {
+	/**
+	 * Retrieve an object from store for a given key. The future returns null
+	 * if none found.
+	 *
+	 * @throws KeyValueStoreException
+	 *             if the request could not be issued
+	 * @throws IOException
+	 */
+	public Future<Object> getAsync(String key) throws KeyValueStoreException,
+			IOException;
+
+	/**
+	 * Retrieve an object from store for a given key using the specified
+	 * transcoder. The future returns null if none found.
+	 *
+	 * @throws KeyValueStoreException
+	 *             if the request could not be issued
+	 * @throws IOException
+	 */
+	public Future<Object> getAsync(String key, Transcoder transcoder)
+			throws KeyValueStoreException, IOException;
+
+	/**
+	 * Perform bulk get operation.
+	 *
+	 * @param keys
+	 * @return future map of key->object
+	 * @throws KeyValueStoreException
+	 *             if the request could not be issued
+	 * @throws IOException
+	 */
+	public Future<Map<String, Object>> getBulkAsync(List<String> keys)
+			throws KeyValueStoreException, IOException;
+
+	/**
+	 * Perform bulk get operation using the specified transcoder.
+	 *
+	 * @param keys
+	 * @return future map of key->object
+	 * @throws KeyValueStoreException
+	 *             if the request could not be issued
+	 * @throws IOException
+	 */
+	public Future<Map<String, Object>> getBulkAsync(List<String> keys,
+			Transcoder transcoder) throws KeyValueStoreException, IOException;
+
+	/**
+	 * Save an object for a given key.
+	 *
+	 * @throws KeyValueStoreException
+	 *             if the request could not be issued
+	 * @throws IOException
+	 */
+	public Future<Boolean> setAsync(String key, Object value)
+			throws KeyValueStoreException, IOException;
+
+	/**
+	 * Save an object for a given key using the specified transcoder.
+	 *
+	 * @throws KeyValueStoreException
+	 *             if the request could not be issued
+	 * @throws IOException
+	 */
+	public Future<Boolean> setAsync(String key, Object value,
+			Transcoder transcoder) throws KeyValueStoreException, IOException;
+
+	/**
+	 * Delete an object for a given key.
+	 *
+	 * @param key
+	 * @throws KeyValueStoreException
+	 *             if the request could not be issued
+	 * @throws IOException
+	 */
+	public Future<Boolean> deleteAsync(String key)
+			throws KeyValueStoreException, IOException;
+}
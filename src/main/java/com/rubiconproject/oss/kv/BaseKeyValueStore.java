@@ -1,6 +1,8 @@
 package com.rubiconproject.oss.kv;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
 
 import com.rubiconproject.oss.kv.transcoder.Transcoder;
 
@@ -34,6 +36,27 @@ public abstract class BaseKeyValueStore implements KeyValueStore {
 			throw new KeyValueStoreUnavailable();
 	}
 
+	public void setBulk(Map<String, Object> values)
+			throws KeyValueStoreException, IOException {
+		assertWriteable();
+		for (Map.Entry<String, Object> entry : values.entrySet())
+			set(entry.getKey(), entry.getValue());
+	}
+
+	public void setBulk(Map<String, Object> values, Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		assertWriteable();
+		for (Map.Entry<String, Object> entry : values.entrySet())
+			set(entry.getKey(), entry.getValue(), transcoder);
+	}
+
+	public void deleteBulk(Collection<String> keys)
+			throws KeyValueStoreException, IOException {
+		assertWriteable();
+		for (String key : keys)
+			delete(key);
+	}
+
 	public abstract String getIdentifier();
 
 	public abstract boolean exists(String key) throws KeyValueStoreException,
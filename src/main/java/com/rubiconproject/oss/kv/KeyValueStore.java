@@ -1,6 +1,7 @@
 package com.rubiconproject.oss.kv;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
@@ -131,6 +132,29 @@ public interface KeyValueStore {
 	public void set(String key, Object value, Transcoder transcoder)
 			throws KeyValueStoreException, IOException;
 
+	/**
+	 * Save a set of objects in one operation. Backends that can not do this
+	 * natively fall back to calling set() once per key.
+	 * 
+	 * @param values
+	 *            map of key->object
+	 * @throws KeyValueStoreException
+	 * @throws IOException
+	 */
+	public void setBulk(Map<String, Object> values)
+			throws KeyValueStoreException, IOException;
+
+	/**
+	 * Save a set of objects in one operation using the specified transcoder.
+	 * 
+	 * @param values
+	 *            map of key->object
+	 * @throws KeyValueStoreException
+	 * @throws IOException
+	 */
+	public void setBulk(Map<String, Object> values, Transcoder transcoder)
+			throws KeyValueStoreException, IOException;
+
 	/**
 	 * Delete an object for a given key.
 	 * 
@@ -139,4 +163,15 @@ public interface KeyValueStore {
 	 * @throws IOException
 	 */
 	public void delete(String key) throws KeyValueStoreException, IOException;
+
+	/**
+	 * Delete a set of objects in one operation. Backends that can not do this
+	 * natively fall back to calling delete() once per key.
+	 * 
+	 * @param keys
+	 * @throws KeyValueStoreException
+	 * @throws IOException
+	 */
+	public void deleteBulk(Collection<String> keys)
+			throws KeyValueStoreException, IOException;
 }
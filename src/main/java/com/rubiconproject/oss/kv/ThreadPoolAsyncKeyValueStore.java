@@ -0,0 +1,123 @@
+package com.rubiconproject.oss.kv;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.rubiconproject.oss.kv.transcoder.Transcoder;
+import com.rubiconproject.oss.kv.util.ExecutorUtils;
+
+/**
+ * Adapts a blocking {@link KeyValueStore} to the {@link AsyncKeyValueStore}
+ * interface by running each call on a thread pool.
+ *
+ * @author sam
+ *
+ */
+public class ThreadPoolAsyncKeyValueStore implements AsyncKeyValueStore {
+	private ExecutorService executor;
+
+	private KeyValueStore store;
+
+	/**
+	 * Return the given store if it implements AsyncKeyValueStore natively,
+	 * otherwise wrap it using the given executor.
+	 *
+	 * @param store
+	 * @param executor
+	 * @return
+	 */
+	public static AsyncKeyValueStore getAsyncKeyValueStore(
+			KeyValueStore store, ExecutorService executor) {
+		if (store instanceof AsyncKeyValueStore)
+			return (AsyncKeyValueStore) store;
+		else
+			return new ThreadPoolAsyncKeyValueStore(store, executor);
+	}
+
+	public ThreadPoolAsyncKeyValueStore(KeyValueStore store, int threadPoolSize) {
+		this(store, ExecutorUtils.newFixedSizeDaemonThreadPool(threadPoolSize));
+	}
+
+	public ThreadPoolAsyncKeyValueStore(KeyValueStore store,
+			ExecutorService executor) {
+		this.store = store;
+		this.executor = executor;
+	}
+
+	public KeyValueStore getKeyValueStore() {
+		return store;
+	}
+
+	public Future<Object> getAsync(final String key)
+			throws KeyValueStoreException, IOException {
+		return executor.submit(new Callable<Object>() {
+			public Object call() throws Exception {
+				return store.get(key);
+			}
+		});
+	}
+
+	public Future<Object> getAsync(final String key,
+			final Transcoder transcoder) throws KeyValueStoreException,
+			IOException {
+		return executor.submit(new Callable<Object>() {
+			public Object call() throws Exception {
+				return store.get(key, transcoder);
+			}
+		});
+	}
+
+	public Future<Map<String, Object>> getBulkAsync(final List<String> keys)
+			throws KeyValueStoreException, IOException {
+		return executor.submit(new Callable<Map<String, Object>>() {
+			public Map<String, Object> call() throws Exception {
+				return store.getBulk(keys);
+			}
+		});
+	}
+
+	public Future<Map<String, Object>> getBulkAsync(final List<String> keys,
+			final Transcoder transcoder) throws KeyValueStoreException,
+			IOException {
+		return executor.submit(new Callable<Map<String, Object>>() {
+			public Map<String, Object> call() throws Exception {
+				return store.getBulk(keys, transcoder);
+			}
+		});
+	}
+
+	public Future<Boolean> setAsync(final String key, final Object value)
+			throws KeyValueStoreException, IOException {
+		return executor.submit(new Callable<Boolean>() {
+			public Boolean call() throws Exception {
+				store.set(key, value);
+				return Boolean.TRUE;
+			}
+		});
+	}
+
+	public Future<Boolean> setAsync(final String key, final Object value,
+			final Transcoder transcoder) throws KeyValueStoreException,
+			IOException {
+		return executor.submit(new Callable<Boolean>() {
+			public Boolean call() throws Exception {
+				store.set(key, value, transcoder);
+				return Boolean.TRUE;
+			}
+		});
+	}
+
+	public Future<Boolean> deleteAsync(final String key)
+			throws KeyValueStoreException, IOException {
+		return executor.submit(new Callable<Boolean>() {
+			public Boolean call() throws Exception {
+				store.delete(key);
+				return Boolean.TRUE;
+			}
+		});
+	}
+}
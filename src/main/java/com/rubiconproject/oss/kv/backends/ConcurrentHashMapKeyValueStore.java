@@ -1,6 +1,7 @@
 package com.rubiconproject.oss.kv.backends;
 
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
@@ -24,7 +25,7 @@ import com.rubiconproject.oss.kv.transcoder.Transcoder;
  *
  */
 public class ConcurrentHashMapKeyValueStore extends BaseManagedKeyValueStore
-		implements KeyValueStore {
+		implements KeyValueStore, IterableKeyValueStore {
 	public static final String IDENTIFIER = "hashtable";
 
 	private Map<String, Object> map = new ConcurrentHashMap<String, Object>();
@@ -138,6 +139,18 @@ public class ConcurrentHashMapKeyValueStore extends BaseManagedKeyValueStore
 		map.remove(key);
 	}
 
+	public KeyValueStoreIterator iterkeys() throws KeyValueStoreException {
+		assertReadable();
+		return new KeyValueStoreIterator() {
+			public Iterator<String> iterator() {
+				return map.keySet().iterator();
+			}
+
+			public void close() {
+			}
+		};
+	}
+
 	private void sleep(long millis) {
 		try {
 			Thread.sleep(millis);
@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
@@ -32,6 +33,7 @@ import net.spy.memcached.ops.Operation;
 import net.spy.memcached.protocol.binary.BinaryMemcachedNodeImpl;
 import net.spy.memcached.protocol.binary.BinaryOperationFactory;
 
+import com.rubiconproject.oss.kv.AsyncKeyValueStore;
 import com.rubiconproject.oss.kv.BaseManagedKeyValueStore;
 import com.rubiconproject.oss.kv.KeyValueStore;
 import com.rubiconproject.oss.kv.KeyValueStoreException;
@@ -40,6 +42,7 @@ import com.rubiconproject.oss.kv.annotations.Configurable.Type;
 import com.rubiconproject.oss.kv.mgmt.MemcachedImplMXBean;
 import com.rubiconproject.oss.kv.transcoder.Transcoder;
 import com.rubiconproject.oss.kv.transcoder.spy.SpyMemcachedByteArrayTranscoder;
+import com.rubiconproject.oss.kv.util.CallDeadline;
 
 /**
  * Proxy to the spy memcached client. Comments are copied from javadoc for that
@@ -49,7 +52,7 @@ import com.rubiconproject.oss.kv.transcoder.spy.SpyMemcachedByteArrayTranscoder;
  * 
  */
 public class MemcachedKeyValueStore extends BaseManagedKeyValueStore implements
-		KeyValueStore {
+		KeyValueStore, AsyncKeyValueStore {
 	public static final String IDENTIFIER = "memcached";
 
 	private SpyMemcachedByteArrayTranscoder spyByteTranscoder = new SpyMemcachedByteArrayTranscoder();
@@ -184,7 +187,7 @@ public class MemcachedKeyValueStore extends BaseManagedKeyValueStore implements
 		MemcachedClient mcc = getMemcachedClient();
 		try {
 			Future<Object> future = mcc.asyncGet(key);
-			Object value = future.get(getOperationTimeout,
+			Object value = future.get(getReadTimeout(),
 					TimeUnit.MILLISECONDS);
 			return value;
 		} catch (InterruptedException e) {
@@ -204,7 +207,7 @@ public class MemcachedKeyValueStore extends BaseManagedKeyValueStore implements
 		MemcachedClient mcc = getMemcachedClient();
 		try {
 			Future<byte[]> future = mcc.asyncGet(key, spyByteTranscoder);
-			byte[] bytes = future.get(getOperationTimeout,
+			byte[] bytes = future.get(getReadTimeout(),
 					TimeUnit.MILLISECONDS);
 			if (bytes == null)
 				return null;
@@ -229,7 +232,7 @@ public class MemcachedKeyValueStore extends BaseManagedKeyValueStore implements
 		MemcachedClient mcc = getMemcachedClient();
 		try {
 			Future<Map<String, Object>> future = mcc.asyncGetBulk(keys);
-			Map<String, Object> results = future.get(getOperationTimeout,
+			Map<String, Object> results = future.get(getReadTimeout(),
 					TimeUnit.MILLISECONDS);
 			return results;
 		} catch (InterruptedException e) {
@@ -249,7 +252,7 @@ public class MemcachedKeyValueStore extends BaseManagedKeyValueStore implements
 		MemcachedClient mcc = getMemcachedClient();
 		try {
 			Future<Map<String, Object>> future = mcc.asyncGetBulk(keys);
-			Map<String, Object> results = future.get(getOperationTimeout,
+			Map<String, Object> results = future.get(getReadTimeout(),
 					TimeUnit.MILLISECONDS);
 			return results;
 		} catch (InterruptedException e) {
@@ -270,7 +273,7 @@ public class MemcachedKeyValueStore extends BaseManagedKeyValueStore implements
 		try {
 			Future<Map<String, byte[]>> future = mcc.asyncGetBulk(keys,
 					spyByteTranscoder);
-			Map<String, byte[]> results = future.get(getOperationTimeout,
+			Map<String, byte[]> results = future.get(getReadTimeout(),
 					TimeUnit.MILLISECONDS);
 			Map<String, Object> retval = new HashMap<String, Object>(results
 					.size());
@@ -307,7 +310,7 @@ public class MemcachedKeyValueStore extends BaseManagedKeyValueStore implements
 		MemcachedClient mcc = getMemcachedClient();
 		try {
 			Future<Boolean> future = mcc.set(key, exp, value);
-			future.get(setOperationTimeout, TimeUnit.MILLISECONDS);
+			future.get(getWriteTimeout(), TimeUnit.MILLISECONDS);
 		} catch (InterruptedException e) {
 			throw new KeyValueStoreException(e);
 		} catch (ExecutionException e) {
@@ -327,7 +330,7 @@ public class MemcachedKeyValueStore extends BaseManagedKeyValueStore implements
 			byte[] bytes = transcoder.encode(value);
 			Future<Boolean> future = mcc
 					.set(key, exp, bytes, spyByteTranscoder);
-			future.get(setOperationTimeout, TimeUnit.MILLISECONDS);
+			future.get(getWriteTimeout(), TimeUnit.MILLISECONDS);
 		} catch (InterruptedException e) {
 			throw new KeyValueStoreException(e);
 		} catch (ExecutionException e) {
@@ -344,7 +347,7 @@ public class MemcachedKeyValueStore extends BaseManagedKeyValueStore implements
 		MemcachedClient mcc = getMemcachedClient();
 		try {
 			Future<Boolean> future = mcc.delete(key);
-			future.get(setOperationTimeout, TimeUnit.MILLISECONDS);
+			future.get(getWriteTimeout(), TimeUnit.MILLISECONDS);
 		} catch (InterruptedException e) {
 			throw new KeyValueStoreException(e);
 		} catch (ExecutionException e) {
@@ -356,6 +359,174 @@ public class MemcachedKeyValueStore extends BaseManagedKeyValueStore implements
 		}
 	}
 
+	/**
+	 * Pipelines one set per entry, then waits for all of them to complete
+	 * within setOperationTimeout (or the call deadline, if sooner).
+	 */
+	public void setBulk(Map<String, Object> values)
+			throws KeyValueStoreException, IOException {
+		assertWriteable();
+		MemcachedClient mcc = getMemcachedClient();
+		try {
+			List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(
+					values.size());
+			for (Entry<String, Object> entry : values.entrySet())
+				futures.add(mcc.set(entry.getKey(), 0, entry.getValue()));
+			waitForAll(futures, getWriteTimeout());
+		} catch (InterruptedException e) {
+			throw new KeyValueStoreException(e);
+		} catch (ExecutionException e) {
+			throw new KeyValueStoreException(e);
+		} catch (TimeoutException e) {
+			throw new KeyValueStoreException(e);
+		} finally {
+			releaseMemcachedClient(mcc);
+		}
+	}
+
+	public void setBulk(Map<String, Object> values, Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		assertWriteable();
+		MemcachedClient mcc = getMemcachedClient();
+		try {
+			List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(
+					values.size());
+			for (Entry<String, Object> entry : values.entrySet()) {
+				byte[] bytes = transcoder.encode(entry.getValue());
+				futures.add(mcc.set(entry.getKey(), 0, bytes,
+						spyByteTranscoder));
+			}
+			waitForAll(futures, getWriteTimeout());
+		} catch (InterruptedException e) {
+			throw new KeyValueStoreException(e);
+		} catch (ExecutionException e) {
+			throw new KeyValueStoreException(e);
+		} catch (TimeoutException e) {
+			throw new KeyValueStoreException(e);
+		} finally {
+			releaseMemcachedClient(mcc);
+		}
+	}
+
+	public void deleteBulk(Collection<String> keys)
+			throws KeyValueStoreException, IOException {
+		assertWriteable();
+		MemcachedClient mcc = getMemcachedClient();
+		try {
+			List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(
+					keys.size());
+			for (String key : keys)
+				futures.add(mcc.delete(key));
+			waitForAll(futures, getWriteTimeout());
+		} catch (InterruptedException e) {
+			throw new KeyValueStoreException(e);
+		} catch (ExecutionException e) {
+			throw new KeyValueStoreException(e);
+		} catch (TimeoutException e) {
+			throw new KeyValueStoreException(e);
+		} finally {
+			releaseMemcachedClient(mcc);
+		}
+	}
+
+	public Future<Object> getAsync(String key) throws KeyValueStoreException,
+			IOException {
+		assertReadable();
+		MemcachedClient mcc = getMemcachedClient();
+		try {
+			return mcc.asyncGet(key);
+		} finally {
+			releaseMemcachedClient(mcc);
+		}
+	}
+
+	public Future<Object> getAsync(String key, final Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		assertReadable();
+		MemcachedClient mcc = getMemcachedClient();
+		try {
+			Future<byte[]> future = mcc.asyncGet(key, spyByteTranscoder);
+			return new DecodingFuture<byte[], Object>(future) {
+				protected Object decode(byte[] bytes) throws IOException {
+					return (bytes == null) ? null : transcoder.decode(bytes);
+				}
+			};
+		} finally {
+			releaseMemcachedClient(mcc);
+		}
+	}
+
+	public Future<Map<String, Object>> getBulkAsync(List<String> keys)
+			throws KeyValueStoreException, IOException {
+		assertReadable();
+		MemcachedClient mcc = getMemcachedClient();
+		try {
+			return mcc.asyncGetBulk(keys);
+		} finally {
+			releaseMemcachedClient(mcc);
+		}
+	}
+
+	public Future<Map<String, Object>> getBulkAsync(List<String> keys,
+			final Transcoder transcoder) throws KeyValueStoreException,
+			IOException {
+		assertReadable();
+		MemcachedClient mcc = getMemcachedClient();
+		try {
+			Future<Map<String, byte[]>> future = mcc.asyncGetBulk(keys,
+					spyByteTranscoder);
+			return new DecodingFuture<Map<String, byte[]>, Map<String, Object>>(
+					future) {
+				protected Map<String, Object> decode(Map<String, byte[]> results)
+						throws IOException {
+					Map<String, Object> retval = new HashMap<String, Object>(
+							results.size());
+					for (Entry<String, byte[]> entry : results.entrySet()) {
+						Object obj = transcoder.decode(entry.getValue());
+						retval.put(entry.getKey(), obj);
+					}
+					return retval;
+				}
+			};
+		} finally {
+			releaseMemcachedClient(mcc);
+		}
+	}
+
+	public Future<Boolean> setAsync(String key, Object value)
+			throws KeyValueStoreException, IOException {
+		assertWriteable();
+		MemcachedClient mcc = getMemcachedClient();
+		try {
+			return mcc.set(key, 0, value);
+		} finally {
+			releaseMemcachedClient(mcc);
+		}
+	}
+
+	public Future<Boolean> setAsync(String key, Object value,
+			Transcoder transcoder) throws KeyValueStoreException, IOException {
+		assertWriteable();
+		MemcachedClient mcc = getMemcachedClient();
+		try {
+			byte[] bytes = transcoder.encode(value);
+			return mcc.set(key, 0, bytes, spyByteTranscoder);
+		} finally {
+			releaseMemcachedClient(mcc);
+		}
+	}
+
+	public Future<Boolean> deleteAsync(String key)
+			throws KeyValueStoreException, IOException {
+		assertWriteable();
+		MemcachedClient mcc = getMemcachedClient();
+		try {
+			return mcc.delete(key);
+		} finally {
+			releaseMemcachedClient(mcc);
+		}
+	}
+
 	/**
 	 * Increment the given counter, returning the new value.
 	 * 
@@ -533,6 +704,77 @@ public class MemcachedKeyValueStore extends BaseManagedKeyValueStore implements
 	private void releaseMemcachedClient(MemcachedClient client) {
 	}
 
+	/**
+	 * Wait for every future to complete, sharing a single deadline.
+	 */
+	/**
+	 * Returns getOperationTimeout, or the time left before the caller's
+	 * deadline if that is sooner.
+	 */
+	private long getReadTimeout() {
+		return CallDeadline.getTimeout(getOperationTimeout);
+	}
+
+	private long getWriteTimeout() {
+		return CallDeadline.getTimeout(setOperationTimeout);
+	}
+
+	private void waitForAll(List<Future<Boolean>> futures, long timeout)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.currentTimeMillis() + timeout;
+		for (Future<Boolean> future : futures) {
+			long remaining = Math.max(0l, deadline
+					- System.currentTimeMillis());
+			future.get(remaining, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Wraps a spy memcached future, decoding the raw result in the calling
+	 * thread when get() is invoked.
+	 * 
+	 * @author sam
+	 * 
+	 */
+	private static abstract class DecodingFuture<S, T> implements Future<T> {
+		private Future<S> future;
+
+		public DecodingFuture(Future<S> future) {
+			this.future = future;
+		}
+
+		protected abstract T decode(S value) throws IOException;
+
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return future.cancel(mayInterruptIfRunning);
+		}
+
+		public boolean isCancelled() {
+			return future.isCancelled();
+		}
+
+		public boolean isDone() {
+			return future.isDone();
+		}
+
+		public T get() throws InterruptedException, ExecutionException {
+			return decodeValue(future.get());
+		}
+
+		public T get(long timeout, TimeUnit unit) throws InterruptedException,
+				ExecutionException, TimeoutException {
+			return decodeValue(future.get(timeout, unit));
+		}
+
+		private T decodeValue(S value) throws ExecutionException {
+			try {
+				return decode(value);
+			} catch (IOException e) {
+				throw new ExecutionException(e);
+			}
+		}
+	}
+
 	/**
 	 * Subclassing DefaultConnectionFactory to (1) allow isDaemon() to return
 	 * true if desired and (2) allow for bounded read/write op queues. Without
@@ -6,19 +6,24 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.pool.BasePoolableObjectFactory;
 import org.apache.commons.pool.impl.GenericObjectPool;
 import org.apache.thrift.TException;
+import org.apache.thrift.async.AsyncMethodCallback;
+import org.apache.thrift.async.TAsyncClientManager;
 import org.apache.thrift.protocol.TBinaryProtocol;
 import org.apache.thrift.protocol.TProtocol;
 import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TNonblockingSocket;
 import org.apache.thrift.transport.TSocket;
 import org.apache.thrift.transport.TTransport;
 import org.apache.thrift.transport.TTransportException;
 
+import com.rubiconproject.oss.kv.AsyncKeyValueStore;
 import com.rubiconproject.oss.kv.BaseManagedKeyValueStore;
 import com.rubiconproject.oss.kv.KeyValueStoreException;
 import com.rubiconproject.oss.kv.ManagedKeyValueStore;
@@ -30,15 +35,21 @@ import com.rubiconproject.oss.kv.gen.KeyValueService;
 import com.rubiconproject.oss.kv.gen.KeyValueStoreIOException;
 import com.rubiconproject.oss.kv.transcoder.SerializableTranscoder;
 import com.rubiconproject.oss.kv.transcoder.Transcoder;
+import com.rubiconproject.oss.kv.util.CallDeadline;
+import com.rubiconproject.oss.kv.util.SettableFuture;
 
 public class ThriftKeyValueStore extends BaseManagedKeyValueStore implements
-		ManagedKeyValueStore {
+		ManagedKeyValueStore, AsyncKeyValueStore {
 	public static final String IDENTIFIER = "thrift";
 
 	private Log log = LogFactory.getLog(getClass());
 
 	private GenericObjectPool connectionPool;
 
+	private GenericObjectPool asyncConnectionPool;
+
+	private TAsyncClientManager asyncClientManager;
+
 	private Transcoder defaultTranscoder = new SerializableTranscoder();
 
 	private String host = "localhost";
@@ -57,6 +68,9 @@ public class ThriftKeyValueStore extends BaseManagedKeyValueStore implements
 
 	private long timeBetweenEvictionRunsMillis = -1;
 
+	// socket read timeout in millis, 0 for none
+	private int socketTimeout = 0;
+
 	public ThriftKeyValueStore() {
 	}
 
@@ -105,6 +119,15 @@ public class ThriftKeyValueStore extends BaseManagedKeyValueStore implements
 		this.timeBetweenEvictionRunsMillis = millis;
 	}
 
+	/**
+	 * Socket read timeout for synchronous calls (millis). A shorter call
+	 * deadline (see {@link CallDeadline}) is used instead when there is one.
+	 */
+	@Configurable(name = "socketTimeout", accepts = Type.IntType)
+	public void setSocketTimeout(int millis) {
+		this.socketTimeout = millis;
+	}
+
 	public String getIdentifier() {
 		return IDENTIFIER;
 	}
@@ -118,6 +141,25 @@ public class ThriftKeyValueStore extends BaseManagedKeyValueStore implements
 		super.start();
 	}
 
+	public void stop() {
+		log.trace("stop()");
+		synchronized (this) {
+			if (asyncClientManager != null) {
+				asyncClientManager.stop();
+				asyncClientManager = null;
+			}
+			if (asyncConnectionPool != null) {
+				try {
+					asyncConnectionPool.close();
+				} catch (Exception e) {
+					log.warn("Exception calling asyncConnectionPool.close()", e);
+				}
+				asyncConnectionPool = null;
+			}
+		}
+		super.stop();
+	}
+
 	public boolean exists(String key) throws KeyValueStoreException,
 			IOException {
 		log.trace("exists()");
@@ -129,6 +171,8 @@ public class ThriftKeyValueStore extends BaseManagedKeyValueStore implements
 			return e;
 		} catch (TTransportException e) {
 			log.error("TTransportException inside exists()", e);
+			invalidateTConnection(tconn);
+			tconn = null;
 			throw new IOException(e);
 		} catch (KeyValueStoreIOException e) {
 			log.error("KeyValueStoreIOException inside exists()", e);
@@ -170,6 +214,8 @@ public class ThriftKeyValueStore extends BaseManagedKeyValueStore implements
 			}
 		} catch (TTransportException e) {
 			log.error("TTransportException inside get()", e);
+			invalidateTConnection(tconn);
+			tconn = null;
 			throw new IOException(e);
 		} catch (KeyValueStoreIOException e) {
 			log.error("KeyValueStoreIOException inside get()", e);
@@ -218,6 +264,8 @@ public class ThriftKeyValueStore extends BaseManagedKeyValueStore implements
 			return retval;
 		} catch (TTransportException e) {
 			log.error("TTransportException inside getBulk()", e);
+			invalidateTConnection(tconn);
+			tconn = null;
 			throw new IOException(e);
 		} catch (KeyValueStoreIOException e) {
 			log.error("KeyValueStoreIOException inside getBulk()", e);
@@ -255,6 +303,8 @@ public class ThriftKeyValueStore extends BaseManagedKeyValueStore implements
 			tconn.kv.setValue(key, buff);
 		} catch (TTransportException e) {
 			log.error("TTransportException inside set()", e);
+			invalidateTConnection(tconn);
+			tconn = null;
 			throw new IOException(e);
 		} catch (KeyValueStoreIOException e) {
 			log.error("KeyValueStoreIOException inside set()", e);
@@ -273,6 +323,47 @@ public class ThriftKeyValueStore extends BaseManagedKeyValueStore implements
 		}
 	}
 
+	public void setBulk(Map<String, Object> values)
+			throws KeyValueStoreException, IOException {
+		log.trace("setBulk()");
+		setBulk(values, defaultTranscoder);
+	}
+
+	public void setBulk(Map<String, Object> values, Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		log.trace("setBulk()");
+		assertWriteable();
+		TConnection tconn = null;
+		try {
+			tconn = getTConnection();
+			Map<String, ByteBuffer> data = new HashMap<String, ByteBuffer>(
+					values.size());
+			for (Map.Entry<String, Object> entry : values.entrySet())
+				data.put(entry.getKey(), ByteBuffer.wrap(transcoder
+						.encode(entry.getValue())));
+			tconn.kv.setBulk(data);
+		} catch (TTransportException e) {
+			log.error("TTransportException inside setBulk()", e);
+			invalidateTConnection(tconn);
+			tconn = null;
+			throw new IOException(e);
+		} catch (KeyValueStoreIOException e) {
+			log.error("KeyValueStoreIOException inside setBulk()", e);
+			throw new IOException(e);
+		} catch (com.rubiconproject.oss.kv.gen.KeyValueStoreException e) {
+			log.error("KeyValueStoreException inside setBulk()", e);
+			throw new KeyValueStoreException(e);
+		} catch (TException e) {
+			log.error("TException inside setBulk()", e);
+			throw new IOException(e);
+		} catch (Exception e) {
+			log.error("Exception inside setBulk()", e);
+			throw new IOException(e);
+		} finally {
+			closeTConnection(tconn);
+		}
+	}
+
 	public void delete(String key) throws KeyValueStoreException, IOException {
 		log.trace("delete()");
 		assertWriteable();
@@ -282,6 +373,8 @@ public class ThriftKeyValueStore extends BaseManagedKeyValueStore implements
 			tconn.kv.deleteValue(key);
 		} catch (TTransportException e) {
 			log.error("TTransportException inside delete()", e);
+			invalidateTConnection(tconn);
+			tconn = null;
 			throw new IOException(e);
 		} catch (KeyValueStoreIOException e) {
 			log.error("KeyValueStoreIOException inside delete()", e);
@@ -300,14 +393,155 @@ public class ThriftKeyValueStore extends BaseManagedKeyValueStore implements
 		}
 	}
 
+	public Future<Object> getAsync(String key) throws KeyValueStoreException,
+			IOException {
+		log.trace("getAsync()");
+		return getAsync(key, defaultTranscoder);
+	}
+
+	public Future<Object> getAsync(String key, final Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		log.trace("getAsync()");
+		assertReadable();
+		final SettableFuture<Object> future = new SettableFuture<Object>();
+		TAsyncConnection tconn = getAsyncConnection();
+		try {
+			tconn.kv.getValue(key,
+					new AsyncCallback<KeyValueService.AsyncClient.getValue_call, Object>(
+							tconn, future) {
+						protected Object getResult(
+								KeyValueService.AsyncClient.getValue_call call)
+								throws Exception {
+							GetResult result = call.getResult();
+							if (!result.isExists())
+								return null;
+							else
+								return transcoder.decode(result.getData());
+						}
+					});
+		} catch (TException e) {
+			log.error("TException inside getAsync()", e);
+			invalidateAsyncConnection(tconn);
+			throw new IOException(e);
+		}
+		return future;
+	}
+
+	public Future<Map<String, Object>> getBulkAsync(List<String> keys)
+			throws KeyValueStoreException, IOException {
+		log.trace("getBulkAsync()");
+		return getBulkAsync(keys, defaultTranscoder);
+	}
+
+	public Future<Map<String, Object>> getBulkAsync(List<String> keys,
+			final Transcoder transcoder) throws KeyValueStoreException,
+			IOException {
+		log.trace("getBulkAsync()");
+		assertReadable();
+		final SettableFuture<Map<String, Object>> future = new SettableFuture<Map<String, Object>>();
+		TAsyncConnection tconn = getAsyncConnection();
+		try {
+			tconn.kv.getBulk(keys,
+					new AsyncCallback<KeyValueService.AsyncClient.getBulk_call, Map<String, Object>>(
+							tconn, future) {
+						protected Map<String, Object> getResult(
+								KeyValueService.AsyncClient.getBulk_call call)
+								throws Exception {
+							Map<String, GetResult> results = call.getResult();
+							Map<String, Object> retval = new HashMap<String, Object>(
+									results.size());
+							for (Map.Entry<String, GetResult> entry : results
+									.entrySet()) {
+								byte[] data = entry.getValue().getData();
+								Object obj = transcoder.decode(data);
+								retval.put(entry.getKey(), obj);
+							}
+							return retval;
+						}
+					});
+		} catch (TException e) {
+			log.error("TException inside getBulkAsync()", e);
+			invalidateAsyncConnection(tconn);
+			throw new IOException(e);
+		}
+		return future;
+	}
+
+	public Future<Boolean> setAsync(String key, Object value)
+			throws KeyValueStoreException, IOException {
+		log.trace("setAsync()");
+		return setAsync(key, value, defaultTranscoder);
+	}
+
+	public Future<Boolean> setAsync(String key, Object value,
+			Transcoder transcoder) throws KeyValueStoreException, IOException {
+		log.trace("setAsync()");
+		assertWriteable();
+		byte[] data = transcoder.encode(value);
+		final SettableFuture<Boolean> future = new SettableFuture<Boolean>();
+		TAsyncConnection tconn = getAsyncConnection();
+		try {
+			tconn.kv.setValue(key, ByteBuffer.wrap(data),
+					new AsyncCallback<KeyValueService.AsyncClient.setValue_call, Boolean>(
+							tconn, future) {
+						protected Boolean getResult(
+								KeyValueService.AsyncClient.setValue_call call)
+								throws Exception {
+							call.getResult();
+							return Boolean.TRUE;
+						}
+					});
+		} catch (TException e) {
+			log.error("TException inside setAsync()", e);
+			invalidateAsyncConnection(tconn);
+			throw new IOException(e);
+		}
+		return future;
+	}
+
+	public Future<Boolean> deleteAsync(String key)
+			throws KeyValueStoreException, IOException {
+		log.trace("deleteAsync()");
+		assertWriteable();
+		final SettableFuture<Boolean> future = new SettableFuture<Boolean>();
+		TAsyncConnection tconn = getAsyncConnection();
+		try {
+			tconn.kv.deleteValue(key,
+					new AsyncCallback<KeyValueService.AsyncClient.deleteValue_call, Boolean>(
+							tconn, future) {
+						protected Boolean getResult(
+								KeyValueService.AsyncClient.deleteValue_call call)
+								throws Exception {
+							call.getResult();
+							return Boolean.TRUE;
+						}
+					});
+		} catch (TException e) {
+			log.error("TException inside deleteAsync()", e);
+			invalidateAsyncConnection(tconn);
+			throw new IOException(e);
+		}
+		return future;
+	}
+
 	private TConnection getTConnection() throws Exception {
 		log.trace("connect()");
 		TConnection tc = (TConnection) connectionPool.borrowObject();
+		if (tc.transport instanceof TSocket) {
+			// no longer than the caller will wait
+			int timeout = CallDeadline
+					.getTimeout((socketTimeout > 0) ? socketTimeout
+							: Integer.MAX_VALUE);
+			((TSocket) tc.transport)
+					.setTimeout((timeout == Integer.MAX_VALUE) ? 0 : timeout);
+		}
 		return tc;
 	}
 
 	private void closeTConnection(TConnection tconn) {
 		log.trace("disconnect()");
+		if (tconn == null)
+			return;
 		try {
 			connectionPool.returnObject(tconn);
 		} catch (Exception e) {
@@ -315,6 +549,122 @@ public class ThriftKeyValueStore extends BaseManagedKeyValueStore implements
 		}
 	}
 
+	/**
+	 * Discard a connection that saw a transport error, such as a read timing
+	 * out part way through a response.
+	 */
+	private void invalidateTConnection(TConnection tconn) {
+		log.trace("invalidate()");
+		if (tconn == null)
+			return;
+		try {
+			connectionPool.invalidateObject(tconn);
+		} catch (Exception e) {
+			log.warn("Exception calling invalidateObject()", e);
+		}
+	}
+
+	/**
+	 * The async client manager (and its selector thread) is only created once
+	 * the first asynchronous call is made.
+	 */
+	private synchronized GenericObjectPool getAsyncConnectionPool()
+			throws IOException {
+		if (asyncConnectionPool == null) {
+			asyncClientManager = new TAsyncClientManager();
+			asyncConnectionPool = new GenericObjectPool(
+					new TAsyncClientFactory(host, port, asyncClientManager),
+					maxActive, GenericObjectPool.WHEN_EXHAUSTED_FAIL, maxWait,
+					maxIdle);
+			asyncConnectionPool.setLifo(lifo);
+			asyncConnectionPool.setTestOnBorrow(true);
+		}
+		return asyncConnectionPool;
+	}
+
+	private TAsyncConnection getAsyncConnection() throws IOException {
+		log.trace("connectAsync()");
+		try {
+			return (TAsyncConnection) getAsyncConnectionPool().borrowObject();
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			log.error("Exception inside getAsyncConnection()", e);
+			throw new IOException(e);
+		}
+	}
+
+	private void releaseAsyncConnection(TAsyncConnection tconn) {
+		log.trace("disconnectAsync()");
+		try {
+			getAsyncConnectionPool().returnObject(tconn);
+		} catch (Exception e) {
+			log.warn("Exception calling returnObject()", e);
+		}
+	}
+
+	private void invalidateAsyncConnection(TAsyncConnection tconn) {
+		log.trace("invalidateAsync()");
+		try {
+			getAsyncConnectionPool().invalidateObject(tconn);
+		} catch (Exception e) {
+			log.warn("Exception calling invalidateObject()", e);
+		}
+	}
+
+	/**
+	 * Maps the exceptions declared by the thrift service onto the ones thrown
+	 * by the synchronous methods.
+	 */
+	private Throwable translateException(Exception e) {
+		if (e instanceof com.rubiconproject.oss.kv.gen.KeyValueStoreException)
+			return new KeyValueStoreException(e);
+		else if (e instanceof IOException)
+			return e;
+		else
+			return new IOException(e);
+	}
+
+	/**
+	 * Completes a future from the selector thread and returns the client to
+	 * the pool. A client that saw a transport error can not be reused.
+	 * 
+	 * @param <C>
+	 *            the generated method call type
+	 * @param <V>
+	 *            the future's value type
+	 */
+	private abstract class AsyncCallback<C, V> implements
+			AsyncMethodCallback<C> {
+		private TAsyncConnection tconn;
+
+		private SettableFuture<V> future;
+
+		public AsyncCallback(TAsyncConnection tconn, SettableFuture<V> future) {
+			this.tconn = tconn;
+			this.future = future;
+		}
+
+		protected abstract V getResult(C call) throws Exception;
+
+		public void onComplete(C call) {
+			try {
+				future.set(getResult(call));
+			} catch (Exception e) {
+				log.error("Exception inside onComplete()", e);
+				future.setException(translateException(e));
+			} finally {
+				releaseAsyncConnection(tconn);
+			}
+		}
+
+		public void onError(Exception e) {
+			log.error("Exception inside onError()", e);
+			invalidateAsyncConnection(tconn);
+			future.setException(translateException(e));
+		}
+	}
+
 	private static class TConnectionFactory extends BasePoolableObjectFactory {
 		private String server;
 
@@ -348,6 +698,59 @@ public class ThriftKeyValueStore extends BaseManagedKeyValueStore implements
 
 	}
 
+	private static class TAsyncClientFactory extends BasePoolableObjectFactory {
+		private String server;
+
+		private int port;
+
+		private TAsyncClientManager clientManager;
+
+		public TAsyncClientFactory(String server, int port,
+				TAsyncClientManager clientManager) {
+			this.server = server;
+			this.port = port;
+			this.clientManager = clientManager;
+		}
+
+		/**
+		 * Create a new object.
+		 */
+		public Object makeObject() throws Exception {
+			TNonblockingSocket socket = new TNonblockingSocket(server, port);
+			KeyValueService.AsyncClient kv = new KeyValueService.AsyncClient(
+					new TBinaryProtocol.Factory(), clientManager, socket);
+			return new TAsyncConnection(socket, kv);
+		}
+
+		/**
+		 * Destroy an instance no longer needed by the pool.
+		 */
+		public void destroyObject(Object obj) throws Exception {
+			TAsyncConnection conn = (TAsyncConnection) obj;
+			conn.transport.close();
+		}
+
+		/**
+		 * A client that has seen an error or timeout can not be reused.
+		 */
+		public boolean validateObject(Object obj) {
+			TAsyncConnection conn = (TAsyncConnection) obj;
+			return (!conn.kv.hasError()) && (!conn.kv.hasTimeout());
+		}
+	}
+
+	private static class TAsyncConnection {
+		public TTransport transport;
+
+		public KeyValueService.AsyncClient kv;
+
+		public TAsyncConnection(TTransport transport,
+				KeyValueService.AsyncClient kv) {
+			this.transport = transport;
+			this.kv = kv;
+		}
+	}
+
 	private static class TConnection {
 		public TTransport transport;
 
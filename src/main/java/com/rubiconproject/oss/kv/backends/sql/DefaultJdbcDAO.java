@@ -5,7 +5,9 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import com.rubiconproject.oss.kv.transcoder.Transcoder;
 
@@ -87,6 +89,22 @@ public class DefaultJdbcDAO implements JdbcDAO {
 		return ps;
 	}
 
+	public PreparedStatement prepareBulkInsert(Connection conn,
+			Map<String, Object> values, Transcoder transcoder)
+			throws SQLException, IOException {
+		PreparedStatement ps = conn
+				.prepareStatement(String
+						.format(
+								"insert into %1$s (%2$s, %3$s) values (?, ?) on duplicate key update %3$s = values(%3$s)",
+								table, keyField, valueField));
+		for (Map.Entry<String, Object> entry : values.entrySet()) {
+			ps.setString(1, entry.getKey());
+			ps.setBytes(2, transcoder.encode(entry.getValue()));
+			ps.addBatch();
+		}
+		return ps;
+	}
+
 	public PreparedStatement prepareDelete(Connection conn, String key)
 			throws SQLException, IOException {
 		PreparedStatement ps = conn.prepareStatement(String.format(
@@ -95,6 +113,17 @@ public class DefaultJdbcDAO implements JdbcDAO {
 		return ps;
 	}
 
+	public PreparedStatement prepareBulkDelete(Connection conn,
+			Collection<String> keys) throws SQLException, IOException {
+		PreparedStatement ps = conn.prepareStatement(String.format(
+				"delete from %1$s where %2$s = ?", table, keyField));
+		for (String key : keys) {
+			ps.setString(1, key);
+			ps.addBatch();
+		}
+		return ps;
+	}
+
 	public PreparedStatement prepareCount(Connection conn) throws SQLException {
 		PreparedStatement ps = conn.prepareStatement(String.format(
 				"select count(*) from %1$s", table));
@@ -15,6 +15,8 @@ public abstract class AbstractOperation<V> implements Operation<V>,
 
 	protected transient OperationCallback<V> callback;
 
+	protected transient OperationDeadline deadline;
+
 	protected Node node;
 
 	protected int nodeRank;
@@ -58,6 +60,14 @@ public abstract class AbstractOperation<V> implements Operation<V>,
 		this.nodeRank = nodeRank;
 	}
 
+	public OperationDeadline getDeadline() {
+		return deadline;
+	}
+
+	public void setDeadline(OperationDeadline deadline) {
+		this.deadline = deadline;
+	}
+
 	public String getKey() {
 		return key;
 	}
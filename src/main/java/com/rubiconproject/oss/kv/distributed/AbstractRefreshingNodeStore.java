@@ -1,85 +1,191 @@
 package com.rubiconproject.oss.kv.distributed;
 
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.rubiconproject.oss.kv.util.DaemonThreadFactory;
+
+/**
+ * Base class for node stores that read the node list from somewhere else.
+ *
+ * The list is published to listeners as an immutable {@link Topology} in a
+ * new epoch each time it changes. A daemon thread reads it again every
+ * period, or as soon as notifyChanged() is called, so a store that is told
+ * of a change by its source publishes it without waiting for the next poll.
+ * Sources that can hold a request open until the list changes may block in
+ * refreshActiveNodes() and return null when nothing changed, with a short
+ * refresh period. After a failure the next read waits for the retry period
+ * instead, doubled for each further failure, so an unreachable source is
+ * not hammered.
+ *
+ * @author sam
+ *
+ */
 public abstract class AbstractRefreshingNodeStore implements NodeStore {
 	public static final Long DEFAULT_DELAY = 1000l * 60l;
 
 	public static final Long DEFAULT_PERIOD = 1000l * 60l;
 
+	public static final Long MAX_RETRY_PERIOD = 1000l * 60l * 5l;
+
+	public static final String REFRESH_PERIOD_PROPERTY = "nodeStore.refreshPeriod";
+
 	protected Log log = LogFactory.getLog(getClass());
 
 	protected Properties props;
 
-	protected List<NodeChangeListener> listeners = new LinkedList<NodeChangeListener>();
+	protected List<NodeChangeListener> listeners = new CopyOnWriteArrayList<NodeChangeListener>();
+
+	// replaced, never modified, while holding this
+	private volatile Topology topology = Topology.EMPTY;
+
+	private Object refreshLock = new Object();
+
+	// guarded by refreshLock
+	private boolean changeNotified = false;
 
-	protected volatile List<Node> activeNodes = new LinkedList<Node>();
+	// bumped by each schedule() and stop(); a refresher from an earlier
+	// generation exits without publishing
+	private volatile int generation = 0;
+
+	private Thread refresher;
 
 	public void setProperties(Properties props) {
 		this.props = props;
 	}
 
 	public void start() throws IOException, ConfigurationException {
-		this.activeNodes = refreshActiveNodes();
-		publish();
-		schedule(DEFAULT_DELAY, DEFAULT_PERIOD);
+		List<Node> nodes = refreshActiveNodes();
+		synchronized (this) {
+			if ((nodes != null) && isChanged(nodes))
+				topology = topology.next(nodes);
+			// listeners added before start() get the nodes even if unchanged
+			publish();
+		}
+		long period = getRefreshPeriod();
+		schedule(Math.min(DEFAULT_DELAY, period), period);
 	}
 
-	public void schedule(long delay, long period) {
-		Timer t = new Timer(true);
-		t.scheduleAtFixedRate(new TimerTask() {
+	/**
+	 * Refresh the nodes after delay and then every period millis, or sooner
+	 * when notifyChanged() is called, until stop() is called.
+	 */
+	public synchronized void schedule(final long delay, final long period) {
+		if (refresher != null)
+			return;
+		final int current = ++generation;
+		refresher = new DaemonThreadFactory().newThread(new Runnable() {
 			public void run() {
-				try {
-					List<Node> newActiveNodes = refreshActiveNodes();
-					if (changed(activeNodes, newActiveNodes)) {
-						activeNodes = newActiveNodes;
-						publish();
-					}
-				} catch (Exception e) {
-					log.error("Exception calling refreshActiveNodes()", e);
-				}
+				refresh(current, delay, period);
 			}
-		}, delay, period);
+		});
+		refresher.setName(getClass().getSimpleName() + " refresher");
+		refresher.start();
+	}
+
+	public synchronized void stop() {
+		if (refresher == null)
+			return;
+		++generation;
+		refresher.interrupt();
+		refresher = null;
+	}
+
+	/**
+	 * Read the nodes again now rather than at the end of the period, e.g.
+	 * when the source has signalled that they changed.
+	 */
+	public void notifyChanged() {
+		synchronized (refreshLock) {
+			changeNotified = true;
+			refreshLock.notifyAll();
+		}
 	}
 
 	public void addChangeListener(NodeChangeListener listener) {
 		this.listeners.add(listener);
 	}
 
-	public void addNode(Node node) {
-		if (!this.activeNodes.contains(node)) {
-			this.activeNodes.add(node);
+	public synchronized void addNode(Node node) {
+		if (!topology.getNodes().contains(node)) {
+			List<Node> nodes = new ArrayList<Node>(topology.getNodes());
+			nodes.add(node);
+			topology = topology.next(nodes);
 			publish();
 		}
 	}
 
-	public void removeNode(Node node) {
-		if (this.activeNodes.contains(node)) {
-			this.activeNodes.remove(node);
+	public synchronized void removeNode(Node node) {
+		if (topology.getNodes().contains(node)) {
+			List<Node> nodes = new ArrayList<Node>(topology.getNodes());
+			nodes.remove(node);
+			topology = topology.next(nodes);
 			publish();
 		}
 	}
 
 	public List<Node> getActiveNodes() {
-		return activeNodes;
+		return topology.getNodes();
 	}
 
+	public Topology getTopology() {
+		return topology;
+	}
+
+	/**
+	 * Returns the current nodes from the source, or null if they are known
+	 * not to have changed since the last call.
+	 */
 	public abstract List<Node> refreshActiveNodes() throws IOException,
 			ConfigurationException;
 
-	protected void publish() {
-		activeNodes = getActiveNodes();
+	/**
+	 * Millis between refreshes. REFRESH_PERIOD_PROPERTY if set, otherwise
+	 * DEFAULT_PERIOD.
+	 */
+	protected long getRefreshPeriod() {
+		String period = (props == null) ? null : props
+				.getProperty(REFRESH_PERIOD_PROPERTY);
+		return (period == null) ? DEFAULT_PERIOD : Long.parseLong(period);
+	}
+
+	/**
+	 * Millis to wait after refreshActiveNodes() fails, doubled for each
+	 * further failure up to MAX_RETRY_PERIOD. The refresh period by default;
+	 * stores with a short refresh period should return the normal one.
+	 */
+	protected long getRetryPeriod() {
+		return getRefreshPeriod();
+	}
+
+	/**
+	 * Publish the nodes in a new epoch if they differ from the current ones.
+	 */
+	protected synchronized void update(List<Node> nodes) {
+		if (isChanged(nodes)) {
+			topology = topology.next(nodes);
+			publish();
+		}
+	}
+
+	/**
+	 * Hand the current topology to each listener. Called while holding this,
+	 * so listeners see epochs in order.
+	 */
+	protected synchronized void publish() {
+		Topology current = topology;
 		for (NodeChangeListener listener : listeners) {
 			try {
-				listener.setActiveNodes(activeNodes);
+				if (listener instanceof TopologyListener)
+					((TopologyListener) listener).setTopology(current);
+				else
+					listener.setActiveNodes(current.getNodes());
 			} catch (Exception e) {
 				log.warn("Exception calling activeNodes() on listener class.",
 						e);
@@ -87,21 +193,50 @@ public abstract class AbstractRefreshingNodeStore implements NodeStore {
 		}
 	}
 
-	private boolean changed(List<Node> active, List<Node> updated) {
-		if (active.size() != updated.size())
-			return true;
-		for (int i = 0; i < active.size(); ++i) {
-			Node currentNode = active.get(i);
-			Node updatedNode = updated.get(i);
-			// compare
-			if ((currentNode.getId() != updatedNode.getId())
-					|| (!currentNode.getConnectionURI().equals(
-							updatedNode.getConnectionURI()))
-					|| (currentNode.getPhysicalId() != updatedNode
-							.getPhysicalId())
-					|| (!currentNode.getSalt().equals(updatedNode.getSalt())))
-				return true;
+	private boolean isChanged(List<Node> nodes) {
+		return (topology.getEpoch() == 0) || topology.isChanged(nodes);
+	}
+
+	private void refresh(int current, long delay, long period) {
+		long wait = delay;
+		int failures = 0;
+		while (awaitChange(current, wait)) {
+			try {
+				List<Node> nodes = refreshActiveNodes();
+				if ((nodes != null) && (current == generation))
+					update(nodes);
+				failures = 0;
+				wait = period;
+			} catch (Exception e) {
+				log.error("Exception calling refreshActiveNodes()", e);
+				wait = retryWait(++failures, period);
+			}
+		}
+	}
+
+	private long retryWait(int failures, long period) {
+		long retry = Math.max(period, getRetryPeriod());
+		long max = Math.max(retry, MAX_RETRY_PERIOD);
+		return Math.min(retry << Math.min(failures - 1, 16), max);
+	}
+
+	/**
+	 * Wait until notifyChanged() is called or timeout millis pass. Returns
+	 * false once the given generation has been stopped.
+	 */
+	private boolean awaitChange(int current, long timeout) {
+		long until = System.currentTimeMillis() + timeout;
+		synchronized (refreshLock) {
+			long remaining;
+			while ((current == generation) && !changeNotified
+					&& ((remaining = until - System.currentTimeMillis()) > 0)) {
+				try {
+					refreshLock.wait(remaining);
+				} catch (InterruptedException e) {
+				}
+			}
+			changeNotified = false;
 		}
-		return false;
+		return (current == generation);
 	}
 }
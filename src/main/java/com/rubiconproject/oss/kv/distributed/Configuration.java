@@ -3,6 +3,9 @@ package com.rubiconproject.oss.kv.distributed;
 import java.util.concurrent.TimeUnit;
 
 import com.rubiconproject.oss.kv.backends.ConnectionFactory;
+import com.rubiconproject.oss.kv.distributed.hashing.HashAlgorithm;
+import com.rubiconproject.oss.kv.distributed.hashing.MD5HashAlgorithm;
+import com.rubiconproject.oss.kv.distributed.impl.PriorityScheduler;
 
 public class Configuration {
 	private NodeStore nodeStore;
@@ -11,8 +14,17 @@ public class Configuration {
 
 	private OperationQueue asyncOperationQueue;
 
+	// budgets shared by the queues and background jobs (null if disabled)
+	private PriorityScheduler priorityScheduler;
+
 	private ConnectionFactory connectionFactory;
 
+	// places keys on the ring
+	private HashAlgorithm hashAlgorithm = new MD5HashAlgorithm();
+
+	// if set, reads that miss fall back to this algorithm's placement
+	private HashAlgorithm previousHashAlgorithm;
+
 	// r: minimum # of nodes that must participate in a successful read
 	private int requiredReads = 2;
 
@@ -38,12 +50,83 @@ public class Configuration {
 	// time period for above error count
 	private TimeUnit nodeErrorCountPeriod = TimeUnit.MINUTES;
 
+	// time an evicted node is kept out of preference lists before a single
+	// probe request is sent to it (millis)
+	private long nodeEjectionTime = 10000l;
+
+	// responses slower than this count as node errors (millis, 0 to disable)
+	private long slowNodeResponseTime = 0l;
+
 	// send an async set() request to nodes that return null on get requests
 	private boolean fillNullGetResults = true;
 
 	// send an async set() request to nodes that throw an exception on get requests
 	private boolean fillErrorGetResults = false;
 
+	// send a read to the next node in the preference list if the first read
+	// replicas have not answered within the hedge delay
+	private boolean hedgedReads = false;
+
+	// hedge delay as a percentile of recently observed read latencies
+	private double hedgedReadPercentile = 0.95d;
+
+	// lower bound on the hedge delay (millis)
+	private long hedgedReadMinimumDelay = 5l;
+
+	// order the write replicas of each read by recent response time
+	private boolean latencyAwareReads = false;
+
+	// reject requests up front when too many are in flight or their
+	// operations would not fit in the sync queue
+	private boolean admissionControl = false;
+
+	// starting, lowest and highest adaptive limit on requests in flight
+	private int admissionInitialLimit = 100;
+
+	private int admissionMinLimit = 10;
+
+	private int admissionMaxLimit = 1000;
+
+	// operations the sync queue can hold (0 for no limit)
+	private int admissionMaxOperations = 0;
+
+	// share one quorum read between concurrent gets of the same key
+	private boolean coalesceReads = false;
+
+	// max estimated bytes of values cached locally by the client (0 to
+	// disable the near cache)
+	private long nearCacheMaxBytes = 0l;
+
+	// time a value may be served from the near cache (millis)
+	private long nearCacheTtl = 1000l;
+
+	// directory for hint logs of writes that could not be applied to a
+	// replica (null to disable hinted handoff)
+	private String hintDirectory;
+
+	// time between attempts to replay hints to recovered nodes (millis)
+	private long hintReplayInterval = 10000l;
+
+	// max keys per bulk request when replaying hints
+	private int hintReplayBatchSize = 100;
+
+	// time between anti-entropy repairs of all ranges by ValkyrieAntiEntropy
+	// (millis, 0 to repair once)
+	private long antiEntropyInterval = 0l;
+
+	// depth of the merkle trees compared by anti-entropy
+	private int merkleTreeDepth = 8;
+
+	// file operation events are written to instead of the haymitch.* log
+	// categories (null to keep using them)
+	private String operationLogFile;
+
+	// "binary" or "csv"
+	private String operationLogFormat = "binary";
+
+	// operation events buffered in memory before new ones are dropped
+	private int operationLogBufferSize = 65536;
+
 	public NodeStore getNodeStore() {
 		return nodeStore;
 	}
@@ -68,6 +151,14 @@ public class Configuration {
 		this.asyncOperationQueue = queue;
 	}
 
+	public PriorityScheduler getPriorityScheduler() {
+		return priorityScheduler;
+	}
+
+	public void setPriorityScheduler(PriorityScheduler priorityScheduler) {
+		this.priorityScheduler = priorityScheduler;
+	}
+
 	public ConnectionFactory getConnectionFactory() {
 		return connectionFactory;
 	}
@@ -76,6 +167,22 @@ public class Configuration {
 		this.connectionFactory = factory;
 	}
 
+	public HashAlgorithm getHashAlgorithm() {
+		return hashAlgorithm;
+	}
+
+	public void setHashAlgorithm(HashAlgorithm hashAlgorithm) {
+		this.hashAlgorithm = hashAlgorithm;
+	}
+
+	public HashAlgorithm getPreviousHashAlgorithm() {
+		return previousHashAlgorithm;
+	}
+
+	public void setPreviousHashAlgorithm(HashAlgorithm previousHashAlgorithm) {
+		this.previousHashAlgorithm = previousHashAlgorithm;
+	}
+
 	public int getRequiredReads() {
 		return requiredReads;
 	}
@@ -140,6 +247,22 @@ public class Configuration {
 		this.nodeErrorCountPeriod = nodeErrorCountPeriod;
 	}
 
+	public long getNodeEjectionTime() {
+		return nodeEjectionTime;
+	}
+
+	public void setNodeEjectionTime(long nodeEjectionTime) {
+		this.nodeEjectionTime = nodeEjectionTime;
+	}
+
+	public long getSlowNodeResponseTime() {
+		return slowNodeResponseTime;
+	}
+
+	public void setSlowNodeResponseTime(long slowNodeResponseTime) {
+		this.slowNodeResponseTime = slowNodeResponseTime;
+	}
+
 	public boolean getFillNullGetResults() {
 		return fillNullGetResults;
 	}
@@ -155,4 +278,164 @@ public class Configuration {
 	public void setFillErrorGetResults(boolean fillErrorGetResults) {
 		this.fillErrorGetResults = fillErrorGetResults;
 	}
+
+	public boolean getHedgedReads() {
+		return hedgedReads;
+	}
+
+	public void setHedgedReads(boolean hedgedReads) {
+		this.hedgedReads = hedgedReads;
+	}
+
+	public double getHedgedReadPercentile() {
+		return hedgedReadPercentile;
+	}
+
+	public void setHedgedReadPercentile(double hedgedReadPercentile) {
+		this.hedgedReadPercentile = hedgedReadPercentile;
+	}
+
+	public long getHedgedReadMinimumDelay() {
+		return hedgedReadMinimumDelay;
+	}
+
+	public void setHedgedReadMinimumDelay(long hedgedReadMinimumDelay) {
+		this.hedgedReadMinimumDelay = hedgedReadMinimumDelay;
+	}
+
+	public boolean getLatencyAwareReads() {
+		return latencyAwareReads;
+	}
+
+	public void setLatencyAwareReads(boolean latencyAwareReads) {
+		this.latencyAwareReads = latencyAwareReads;
+	}
+
+	public boolean getAdmissionControl() {
+		return admissionControl;
+	}
+
+	public void setAdmissionControl(boolean admissionControl) {
+		this.admissionControl = admissionControl;
+	}
+
+	public int getAdmissionInitialLimit() {
+		return admissionInitialLimit;
+	}
+
+	public void setAdmissionInitialLimit(int admissionInitialLimit) {
+		this.admissionInitialLimit = admissionInitialLimit;
+	}
+
+	public int getAdmissionMinLimit() {
+		return admissionMinLimit;
+	}
+
+	public void setAdmissionMinLimit(int admissionMinLimit) {
+		this.admissionMinLimit = admissionMinLimit;
+	}
+
+	public int getAdmissionMaxLimit() {
+		return admissionMaxLimit;
+	}
+
+	public void setAdmissionMaxLimit(int admissionMaxLimit) {
+		this.admissionMaxLimit = admissionMaxLimit;
+	}
+
+	public int getAdmissionMaxOperations() {
+		return admissionMaxOperations;
+	}
+
+	public void setAdmissionMaxOperations(int admissionMaxOperations) {
+		this.admissionMaxOperations = admissionMaxOperations;
+	}
+
+	public boolean getCoalesceReads() {
+		return coalesceReads;
+	}
+
+	public void setCoalesceReads(boolean coalesceReads) {
+		this.coalesceReads = coalesceReads;
+	}
+
+	public long getNearCacheMaxBytes() {
+		return nearCacheMaxBytes;
+	}
+
+	public void setNearCacheMaxBytes(long nearCacheMaxBytes) {
+		this.nearCacheMaxBytes = nearCacheMaxBytes;
+	}
+
+	public long getNearCacheTtl() {
+		return nearCacheTtl;
+	}
+
+	public void setNearCacheTtl(long nearCacheTtl) {
+		this.nearCacheTtl = nearCacheTtl;
+	}
+
+	public String getHintDirectory() {
+		return hintDirectory;
+	}
+
+	public void setHintDirectory(String hintDirectory) {
+		this.hintDirectory = hintDirectory;
+	}
+
+	public long getHintReplayInterval() {
+		return hintReplayInterval;
+	}
+
+	public void setHintReplayInterval(long hintReplayInterval) {
+		this.hintReplayInterval = hintReplayInterval;
+	}
+
+	public int getHintReplayBatchSize() {
+		return hintReplayBatchSize;
+	}
+
+	public void setHintReplayBatchSize(int hintReplayBatchSize) {
+		this.hintReplayBatchSize = hintReplayBatchSize;
+	}
+
+	public long getAntiEntropyInterval() {
+		return antiEntropyInterval;
+	}
+
+	public void setAntiEntropyInterval(long antiEntropyInterval) {
+		this.antiEntropyInterval = antiEntropyInterval;
+	}
+
+	public int getMerkleTreeDepth() {
+		return merkleTreeDepth;
+	}
+
+	public void setMerkleTreeDepth(int merkleTreeDepth) {
+		this.merkleTreeDepth = merkleTreeDepth;
+	}
+
+	public String getOperationLogFile() {
+		return operationLogFile;
+	}
+
+	public void setOperationLogFile(String operationLogFile) {
+		this.operationLogFile = operationLogFile;
+	}
+
+	public String getOperationLogFormat() {
+		return operationLogFormat;
+	}
+
+	public void setOperationLogFormat(String operationLogFormat) {
+		this.operationLogFormat = operationLogFormat;
+	}
+
+	public int getOperationLogBufferSize() {
+		return operationLogBufferSize;
+	}
+
+	public void setOperationLogBufferSize(int operationLogBufferSize) {
+		this.operationLogBufferSize = operationLogBufferSize;
+	}
 }
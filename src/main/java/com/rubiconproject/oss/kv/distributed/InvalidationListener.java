@@ -0,0 +1,12 @@
+package com.rubiconproject.oss.kv.distributed;
+
+/**
+ * Told of every key a client writes or deletes, so that other clients'
+ * near caches can be invalidated, e.g. by publishing the key on a message
+ * bus whose subscribers call invalidate() on their own client.
+ *
+ * Called on the writing thread after the write, so it should not block.
+ */
+public interface InvalidationListener {
+	public void invalidated(String key);
+}
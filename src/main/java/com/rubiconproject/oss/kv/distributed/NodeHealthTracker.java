@@ -0,0 +1,57 @@
+package com.rubiconproject.oss.kv.distributed;
+
+/**
+ * Tracks the outcome of requests sent to each node so that node locators can
+ * steer traffic away from nodes that are failing.
+ * 
+ * @author sam
+ * 
+ */
+public interface NodeHealthTracker {
+	/**
+	 * Record the outcome of a single request to the given node.
+	 * 
+	 * @param node
+	 * @param status
+	 * @param duration
+	 *            request duration in millis
+	 */
+	public void record(Node node, OperationStatus status, long duration);
+
+	/**
+	 * Return true if requests should be sent to the given node, without side
+	 * effects. A node that has been ejected is reported available again once
+	 * its probe is due, until a request is sent to it.
+	 * 
+	 * @param node
+	 * @return
+	 */
+	public boolean isAvailable(Node node);
+
+	/**
+	 * Called as a request is actually sent to the given node. If the node's
+	 * probe is due this request becomes the probe, and its outcome passed to
+	 * record() decides whether the node is re-admitted.
+	 * 
+	 * @param node
+	 */
+	public void sending(Node node);
+
+	/**
+	 * Called if a request passed to sending() could not be sent after all,
+	 * e.g. because the queue rejected it. If it had become the probe, the
+	 * probe is due again at once.
+	 * 
+	 * @param node
+	 */
+	public void unsent(Node node);
+
+	/**
+	 * Return true if the given node is currently ejected, without side
+	 * effects.
+	 * 
+	 * @param node
+	 * @return
+	 */
+	public boolean isEjected(Node node);
+}
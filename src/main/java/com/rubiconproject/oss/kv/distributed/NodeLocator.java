@@ -7,10 +7,29 @@ import com.rubiconproject.oss.kv.distributed.hashing.HashAlgorithm;
 public interface NodeLocator {
 	public void setActiveNodes(List<Node> nodes);
 
+	/**
+	 * Returns the topology preference lists are currently computed from.
+	 */
+	public Topology getTopology();
+
 	public int getPrimaryNode(HashAlgorithm hashAlg, String key);
 
 	public List<Node> getPreferenceList(final HashAlgorithm hashAlg,
 			final String key, final int count);
 
 	List<Node> getFullPreferenceList(HashAlgorithm hashAlg, String key);
+
+	/**
+	 * Return the first count nodes for a key in ring order, ignoring node
+	 * health. These are the replicas that own the key even while some of them
+	 * are ejected.
+	 */
+	public List<Node> getNaturalPreferenceList(HashAlgorithm hashAlg,
+			String key, int count);
+
+	/**
+	 * Nodes the tracker reports as unavailable are moved behind all available
+	 * nodes in preference lists. May be null to disable.
+	 */
+	public void setNodeHealthTracker(NodeHealthTracker tracker);
 }
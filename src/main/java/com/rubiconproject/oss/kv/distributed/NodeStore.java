@@ -9,8 +9,18 @@ public interface NodeStore {
 
 	public void start() throws IOException, ConfigurationException;
 
+	/**
+	 * Stop refreshing the nodes.
+	 */
+	public void stop();
+
 	public List<Node> getActiveNodes();
 
+	/**
+	 * Returns the active nodes and the epoch they were published in.
+	 */
+	public Topology getTopology();
+
 	public void addNode(Node node);
 
 	public void removeNode(Node node);
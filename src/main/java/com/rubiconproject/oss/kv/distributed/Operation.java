@@ -29,5 +29,13 @@ public interface Operation<V> extends Serializable {
 
 	public void setNodeRank(int index);
 
+	/**
+	 * Returns when the operation's result is needed by, or null if it has no
+	 * deadline.
+	 */
+	public OperationDeadline getDeadline();
+
+	public void setDeadline(OperationDeadline deadline);
+
 	public Callable<OperationResult<V>> getCallable(KeyValueStore store);
 }
@@ -0,0 +1,15 @@
+package com.rubiconproject.oss.kv.distributed;
+
+/**
+ * The error of an operation that was not sent to its node because its
+ * request had already finished, its deadline had passed or its queue was
+ * stopped before it ran.
+ */
+public class OperationAbandonedException extends
+		DistributedKeyValueStoreException {
+	private static final long serialVersionUID = 2958230416502743419L;
+
+	public OperationAbandonedException(String msg) {
+		super(msg);
+	}
+}
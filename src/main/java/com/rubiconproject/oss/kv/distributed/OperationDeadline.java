@@ -0,0 +1,62 @@
+package com.rubiconproject.oss.kv.distributed;
+
+/**
+ * When a request needs the results of its operations by. One deadline is
+ * shared by the copies of an operation sent to each node, so that once the
+ * request is done with them, copies still waiting for a thread can be
+ * skipped rather than sent to the backend. Copies that do run pass the time
+ * left to the backend (see {@link com.rubiconproject.oss.kv.util.CallDeadline}).
+ *
+ * @author sam
+ *
+ */
+public class OperationDeadline {
+	private long issued;
+
+	private long expiry;
+
+	private volatile boolean abandoned = false;
+
+	/**
+	 * @param timeout
+	 *            millis from now
+	 */
+	public OperationDeadline(long timeout) {
+		this.issued = System.currentTimeMillis();
+		this.expiry = issued + timeout;
+	}
+
+	/**
+	 * Returns when the request was issued, as a System.currentTimeMillis()
+	 * time.
+	 */
+	public long getIssued() {
+		return issued;
+	}
+
+	/**
+	 * Returns the deadline as a System.currentTimeMillis() time.
+	 */
+	public long getExpiry() {
+		return expiry;
+	}
+
+	public long getRemaining() {
+		return Math.max(0l, expiry - System.currentTimeMillis());
+	}
+
+	/**
+	 * Mark the operations as no longer needed.
+	 */
+	public void abandon() {
+		abandoned = true;
+	}
+
+	/**
+	 * Returns true once the operations are no longer needed or the deadline
+	 * has passed.
+	 */
+	public boolean isAbandoned() {
+		return abandoned || (System.currentTimeMillis() >= expiry);
+	}
+}
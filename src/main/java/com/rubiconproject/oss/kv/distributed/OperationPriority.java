@@ -0,0 +1,13 @@
+package com.rubiconproject.oss.kv.distributed;
+
+/**
+ * Classes of backend traffic, highest priority first.
+ */
+public enum OperationPriority {
+
+	ForegroundRead, ForegroundWrite, Backfill, Rebalance;
+
+	public boolean isBackground() {
+		return (this == Backfill) || (this == Rebalance);
+	}
+}
@@ -0,0 +1,76 @@
+package com.rubiconproject.oss.kv.distributed;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable snapshot of the active nodes, numbered by an epoch that a
+ * node store increases each time it publishes a change. Listeners swap a
+ * whole snapshot in at once, so a request sees either the old node list or
+ * the new one, and can ignore a snapshot older than the one they have.
+ *
+ * @author sam
+ *
+ */
+public class Topology {
+	public static final Topology EMPTY = new Topology(0l, new ArrayList<Node>(
+			0));
+
+	private long epoch;
+
+	private List<Node> nodes;
+
+	public Topology(long epoch, List<Node> nodes) {
+		this.epoch = epoch;
+		this.nodes = Collections.unmodifiableList(new ArrayList<Node>(nodes));
+	}
+
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * Returns the nodes, which may not be modified.
+	 */
+	public List<Node> getNodes() {
+		return nodes;
+	}
+
+	public int size() {
+		return nodes.size();
+	}
+
+	/**
+	 * Returns a snapshot of the given nodes in the next epoch.
+	 */
+	public Topology next(List<Node> nodes) {
+		return new Topology(epoch + 1, nodes);
+	}
+
+	/**
+	 * Returns true if the nodes differ from these in order, id, physical id,
+	 * salt or connection uri.
+	 */
+	public boolean isChanged(List<Node> updated) {
+		if (nodes.size() != updated.size())
+			return true;
+		for (int i = 0; i < nodes.size(); ++i) {
+			Node currentNode = nodes.get(i);
+			Node updatedNode = updated.get(i);
+			// compare
+			if ((currentNode.getId() != updatedNode.getId())
+					|| (!currentNode.getConnectionURI().equals(
+							updatedNode.getConnectionURI()))
+					|| (currentNode.getPhysicalId() != updatedNode
+							.getPhysicalId())
+					|| (!currentNode.getSalt().equals(updatedNode.getSalt())))
+				return true;
+		}
+		return false;
+	}
+
+	public String toString() {
+		return String.format("epoch %1$d, %2$d nodes", epoch, nodes.size());
+	}
+}
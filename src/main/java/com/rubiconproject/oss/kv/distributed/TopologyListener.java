@@ -0,0 +1,16 @@
+package com.rubiconproject.oss.kv.distributed;
+
+/**
+ * A {@link NodeChangeListener} that is handed whole {@link Topology}
+ * snapshots. Node stores call setTopology() instead of setActiveNodes() on
+ * listeners that implement it.
+ *
+ * @author sam
+ *
+ */
+public interface TopologyListener extends NodeChangeListener {
+	/**
+	 * Swap in the topology, unless it is older than the current one.
+	 */
+	public void setTopology(Topology topology);
+}
@@ -0,0 +1,53 @@
+package com.rubiconproject.oss.kv.distributed.hashing;
+
+/**
+ * Lookup of hash algorithms by name.
+ * 
+ * Changing the hash algorithm of an existing cluster moves almost every key
+ * to a different preference list. To migrate, configure the new algorithm as
+ * the hash algorithm and the old one as the previous hash algorithm
+ * (hash.algorithm / hash.previousAlgorithm). Writes then go to the new
+ * placement; reads that find nothing there fall back to the old placement and
+ * copy what they find forward. Drop the previous algorithm once all data has
+ * been copied (e.g. with NodeCopy).
+ * 
+ * @author sam
+ * 
+ */
+public class HashAlgorithms {
+	public static final String MD5 = "md5";
+
+	public static final String KETAMA = "ketama";
+
+	public static final String MURMUR3 = "murmur3";
+
+	public static final String XXHASH64 = "xxhash64";
+
+	private HashAlgorithms() {
+	}
+
+	/**
+	 * Return the hash algorithm for one of the names above, or instantiate the
+	 * named HashAlgorithm class.
+	 * 
+	 * @param name
+	 * @return
+	 * @throws IllegalArgumentException
+	 */
+	public static HashAlgorithm forName(String name)
+			throws IllegalArgumentException {
+		if (MD5.equalsIgnoreCase(name))
+			return new MD5HashAlgorithm();
+		else if (KETAMA.equalsIgnoreCase(name))
+			return new KetamaHashAlgorithm();
+		else if (MURMUR3.equalsIgnoreCase(name))
+			return new Murmur3HashAlgorithm();
+		else if (XXHASH64.equalsIgnoreCase(name))
+			return new XXHash64HashAlgorithm();
+		try {
+			return (HashAlgorithm) Class.forName(name).newInstance();
+		} catch (Exception e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+}
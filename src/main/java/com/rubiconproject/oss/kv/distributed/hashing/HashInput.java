@@ -0,0 +1,52 @@
+package com.rubiconproject.oss.kv.distributed.hashing;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Byte access to the UTF-8 form of a key for the non-cryptographic hash
+ * algorithms. Pure ASCII keys (the common case) are read straight from the
+ * string's chars; only keys with other characters are encoded to a byte[].
+ *
+ * @author sam
+ *
+ */
+final class HashInput {
+	private HashInput() {
+	}
+
+	static boolean isAscii(String key) {
+		for (int i = 0; i < key.length(); ++i) {
+			if (key.charAt(i) >= 0x80)
+				return false;
+		}
+		return true;
+	}
+
+	static byte[] utf8(String key) {
+		try {
+			return key.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException("Cannot find UTF-8 charset!");
+		}
+	}
+
+	/*
+	 * Little-endian reads from either the ascii string (bytes == null) or the
+	 * encoded bytes.
+	 */
+	static int getByte(String ascii, byte[] bytes, int index) {
+		return (bytes == null) ? ascii.charAt(index) : (bytes[index] & 0xFF);
+	}
+
+	static int getInt(String ascii, byte[] bytes, int index) {
+		return getByte(ascii, bytes, index)
+				| (getByte(ascii, bytes, index + 1) << 8)
+				| (getByte(ascii, bytes, index + 2) << 16)
+				| (getByte(ascii, bytes, index + 3) << 24);
+	}
+
+	static long getLong(String ascii, byte[] bytes, int index) {
+		return ((long) getInt(ascii, bytes, index) & 0xFFFFFFFFl)
+				| ((long) getInt(ascii, bytes, index + 4) << 32);
+	}
+}
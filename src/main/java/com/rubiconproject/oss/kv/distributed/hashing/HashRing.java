@@ -4,6 +4,13 @@ import java.util.Collection;
 import java.util.Map;
 import java.util.TreeMap;
 
+/**
+ * TreeMap-backed hash ring.
+ * 
+ * @deprecated the node locators use {@link LongHashRing}, which does not box
+ *             or allocate on lookups.
+ */
+@Deprecated
 public class HashRing<K, V> {
 	private int nodeCount = 0;
 
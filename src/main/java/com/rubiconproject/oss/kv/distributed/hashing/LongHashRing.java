@@ -0,0 +1,174 @@
+package com.rubiconproject.oss.kv.distributed.hashing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable hash ring over primitive long positions. Positions and values are
+ * held in parallel sorted arrays; lookups are a binary search and ring
+ * traversal is index arithmetic, so nothing is allocated on the request path.
+ *
+ * Instances are created with a {@link Builder} once per topology change and
+ * swapped in atomically.
+ *
+ * @author sam
+ *
+ * @param <V>
+ */
+public class LongHashRing<V> {
+	private int nodeCount;
+
+	private long[] keys;
+
+	private Object[] values;
+
+	private LongHashRing(int nodeCount, long[] keys, Object[] values) {
+		this.nodeCount = nodeCount;
+		this.keys = keys;
+		this.values = values;
+	}
+
+	/**
+	 * Return the node count. As with {@link HashRing} this is kept here so it
+	 * is swapped atomically with the ring.
+	 *
+	 * @return
+	 */
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * Returns the number of positions on the ring.
+	 *
+	 * @return
+	 */
+	public int size() {
+		return keys.length;
+	}
+
+	/**
+	 * Place the given hash on the ring, returning the index of the first
+	 * position greater than or equal to it, wrapping around to 0.
+	 *
+	 * @param hash
+	 * @return
+	 */
+	public int place(long hash) {
+		assert keys.length > 0;
+		int index = Arrays.binarySearch(keys, hash);
+		if (index < 0)
+			index = -(index + 1);
+		return (index == keys.length) ? 0 : index;
+	}
+
+	/**
+	 * Return the index preceding the given one, wrapping around to the last
+	 * position.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public int lower(int index) {
+		return (index == 0) ? keys.length - 1 : index - 1;
+	}
+
+	/**
+	 * Return the index following the given one, wrapping around to 0.
+	 *
+	 * @param index
+	 * @return
+	 */
+	public int higher(int index) {
+		return (index == keys.length - 1) ? 0 : index + 1;
+	}
+
+	public long getKey(int index) {
+		return keys[index];
+	}
+
+	@SuppressWarnings("unchecked")
+	public V getValue(int index) {
+		return (V) values[index];
+	}
+
+	/**
+	 * Convenience for getValue(place(hash)).
+	 *
+	 * @param hash
+	 * @return
+	 */
+	public V get(long hash) {
+		return getValue(place(hash));
+	}
+
+	public static class Builder<V> {
+		private int nodeCount;
+
+		private List<Position<V>> positions = new ArrayList<Position<V>>();
+
+		public Builder(int nodeCount) {
+			this.nodeCount = nodeCount;
+		}
+
+		/**
+		 * Add a value at the given position. If the position is added more than
+		 * once the last value wins.
+		 *
+		 * @param key
+		 * @param value
+		 * @return
+		 */
+		public Builder<V> put(long key, V value) {
+			positions.add(new Position<V>(key, positions.size(), value));
+			return this;
+		}
+
+		public LongHashRing<V> build() {
+			Collections.sort(positions, new Comparator<Position<V>>() {
+				public int compare(Position<V> o1, Position<V> o2) {
+					if (o1.key != o2.key)
+						return (o1.key < o2.key) ? -1 : 1;
+					return (o1.order < o2.order) ? -1
+							: ((o1.order == o2.order) ? 0 : 1);
+				}
+			});
+			// drop all but the last put for duplicate positions
+			int size = 0;
+			for (int i = 0; i < positions.size(); ++i) {
+				if ((i == positions.size() - 1)
+						|| (positions.get(i + 1).key != positions.get(i).key))
+					++size;
+			}
+			long[] keys = new long[size];
+			Object[] values = new Object[size];
+			int index = 0;
+			for (int i = 0; i < positions.size(); ++i) {
+				if ((i == positions.size() - 1)
+						|| (positions.get(i + 1).key != positions.get(i).key)) {
+					keys[index] = positions.get(i).key;
+					values[index] = positions.get(i).value;
+					++index;
+				}
+			}
+			return new LongHashRing<V>(nodeCount, keys, values);
+		}
+	}
+
+	private static class Position<V> {
+		private long key;
+
+		private int order;
+
+		private V value;
+
+		public Position(long key, int order, V value) {
+			this.key = key;
+			this.order = order;
+			this.value = value;
+		}
+	}
+}
@@ -6,6 +6,18 @@ import java.security.NoSuchAlgorithmException;
 
 public class MD5HashAlgorithm implements HashAlgorithm {
 
+	// MessageDigest is not thread safe and costly to look up per call
+	private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(
+						"Cannot find MD5 message digest!");
+			}
+		}
+	};
+
 	public long hash(final String key) {
 		byte[] bytes = md5(key);
 		long l = 0;
@@ -17,16 +29,10 @@ public class MD5HashAlgorithm implements HashAlgorithm {
 	}
 
 	private byte[] md5(final String key) {
-		try {
-			MessageDigest md5 = MessageDigest.getInstance("MD5");
-			md5.reset();
-			md5.update(key.getBytes());
-			byte[] bytes = md5.digest();
-			return bytes;
-		} catch (NoSuchAlgorithmException e) {
-			throw new IllegalStateException("Cannot find MD5 message digest!");
-		}
-
+		MessageDigest md5 = digests.get();
+		md5.reset();
+		// platform charset kept so that existing rings keep their placement
+		return md5.digest(key.getBytes());
 	}
 
 }
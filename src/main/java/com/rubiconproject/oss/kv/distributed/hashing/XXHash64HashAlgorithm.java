@@ -0,0 +1,91 @@
+package com.rubiconproject.oss.kv.distributed.hashing;
+
+/**
+ * xxHash64 (seed 0) over the UTF-8 bytes of the key.
+ * 
+ * Keys hash to different positions than with {@link MD5HashAlgorithm}; see
+ * {@link HashAlgorithms} before switching an existing cluster.
+ * 
+ * @author sam
+ * 
+ */
+public class XXHash64HashAlgorithm implements HashAlgorithm {
+	private static final long P1 = 0x9E3779B185EBCA87l;
+
+	private static final long P2 = 0xC2B2AE3D27D4EB4Fl;
+
+	private static final long P3 = 0x165667B19E3779F9l;
+
+	private static final long P4 = 0x85EBCA77C2B2AE63l;
+
+	private static final long P5 = 0x27D4EB2F165667C5l;
+
+	public long hash(final String key) {
+		if (HashInput.isAscii(key))
+			return hash(key, null, key.length());
+		byte[] bytes = HashInput.utf8(key);
+		return hash(null, bytes, bytes.length);
+	}
+
+	private long hash(String ascii, byte[] bytes, int length) {
+		int index = 0;
+		long h;
+		if (length >= 32) {
+			long v1 = P1 + P2;
+			long v2 = P2;
+			long v3 = 0;
+			long v4 = -P1;
+			while (index + 32 <= length) {
+				v1 = round(v1, HashInput.getLong(ascii, bytes, index));
+				v2 = round(v2, HashInput.getLong(ascii, bytes, index + 8));
+				v3 = round(v3, HashInput.getLong(ascii, bytes, index + 16));
+				v4 = round(v4, HashInput.getLong(ascii, bytes, index + 24));
+				index += 32;
+			}
+			h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7)
+					+ Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			h = merge(h, v1);
+			h = merge(h, v2);
+			h = merge(h, v3);
+			h = merge(h, v4);
+		} else {
+			h = P5;
+		}
+		h += length;
+
+		while (index + 8 <= length) {
+			h ^= round(0, HashInput.getLong(ascii, bytes, index));
+			h = Long.rotateLeft(h, 27) * P1 + P4;
+			index += 8;
+		}
+		if (index + 4 <= length) {
+			h ^= ((long) HashInput.getInt(ascii, bytes, index) & 0xFFFFFFFFl)
+					* P1;
+			h = Long.rotateLeft(h, 23) * P2 + P3;
+			index += 4;
+		}
+		while (index < length) {
+			h ^= HashInput.getByte(ascii, bytes, index) * P5;
+			h = Long.rotateLeft(h, 11) * P1;
+			++index;
+		}
+
+		h ^= h >>> 33;
+		h *= P2;
+		h ^= h >>> 29;
+		h *= P3;
+		h ^= h >>> 32;
+		return h;
+	}
+
+	private static long round(long acc, long input) {
+		acc += input * P2;
+		acc = Long.rotateLeft(acc, 31);
+		return acc * P1;
+	}
+
+	private static long merge(long h, long v) {
+		h ^= round(0, v);
+		return h * P1 + P4;
+	}
+}
@@ -1,10 +1,16 @@
 package com.rubiconproject.oss.kv.distributed.impl;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
@@ -14,10 +20,27 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.rubiconproject.oss.kv.backends.ConnectionFactory;
+import com.rubiconproject.oss.kv.distributed.Node;
 import com.rubiconproject.oss.kv.distributed.Operation;
+import com.rubiconproject.oss.kv.distributed.OperationAbandonedException;
 import com.rubiconproject.oss.kv.distributed.OperationQueue;
 import com.rubiconproject.oss.kv.distributed.OperationResult;
 
+/**
+ * Base class for operation queues backed by a fixed size thread pool.
+ *
+ * By default every operation shares one bounded pool queue, so a node that
+ * stops responding can tie up every thread and stall operations to healthy
+ * nodes. Setting a per node thread count turns on bulkheads: each node gets
+ * its own bounded queue and may use at most that many of the pool's threads
+ * at once, with idle threads going to the next node (round robin) that has
+ * work waiting. With work stealing, a node at its limit may also borrow
+ * threads that no other node is waiting for, as long as more than its own
+ * share stays idle.
+ *
+ * @author sam
+ *
+ */
 public abstract class AbstractThreadPoolOperationQueue implements
 		OperationQueue {
 	protected static final int DEFAULT_THREAD_POOL_COUNT = 5;
@@ -36,6 +59,23 @@ public abstract class AbstractThreadPoolOperationQueue implements
 
 	protected int maxQueueDepth = DEFAULT_MAX_QUEUE_DEPTH;
 
+	// bulkheads are disabled while this is 0
+	protected int nodeThreadCount = 0;
+
+	protected int nodeMaxQueueDepth = DEFAULT_MAX_QUEUE_DEPTH;
+
+	protected boolean workStealing = false;
+
+	// lanes by node id, in creation order for round robin; guarded by itself
+	private Map<Integer, Lane> lanes = new LinkedHashMap<Integer, Lane>();
+
+	private List<Lane> laneList = new ArrayList<Lane>();
+
+	// threads handed a task by dispatch(), guarded by lanes
+	private int running = 0;
+
+	private int nextLane = 0;
+
 	public AbstractThreadPoolOperationQueue(Map defaultProperties,
 			ConnectionFactory connectionFactory) {
 		this(defaultProperties, connectionFactory, DEFAULT_THREAD_POOL_COUNT,
@@ -63,32 +103,146 @@ public abstract class AbstractThreadPoolOperationQueue implements
 		this.maxQueueDepth = maxQueueDepth;
 	}
 
+	/**
+	 * Maximum threads used for one node at once. 0 (the default) disables
+	 * bulkheads.
+	 */
+	public void setNodeThreadCount(int nodeThreadCount) {
+		this.nodeThreadCount = nodeThreadCount;
+	}
+
+	/**
+	 * Maximum operations waiting for one node when bulkheads are enabled.
+	 */
+	public void setNodeMaxQueueDepth(int nodeMaxQueueDepth) {
+		this.nodeMaxQueueDepth = nodeMaxQueueDepth;
+	}
+
+	/**
+	 * Allow a node at its thread limit to borrow idle threads.
+	 */
+	public void setWorkStealing(boolean workStealing) {
+		this.workStealing = workStealing;
+	}
+
+	public boolean isBulkheaded() {
+		return nodeThreadCount > 0;
+	}
+
 	public void start() {
+		// with bulkheads dispatch() never hands the pool more tasks than it
+		// has threads, so the pool queue needs no bound
 		executor = new ThreadPoolExecutor(threadPoolCount, threadPoolCount, 0l,
-				TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(
-						maxQueueDepth));
+				TimeUnit.MILLISECONDS,
+				isBulkheaded() ? new LinkedBlockingQueue<Runnable>()
+						: new LinkedBlockingQueue<Runnable>(maxQueueDepth));
 	}
 
+	/**
+	 * Stop the pool, waiting a while for operations to finish. Operations that
+	 * never got a thread are completed with an OperationAbandonedException if
+	 * they are {@link Abandonable}, and cancelled otherwise.
+	 */
 	public void stop() {
+		List<Runnable> unrun = null;
 		executor.shutdown(); // Disable new tasks from being submitted
 		try {
 			// Wait a while for existing tasks to terminate
 			if (!executor.awaitTermination(2000l, TimeUnit.MILLISECONDS)) {
-				executor.shutdownNow(); // Cancel currently executing tasks
+				unrun = executor.shutdownNow(); // Cancel currently executing tasks
 				// Wait a while for tasks to respond to being cancelled
 				if (!executor.awaitTermination(2000l, TimeUnit.MILLISECONDS))
 					log.error("Pool did not terminate within timeout");
 			}
 		} catch (InterruptedException ie) {
 			// (Re-)Cancel if current thread also interrupted
-			executor.shutdownNow();
+			unrun = executor.shutdownNow();
 			// Preserve interrupt status
 			Thread.currentThread().interrupt();
 		}
+		if (unrun != null) {
+			for (Runnable runnable : unrun) {
+				if (runnable instanceof Task)
+					((Task<?>) runnable).abandon();
+				else if (runnable instanceof LaneTask)
+					((LaneTask) runnable).task.abandon();
+			}
+		}
+		// operations still waiting in a bulkhead will never run
+		List<Task<?>> waiting = new ArrayList<Task<?>>();
+		synchronized (lanes) {
+			for (Lane lane : laneList) {
+				waiting.addAll(lane.queue);
+				lane.queue.clear();
+			}
+		}
+		for (Task<?> task : waiting)
+			task.abandon();
 	}
 
+	/**
+	 * Returns the number of operations waiting for a thread.
+	 */
 	public int getQueueSize() {
-		return 100;
+		if (!isBulkheaded()) {
+			ExecutorService e = executor;
+			return (e == null) ? 0 : ((ThreadPoolExecutor) e).getQueue()
+					.size();
+		}
+		synchronized (lanes) {
+			int size = 0;
+			for (Lane lane : laneList)
+				size += lane.queue.size();
+			return size;
+		}
+	}
+
+	/**
+	 * Returns the number of operations waiting for a thread by node id. Empty
+	 * unless bulkheads are enabled.
+	 */
+	public Map<Integer, Integer> getNodeQueueSizes() {
+		Map<Integer, Integer> results = new HashMap<Integer, Integer>();
+		synchronized (lanes) {
+			for (Map.Entry<Integer, Lane> entry : lanes.entrySet()) {
+				if (entry.getKey() != null)
+					results.put(entry.getKey(), entry.getValue().queue.size());
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Returns the number of operations waiting for a thread for the given
+	 * node when bulkheads are enabled.
+	 */
+	public int getQueueSize(Node node) {
+		synchronized (lanes) {
+			Lane lane = lanes.get(node.getId());
+			return (lane == null) ? 0 : lane.queue.size();
+		}
+	}
+
+	/**
+	 * Returns the number of threads running operations for the given node
+	 * when bulkheads are enabled.
+	 */
+	public int getActiveCount(Node node) {
+		synchronized (lanes) {
+			Lane lane = lanes.get(node.getId());
+			return (lane == null) ? 0 : lane.active;
+		}
+	}
+
+	/**
+	 * Returns the number of operations rejected because the given node's
+	 * queue was full.
+	 */
+	public long getRejectedCount(Node node) {
+		synchronized (lanes) {
+			Lane lane = lanes.get(node.getId());
+			return (lane == null) ? 0 : lane.rejected;
+		}
 	}
 
 	/**
@@ -102,7 +256,154 @@ public abstract class AbstractThreadPoolOperationQueue implements
 	 */
 	protected <V> Future<V> execute(Callable<V> callable)
 			throws RejectedExecutionException {
-		return executor.submit(callable);
+		return execute(null, callable);
+	}
+
+	/**
+	 * Execute a Callable for the given node, in that node's bulkhead if they
+	 * are enabled. Throws RejectedExecutionException when the node's queue (or
+	 * the shared queue) is full. Callables without a node share one queue of
+	 * maxQueueDepth that is not limited to nodeThreadCount threads.
+	 *
+	 * @param <V>
+	 * @param node
+	 * @param callable
+	 * @return
+	 * @throws RejectedExecutionException
+	 */
+	protected <V> Future<V> execute(Node node, Callable<V> callable)
+			throws RejectedExecutionException {
+		Task<V> task = new Task<V>(callable);
+		if (!isBulkheaded()) {
+			executor.execute(task);
+			return task;
+		}
+		synchronized (lanes) {
+			if (executor.isShutdown())
+				throw new RejectedExecutionException("Queue is stopped");
+			Integer id = (node == null) ? null : node.getId();
+			Lane lane = lanes.get(id);
+			if (lane == null) {
+				lane = (node == null) ? new Lane(threadPoolCount, maxQueueDepth)
+						: new Lane(nodeThreadCount, nodeMaxQueueDepth);
+				lanes.put(id, lane);
+				laneList.add(lane);
+			}
+			if (lane.queue.size() >= lane.maxQueueDepth) {
+				++lane.rejected;
+				throw new RejectedExecutionException((node == null) ? "Queue is full"
+						: String.format("Queue for node %1$d is full", node
+								.getId()));
+			}
+			lane.queue.add(task);
+			dispatch();
+		}
+		return task;
+	}
+
+	/**
+	 * Hand waiting operations to idle threads. Called holding the lanes lock.
+	 */
+	private void dispatch() {
+		while ((running < threadPoolCount) && !executor.isShutdown()) {
+			Lane lane = nextLane(false);
+			if ((lane == null) && workStealing
+					&& (threadPoolCount - running > nodeThreadCount))
+				lane = nextLane(true);
+			if (lane == null)
+				return;
+			Task<?> task = lane.queue.removeFirst();
+			++lane.active;
+			++running;
+			executor.execute(new LaneTask(lane, task));
+		}
+	}
+
+	private Lane nextLane(boolean stealing) {
+		for (int i = 0; i < laneList.size(); ++i) {
+			int index = (nextLane + i) % laneList.size();
+			Lane lane = laneList.get(index);
+			if (!lane.queue.isEmpty()
+					&& (stealing || (lane.active < lane.threadCount))) {
+				nextLane = index + 1;
+				return lane;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Runs a task taken from a lane, handing the thread on when it is done.
+	 * Kept as a class so that stop() can abandon the task if the pool never
+	 * runs it.
+	 */
+	private class LaneTask implements Runnable {
+		private Lane owner;
+
+		private Task<?> task;
+
+		public LaneTask(Lane owner, Task<?> task) {
+			this.owner = owner;
+			this.task = task;
+		}
+
+		public void run() {
+			try {
+				task.run();
+			} finally {
+				synchronized (lanes) {
+					--owner.active;
+					--running;
+					dispatch();
+				}
+			}
+		}
+	}
+
+	private static class Lane {
+		private int threadCount;
+
+		private int maxQueueDepth;
+
+		private LinkedList<Task<?>> queue = new LinkedList<Task<?>>();
+
+		private int active = 0;
+
+		private long rejected = 0;
+
+		public Lane(int threadCount, int maxQueueDepth) {
+			this.threadCount = threadCount;
+			this.maxQueueDepth = maxQueueDepth;
+		}
+	}
+
+	/**
+	 * A callable that can complete its operation without running it, e.g.
+	 * by handing an error result to the operation's callback.
+	 */
+	protected interface Abandonable<V> {
+		V abandon(Exception reason);
+	}
+
+	private static class Task<V> extends FutureTask<V> {
+		private Callable<V> callable;
+
+		public Task(Callable<V> callable) {
+			super(callable);
+			this.callable = callable;
+		}
+
+		@SuppressWarnings("unchecked")
+		public void abandon() {
+			if (isDone())
+				return;
+			if (callable instanceof Abandonable)
+				set(((Abandonable<V>) callable)
+						.abandon(new OperationAbandonedException(
+								"Queue stopped before the operation ran")));
+			else
+				cancel(false);
+		}
 	}
 
 	public abstract <V> Future<OperationResult<V>> submit(Operation<V> operation);
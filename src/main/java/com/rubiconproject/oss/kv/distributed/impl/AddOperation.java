@@ -0,0 +1,58 @@
+package com.rubiconproject.oss.kv.distributed.impl;
+
+import com.rubiconproject.oss.kv.distributed.AbstractOperation;
+import com.rubiconproject.oss.kv.distributed.OperationResult;
+import com.rubiconproject.oss.kv.distributed.OperationStatus;
+import com.rubiconproject.oss.kv.transcoder.Transcoder;
+
+/**
+ * Sets a key only if the node does not already hold it, so that a copy of an
+ * older value never replaces a newer one. The check and the set are separate
+ * calls to the node, and it is not written to local disk.
+ *
+ * @author sam
+ *
+ */
+public class AddOperation<V> extends AbstractOperation<V> {
+	private static final long serialVersionUID = 2209413377451760917L;
+
+	private V value;
+
+	public AddOperation(Transcoder transcoder, String key, V value) {
+		super(transcoder, key);
+		this.value = value;
+	}
+
+	public String getName() {
+		return "add";
+	}
+
+	public V getValue() {
+		return value;
+	}
+
+	public AddOperation<V> copy() {
+		return new AddOperation<V>(this.transcoder, this.key, this.value);
+	}
+
+	public OperationResult<V> call() throws Exception {
+		long start = System.currentTimeMillis();
+		if (isCurrent() && !store.exists(key)) {
+			if (transcoder == null)
+				store.set(key, value);
+			else
+				store.set(key, value, transcoder);
+		}
+		return new DefaultOperationResult<V>(this, null,
+				OperationStatus.Success, System.currentTimeMillis() - start,
+				null);
+	}
+
+	/**
+	 * Returns false if the value should no longer be added, e.g. because the
+	 * key was written since it was read.
+	 */
+	protected boolean isCurrent() {
+		return true;
+	}
+}
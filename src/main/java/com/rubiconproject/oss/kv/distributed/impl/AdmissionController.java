@@ -0,0 +1,273 @@
+package com.rubiconproject.oss.kv.distributed.impl;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.rubiconproject.oss.kv.backends.ConnectionFactory;
+import com.rubiconproject.oss.kv.distributed.Operation;
+import com.rubiconproject.oss.kv.distributed.OperationCallback;
+import com.rubiconproject.oss.kv.distributed.OperationQueue;
+import com.rubiconproject.oss.kv.distributed.OperationResult;
+
+/**
+ * Decides up front whether a request may start, so that an overloaded
+ * client fails requests immediately rather than submitting half of a quorum
+ * and waiting out the timeout.
+ *
+ * A request is admitted if fewer than limit requests are in flight and the
+ * operations it will send fit in the sync queue's capacity alongside those
+ * already reserved. Its operations are reserved until each completes, and
+ * any it did not send are returned when the request finishes. Operations
+ * beyond those reserved, such as hedged reads or the next window of a
+ * sliding window read, are only sent if there is room for them, and are
+ * rejected with a RejectedExecutionException otherwise.
+ *
+ * The limit adapts to latency using a gradient: after each successful
+ * request it moves towards limit * min(1, tolerance * minLatency / latency)
+ * + sqrt(limit), so it grows while latency stays near the lowest seen and
+ * shrinks as requests queue up. It is cut by backoffRatio whenever a request
+ * fails. It only grows while at least half of it is in use. The lowest
+ * latency is forgotten every MIN_LATENCY_SAMPLES requests so that it
+ * follows changes in the cluster.
+ *
+ * @author sam
+ *
+ */
+public class AdmissionController {
+	public static final int DEFAULT_INITIAL_LIMIT = 100;
+
+	public static final int DEFAULT_MIN_LIMIT = 10;
+
+	public static final int DEFAULT_MAX_LIMIT = 1000;
+
+	public static final double DEFAULT_TOLERANCE = 1.5d;
+
+	public static final double DEFAULT_BACKOFF_RATIO = 0.9d;
+
+	private static final double SMOOTHING = 0.2d;
+
+	private static final int MIN_LATENCY_SAMPLES = 1000;
+
+	private int minLimit = DEFAULT_MIN_LIMIT;
+
+	private int maxLimit = DEFAULT_MAX_LIMIT;
+
+	private double tolerance = DEFAULT_TOLERANCE;
+
+	private double backoffRatio = DEFAULT_BACKOFF_RATIO;
+
+	private int maxOperations;
+
+	// all guarded by this
+	private double limit;
+
+	private int inFlight = 0;
+
+	private int reservedOperations = 0;
+
+	private long minLatency = 0l;
+
+	private int samples = 0;
+
+	private long rejected = 0l;
+
+	/**
+	 * @param maxOperations
+	 *            operations the sync queue can hold, running or waiting
+	 */
+	public AdmissionController(int maxOperations) {
+		this(maxOperations, DEFAULT_INITIAL_LIMIT);
+	}
+
+	public AdmissionController(int maxOperations, int initialLimit) {
+		this.maxOperations = maxOperations;
+		this.limit = initialLimit;
+	}
+
+	public synchronized void setMinLimit(int minLimit) {
+		this.minLimit = minLimit;
+		limit = Math.max(limit, minLimit);
+	}
+
+	public synchronized void setMaxLimit(int maxLimit) {
+		this.maxLimit = maxLimit;
+		limit = Math.min(limit, maxLimit);
+	}
+
+	/**
+	 * Ratio of latency to the lowest seen that is not taken as queueing.
+	 */
+	public synchronized void setTolerance(double tolerance) {
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * Factor the limit is multiplied by when a request fails.
+	 */
+	public synchronized void setBackoffRatio(double backoffRatio) {
+		this.backoffRatio = backoffRatio;
+	}
+
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+
+	public synchronized int getInFlightCount() {
+		return inFlight;
+	}
+
+	public synchronized int getReservedOperationCount() {
+		return reservedOperations;
+	}
+
+	public synchronized long getRejectedCount() {
+		return rejected;
+	}
+
+	/**
+	 * Admit a request that will send the given number of operations, or
+	 * return null if it should be rejected.
+	 */
+	public synchronized Permit tryAcquire(int operations) {
+		if ((inFlight >= (int) limit)
+				|| (reservedOperations + operations > maxOperations)) {
+			++rejected;
+			return null;
+		}
+		++inFlight;
+		reservedOperations += operations;
+		return new Permit(operations);
+	}
+
+	private synchronized void released(int operations) {
+		reservedOperations -= operations;
+	}
+
+	private synchronized void completed(long latency, boolean success) {
+		int used = inFlight;
+		--inFlight;
+		if (!success) {
+			limit = Math.max(minLimit, limit * backoffRatio);
+			return;
+		}
+		if ((++samples >= MIN_LATENCY_SAMPLES) || (minLatency == 0)
+				|| (latency < minLatency)) {
+			if (samples >= MIN_LATENCY_SAMPLES)
+				samples = 0;
+			minLatency = Math.max(1, latency);
+		}
+		double gradient = Math.max(0.5d, Math.min(1d, tolerance * minLatency
+				/ Math.max(1, latency)));
+		double target = limit * gradient + Math.sqrt(limit);
+		if (used < limit / 2)
+			target = Math.min(target, limit);
+		limit = limit * (1d - SMOOTHING) + target * SMOOTHING;
+		limit = Math.max(minLimit, Math.min(maxLimit, limit));
+	}
+
+	/**
+	 * An admitted request. release() must be called once it finishes.
+	 */
+	public class Permit {
+		private long start = System.nanoTime();
+
+		private int reserved;
+
+		private int sent = 0;
+
+		private boolean released = false;
+
+		private Permit(int reserved) {
+			this.reserved = reserved;
+		}
+
+		/**
+		 * Returns a queue that sends operations to the given queue, keeping
+		 * each reserved until it completes.
+		 */
+		public OperationQueue wrap(OperationQueue queue) {
+			return new ReservingQueue(queue);
+		}
+
+		/**
+		 * Return unsent operations and record the request's latency.
+		 */
+		public void release(boolean success) {
+			int unsent;
+			synchronized (this) {
+				if (released)
+					return;
+				released = true;
+				unsent = Math.max(0, reserved - sent);
+			}
+			released(unsent);
+			completed(System.nanoTime() - start, success);
+		}
+
+		private void sending() throws RejectedExecutionException {
+			boolean extra;
+			synchronized (this) {
+				extra = (++sent > reserved);
+			}
+			if (!extra)
+				return;
+			boolean room;
+			synchronized (AdmissionController.this) {
+				room = (reservedOperations < maxOperations);
+				if (room)
+					++reservedOperations;
+			}
+			if (!room) {
+				synchronized (this) {
+					--sent;
+				}
+				throw new RejectedExecutionException(
+						"No room for operations beyond those reserved");
+			}
+		}
+
+		private class ReservingQueue implements OperationQueue {
+			private OperationQueue delegate;
+
+			public ReservingQueue(OperationQueue delegate) {
+				this.delegate = delegate;
+			}
+
+			public void setConnectionFactory(ConnectionFactory factory) {
+				delegate.setConnectionFactory(factory);
+			}
+
+			public void start() {
+				delegate.start();
+			}
+
+			public void stop() {
+				delegate.stop();
+			}
+
+			public int getQueueSize() {
+				return delegate.getQueueSize();
+			}
+
+			public <V> Future<OperationResult<V>> submit(
+					Operation<V> operation) throws RejectedExecutionException {
+				sending();
+				final OperationCallback<V> callback = operation.getCallback();
+				operation.setCallback(new OperationCallback<V>() {
+					public void completed(OperationResult<V> result) {
+						released(1);
+						if (callback != null)
+							callback.completed(result);
+					}
+				});
+				try {
+					return delegate.submit(operation);
+				} catch (RejectedExecutionException e) {
+					operation.setCallback(callback);
+					released(1);
+					throw e;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,478 @@
+package com.rubiconproject.oss.kv.distributed.impl;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.rubiconproject.oss.kv.KeyValueStore;
+import com.rubiconproject.oss.kv.KeyValueStoreException;
+import com.rubiconproject.oss.kv.backends.ConnectionFactory;
+import com.rubiconproject.oss.kv.backends.IterableKeyValueStore;
+import com.rubiconproject.oss.kv.backends.KeyValueStoreIterator;
+import com.rubiconproject.oss.kv.distributed.Node;
+import com.rubiconproject.oss.kv.distributed.NodeChangeListener;
+import com.rubiconproject.oss.kv.distributed.NodeLocator;
+import com.rubiconproject.oss.kv.distributed.OperationPriority;
+import com.rubiconproject.oss.kv.distributed.hashing.HashAlgorithm;
+import com.rubiconproject.oss.kv.distributed.hashing.Murmur3HashAlgorithm;
+import com.rubiconproject.oss.kv.transcoder.ByteArrayTranscoder;
+import com.rubiconproject.oss.kv.transcoder.Transcoder;
+
+/**
+ * Background anti-entropy between replicas. Keys are grouped into ranges by
+ * their natural replica set (the union of the token ranges those replicas
+ * share) and a {@link MerkleTree} of each range is built for every replica
+ * from a scan of that node's keys and values. The trees of each range are
+ * compared, then the replicas of ranges that differ are scanned again for
+ * their keys alone, and only the keys in leaves that differ are read from
+ * every replica and repaired. Ranges that are already in sync cost nothing
+ * beyond the first scan.
+ *
+ * Repair follows the same rule as {@link NodeRankContextFilter}: the first
+ * non-null value in preference list order wins and is written to replicas
+ * holding anything else. Without versions a key deleted from some replicas
+ * but not others is restored, as it would be by read backfill.
+ *
+ * Only nodes whose backend implements {@link IterableKeyValueStore} can be
+ * scanned; ranges with a replica that can not be scanned are skipped. Memory
+ * used is ranges x replicas x 2^treeDepth x 8 bytes, plus the keys found in
+ * differing leaves by the second scan.
+ *
+ * Every repair scans every node, so run it from one process, e.g.
+ * {@link com.rubiconproject.oss.kv.tools.ValkyrieAntiEntropy}, rather than
+ * from each client.
+ *
+ * @author sam
+ *
+ */
+public class AntiEntropyService implements NodeChangeListener {
+	public static final int DEFAULT_TREE_DEPTH = 8;
+
+	public static final int DEFAULT_BATCH_SIZE = 100;
+
+	private Log log = LogFactory.getLog(getClass());
+
+	private NodeLocator nodeLocator;
+
+	private HashAlgorithm hash;
+
+	private ConnectionFactory connectionFactory;
+
+	private Map<?, ?> defaultProperties;
+
+	private int replicas;
+
+	private int treeDepth = DEFAULT_TREE_DEPTH;
+
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	private HashAlgorithm keyHash = new Murmur3HashAlgorithm();
+
+	private Transcoder transcoder = new ByteArrayTranscoder();
+
+	private volatile List<Node> activeNodes = Collections.emptyList();
+
+	private Timer timer;
+
+	// null unless throttled with other background traffic
+	private PriorityScheduler scheduler;
+
+	// MessageDigest is not thread safe and costly to look up per key
+	private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("MD5");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(
+						"Cannot find MD5 message digest!");
+			}
+		}
+	};
+
+	/**
+	 * @param nodeLocator
+	 * @param hash
+	 * @param connectionFactory
+	 * @param defaultProperties
+	 * @param replicas
+	 *            number of write replicas
+	 */
+	public AntiEntropyService(NodeLocator nodeLocator, HashAlgorithm hash,
+			ConnectionFactory connectionFactory, Map<?, ?> defaultProperties,
+			int replicas) {
+		this.nodeLocator = nodeLocator;
+		this.hash = hash;
+		this.connectionFactory = connectionFactory;
+		this.defaultProperties = defaultProperties;
+		this.replicas = replicas;
+	}
+
+	/**
+	 * Depth of each Merkle tree. Deeper trees find differences in smaller
+	 * groups of keys at the cost of memory.
+	 */
+	public void setTreeDepth(int treeDepth) {
+		this.treeDepth = treeDepth;
+	}
+
+	/**
+	 * Number of keys read from a node in one getBulk() while building trees.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Take a Rebalance place in the scheduler's budget for each bulk read
+	 * while building trees and for the repair of each key.
+	 */
+	public void setPriorityScheduler(PriorityScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	public void setActiveNodes(List<Node> nodes) {
+		this.activeNodes = nodes;
+	}
+
+	/**
+	 * Run repair() every interval millis.
+	 */
+	public void start(long interval) {
+		timer = new Timer(true);
+		timer.schedule(new TimerTask() {
+			public void run() {
+				try {
+					Map<String, Long> stats = repair();
+					log.info("Anti-entropy completed: " + stats);
+				} catch (Exception e) {
+					log.error("Exception calling repair()", e);
+				}
+			}
+		}, interval, interval);
+	}
+
+	public void stop() {
+		if (timer != null)
+			timer.cancel();
+	}
+
+	/**
+	 * Compare and repair every range once.
+	 *
+	 * @return counters
+	 */
+	public synchronized Map<String, Long> repair() throws IOException,
+			KeyValueStoreException {
+		List<Node> nodes = new ArrayList<Node>(activeNodes);
+		long examined = 0, differingRanges = 0, differingLeaves = 0, compared = 0, repaired = 0;
+
+		// 1) build a tree of every range on every replica
+		Map<String, Range> ranges = new LinkedHashMap<String, Range>();
+		Set<Integer> unscanned = new HashSet<Integer>();
+		for (Node node : nodes) {
+			try {
+				examined += buildTrees(node, ranges);
+			} catch (Exception e) {
+				log.warn(String.format("Unable to scan node %1$d", node
+						.getId()), e);
+				unscanned.add(node.getId());
+			}
+		}
+
+		// 2) find the leaves that differ between replicas
+		List<Node> rescan = new ArrayList<Node>();
+		for (Range range : ranges.values()) {
+			if (!range.isScanned(unscanned))
+				continue;
+			range.compare();
+			if (range.differing.isEmpty())
+				continue;
+			++differingRanges;
+			differingLeaves += range.differing.cardinality();
+			for (Node node : range.replicas) {
+				if (!rescan.contains(node))
+					rescan.add(node);
+			}
+		}
+		long rangeCount = ranges.size();
+
+		// 3) collect the keys in those leaves from their replicas
+		for (Node node : rescan) {
+			try {
+				collectKeys(node, ranges);
+			} catch (Exception e) {
+				log.warn(String.format("Unable to rescan node %1$d", node
+						.getId()), e);
+			}
+		}
+
+		// 4) compare those keys and repair
+		for (Range range : ranges.values()) {
+			for (String key : range.keys) {
+				++compared;
+				try {
+					repaired += repair(range, key);
+				} catch (Exception e) {
+					log.warn("Unable to repair " + key, e);
+				}
+			}
+		}
+
+		Map<String, Long> results = new LinkedHashMap<String, Long>();
+		results.put("examined", examined);
+		results.put("ranges", rangeCount);
+		results.put("differing-ranges", differingRanges);
+		results.put("differing-leaves", differingLeaves);
+		results.put("compared", compared);
+		results.put("repaired", repaired);
+		return results;
+	}
+
+	private long buildTrees(Node node, Map<String, Range> ranges)
+			throws IOException, KeyValueStoreException, InterruptedException {
+		IterableKeyValueStore store = getIterableStore(node);
+		long examined = 0;
+		List<String> batch = new ArrayList<String>(batchSize);
+		List<Range> batchRanges = new ArrayList<Range>(batchSize);
+		KeyValueStoreIterator keys = store.iterkeys();
+		try {
+			Iterator<String> iter = keys.iterator();
+			while (iter.hasNext()) {
+				String key = iter.next();
+				++examined;
+				Range range = getRange(ranges, key);
+				if (range.indexOf(node) < 0)
+					continue; // not a replica; left to rebalancing
+				batch.add(key);
+				batchRanges.add(range);
+				if (batch.size() >= batchSize)
+					addToTrees(store, node, batch, batchRanges);
+			}
+			addToTrees(store, node, batch, batchRanges);
+		} finally {
+			keys.close();
+		}
+		return examined;
+	}
+
+	private void addToTrees(KeyValueStore store, Node node,
+			List<String> batch, List<Range> batchRanges) throws IOException,
+			KeyValueStoreException, InterruptedException {
+		if (batch.isEmpty())
+			return;
+		Map<String, Object> values;
+		acquire();
+		try {
+			values = store.getBulk(batch, transcoder);
+		} finally {
+			release();
+		}
+		for (int i = 0; i < batch.size(); ++i) {
+			String key = batch.get(i);
+			byte[] value = (byte[]) values.get(key);
+			if (value == null)
+				continue; // deleted since the scan started
+			Range range = batchRanges.get(i);
+			long h = keyHash.hash(key);
+			range.getTree(node).add(h, digest(key, value));
+		}
+		batch.clear();
+		batchRanges.clear();
+	}
+
+	/**
+	 * Scan the node's keys again, keeping those that fall in a leaf that
+	 * differs between the replicas of their range.
+	 */
+	private void collectKeys(Node node, Map<String, Range> ranges)
+			throws IOException, KeyValueStoreException {
+		IterableKeyValueStore store = getIterableStore(node);
+		KeyValueStoreIterator keys = store.iterkeys();
+		try {
+			Iterator<String> iter = keys.iterator();
+			while (iter.hasNext()) {
+				String key = iter.next();
+				Range range = ranges.get(getRangeKey(nodeLocator
+						.getNaturalPreferenceList(hash, key, replicas)));
+				// null if the key was added to a new range since the scan
+				if ((range == null) || range.differing.isEmpty()
+						|| (range.indexOf(node) < 0))
+					continue;
+				MerkleTree tree = range.getTree(node);
+				if (range.differing.get(tree.getLeaf(keyHash.hash(key))))
+					range.keys.add(key);
+			}
+		} finally {
+			keys.close();
+		}
+	}
+
+	/**
+	 * Bring every replica of the key in line with the first non-null value.
+	 * Returns the number of replicas written.
+	 */
+	private int repair(Range range, String key) throws IOException,
+			KeyValueStoreException, InterruptedException {
+		acquire();
+		try {
+			return repairKey(range, key);
+		} finally {
+			release();
+		}
+	}
+
+	private int repairKey(Range range, String key) throws IOException,
+			KeyValueStoreException {
+		byte[][] values = new byte[range.replicas.size()][];
+		byte[] winner = null;
+		for (int i = 0; i < values.length; ++i) {
+			values[i] = (byte[]) getStore(range.replicas.get(i)).get(key,
+					transcoder);
+			if ((winner == null) && (values[i] != null))
+				winner = values[i];
+		}
+		if (winner == null)
+			return 0;
+		int repaired = 0;
+		for (int i = 0; i < values.length; ++i) {
+			if (!Arrays.equals(values[i], winner)) {
+				Node node = range.replicas.get(i);
+				if (log.isDebugEnabled())
+					log.debug(String.format("Repairing %1$s on node %2$d", key,
+							node.getId()));
+				getStore(node).set(key, winner, transcoder);
+				++repaired;
+			}
+		}
+		return repaired;
+	}
+
+	private void acquire() throws InterruptedException {
+		if (scheduler != null)
+			scheduler.acquire(OperationPriority.Rebalance);
+	}
+
+	private void release() {
+		if (scheduler != null)
+			scheduler.release(OperationPriority.Rebalance);
+	}
+
+	private Range getRange(Map<String, Range> ranges, String key) {
+		List<Node> nodes = nodeLocator.getNaturalPreferenceList(hash, key,
+				replicas);
+		String rangeKey = getRangeKey(nodes);
+		Range range = ranges.get(rangeKey);
+		if (range == null) {
+			range = new Range(nodes);
+			ranges.put(rangeKey, range);
+		}
+		return range;
+	}
+
+	private String getRangeKey(List<Node> nodes) {
+		StringBuilder sb = new StringBuilder();
+		for (Node node : nodes) {
+			if (sb.length() > 0)
+				sb.append(',');
+			sb.append(node.getId());
+		}
+		return sb.toString();
+	}
+
+	private KeyValueStore getStore(Node node) throws IOException,
+			KeyValueStoreException {
+		return connectionFactory.getStore(defaultProperties, node
+				.getConnectionURI());
+	}
+
+	private IterableKeyValueStore getIterableStore(Node node)
+			throws IOException, KeyValueStoreException {
+		KeyValueStore store = getStore(node);
+		if (!(store instanceof IterableKeyValueStore))
+			throw new IllegalArgumentException(String.format(
+					"%1$s does not implement IterableKeyValueStore", node
+							.getConnectionURI()));
+		return (IterableKeyValueStore) store;
+	}
+
+	private long digest(String key, byte[] value) {
+		try {
+			MessageDigest md5 = digests.get();
+			md5.reset();
+			md5.update(key.getBytes("UTF-8"));
+			md5.update((byte) 0);
+			md5.update(value);
+			byte[] bytes = md5.digest();
+			long h = 0;
+			for (int i = 0; i < 8; ++i)
+				h = (h << 8) | (bytes[i] & 0xff);
+			return h;
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private class Range {
+		private List<Node> replicas;
+
+		// node id -> tree
+		private Map<Integer, MerkleTree> trees = new HashMap<Integer, MerkleTree>();
+
+		private BitSet differing = new BitSet();
+
+		// keys in differing leaves on any replica
+		private Set<String> keys = new HashSet<String>();
+
+		public Range(List<Node> replicas) {
+			this.replicas = replicas;
+		}
+
+		public int indexOf(Node node) {
+			for (int i = 0; i < replicas.size(); ++i) {
+				if (replicas.get(i).getId() == node.getId())
+					return i;
+			}
+			return -1;
+		}
+
+		public MerkleTree getTree(Node node) {
+			MerkleTree tree = trees.get(node.getId());
+			if (tree == null) {
+				tree = new MerkleTree(treeDepth);
+				trees.put(node.getId(), tree);
+			}
+			return tree;
+		}
+
+		public boolean isScanned(Set<Integer> unscanned) {
+			for (Node node : replicas) {
+				if (unscanned.contains(node.getId()))
+					return false;
+			}
+			return true;
+		}
+
+		public void compare() {
+			MerkleTree first = getTree(replicas.get(0));
+			for (int i = 1; i < replicas.size(); ++i)
+				differing.or(first.difference(getTree(replicas.get(i))));
+		}
+	}
+}
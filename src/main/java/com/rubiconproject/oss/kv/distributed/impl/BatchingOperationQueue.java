@@ -0,0 +1,332 @@
+package com.rubiconproject.oss.kv.distributed.impl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.rubiconproject.oss.kv.KeyValueStore;
+import com.rubiconproject.oss.kv.backends.ConnectionFactory;
+import com.rubiconproject.oss.kv.distributed.AbstractOperation;
+import com.rubiconproject.oss.kv.distributed.Node;
+import com.rubiconproject.oss.kv.distributed.Operation;
+import com.rubiconproject.oss.kv.distributed.OperationCallback;
+import com.rubiconproject.oss.kv.distributed.OperationQueue;
+import com.rubiconproject.oss.kv.distributed.OperationResult;
+import com.rubiconproject.oss.kv.distributed.OperationStatus;
+import com.rubiconproject.oss.kv.transcoder.Transcoder;
+import com.rubiconproject.oss.kv.util.DaemonThreadFactory;
+import com.rubiconproject.oss.kv.util.SettableFuture;
+
+/**
+ * An operation queue that collects single key gets, sets and deletes bound
+ * for the same node and sends them to the wrapped queue as one getBulk(),
+ * setBulk() or deleteBulk() call. A batch is sent once it holds maxBatchSize
+ * operations or batchWindow millis after its first operation arrived,
+ * whichever comes first, so batching adds at most batchWindow to any
+ * operation. Results are then handed back to each operation's future and
+ * callback as if it had run alone.
+ *
+ * Each node has at most one open batch, of one kind of operation with one
+ * transcoder; an operation that does not fit it sends the open batch and
+ * starts a new one. Any other operation is passed straight to the wrapped
+ * queue. Wrapping a {@link PersistentThreadPoolOperationQueue} would leave
+ * batched writes out of its log, so it should not be wrapped.
+ *
+ * @author sam
+ *
+ */
+public class BatchingOperationQueue implements OperationQueue {
+	public static final int DEFAULT_MAX_BATCH_SIZE = 32;
+
+	public static final long DEFAULT_BATCH_WINDOW = 1l;
+
+	private static final int GET = 0;
+
+	private static final int SET = 1;
+
+	private static final int DELETE = 2;
+
+	private static final String[] NAMES = { "getbulk", "setbulk",
+			"deletebulk" };
+
+	private Log log = LogFactory.getLog(getClass());
+
+	private OperationQueue delegate;
+
+	private int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+	private long batchWindow = DEFAULT_BATCH_WINDOW;
+
+	// open batches by node id, guarded by itself
+	private Map<Integer, Batch> batches = new HashMap<Integer, Batch>();
+
+	private int pending = 0;
+
+	private ScheduledExecutorService scheduler;
+
+	public BatchingOperationQueue(OperationQueue delegate) {
+		this.delegate = delegate;
+	}
+
+	public BatchingOperationQueue(OperationQueue delegate, int maxBatchSize,
+			long batchWindow) {
+		this.delegate = delegate;
+		this.maxBatchSize = maxBatchSize;
+		this.batchWindow = batchWindow;
+	}
+
+	/**
+	 * Maximum operations sent in one bulk call.
+	 */
+	public void setMaxBatchSize(int maxBatchSize) {
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * Maximum time an operation waits for others to join its batch (millis).
+	 */
+	public void setBatchWindow(long batchWindow) {
+		this.batchWindow = batchWindow;
+	}
+
+	public OperationQueue getDelegate() {
+		return delegate;
+	}
+
+	public void setConnectionFactory(ConnectionFactory factory) {
+		delegate.setConnectionFactory(factory);
+	}
+
+	public void start() {
+		delegate.start();
+		scheduler = Executors
+				.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+	}
+
+	/**
+	 * Send open batches, then stop the wrapped queue.
+	 */
+	public void stop() {
+		scheduler.shutdownNow();
+		List<Batch> open;
+		synchronized (batches) {
+			open = new ArrayList<Batch>(batches.values());
+			batches.clear();
+		}
+		for (Batch batch : open)
+			send(batch);
+		delegate.stop();
+	}
+
+	/**
+	 * Returns the number of operations waiting in open batches or in the
+	 * wrapped queue.
+	 */
+	public int getQueueSize() {
+		synchronized (batches) {
+			return pending + delegate.getQueueSize();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public <V> Future<OperationResult<V>> submit(Operation<V> operation)
+			throws RejectedExecutionException {
+		int type = getType(operation);
+		if ((type < 0) || (operation.getNode() == null))
+			return delegate.submit(operation);
+
+		SettableFuture<OperationResult<V>> future = new SettableFuture<OperationResult<V>>();
+		Batch full = null, replaced = null;
+		synchronized (batches) {
+			Integer id = operation.getNode().getId();
+			Batch batch = batches.get(id);
+			if ((batch != null)
+					&& ((batch.type != type) || (batch.transcoder != operation
+							.getTranscoder()))) {
+				replaced = batch;
+				batch = null;
+			}
+			if (batch == null) {
+				batch = new Batch(operation.getNode(), type, operation
+						.getTranscoder());
+				batches.put(id, batch);
+				final Batch scheduled = batch;
+				scheduler.schedule(new Runnable() {
+					public void run() {
+						timeout(scheduled);
+					}
+				}, batchWindow, TimeUnit.MILLISECONDS);
+			}
+			batch.operations.add((Operation<Object>) operation);
+			batch.futures.add((SettableFuture) future);
+			++pending;
+			if (batch.operations.size() >= maxBatchSize) {
+				batches.remove(id);
+				full = batch;
+			}
+		}
+		if (replaced != null)
+			send(replaced);
+		if (full != null)
+			send(full);
+		return future;
+	}
+
+	private int getType(Operation<?> operation) {
+		if (operation.getClass() == GetOperation.class)
+			return GET;
+		if (operation.getClass() == SetOperation.class)
+			return SET;
+		if (operation.getClass() == DeleteOperation.class)
+			return DELETE;
+		return -1;
+	}
+
+	private void timeout(Batch batch) {
+		synchronized (batches) {
+			// already sent if full or replaced
+			if (batches.get(batch.node.getId()) != batch)
+				return;
+			batches.remove(batch.node.getId());
+		}
+		send(batch);
+	}
+
+	private void send(Batch batch) {
+		synchronized (batches) {
+			pending -= batch.operations.size();
+		}
+		try {
+			delegate.submit(new BatchOperation(batch));
+		} catch (RejectedExecutionException e) {
+			log.warn("RejectedExecutionException sending batch", e);
+			batch.completed(null, OperationStatus.Error, 0l, e);
+		}
+	}
+
+	private class Batch {
+		private Node node;
+
+		private int type;
+
+		private Transcoder transcoder;
+
+		private List<Operation<Object>> operations = new ArrayList<Operation<Object>>();
+
+		private List<SettableFuture<OperationResult<Object>>> futures = new ArrayList<SettableFuture<OperationResult<Object>>>();
+
+		public Batch(Node node, int type, Transcoder transcoder) {
+			this.node = node;
+			this.type = type;
+			this.transcoder = transcoder;
+		}
+
+		/**
+		 * Complete every operation in the batch.
+		 *
+		 * @param values
+		 *            values by key for gets
+		 */
+		public void completed(Map<String, Object> values,
+				OperationStatus status, long duration, Throwable error) {
+			for (int i = 0; i < operations.size(); ++i) {
+				Operation<Object> op = operations.get(i);
+				Object value = null;
+				OperationStatus opStatus = status;
+				if ((type == GET) && (status == OperationStatus.Success)) {
+					value = values.get(op.getKey());
+					if (value == null)
+						opStatus = OperationStatus.NullValue;
+				}
+				OperationResult<Object> result = new DefaultOperationResult<Object>(
+						op, value, opStatus, duration, error);
+				futures.get(i).set(result);
+				OperationCallback<Object> callback = op.getCallback();
+				if (callback != null) {
+					try {
+						callback.completed(result);
+					} catch (Exception e) {
+						log.error("Exception calling operation callback", e);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * One bulk call for a batch. Its callback hands the outcome to every
+	 * operation in the batch, so failures to reach the node are reported to
+	 * each of them as well.
+	 */
+	private static class BatchOperation extends AbstractOperation<Object> {
+		private static final long serialVersionUID = 1L;
+
+		private transient Batch batch;
+
+		public BatchOperation(final Batch batch) {
+			super(batch.transcoder, batch.operations.get(0).getKey());
+			this.batch = batch;
+			setNode(batch.node);
+			setNodeRank(batch.operations.get(0).getNodeRank());
+			setCallback(new OperationCallback<Object>() {
+				@SuppressWarnings("unchecked")
+				public void completed(OperationResult<Object> result) {
+					batch.completed((Map<String, Object>) result.getValue(),
+							result.getStatus(), result.getDuration(), result
+									.getError());
+				}
+			});
+		}
+
+		public String getName() {
+			return NAMES[batch.type];
+		}
+
+		public Operation<Object> copy() {
+			return new BatchOperation(batch);
+		}
+
+		public OperationResult<Object> call() throws Exception {
+			long start = System.currentTimeMillis();
+			KeyValueStore store = this.store;
+			Map<String, Object> values = null;
+			if (batch.type == GET) {
+				List<String> keys = new ArrayList<String>(batch.operations
+						.size());
+				for (Operation<Object> op : batch.operations)
+					keys.add(op.getKey());
+				values = (transcoder == null) ? store.getBulk(keys) : store
+						.getBulk(keys, transcoder);
+			} else if (batch.type == SET) {
+				// later sets of a key replace earlier ones, as they would
+				Map<String, Object> writes = new LinkedHashMap<String, Object>();
+				for (Operation<Object> op : batch.operations)
+					writes.put(op.getKey(), ((SetOperation<Object>) op)
+							.getValue());
+				if (transcoder == null)
+					store.setBulk(writes);
+				else
+					store.setBulk(writes, transcoder);
+			} else {
+				List<String> keys = new ArrayList<String>(batch.operations
+						.size());
+				for (Operation<Object> op : batch.operations)
+					keys.add(op.getKey());
+				store.deleteBulk(keys);
+			}
+			return new DefaultOperationResult<Object>(this, values,
+					OperationStatus.Success, System.currentTimeMillis()
+							- start, null);
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package com.rubiconproject.oss.kv.distributed.impl;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.rubiconproject.oss.kv.distributed.BulkOperation;
+import com.rubiconproject.oss.kv.distributed.OperationCallback;
+import com.rubiconproject.oss.kv.distributed.OperationResult;
+import com.rubiconproject.oss.kv.distributed.OperationStatus;
+import com.rubiconproject.oss.kv.util.SettableFuture;
+
+/**
+ * Per-key counterpart of {@link QuorumTracker} for bulk operations that send
+ * a different subset of keys to each node. A successful response from a node
+ * counts towards every key that was sent to that node, whether or not a value
+ * was returned for it; an error counts against each of them.
+ *
+ * Each key requires min(requiredResponses, nodes asked for the key)
+ * successes. The future completes once every key has either reached or can no
+ * longer reach that count.
+ *
+ * @author sam
+ *
+ * @param <V>
+ */
+public class BulkQuorumTracker<V> implements OperationCallback<V>,
+		Future<ResultsCollecter<OperationResult<V>>> {
+	private SettableFuture<ResultsCollecter<OperationResult<V>>> future = new SettableFuture<ResultsCollecter<OperationResult<V>>>();
+
+	private ResultsCollecter<OperationResult<V>> results;
+
+	// key -> { required, pending, successes }
+	private Map<String, int[]> keys = new HashMap<String, int[]>();
+
+	private int undecidedKeys = 0;
+
+	private int failedKeys = 0;
+
+	public BulkQuorumTracker(List<? extends BulkOperation<V>> operations,
+			int requiredResponses) {
+		this.results = new ResultsCollecter<OperationResult<V>>(operations
+				.size());
+		for (BulkOperation<V> operation : operations) {
+			for (String key : operation.getKeys()) {
+				int[] state = keys.get(key);
+				if (state == null) {
+					state = new int[3];
+					keys.put(key, state);
+				}
+				++state[1];
+			}
+		}
+		for (int[] state : keys.values())
+			state[0] = Math.min(requiredResponses, state[1]);
+		undecidedKeys = keys.size();
+		if (undecidedKeys == 0)
+			finish();
+	}
+
+	public synchronized void completed(OperationResult<V> result) {
+		if (future.isDone())
+			return;
+		results.add(result);
+		boolean success = !OperationStatus.Error.equals(result.getStatus());
+		String[] resultKeys = ((BulkOperation<V>) result.getOperation())
+				.getKeys();
+		for (String key : resultKeys) {
+			int[] state = keys.get(key);
+			if ((state == null) || (state[2] >= state[0])
+					|| ((state[2] + state[1]) < state[0]))
+				continue; // already decided
+			--state[1];
+			if (success)
+				++state[2];
+			if (state[2] >= state[0]) {
+				--undecidedKeys;
+			} else if ((state[2] + state[1]) < state[0]) {
+				--undecidedKeys;
+				++failedKeys;
+			}
+		}
+		if (undecidedKeys == 0)
+			finish();
+	}
+
+	/**
+	 * Return true if every key has reached its required number of successful
+	 * responses.
+	 */
+	public synchronized boolean isQuorumReached() {
+		return ((undecidedKeys == 0) && (failedKeys == 0));
+	}
+
+	/**
+	 * Return the smallest number of successful responses received for any
+	 * key.
+	 */
+	public synchronized int getMinimumSuccessCount() {
+		int min = Integer.MAX_VALUE;
+		for (int[] state : keys.values())
+			min = Math.min(min, state[2]);
+		return (min == Integer.MAX_VALUE) ? 0 : min;
+	}
+
+	/**
+	 * Return the results collected so far, whether or not the outcome has
+	 * been decided.
+	 */
+	public ResultsCollecter<OperationResult<V>> getResults() {
+		return results;
+	}
+
+	/**
+	 * Complete with the results received so far, as when the request's
+	 * deadline has passed.
+	 */
+	public synchronized void expire() {
+		results.stop();
+		future.set(results);
+	}
+
+	/**
+	 * Stop collecting responses. Results received so far remain available
+	 * from getResults().
+	 */
+	public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+		results.stop();
+		return future.cancel(mayInterruptIfRunning);
+	}
+
+	public ResultsCollecter<OperationResult<V>> get()
+			throws InterruptedException, ExecutionException {
+		return future.get();
+	}
+
+	public ResultsCollecter<OperationResult<V>> get(long timeout,
+			TimeUnit unit) throws InterruptedException, ExecutionException,
+			TimeoutException {
+		return future.get(timeout, unit);
+	}
+
+	public boolean isCancelled() {
+		return future.isCancelled();
+	}
+
+	public boolean isDone() {
+		return future.isDone();
+	}
+
+	private void finish() {
+		results.stop();
+		future.set(results);
+	}
+}
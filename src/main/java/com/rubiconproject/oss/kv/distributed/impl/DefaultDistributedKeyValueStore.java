@@ -1,11 +1,17 @@
 package com.rubiconproject.oss.kv.distributed.impl;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.rubiconproject.oss.kv.KeyValueStoreException;
+import com.rubiconproject.oss.kv.KeyValueStoreUnavailable;
+import com.rubiconproject.oss.kv.backends.ConnectionFactory;
+import com.rubiconproject.oss.kv.backends.UriConnectionFactory;
 import com.rubiconproject.oss.kv.distributed.BulkContext;
 import com.rubiconproject.oss.kv.distributed.BulkOperationResult;
 import com.rubiconproject.oss.kv.distributed.Configuration;
@@ -16,6 +22,7 @@ import com.rubiconproject.oss.kv.distributed.ContextSerializer;
 import com.rubiconproject.oss.kv.distributed.DistributedKeyValueStore;
 import com.rubiconproject.oss.kv.distributed.InsufficientResponsesException;
 import com.rubiconproject.oss.kv.distributed.Node;
+import com.rubiconproject.oss.kv.distributed.NodeHealthTracker;
 import com.rubiconproject.oss.kv.distributed.NodeLocator;
 import com.rubiconproject.oss.kv.distributed.Operation;
 import com.rubiconproject.oss.kv.distributed.OperationQueue;
@@ -27,6 +34,8 @@ import com.rubiconproject.oss.kv.transcoder.Transcoder;
 
 public class DefaultDistributedKeyValueStore implements
 		DistributedKeyValueStore {
+	private static final int WRITE_VERSION_STRIPES = 1024;
+
 	private Log log = LogFactory.getLog(getClass());
 
 	private Configuration config;
@@ -43,10 +52,25 @@ public class DefaultDistributedKeyValueStore implements
 
 	private ContextFilter<byte[]> contextFilter;
 
+	private NodeHealthTracker healthTracker;
+
+	private HintedHandoff hintedHandoff;
+
+	private AdmissionController admissionController;
+
 	private DefaultOperationHelper operationHelper = new DefaultOperationHelper();
 
+	private LatencySampler readLatencies = new LatencySampler();
+
+	private MetricsRegistry metrics = MetricsRegistry.getInstance();
+
 	private Transcoder transcoder = new ByteArrayTranscoder();
 
+	// bumped by each set or delete of a key in the stripe, so that a value
+	// copied from the previous hash placement does not replace a newer write
+	private AtomicLongArray writeVersions = new AtomicLongArray(
+			WRITE_VERSION_STRIPES);
+
 	public DefaultDistributedKeyValueStore() {
 	}
 
@@ -82,14 +106,72 @@ public class DefaultDistributedKeyValueStore implements
 		this.contextFilter = filter;
 	}
 
+	public void setNodeHealthTracker(NodeHealthTracker tracker) {
+		this.healthTracker = tracker;
+	}
+
+	public void setHintedHandoff(HintedHandoff handoff) {
+		this.hintedHandoff = handoff;
+	}
+
+	public AdmissionController getAdmissionController() {
+		return admissionController;
+	}
+
+	public void setAdmissionController(AdmissionController controller) {
+		this.admissionController = controller;
+	}
+
 	public void start() {
+		if (hash == null)
+			hash = config.getHashAlgorithm();
 		if (contextFilter == null)
 			contextFilter = new NodeRankContextFilter<byte[]>(config);
+		if ((healthTracker == null) && (config.getMaxNodeErrorCount() > 0))
+			healthTracker = new DefaultNodeHealthTracker(config);
+		operationHelper.setNodeHealthTracker(healthTracker);
+		nodeLocator.setNodeHealthTracker(healthTracker);
+		if ((config.getLatencyAwareReads())
+				&& (!(nodeLocator instanceof LatencyAwareNodeLocator)))
+			nodeLocator = new LatencyAwareNodeLocator(nodeLocator, config
+					.getWriteReplicas());
+		if (nodeLocator instanceof LatencyAwareNodeLocator)
+			operationHelper
+					.setLatencyAwareNodeLocator((LatencyAwareNodeLocator) nodeLocator);
+		if ((hintedHandoff == null) && (config.getHintDirectory() != null)) {
+			ConnectionFactory cf = config.getConnectionFactory();
+			if (cf == null)
+				cf = new UriConnectionFactory();
+			hintedHandoff = new HintedHandoff(new File(config
+					.getHintDirectory()), cf, null);
+			hintedHandoff.setReplayInterval(config.getHintReplayInterval());
+			hintedHandoff.setBatchSize(config.getHintReplayBatchSize());
+		}
+		if (hintedHandoff != null) {
+			hintedHandoff.setNodeHealthTracker(healthTracker);
+			try {
+				hintedHandoff.start();
+			} catch (IOException e) {
+				throw new IllegalArgumentException(
+						"Unable to start hinted handoff", e);
+			}
+		}
+		operationHelper.setHintedHandoff(hintedHandoff);
+		if ((admissionController == null) && (config.getAdmissionControl())) {
+			int maxOperations = config.getAdmissionMaxOperations();
+			admissionController = new AdmissionController(
+					(maxOperations > 0) ? maxOperations : Integer.MAX_VALUE,
+					config.getAdmissionInitialLimit());
+			admissionController.setMinLimit(config.getAdmissionMinLimit());
+			admissionController.setMaxLimit(config.getAdmissionMaxLimit());
+		}
 	}
 
 	public void stop() {
 		syncOperationQueue.stop();
 		asyncOperationQueue.stop();
+		if (hintedHandoff != null)
+			hintedHandoff.stop();
 	}
 
 	/**
@@ -111,66 +193,108 @@ public class DefaultDistributedKeyValueStore implements
 			throws KeyValueStoreException {
 		if (log.isTraceEnabled())
 			log.trace(String.format("getContexts(%1$s)", key));
+		AdmissionController.Permit permit = admit(config.getReadReplicas());
+		boolean success = false;
+		try {
+			List<Context<byte[]>> contexts = getContexts(hash, key,
+					considerNullAsSuccess, enableSlidingWindow,
+					singleRequestTimeout, operationTimeout, getQueue(permit));
+			success = true;
+			return contexts;
+		} finally {
+			if (permit != null)
+				permit.release(success);
+		}
+	}
 
+	private List<Context<byte[]>> getContexts(HashAlgorithm hashAlg,
+			String key, boolean considerNullAsSuccess,
+			boolean enableSlidingWindow, long singleRequestTimeout,
+			long operationTimeout, OperationQueue queue)
+			throws KeyValueStoreException {
 		long start = System.currentTimeMillis();
 
-		List<Node> nodeList = nodeLocator.getFullPreferenceList(hash, key);
+		List<Node> nodeList = nodeLocator.getFullPreferenceList(hashAlg, key);
 
 		Operation<byte[]> op = new GetOperation<byte[]>(transcoder, key);
 
 		List<Context<byte[]>> retval = new ArrayList<Context<byte[]>>();
 
-		int offset = 0;
-
-		int successes = 0;
-
-		// While time remaining, ask the next r nodes for a response.
-		while ((System.currentTimeMillis() - start) < operationTimeout) {
-			if (log.isDebugEnabled()) {
-				log.debug("Reaching into node list at offset " + offset
-						+ " for " + config.getReadReplicas() + " nodes");
-			}
-
-			int toIndex = Math.min(offset + config.getReadReplicas(), nodeList
-					.size());
-			if (offset > toIndex)
-				break;
-			List<Node> nodeSublist = nodeList.subList(offset, toIndex);
-
-			if (nodeSublist.size() == 0)
-				break;
-
-			// timeout for this request
-			// take the smaller of (1) provided single request timeout;
-			// or (2) (operation timeout - elapsed time)
-			long thisRequestTimeout = Math.min(singleRequestTimeout,
-					operationTimeout - (System.currentTimeMillis() - start));
-
-			// ask for results from n nodes with a given offset and timeout
+		if (config.getHedgedReads()) {
+			// hedge to the next node in the preference list once the
+			// configured percentile of recent read latency has passed
+			long hedgeDelay = Math.max(config.getHedgedReadMinimumDelay(),
+					readLatencies.getPercentile(config
+							.getHedgedReadPercentile(),
+							singleRequestTimeout / 2));
 			ResultsCollecter<OperationResult<byte[]>> results = operationHelper
-					.call(syncOperationQueue, op, nodeSublist, offset, config
-							.getRequiredReads(), thisRequestTimeout,
-							considerNullAsSuccess, false);
-			results.stop();
+					.callHedged(queue, op, nodeList, config
+							.getReadReplicas(), config.getRequiredReads(),
+							hedgeDelay, operationTimeout,
+							considerNullAsSuccess, false, readLatencies);
 			for (OperationResult<byte[]> result : results) {
 				Context<byte[]> context = contextSerializer
 						.extractContext(result);
 				retval.add(context);
+			}
+		} else {
+			int offset = 0;
 
-				if ((OperationStatus.Success.equals(result.getStatus()))
-						|| ((considerNullAsSuccess) && (OperationStatus.NullValue
-								.equals(result.getStatus())))) {
-					++successes;
+			int successes = 0;
+
+			// While time remaining, ask the next r nodes for a response.
+			while ((System.currentTimeMillis() - start) < operationTimeout) {
+				if (log.isDebugEnabled()) {
+					log.debug("Reaching into node list at offset " + offset
+							+ " for " + config.getReadReplicas() + " nodes");
+				}
+
+				int toIndex = Math.min(offset + config.getReadReplicas(),
+						nodeList.size());
+				if (offset > toIndex)
+					break;
+				List<Node> nodeSublist = nodeList.subList(offset, toIndex);
+
+				if (nodeSublist.size() == 0)
+					break;
+
+				// timeout for this request
+				// take the smaller of (1) provided single request timeout;
+				// or (2) (operation timeout - elapsed time)
+				long thisRequestTimeout = Math.min(singleRequestTimeout,
+						operationTimeout
+								- (System.currentTimeMillis() - start));
+
+				// ask for results from n nodes with a given offset and timeout
+				ResultsCollecter<OperationResult<byte[]>> results = operationHelper
+						.call(queue, op, nodeSublist, offset,
+								config.getRequiredReads(), thisRequestTimeout,
+								considerNullAsSuccess, false);
+				results.stop();
+				for (OperationResult<byte[]> result : results) {
+					Context<byte[]> context = contextSerializer
+							.extractContext(result);
+					retval.add(context);
+
+					if ((OperationStatus.Success.equals(result.getStatus()))
+							|| ((considerNullAsSuccess) && (OperationStatus.NullValue
+									.equals(result.getStatus())))) {
+						++successes;
+					}
 				}
+				if ((successes >= config.getRequiredReads())
+						|| !enableSlidingWindow)
+					break;
+				offset += config.getReadReplicas();
 			}
-			if ((successes >= config.getRequiredReads())
-					|| !enableSlidingWindow)
-				break;
-			offset += config.getReadReplicas();
 		}
 
-		// backfill null/error responses from top x nodes
-		ContextFilterResult<byte[]> filtered = contextFilter.filter(retval);
+		// backfill null/error responses from top x nodes; the previous
+		// placement during a migration is only read from, as a late
+		// backfill there could bring back a key deleted since
+		ContextFilterResult<byte[]> filtered = null;
+		if (hashAlg == hash)
+			filtered = contextFilter.filter(retval);
 		if (filtered != null) {
 			List<Operation<byte[]>> additionalOperations = filtered
 					.getAdditionalOperations();
@@ -185,42 +309,60 @@ public class DefaultDistributedKeyValueStore implements
 	}
 
 	/**
-	 * Low-level method to retrieve all versions for a set of keys.
+	 * Low-level method to retrieve all versions for a set of keys. Each node
+	 * is only asked for the keys it holds a read replica of.
 	 */
 	public List<BulkContext<byte[]>> getBulkContexts(String... keys)
 			throws KeyValueStoreException {
 
-		List<BulkContext<byte[]>> retval;
-
-		Map<Integer, Node> nodes = new HashMap<Integer, Node>();
-		List<Node> nodeList = new ArrayList<Node>();
-
-		// generate list of distinct nodes for all keys
-		{
-			for (String key : keys) {
-				List<Node> readNodes = nodeLocator.getPreferenceList(hash, key,
-						config.getReadReplicas());
-				for (Node node : readNodes) {
+		// partition keys by the nodes in their read preference lists
+		Map<Integer, Node> nodes = new LinkedHashMap<Integer, Node>();
+		Map<Integer, List<String>> keysByNode = new HashMap<Integer, List<String>>();
+		for (String key : keys) {
+			List<Node> readNodes = nodeLocator.getPreferenceList(hash, key,
+					config.getReadReplicas());
+			for (Node node : readNodes) {
+				List<String> nodeKeys = keysByNode.get(node.getId());
+				if (nodeKeys == null) {
 					nodes.put(node.getId(), node);
+					nodeKeys = new ArrayList<String>();
+					keysByNode.put(node.getId(), nodeKeys);
 				}
+				nodeKeys.add(key);
 			}
-			nodeList.addAll(nodes.values());
 		}
 
-		// ask for a response from n nodes
-		{
-			Operation<byte[]> op;
-			ResultsCollecter<OperationResult<byte[]>> results;
-
-			op = new GetBulkOperation<byte[]>(transcoder, keys);
-			results = operationHelper.call(syncOperationQueue, op, nodeList, 0,
-					config.getRequiredReads(),
-					config.getReadOperationTimeout(), true, true);
-			results.stop();
+		List<GetBulkOperation<byte[]>> operations = new ArrayList<GetBulkOperation<byte[]>>(
+				nodes.size());
+		int rank = 0;
+		for (Node node : nodes.values()) {
+			List<String> nodeKeys = keysByNode.get(node.getId());
+			GetBulkOperation<byte[]> op = new GetBulkOperation<byte[]>(
+					transcoder, nodeKeys.toArray(new String[nodeKeys.size()]));
+			op.setNode(node);
+			op.setNodeRank(rank++);
+			operations.add(op);
+		}
 
-			retval = new ArrayList<BulkContext<byte[]>>(results.size());
+		// ask for a response from r of the nodes holding each key
+		AdmissionController.Permit permit = admit(operations.size());
+		ResultsCollecter<OperationResult<byte[]>> results;
+		boolean success = false;
+		try {
+			results = operationHelper.callBulk(getQueue(permit), operations,
+					config.getRequiredReads(), config
+							.getReadOperationTimeout(), true);
+			success = true;
+		} finally {
+			if (permit != null)
+				permit.release(success);
+		}
 
-			for (OperationResult<byte[]> result : results) {
+		List<BulkContext<byte[]>> retval = new ArrayList<BulkContext<byte[]>>(
+				results.size());
+		for (OperationResult<byte[]> result : results) {
+			// error responses carry no values
+			if (result instanceof BulkOperationResult) {
 				BulkContext<byte[]> context = contextSerializer
 						.extractBulkContext((BulkOperationResult<byte[]>) result);
 				retval.add(context);
@@ -240,14 +382,76 @@ public class DefaultDistributedKeyValueStore implements
 		if (log.isTraceEnabled())
 			log.trace(String.format("get(%1$s, %2$s)", key, filter));
 
-		// by default, accept null responses as success and disable the sliding
-		// window
-		List<Context<byte[]>> contexts = getContexts(key, true, false, config
-				.getReadOperationTimeout(), config.getReadOperationTimeout());
-		ContextFilterResult<byte[]> filtered = filter.filter(contexts);
-		Context<byte[]> result = filtered.getContext();
+		long start = System.nanoTime();
+		boolean success = false;
+		try {
+			// by default, accept null responses as success and disable the
+			// sliding window
+			List<Context<byte[]>> contexts = getContexts(key, true, false,
+					config.getReadOperationTimeout(), config
+							.getReadOperationTimeout());
+			ContextFilterResult<byte[]> filtered = filter.filter(contexts);
+			Context<byte[]> result = filtered.getContext();
+
+			// during a hash algorithm migration, fall back to the old
+			// placement
+			HashAlgorithm previousHash = config.getPreviousHashAlgorithm();
+			if ((previousHash != null)
+					&& ((result == null) || (result.getValue() == null))) {
+				Context<byte[]> previous = getPrevious(previousHash, key,
+						filter);
+				if (previous != null)
+					result = previous;
+			}
+			success = true;
+			return result;
+		} finally {
+			metrics.recordQuorum("get", success,
+					(System.nanoTime() - start) / 1000);
+		}
+	}
 
-		return result;
+	/**
+	 * Read a key from its preference list under the previous hash algorithm,
+	 * admitted as a request of its own. A value found there is added to the
+	 * current write replicas that do not hold the key before returning,
+	 * unless it is set or deleted through this store in the meantime.
+	 */
+	private Context<byte[]> getPrevious(HashAlgorithm previousHash,
+			String key, ContextFilter<byte[]> filter)
+			throws KeyValueStoreException {
+		int stripe = writeStripe(key);
+		long version = writeVersions.get(stripe);
+		AdmissionController.Permit permit = admit(config.getReadReplicas()
+				+ config.getWriteReplicas());
+		boolean success = false;
+		try {
+			List<Context<byte[]>> contexts = getContexts(previousHash, key,
+					true, false, config.getReadOperationTimeout(), config
+							.getReadOperationTimeout(), getQueue(permit));
+			Context<byte[]> result = filter.filter(contexts).getContext();
+			success = true;
+			if ((result == null) || (result.getValue() == null))
+				return null;
+
+			if (log.isDebugEnabled())
+				log.debug(String.format(
+						"Copying %1$s from previous hash placement", key));
+			// every copy is waited for, so that a delete that follows the
+			// read is sent after it; a failed copy does not fail the read
+			byte[] serializedData = contextSerializer.addContext(result
+					.getValue());
+			List<Node> nodeList = nodeLocator.getPreferenceList(hash, key,
+					config.getWriteReplicas());
+			operationHelper.call(getQueue(permit), new CopyForwardOperation(
+					transcoder, key, serializedData, stripe, version),
+					nodeList, 0, nodeList.size(), config
+							.getWriteOperationTimeout(), true, false);
+			return result;
+		} finally {
+			if (permit != null)
+				permit.release(success);
+		}
 	}
 
 	public void set(String key, byte[] object) throws KeyValueStoreException {
@@ -261,10 +465,24 @@ public class DefaultDistributedKeyValueStore implements
 		byte[] serializedData = contextSerializer.addContext(object);
 		Operation<byte[]> op = new SetOperation<byte[]>(transcoder, key,
 				serializedData);
-		ResultsCollecter<OperationResult<byte[]>> results = operationHelper
-				.call(syncOperationQueue, op, nodeList, 0, config
-						.getRequiredWrites(),
-						config.getWriteOperationTimeout(), true, true);
+		writeVersions.incrementAndGet(writeStripe(key));
+		long start = System.nanoTime();
+		AdmissionController.Permit permit = admit(nodeList.size());
+		boolean success = false;
+		try {
+			// only once admitted, so that a rejected write leaves no hints
+			hintSkippedReplicas(key, op, nodeList);
+			ResultsCollecter<OperationResult<byte[]>> results = operationHelper
+					.call(getQueue(permit), op, nodeList, 0, config
+							.getRequiredWrites(), config
+							.getWriteOperationTimeout(), true, true);
+			success = true;
+		} finally {
+			if (permit != null)
+				permit.release(success);
+			metrics.recordQuorum("set", success,
+					(System.nanoTime() - start) / 1000);
+		}
 	}
 
 	public void set(String key, Context<byte[]> bytes) {
@@ -281,10 +499,112 @@ public class DefaultDistributedKeyValueStore implements
 		List<Node> nodeList = nodeLocator.getPreferenceList(hash, key, config
 				.getWriteReplicas());
 
+		// while migrating, the key is also removed from its previous
+		// placement, or the next read would find it there and copy it back
+		List<Node> previousList = Collections.emptyList();
+		HashAlgorithm previousHash = config.getPreviousHashAlgorithm();
+		if (previousHash != null) {
+			previousList = new ArrayList<Node>(nodeLocator.getPreferenceList(
+					previousHash, key, config.getWriteReplicas()));
+			previousList.removeAll(nodeList);
+		}
+
 		Operation<byte[]> op = new DeleteOperation<byte[]>(key);
-		ResultsCollecter<OperationResult<byte[]>> results = operationHelper
-				.call(syncOperationQueue, op, nodeList, 0, config
-						.getRequiredWrites(),
-						config.getWriteOperationTimeout(), true, true);
+		writeVersions.incrementAndGet(writeStripe(key));
+		long start = System.nanoTime();
+		AdmissionController.Permit permit = admit(nodeList.size()
+				+ previousList.size());
+		boolean success = false;
+		try {
+			// only once admitted, so that a rejected write leaves no hints
+			hintSkippedReplicas(key, op, nodeList);
+			ResultsCollecter<OperationResult<byte[]>> results = operationHelper
+					.call(getQueue(permit), op, nodeList, 0, config
+							.getRequiredWrites(), config
+							.getWriteOperationTimeout(), true, true);
+			if (!previousList.isEmpty())
+				operationHelper.call(getQueue(permit), op, previousList, 0,
+						Math.min(config.getRequiredWrites(), previousList
+								.size()), config.getWriteOperationTimeout(),
+						true, true);
+			success = true;
+		} finally {
+			if (permit != null)
+				permit.release(success);
+			metrics.recordQuorum("delete", success,
+					(System.nanoTime() - start) / 1000);
+		}
+	}
+
+	private static int writeStripe(String key) {
+		return (key.hashCode() & 0x7fffffff) % WRITE_VERSION_STRIPES;
+	}
+
+	/**
+	 * Reserve room for a request's operations, throwing
+	 * KeyValueStoreUnavailable at once if there is none. Returns null if
+	 * admission control is off.
+	 */
+	private AdmissionController.Permit admit(int operations)
+			throws KeyValueStoreUnavailable {
+		if (admissionController == null)
+			return null;
+		AdmissionController.Permit permit = admissionController
+				.tryAcquire(operations);
+		if (permit == null)
+			throw new KeyValueStoreUnavailable(String.format(
+					"Request rejected: %1$d in flight, %2$d operations reserved",
+					admissionController.getInFlightCount(), admissionController
+							.getReservedOperationCount()));
+		return permit;
+	}
+
+	private OperationQueue getQueue(AdmissionController.Permit permit) {
+		return (permit == null) ? syncOperationQueue : permit
+				.wrap(syncOperationQueue);
+	}
+
+	/**
+	 * Write hints for replicas of the key that were left out of nodeList
+	 * because they are ejected. Failed requests to nodes in nodeList are
+	 * hinted by the operation helper.
+	 */
+	private void hintSkippedReplicas(String key, Operation<byte[]> op,
+			List<Node> nodeList) {
+		if ((hintedHandoff == null) || (healthTracker == null))
+			return;
+		for (Node node : nodeLocator.getNaturalPreferenceList(hash, key, config
+				.getWriteReplicas())) {
+			if (!nodeList.contains(node))
+				hintedHandoff.hint(node, op);
+		}
+	}
+
+	/**
+	 * Copies a value read from the previous hash placement, skipped if the
+	 * key has been set or deleted since it was read.
+	 */
+	private class CopyForwardOperation extends AddOperation<byte[]> {
+		private static final long serialVersionUID = -3619250270380227845L;
+
+		private int stripe;
+
+		private long version;
+
+		public CopyForwardOperation(Transcoder transcoder, String key,
+				byte[] value, int stripe, long version) {
+			super(transcoder, key, value);
+			this.stripe = stripe;
+			this.version = version;
+		}
+
+		public CopyForwardOperation copy() {
+			return new CopyForwardOperation(transcoder, key, getValue(),
+					stripe, version);
+		}
+
+		protected boolean isCurrent() {
+			return (writeVersions.get(stripe) == version);
+		}
 	}
 }
@@ -0,0 +1,177 @@
+package com.rubiconproject.oss.kv.distributed.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.rubiconproject.oss.kv.distributed.Configuration;
+import com.rubiconproject.oss.kv.distributed.Node;
+import com.rubiconproject.oss.kv.distributed.NodeHealthTracker;
+import com.rubiconproject.oss.kv.distributed.OperationStatus;
+
+/**
+ * Circuit breaker per node. A node is ejected once it has returned
+ * maxNodeErrorCount errors within one nodeErrorCountPeriod. After
+ * nodeEjectionTime has passed the node is offered to locators again, and the
+ * first request actually sent to it is the probe; the node is re-admitted if
+ * the probe succeeds and ejected again if it fails.
+ *
+ * Responses slower than slowNodeResponseTime (if > 0) count as errors.
+ *
+ * @author sam
+ *
+ */
+public class DefaultNodeHealthTracker implements NodeHealthTracker {
+	private static enum State {
+		Closed, Open, HalfOpen
+	}
+
+	private Log log = LogFactory.getLog(getClass());
+
+	private ConcurrentMap<Integer, NodeHealth> nodes = new ConcurrentHashMap<Integer, NodeHealth>();
+
+	private int maxErrorCount;
+
+	private long errorCountPeriod;
+
+	private long ejectionTime;
+
+	private long slowResponseTime;
+
+	public DefaultNodeHealthTracker(Configuration config) {
+		this(config.getMaxNodeErrorCount(), config.getNodeErrorCountPeriod()
+				.toMillis(1), config.getNodeEjectionTime(), config
+				.getSlowNodeResponseTime());
+	}
+
+	public DefaultNodeHealthTracker(int maxErrorCount, long errorCountPeriod,
+			long ejectionTime, long slowResponseTime) {
+		this.maxErrorCount = maxErrorCount;
+		this.errorCountPeriod = errorCountPeriod;
+		this.ejectionTime = ejectionTime;
+		this.slowResponseTime = slowResponseTime;
+	}
+
+	public void record(Node node, OperationStatus status, long duration) {
+		boolean error = (OperationStatus.Error.equals(status))
+				|| ((slowResponseTime > 0) && (duration > slowResponseTime));
+		getNodeHealth(node).record(node, error, System.currentTimeMillis());
+	}
+
+	public boolean isAvailable(Node node) {
+		NodeHealth health = nodes.get(node.getId());
+		return (health == null) ? true : health.isAvailable(node, System
+				.currentTimeMillis());
+	}
+
+	public void sending(Node node) {
+		NodeHealth health = nodes.get(node.getId());
+		if (health != null)
+			health.sending(node, System.currentTimeMillis());
+	}
+
+	public void unsent(Node node) {
+		NodeHealth health = nodes.get(node.getId());
+		if (health != null)
+			health.unsent(node, System.currentTimeMillis());
+	}
+
+	public boolean isEjected(Node node) {
+		NodeHealth health = nodes.get(node.getId());
+		return (health == null) ? false : health.isEjected();
+	}
+
+	private NodeHealth getNodeHealth(Node node) {
+		NodeHealth health = nodes.get(node.getId());
+		if (health == null) {
+			health = new NodeHealth();
+			NodeHealth existing = nodes.putIfAbsent(node.getId(), health);
+			if (existing != null)
+				health = existing;
+		}
+		return health;
+	}
+
+	private class NodeHealth {
+		private State state = State.Closed;
+
+		private long windowStart = 0l;
+
+		private int errorCount = 0;
+
+		// time the node was ejected or the current probe was let through
+		private long changedAt = 0l;
+
+		public synchronized void record(Node node, boolean error, long now) {
+			switch (state) {
+			case Closed:
+				if (!error)
+					return;
+				if ((now - windowStart) > errorCountPeriod) {
+					windowStart = now;
+					errorCount = 0;
+				}
+				++errorCount;
+				if (errorCount >= maxErrorCount) {
+					log.warn(String.format(
+							"Ejecting node %1$d after %2$d errors",
+							node.getId(), errorCount));
+					open(now);
+				}
+				break;
+			case HalfOpen:
+				if (error) {
+					log.info(String.format("Probe of node %1$d failed",
+							node.getId()));
+					open(now);
+				} else {
+					log.info(String.format("Re-admitting node %1$d",
+							node.getId()));
+					state = State.Closed;
+					windowStart = now;
+					errorCount = 0;
+				}
+				break;
+			case Open:
+				// late responses to requests sent before ejection
+				break;
+			}
+		}
+
+		public synchronized boolean isAvailable(Node node, long now) {
+			// when half open, another probe is let through if the last one
+			// never reported
+			return (state == State.Closed) || ((now - changedAt) >= ejectionTime);
+		}
+
+		public synchronized void sending(Node node, long now) {
+			if ((state == State.Closed) || ((now - changedAt) < ejectionTime))
+				return;
+			if ((state == State.Open) && log.isDebugEnabled())
+				log.debug(String.format("Probing node %1$d", node.getId()));
+			state = State.HalfOpen;
+			changedAt = now;
+		}
+
+		public synchronized void unsent(Node node, long now) {
+			if (state != State.HalfOpen)
+				return;
+			if (log.isDebugEnabled())
+				log.debug(String.format("Probe of node %1$d not sent",
+						node.getId()));
+			state = State.Open;
+			changedAt = now - ejectionTime;
+		}
+
+		public synchronized boolean isEjected() {
+			return (state != State.Closed);
+		}
+
+		private void open(long now) {
+			state = State.Open;
+			changedAt = now;
+		}
+	}
+}
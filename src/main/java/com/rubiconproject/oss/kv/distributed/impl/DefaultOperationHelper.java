@@ -1,25 +1,29 @@
 package com.rubiconproject.oss.kv.distributed.impl;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.NoSuchElementException;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.rubiconproject.oss.kv.distributed.BulkOperation;
 import com.rubiconproject.oss.kv.distributed.InsufficientResponsesException;
 import com.rubiconproject.oss.kv.distributed.Node;
+import com.rubiconproject.oss.kv.distributed.NodeHealthTracker;
 import com.rubiconproject.oss.kv.distributed.Operation;
+import com.rubiconproject.oss.kv.distributed.OperationAbandonedException;
 import com.rubiconproject.oss.kv.distributed.OperationCallback;
+import com.rubiconproject.oss.kv.distributed.OperationDeadline;
 import com.rubiconproject.oss.kv.distributed.OperationQueue;
 import com.rubiconproject.oss.kv.distributed.OperationResult;
 import com.rubiconproject.oss.kv.distributed.OperationStatus;
+import com.rubiconproject.oss.kv.util.HashedWheelTimer;
 
 public class DefaultOperationHelper {
 
@@ -27,100 +31,458 @@ public class DefaultOperationHelper {
 
 	private Log log = LogFactory.getLog(getClass());
 
+	private NodeHealthTracker healthTracker;
+
+	private LatencyAwareNodeLocator latencyLocator;
+
+	private HintedHandoff hintedHandoff;
+
+	private HashedWheelTimer timer = HashedWheelTimer.getInstance();
+
+	public void setNodeHealthTracker(NodeHealthTracker tracker) {
+		this.healthTracker = tracker;
+	}
+
+	public void setLatencyAwareNodeLocator(LatencyAwareNodeLocator locator) {
+		this.latencyLocator = locator;
+	}
+
+	/**
+	 * Set and delete requests that fail are handed to the given handoff to be
+	 * replayed to the node later. May be null to disable.
+	 */
+	public void setHintedHandoff(HintedHandoff handoff) {
+		this.hintedHandoff = handoff;
+	}
+
+	/**
+	 * Timer that expires requests at their deadline. Defaults to the shared
+	 * instance.
+	 */
+	public void setTimer(HashedWheelTimer timer) {
+		this.timer = timer;
+	}
+
 	public <V> ResultsCollecter<OperationResult<V>> call(
 			OperationQueue operationQueue, Operation<V> operation,
 			List<Node> nodeList, int nodeRankOffset, int requiredResponses,
 			long operationTimeout, boolean considerNullAsSuccess,
 			boolean throwInsufficientResponsesException)
 			throws InsufficientResponsesException {
-		long start = System.currentTimeMillis();
+		OperationDeadline deadline = getDeadline(operation, operationTimeout);
+		final QuorumTracker<V> tracker = callAsync(operationQueue, operation,
+				nodeList, nodeRankOffset, requiredResponses,
+				considerNullAsSuccess, deadline);
 
-		operationLog.logPreferenceList(operation.getKey(), nodeList);
+		// stop waiting if any of the following occur
+		// 1) successful response from r/w nodes
+		// 2) enough failed responses that r/w successes are impossible
+		// 3) timeout exceeded
+		HashedWheelTimer.Timeout timeout = timer.newTimeout(new Runnable() {
+			public void run() {
+				tracker.expire();
+			}
+		}, operationTimeout, TimeUnit.MILLISECONDS);
+		try {
+			tracker.get();
+		} catch (ExecutionException e) {
+			log.info("ExecutionException waiting on responses", e);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} finally {
+			timeout.cancel();
+			finished(operation, deadline);
+		}
+		tracker.cancel(false);
+		if (timeout.isExpired()) {
+			log.info("Timeout waiting on responses for "
+					+ operation.getName() + " " + operation.getKey());
+			recordTimeouts(nodeList, tracker.getResults(), operationTimeout);
+		}
 
-		LinkedList<Future<OperationResult<V>>> futures = new LinkedList<Future<OperationResult<V>>>();
+		if ((!tracker.isQuorumReached())
+				&& (throwInsufficientResponsesException)) {
+			throw new InsufficientResponsesException(requiredResponses,
+					tracker.getSuccessCount());
+		}
+		return tracker.getResults();
+	}
 
-		AtomicInteger successCounter = new AtomicInteger(0);
-		ResultsCollecter<OperationResult<V>> resultCollecter = new ResultsCollecter<OperationResult<V>>(
-				nodeList.size());
-		CountDownLatch latch = new CountDownLatch(requiredResponses);
-		OperationCallback<V> callback = new OperationCallback<V>() {
+	/**
+	 * Non-blocking variant of call(). Sends the operation to every node in
+	 * nodeList and returns immediately. The returned tracker completes as soon
+	 * as requiredResponses successes have arrived or quorum has become
+	 * impossible; it never times out on its own, so callers should use
+	 * get(timeout) and cancel() the tracker to stop collecting late responses.
+	 */
+	public <V> QuorumTracker<V> callAsync(OperationQueue operationQueue,
+			Operation<V> operation, List<Node> nodeList, int nodeRankOffset,
+			int requiredResponses, boolean considerNullAsSuccess) {
+		return callAsync(operationQueue, operation, nodeList, nodeRankOffset,
+				requiredResponses, considerNullAsSuccess, null);
+	}
 
-			private CountDownLatch latch;
+	/**
+	 * As callAsync(), giving each request the deadline (which may be null).
+	 */
+	public <V> QuorumTracker<V> callAsync(OperationQueue operationQueue,
+			Operation<V> operation, List<Node> nodeList, int nodeRankOffset,
+			int requiredResponses, boolean considerNullAsSuccess,
+			OperationDeadline deadline) {
+		operationLog.logPreferenceList(operation.getKey(), nodeList);
+
+		QuorumTracker<V> tracker = new QuorumTracker<V>(nodeList.size(),
+				requiredResponses, considerNullAsSuccess);
+		for (int i = 0; i < nodeList.size(); ++i) {
+			try {
+				submit(operationQueue, operation, tracker, nodeList.get(i), i
+						+ nodeRankOffset, deadline);
+			} catch (RejectedExecutionException e) {
+				// count as a failed response so the tracker can still decide
+				log.warn("RejectedExecutionException sending request", e);
+				Operation<V> op = copy(operation, nodeList.get(i), i
+						+ nodeRankOffset, deadline);
+				if (hintedHandoff != null)
+					hintedHandoff.hint(op.getNode(), op);
+				tracker.completed(new DefaultOperationResult<V>(op, null,
+						OperationStatus.Error, 0l, e));
+			}
+		}
+		return tracker;
+	}
 
-			private AtomicInteger successCounter;
+	/**
+	 * Sends each bulk operation to the node already assigned to it and waits
+	 * until every key has requiredResponses successful responses from the
+	 * nodes it was sent to, or can no longer get them, or operationTimeout
+	 * has passed.
+	 */
+	public <V> ResultsCollecter<OperationResult<V>> callBulk(
+			OperationQueue operationQueue,
+			List<? extends BulkOperation<V>> operations, int requiredResponses,
+			long operationTimeout, boolean throwInsufficientResponsesException)
+			throws InsufficientResponsesException {
+		OperationDeadline deadline = new OperationDeadline(operationTimeout);
+		final BulkQuorumTracker<V> tracker = callBulkAsync(operationQueue,
+				operations, requiredResponses, deadline);
+		HashedWheelTimer.Timeout timeout = timer.newTimeout(new Runnable() {
+			public void run() {
+				tracker.expire();
+			}
+		}, operationTimeout, TimeUnit.MILLISECONDS);
+		try {
+			tracker.get();
+		} catch (ExecutionException e) {
+			log.info("ExecutionException waiting on bulk responses", e);
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} finally {
+			timeout.cancel();
+			// bulk operations are all reads
+			deadline.abandon();
+		}
+		if (timeout.isExpired())
+			log.info("Timeout waiting on bulk responses");
+		tracker.cancel(false);
 
-			private boolean considerNullAsSuccess;
+		if ((!tracker.isQuorumReached())
+				&& (throwInsufficientResponsesException)) {
+			throw new InsufficientResponsesException(requiredResponses,
+					tracker.getMinimumSuccessCount());
+		}
+		return tracker.getResults();
+	}
 
-			private ResultsCollecter<OperationResult<V>> resultCollecter;
+	/**
+	 * Non-blocking variant of callBulk().
+	 */
+	public <V> BulkQuorumTracker<V> callBulkAsync(
+			OperationQueue operationQueue,
+			List<? extends BulkOperation<V>> operations, int requiredResponses) {
+		return callBulkAsync(operationQueue, operations, requiredResponses,
+				null);
+	}
 
-			public OperationCallback<V> init(CountDownLatch latch,
-					AtomicInteger successCounter,
-					boolean considerNullAsSuccess,
-					ResultsCollecter<OperationResult<V>> resultCollecter) {
-				this.latch = latch;
-				this.successCounter = successCounter;
-				this.considerNullAsSuccess = considerNullAsSuccess;
-				this.resultCollecter = resultCollecter;
-				return this;
+	/**
+	 * As callBulkAsync(), giving each request the deadline (which may be
+	 * null).
+	 */
+	public <V> BulkQuorumTracker<V> callBulkAsync(
+			OperationQueue operationQueue,
+			List<? extends BulkOperation<V>> operations,
+			int requiredResponses, OperationDeadline deadline) {
+		BulkQuorumTracker<V> tracker = new BulkQuorumTracker<V>(operations,
+				requiredResponses);
+		for (BulkOperation<V> op : operations) {
+			try {
+				op.setDeadline(deadline);
+				dispatch(operationQueue, op, tracker);
+			} catch (RejectedExecutionException e) {
+				log.warn("RejectedExecutionException sending bulk request", e);
+				tracker.completed(new DefaultOperationResult<V>(op, null,
+						OperationStatus.Error, 0l, e));
 			}
+		}
+		return tracker;
+	}
+
+	/**
+	 * Hedged variant of call(). Sends the operation to the first
+	 * initialReplicas nodes of nodeList. Whenever hedgeDelay elapses without a
+	 * quorum, or a node answers with an error, the operation is also sent to
+	 * the next node in nodeList. Returns as soon as requiredResponses
+	 * successes have arrived from any combination of nodes.
+	 * 
+	 * Caller-observed latencies of successful responses are recorded in
+	 * latencies (if not null) so that the next hedge delay can be derived from
+	 * them.
+	 */
+	public <V> ResultsCollecter<OperationResult<V>> callHedged(
+			OperationQueue operationQueue, Operation<V> operation,
+			List<Node> nodeList, int initialReplicas, int requiredResponses,
+			long hedgeDelay, long operationTimeout,
+			boolean considerNullAsSuccess,
+			boolean throwInsufficientResponsesException,
+			LatencySampler latencies) throws InsufficientResponsesException {
+		long start = System.currentTimeMillis();
+
+		operationLog.logPreferenceList(operation.getKey(), nodeList);
 
+		ResultsCollecter<OperationResult<V>> resultCollecter = new ResultsCollecter<OperationResult<V>>(
+				nodeList.size());
+		final BlockingQueue<OperationResult<V>> responses = new LinkedBlockingQueue<OperationResult<V>>();
+		OperationCallback<V> callback = new OperationCallback<V>() {
 			public void completed(OperationResult<V> result) {
-				resultCollecter.add(result);
-				latch.countDown();
-				if (result.getStatus().equals(OperationStatus.Success)) {
-					successCounter.incrementAndGet();
-				}
-				if ((result.getStatus().equals(OperationStatus.NullValue))
-						&& (considerNullAsSuccess)) {
-					successCounter.incrementAndGet();
-				}
+				responses.offer(result);
 			}
-		}.init(latch, successCounter, considerNullAsSuccess, resultCollecter);
-		for (int i = 0; i < nodeList.size(); ++i) {
-			Operation<V> op = operation.copy();
-			op.setCallback(callback);
-			op.setNode(nodeList.get(i));
-			op.setNodeRank(i + nodeRankOffset);
-			Future<OperationResult<V>> future = operationQueue.submit(op);
-			futures.add(future);
-		}
-		try {
-			latch.await(operationTimeout, TimeUnit.MILLISECONDS);
-		} catch (InterruptedException e) {
-			throw new RuntimeException(e);
+		};
+		long[] sentAt = new long[nodeList.size()];
+		boolean[] answered = new boolean[nodeList.size()];
+		OperationDeadline deadline = getDeadline(operation, operationTimeout);
+
+		int sent = 0;
+		int received = 0;
+		int successes = 0;
+		for (; sent < Math.min(initialReplicas, nodeList.size()); ++sent) {
+			sentAt[sent] = System.currentTimeMillis();
+			submitHedged(operationQueue, operation, callback, nodeList
+					.get(sent), sent, deadline);
 		}
+		long nextHedge = start + hedgeDelay;
 
 		// stop waiting if any of the following occur
-		// 1) successful response from r/w nodes
-		// 2) response completes successfully or not from n nodes
+		// 1) successful response from r nodes
+		// 2) every node in the list has been asked and has responded
 		// 3) timeout exceeded
-		while ((successCounter.get() < requiredResponses)
-				&& (resultCollecter.size() < nodeList.size())
-				&& ((System.currentTimeMillis() - start) < operationTimeout)) {
-			try {
-				Future<OperationResult<V>> future = futures.pop();
-				if (future != null) {
-					try {
-						OperationResult<V> result = future.get(operationTimeout
-								- (System.currentTimeMillis() - start),
-								TimeUnit.MILLISECONDS);
-					} catch (TimeoutException e) {
-						log.info("TimeoutException waiting on response", e);
-					} catch (ExecutionException e) {
-						log.info("ExecutionException waiting on response", e);
-					} catch (Exception e) {
-						log.info("Exception waiting on response", e);
+		while (successes < requiredResponses) {
+			long now = System.currentTimeMillis();
+			long remaining = operationTimeout - (now - start);
+			if (remaining <= 0)
+				break;
+			if ((sent >= nodeList.size()) && (received >= sent))
+				break;
+			boolean canHedge = (sent < nodeList.size());
+			long wait = (canHedge) ? Math.min(remaining, nextHedge - now)
+					: remaining;
+
+			OperationResult<V> result = null;
+			if (wait > 0) {
+				try {
+					result = responses.poll(wait, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			boolean hedge = false;
+			if (result != null) {
+				++received;
+				resultCollecter.add(result);
+				answered[result.getOperation().getNodeRank()] = true;
+				OperationStatus status = result.getStatus();
+				if ((status.equals(OperationStatus.Success))
+						|| ((status.equals(OperationStatus.NullValue)) && (considerNullAsSuccess))) {
+					++successes;
+					if (latencies != null) {
+						int rank = result.getOperation().getNodeRank();
+						latencies.add(System.currentTimeMillis() - sentAt[rank]);
 					}
+				} else {
+					// do not wait out the delay for a node that has failed
+					hedge = canHedge;
 				}
-			} catch (NoSuchElementException e) {
-				break;
+			} else if (canHedge
+					&& (System.currentTimeMillis() >= nextHedge)) {
+				hedge = true;
+			}
+			if (hedge) {
+				if (log.isDebugEnabled())
+					log.debug("Hedging " + operation.getName() + " for "
+							+ operation.getKey() + " to node rank " + sent);
+				sentAt[sent] = System.currentTimeMillis();
+				submitHedged(operationQueue, operation, callback, nodeList
+						.get(sent), sent, deadline);
+				++sent;
+				nextHedge = System.currentTimeMillis() + hedgeDelay;
+			}
+		}
+		resultCollecter.stop();
+		finished(operation, deadline);
+		if (latencyLocator != null) {
+			// nodes yet to answer are at least as slow as the time waited
+			long now = System.currentTimeMillis();
+			for (int i = 0; i < sent; ++i) {
+				if (!answered[i])
+					latencyLocator.record(nodeList.get(i), now - sentAt[i]);
 			}
 		}
-		if ((successCounter.get() < requiredResponses)
+		if ((successes < requiredResponses)
 				&& (throwInsufficientResponsesException)) {
 			throw new InsufficientResponsesException(requiredResponses,
-					successCounter.get());
+					successes);
 		}
 		return resultCollecter;
 	}
+
+	/**
+	 * Record each node that did not respond within the timeout as a request
+	 * that took that long.
+	 */
+	private <V> void recordTimeouts(List<Node> nodeList,
+			Iterable<OperationResult<V>> results, long operationTimeout) {
+		if (latencyLocator == null)
+			return;
+		List<Node> responded = new ArrayList<Node>(nodeList.size());
+		for (OperationResult<V> result : results)
+			responded.add(result.getOperation().getNode());
+		for (Node node : nodeList) {
+			if (!responded.contains(node))
+				latencyLocator.record(node, operationTimeout);
+		}
+	}
+
+	/**
+	 * Submit one copy of a hedged read. A rejected copy is handed to the
+	 * callback as a failed response, so the read hedges to the next node
+	 * rather than waiting for a reply that will never come.
+	 */
+	private <V> void submitHedged(OperationQueue operationQueue,
+			Operation<V> operation, OperationCallback<V> callback, Node node,
+			int nodeRank, OperationDeadline deadline) {
+		try {
+			submit(operationQueue, operation, callback, node, nodeRank,
+					deadline);
+		} catch (RejectedExecutionException e) {
+			log.warn("RejectedExecutionException sending hedged request", e);
+			// from a copy for the node, as the filter reads its source node
+			callback.completed(new DefaultOperationResult<V>(copy(operation,
+					node, nodeRank, deadline), null, OperationStatus.Error, 0l,
+					e));
+		}
+	}
+
+	private <V> Future<OperationResult<V>> submit(
+			OperationQueue operationQueue, Operation<V> operation,
+			OperationCallback<V> callback, Node node, int nodeRank,
+			OperationDeadline deadline) {
+		return dispatch(operationQueue, copy(operation, node, nodeRank,
+				deadline), callback);
+	}
+
+	/**
+	 * Returns a copy of the operation for one node of its preference list.
+	 */
+	private <V> Operation<V> copy(Operation<V> operation, Node node,
+			int nodeRank, OperationDeadline deadline) {
+		Operation<V> op = operation.copy();
+		op.setNode(node);
+		op.setNodeRank(nodeRank);
+		op.setDeadline(deadline);
+		return op;
+	}
+
+	/**
+	 * Returns a deadline for copies of the operation, or null if they should
+	 * run however late they are. A write given up on has to be hinted to be
+	 * replayed, so writes only get one when hinted handoff is enabled.
+	 */
+	private OperationDeadline getDeadline(Operation<?> operation,
+			long operationTimeout) {
+		if (!isRead(operation) && (hintedHandoff == null))
+			return null;
+		return new OperationDeadline(operationTimeout);
+	}
+
+	/**
+	 * Called once the request no longer needs responses. Reads still waiting
+	 * are abandoned at once; writes only once the deadline has passed, so
+	 * that every replica is still written.
+	 */
+	private void finished(Operation<?> operation, OperationDeadline deadline) {
+		if ((deadline != null) && isRead(operation))
+			deadline.abandon();
+	}
+
+	private boolean isRead(Operation<?> operation) {
+		return (operation instanceof GetOperation)
+				|| (operation instanceof GetBulkOperation);
+	}
+
+	private <V> Future<OperationResult<V>> dispatch(
+			OperationQueue operationQueue, Operation<V> op,
+			OperationCallback<V> callback) {
+		if ((healthTracker != null) || (latencyLocator != null)
+				|| (hintedHandoff != null))
+			callback = new NodeRecordingCallback<V>(op.getNode(), callback);
+		op.setCallback(callback);
+		// only a request that is actually sent may take the node's probe, so
+		// a rejected one gives it back
+		if (healthTracker != null)
+			healthTracker.sending(op.getNode());
+		try {
+			return operationQueue.submit(op);
+		} catch (RejectedExecutionException e) {
+			if (healthTracker != null)
+				healthTracker.unsent(op.getNode());
+			throw e;
+		}
+	}
+
+	/**
+	 * Feeds the outcome of each request to the node health tracker,
+	 * latency-aware locator and hinted handoff before passing it on.
+	 */
+	private class NodeRecordingCallback<V> implements OperationCallback<V> {
+		private Node node;
+
+		private OperationCallback<V> delegate;
+
+		public NodeRecordingCallback(Node node, OperationCallback<V> delegate) {
+			this.node = node;
+			this.delegate = delegate;
+		}
+
+		public void completed(OperationResult<V> result) {
+			// an operation given up on before it was sent says nothing about
+			// the node, but a write still needs its hint
+			boolean abandoned = (result.getError()
+					instanceof OperationAbandonedException);
+			if ((healthTracker != null) && !abandoned)
+				healthTracker.record(node, result.getStatus(), result
+						.getDuration());
+			// a fast failure should not make a node look fast
+			if ((latencyLocator != null) && !abandoned) {
+				if (OperationStatus.Error.equals(result.getStatus()))
+					latencyLocator.recordFailure(node, result.getDuration());
+				else
+					latencyLocator.record(node, result.getDuration());
+			}
+			if (hintedHandoff != null) {
+				if (OperationStatus.Error.equals(result.getStatus()))
+					hintedHandoff.hint(node, result.getOperation());
+				else
+					hintedHandoff.written(node, result.getOperation());
+			}
+			delegate.completed(result);
+		}
+	}
 }
@@ -1,10 +1,17 @@
 package com.rubiconproject.oss.kv.distributed.impl;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.rubiconproject.oss.kv.BaseManagedKeyValueStore;
 import com.rubiconproject.oss.kv.DistributedKeyValueStoreClient;
@@ -16,13 +23,14 @@ import com.rubiconproject.oss.kv.distributed.Configuration;
 import com.rubiconproject.oss.kv.distributed.ConfigurationException;
 import com.rubiconproject.oss.kv.distributed.Configurator;
 import com.rubiconproject.oss.kv.distributed.Context;
+import com.rubiconproject.oss.kv.distributed.InvalidationListener;
 import com.rubiconproject.oss.kv.distributed.Node;
 import com.rubiconproject.oss.kv.distributed.Operation;
 import com.rubiconproject.oss.kv.distributed.OperationQueue;
 import com.rubiconproject.oss.kv.distributed.OperationResult;
-import com.rubiconproject.oss.kv.distributed.hashing.MD5HashAlgorithm;
 import com.rubiconproject.oss.kv.transcoder.SerializingTranscoder;
 import com.rubiconproject.oss.kv.transcoder.Transcoder;
+import com.rubiconproject.oss.kv.util.SettableFuture;
 
 public class DistributedKeyValueStoreClientImpl extends
 		BaseManagedKeyValueStore implements KeyValueStore,
@@ -37,6 +45,19 @@ public class DistributedKeyValueStoreClientImpl extends
 
 	private DefaultDistributedKeyValueStore store;
 
+	// quorum reads in progress by key, when coalescing reads
+	private ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+
+	private AtomicLong coalescedReads = new AtomicLong();
+
+	// null unless configured
+	private NearCache nearCache;
+
+	// null unless configured
+	private OperationEventSink eventSink;
+
+	private List<InvalidationListener> invalidationListeners = new CopyOnWriteArrayList<InvalidationListener>();
+
 	private Transcoder defaultTranscoder = new SerializingTranscoder();
 
 	public DistributedKeyValueStoreClientImpl() {
@@ -68,17 +89,31 @@ public class DistributedKeyValueStoreClientImpl extends
 			asyncOpQueue.start();
 
 			DynamoNodeLocator nl = new DynamoNodeLocator();
+			// enough for a sliding window or hedges past the first replicas
+			nl.setPrecomputedLength(2 * Math.max(config.getReadReplicas(),
+					config.getWriteReplicas()));
 			config.getNodeStore().addChangeListener(nl);
 			config.getNodeStore().start();
 			store = new DefaultDistributedKeyValueStore();
 			store.setConfiguration(config);
-			store.setHashAlgorithm(new MD5HashAlgorithm());
+			store.setHashAlgorithm(config.getHashAlgorithm());
 			store.setNodeLocator(nl);
 			store.setSyncOperationQueue(syncOpQueue);
 			store.setAsyncOperationQueue(asyncOpQueue);
 			store.setContextSerializer(new PassthroughContextSerializer());
 			store.setContextFilter(new NodeRankContextFilter<byte[]>(config));
 			store.start();
+			if (config.getOperationLogFile() != null) {
+				OperationEventSink.Format format = "csv"
+						.equalsIgnoreCase(config.getOperationLogFormat()) ? OperationEventSink.Format.Csv
+						: OperationEventSink.Format.Binary;
+				eventSink = log.openEventSink(new File(config
+						.getOperationLogFile()), format, config
+						.getOperationLogBufferSize());
+			}
+			if (config.getNearCacheMaxBytes() > 0)
+				nearCache = new NearCache(config.getNearCacheMaxBytes(), config
+						.getNearCacheTtl());
 			super.start();
 		} catch (ConfigurationException e) {
 			throw new IOException(e);
@@ -90,7 +125,12 @@ public class DistributedKeyValueStoreClientImpl extends
 	@Override
 	public void stop() {
 		super.stop();
+		config.getNodeStore().stop();
 		store.stop();
+		if (eventSink != null) {
+			log.closeEventSink(eventSink);
+			eventSink = null;
+		}
 	}
 
 	public boolean exists(String key) throws KeyValueStoreException,
@@ -122,7 +162,15 @@ public class DistributedKeyValueStoreClientImpl extends
 		boolean success = true;
 		try {
 			assertReadable();
-			Context<byte[]> context = store.get(key);
+			if (nearCache != null) {
+				NearCache.Entry entry = nearCache.get(key);
+				if (entry != null)
+					return (entry.getValue() == null) ? null : transcoder
+							.decode(entry.getValue());
+			}
+			if (config.getCoalesceReads())
+				return getCoalesced(key, transcoder);
+			Context<byte[]> context = read(key);
 			byte[] bytes = context.getValue();
 			Object obj = null;
 			if (bytes != null) {
@@ -140,6 +188,108 @@ public class DistributedKeyValueStoreClientImpl extends
 		}
 	}
 
+	/**
+	 * Returns the number of gets answered by a quorum read another caller
+	 * already had in progress.
+	 */
+	public long getCoalescedReadCount() {
+		return coalescedReads.get();
+	}
+
+	/**
+	 * Join the quorum read in progress for the key, or start one that later
+	 * callers can join. The value is decoded once for each transcoder used
+	 * with the read, so callers using the same transcoder share one object.
+	 */
+	private Object getCoalesced(String key, Transcoder transcoder)
+			throws KeyValueStoreException, IOException {
+		Flight flight = new Flight();
+		Flight existing = flights.putIfAbsent(key, flight);
+		if (existing == null) {
+			try {
+				flight.future.set(read(key));
+			} catch (Throwable e) {
+				flight.future.setException(e);
+			} finally {
+				flights.remove(key, flight);
+			}
+		} else {
+			flight = existing;
+			coalescedReads.incrementAndGet();
+		}
+		try {
+			return flight.decode(transcoder);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new KeyValueStoreException(e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof KeyValueStoreException)
+				throw (KeyValueStoreException) cause;
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new KeyValueStoreException(cause);
+		}
+	}
+
+	/**
+	 * Quorum read of the key, caching the result in the near cache unless the
+	 * key is invalidated meanwhile.
+	 */
+	private Context<byte[]> read(String key) throws KeyValueStoreException,
+			IOException {
+		if (nearCache == null)
+			return store.get(key);
+		long version = nearCache.getVersion(key);
+		Context<byte[]> context = store.get(key);
+		nearCache.put(key, context.getValue(), version);
+		return context;
+	}
+
+	/**
+	 * Returns the near cache, or null if it is disabled.
+	 */
+	public NearCache getNearCache() {
+		return nearCache;
+	}
+
+	/**
+	 * Drop the key from the near cache, e.g. because another client wrote
+	 * it. See {@link InvalidationListener}.
+	 */
+	public void invalidate(String key) {
+		if (nearCache != null)
+			nearCache.invalidate(key);
+	}
+
+	/**
+	 * Tell the listener of every key this client writes or deletes.
+	 */
+	public void addInvalidationListener(InvalidationListener listener) {
+		invalidationListeners.add(listener);
+	}
+
+	public void removeInvalidationListener(InvalidationListener listener) {
+		invalidationListeners.remove(listener);
+	}
+
+	/**
+	 * Called once a write of the key has finished, successfully or not, so
+	 * that reads begun before or during the write do not cache the old value
+	 * and later gets do not join them.
+	 */
+	private void written(String key) {
+		flights.remove(key);
+		if (nearCache != null)
+			nearCache.invalidate(key);
+		for (InvalidationListener listener : invalidationListeners)
+			listener.invalidated(key);
+	}
+
 	public List<Node> getPreferenceList(String key, int replicas) {
 		return store.getPreferenceList(key, replicas);
 	}
@@ -260,7 +410,13 @@ public class DistributedKeyValueStoreClientImpl extends
 		try {
 			assertWriteable();
 			byte[] bytes = transcoder.encode(value);
-			store.set(key, bytes);
+			// gets starting after this must not join an older read
+			flights.remove(key);
+			try {
+				store.set(key, bytes);
+			} finally {
+				written(key);
+			}
 		} catch (KeyValueStoreException e1) {
 			success = false;
 			throw e1;
@@ -277,7 +433,12 @@ public class DistributedKeyValueStoreClientImpl extends
 		boolean success = true;
 		try {
 			assertWriteable();
-			store.delete(key);
+			flights.remove(key);
+			try {
+				store.delete(key);
+			} finally {
+				written(key);
+			}
 		} catch (KeyValueStoreException e1) {
 			success = false;
 			throw e1;
@@ -294,4 +455,25 @@ public class DistributedKeyValueStoreClientImpl extends
 		log.log(key, op, duration, success);
 	}
 
+	private static class Flight {
+		private SettableFuture<Context<byte[]>> future = new SettableFuture<Context<byte[]>>();
+
+		// decoded values by transcoder, guarded by itself
+		private Map<Transcoder, Object> decoded = new IdentityHashMap<Transcoder, Object>();
+
+		public Object decode(Transcoder transcoder) throws IOException,
+				InterruptedException, ExecutionException {
+			byte[] bytes = future.get().getValue();
+			if (bytes == null)
+				return null;
+			synchronized (decoded) {
+				if (decoded.containsKey(transcoder))
+					return decoded.get(transcoder);
+				Object obj = transcoder.decode(bytes);
+				decoded.put(transcoder, obj);
+				return obj;
+			}
+		}
+	}
+
 }
@@ -1,22 +1,33 @@
 package com.rubiconproject.oss.kv.distributed.impl;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.rubiconproject.oss.kv.distributed.Node;
-import com.rubiconproject.oss.kv.distributed.NodeChangeListener;
+import com.rubiconproject.oss.kv.distributed.NodeHealthTracker;
 import com.rubiconproject.oss.kv.distributed.NodeLocator;
+import com.rubiconproject.oss.kv.distributed.Topology;
+import com.rubiconproject.oss.kv.distributed.TopologyListener;
 import com.rubiconproject.oss.kv.distributed.hashing.HashAlgorithm;
-import com.rubiconproject.oss.kv.distributed.hashing.HashRing;
+import com.rubiconproject.oss.kv.distributed.hashing.LongHashRing;
 import com.rubiconproject.oss.kv.distributed.hashing.MD5HashAlgorithm;
 import com.rubiconproject.oss.kv.tuple.Tuple;
 import com.rubiconproject.oss.kv.tuple.Tuple2;
+import com.rubiconproject.oss.kv.util.ExecutorUtils;
 
 /**
  * A node locator roughly comparable to Strategy 3 from the dynamo paper.
@@ -24,20 +35,29 @@ import com.rubiconproject.oss.kv.tuple.Tuple2;
  * @author sam
  * 
  */
-public class DynamoNodeLocator implements NodeLocator, NodeChangeListener {
+public class DynamoNodeLocator implements NodeLocator, TopologyListener {
 	public static final int DEFAULT_TOKENS_PER_NODE = 100;
 
+	public static final int PARALLEL_REBUILD_NODE_COUNT = 32;
+
+	public static final int DEFAULT_PRECOMPUTED_LENGTH = 8;
+
+	private static final int MIN_TOKENS_PER_REBUILD_THREAD = 256;
+
 	private Log log = LogFactory.getLog(getClass());
 
 	private int tokensPerNode = DEFAULT_TOKENS_PER_NODE;
 
 	private HashAlgorithm md5 = new MD5HashAlgorithm();
 
-	private volatile HashRing<Long, Token> outerRing;
+	// the ring and the topology it was built from, swapped in together
+	private volatile Snapshot current;
 
-	private volatile int maxNodeIterations = 0;
+	private volatile NodeHealthTracker healthTracker;
 
-	private volatile int nodeCount = 0;
+	private int rebuildThreads = Runtime.getRuntime().availableProcessors();
+
+	private int precomputedLength = DEFAULT_PRECOMPUTED_LENGTH;
 
 	public DynamoNodeLocator(int tokensPerNode) {
 		this.tokensPerNode = tokensPerNode;
@@ -46,12 +66,50 @@ public class DynamoNodeLocator implements NodeLocator, NodeChangeListener {
 	public DynamoNodeLocator() {
 	}
 
+	/**
+	 * Number of threads used to precompute preference lists on rebuild for
+	 * clusters of at least PARALLEL_REBUILD_NODE_COUNT nodes.
+	 */
+	public void setRebuildThreads(int rebuildThreads) {
+		this.rebuildThreads = rebuildThreads;
+	}
+
+	/**
+	 * Number of nodes of each token's preference list computed on rebuild,
+	 * normally the most replicas a request asks for plus a few to spill to
+	 * when some are ejected. The rest of a list is found by walking the ring
+	 * only when a caller gets that far, so memory grows with the number of
+	 * tokens rather than tokens times nodes. Takes effect on the next
+	 * rebuild.
+	 */
+	public void setPrecomputedLength(int precomputedLength) {
+		this.precomputedLength = Math.max(1, precomputedLength);
+	}
+
 	public List<Node> getPreferenceList(HashAlgorithm hashAlg, String key,
 			int count) {
-		if (count > outerRing.getNodeCount()) {
+		return getPreferenceList(hashAlg, key, count, healthTracker);
+	}
+
+	public List<Node> getNaturalPreferenceList(HashAlgorithm hashAlg,
+			String key, int count) {
+		return getPreferenceList(hashAlg, key, count, null);
+	}
+
+	private List<Node> getPreferenceList(HashAlgorithm hashAlg, String key,
+			int count, NodeHealthTracker tracker) {
+		return new ArrayList<Node>(getPreferenceList(current, hashAlg, key,
+				count, tracker));
+	}
+
+	private List<Node> getPreferenceList(Snapshot snapshot,
+			HashAlgorithm hashAlg, String key, int count,
+			NodeHealthTracker tracker) {
+		LongHashRing<Token> ring = snapshot.ring;
+		if (count > ring.getNodeCount()) {
 			String error = String.format(
 					"Requested count (%1$d) is greater than node count (%2$d)",
-					count, outerRing.getNodeCount());
+					count, ring.getNodeCount());
 			IllegalArgumentException e = new IllegalArgumentException(error);
 			log.error(error, e);
 			throw e;
@@ -59,40 +117,28 @@ public class DynamoNodeLocator implements NodeLocator, NodeChangeListener {
 
 		long hashCode = hashAlg.hash(key);
 
-		List<Node> results = new ArrayList<Node>(count);
-		Map.Entry<Long, Token> entry = outerRing.place(hashCode);
-		results.add(entry.getValue().node);
-
-		int stopLimit = 1;
-		while ((results.size() < count) && (stopLimit < maxNodeIterations)) {
-			entry = outerRing.lowerEntry(entry.getKey());
-			if (entry == null)
-				entry = outerRing.lastEntry();
-			Node n = entry.getValue().node;
-			// add if we do not have a node with this id, physical id
-			boolean add = true;
-			for (Node x : results) {
-				if ((x.equals(n)) || (x.getPhysicalId() == (n.getPhysicalId()))) {
-					add = false;
-					break;
-				}
-			}
-			if (add)
-				results.add(n);
-			++stopLimit;
-		}
-		return results;
+		Walk candidates = new Walk(ring, ring.place(hashCode),
+				snapshot.distinct);
+		return new PreferenceList(candidates, tracker, Math.min(count,
+				candidates.size()));
 	}
 
 	/**
-	 * Return the full ranked node list for a given key.
+	 * Return the full ranked node list for a given key. Nodes past the
+	 * precomputed length are only found if the list is read that far.
 	 * 
 	 * @param hashAlg
 	 * @param key
 	 * @return
 	 */
 	public List<Node> getFullPreferenceList(HashAlgorithm hashAlg, String key) {
-		return getPreferenceList(hashAlg, key, nodeCount);
+		Snapshot snapshot = current;
+		return getPreferenceList(snapshot, hashAlg, key, snapshot.ring
+				.getNodeCount(), healthTracker);
+	}
+
+	public void setNodeHealthTracker(NodeHealthTracker tracker) {
+		this.healthTracker = tracker;
 	}
 
 	/**
@@ -103,11 +149,11 @@ public class DynamoNodeLocator implements NodeLocator, NodeChangeListener {
 	 * @return
 	 */
 	public int getPrimaryNode(HashAlgorithm hashAlg, String key) {
-		if (outerRing.getNodeCount() == 0)
+		LongHashRing<Token> ring = current.ring;
+		if (ring.getNodeCount() == 0)
 			throw new IllegalArgumentException("Ring is currently empty");
 		long hashCode = hashAlg.hash(key);
-		Map.Entry<Long, Token> entry = outerRing.place(hashCode);
-		return entry.getValue().id;
+		return ring.get(hashCode).id;
 
 	}
 
@@ -117,23 +163,116 @@ public class DynamoNodeLocator implements NodeLocator, NodeChangeListener {
 	 * @param nodes
 	 */
 	public void setActiveNodes(List<Node> nodes) {
-		rebuild(nodes);
+		setTopology(new Topology(getTopology().getEpoch(), nodes));
 	}
 
-	private void rebuild(List<Node> nodes) {
+	/**
+	 * Callback from the node store with a new topology. Topologies older than
+	 * the current one, e.g. from a slow publish, are ignored.
+	 */
+	public synchronized void setTopology(Topology topology) {
+		Snapshot snapshot = current;
+		if ((snapshot != null)
+				&& (topology.getEpoch() < snapshot.topology.getEpoch())) {
+			log.debug(String.format("Ignoring topology %1$s older than %2$s",
+					topology, snapshot.topology));
+			return;
+		}
+		Set<Integer> physicalIds = new HashSet<Integer>();
+		for (Node node : topology.getNodes())
+			physicalIds.add(node.getPhysicalId());
+		current = new Snapshot(topology, buildRing(topology.getNodes(),
+				precomputedLength), physicalIds.size());
+	}
+
+	public Topology getTopology() {
+		Snapshot snapshot = current;
+		return (snapshot == null) ? Topology.EMPTY : snapshot.topology;
+	}
+
+	/**
+	 * Return the ranges of the ring whose replicas differ between the ring
+	 * built from oldNodes and the one built from newNodes, such as before and
+	 * after a node joins. Only keys hashing into these ranges need to move.
+	 * Ranges whose replicas are only reordered are left out, and adjacent
+	 * ranges with the same old and new replicas are merged.
+	 *
+	 * @param oldNodes
+	 * @param newNodes
+	 * @param replicas
+	 *            number of replicas of each key
+	 * @return
+	 */
+	public List<TokenRange> getChangedRanges(List<Node> oldNodes,
+			List<Node> newNodes, int replicas) {
+		List<TokenRange> results = new ArrayList<TokenRange>();
+		if (oldNodes.isEmpty() || newNodes.isEmpty())
+			return results;
+		int length = Math.max(precomputedLength, replicas);
+		LongHashRing<Token> oldRing = buildRing(oldNodes, length);
+		LongHashRing<Token> newRing = buildRing(newNodes, length);
+
+		// merge the positions of both rings; every key between two adjacent
+		// positions maps to the same token on each ring
+		long[] bounds = new long[oldRing.size() + newRing.size()];
+		for (int i = 0; i < oldRing.size(); ++i)
+			bounds[i] = oldRing.getKey(i);
+		for (int i = 0; i < newRing.size(); ++i)
+			bounds[oldRing.size() + i] = newRing.getKey(i);
+		Arrays.sort(bounds);
+
+		TokenRange current = null;
+		long previous = bounds[bounds.length - 1];
+		for (int i = 0; i < bounds.length; ++i) {
+			long end = bounds[i];
+			if ((i > 0) && (end == bounds[i - 1]))
+				continue;
+			List<Node> oldOwners = getOwners(oldRing.get(end), replicas);
+			List<Node> newOwners = getOwners(newRing.get(end), replicas);
+			if ((oldOwners.size() == newOwners.size())
+					&& TokenRange.difference(newOwners, oldOwners).isEmpty()) {
+				// same replicas, perhaps in a different order
+				current = null;
+			} else if ((current != null)
+					&& TokenRange.getIds(oldOwners).equals(
+							TokenRange.getIds(current.getOldOwners()))
+					&& TokenRange.getIds(newOwners).equals(
+							TokenRange.getIds(current.getNewOwners()))) {
+				current = new TokenRange(current.getStart(), end, oldOwners,
+						newOwners);
+				results.set(results.size() - 1, current);
+			} else {
+				current = new TokenRange(previous, end, oldOwners, newOwners);
+				results.add(current);
+			}
+			previous = end;
+		}
+		return results;
+	}
+
+	private List<Node> getOwners(Token token, int replicas) {
+		// the rings are built with at least replicas nodes per list
+		int size = Math.min(replicas, token.preferenceList.length);
+		return new ArrayList<Node>(Arrays.asList(token.preferenceList).subList(
+				0, size));
+	}
+
+	private LongHashRing<Token> buildRing(List<Node> nodes, int length) {
 		if (nodes.size() == 0)
 			throw new IllegalArgumentException("Unable to rebuild node list. Empty node list provided.");
 
-		HashRing<Long, Token> newRing = new HashRing<Long, Token>(nodes.size());
+		LongHashRing.Builder<Token> builder = new LongHashRing.Builder<Token>(
+				nodes.size());
 
 		// build the outer ring from Long.MIN_VALUE to Long.MAX_VALUE
-		int tokenCount = tokensPerNode * newRing.getNodeCount();
+		int tokenCount = tokensPerNode * nodes.size();
 		long tokenSize = (Long.MAX_VALUE / tokenCount) * 2;
 		for (int i = 1; i <= tokenCount; ++i) {
 			long index = Long.MIN_VALUE + (i * tokenSize);
 			Token token = new Token(i - 1, null);
-			newRing.put(index, token);
+			builder.put(index, token);
 		}
+		LongHashRing<Token> newRing = builder.build();
 		List<Tuple2<Long, Node>> tokens = new ArrayList<Tuple2<Long, Node>>(
 				newRing.size());
 		for (Node node : nodes) {
@@ -149,14 +288,198 @@ public class DynamoNodeLocator implements NodeLocator, NodeChangeListener {
 				return Tuple.get1(o1).compareTo(Tuple.get1(o2));
 			}
 		});
-		int i = 0;
-		for (Token token : newRing.values()) {
-			token.node = Tuple.get2(tokens.get(i));
-			++i;
+		for (int i = 0; i < newRing.size(); ++i)
+			newRing.getValue(i).node = Tuple.get2(tokens.get(i));
+		computePreferenceLists(newRing, nodes.size(), length);
+		return newRing;
+	}
+
+	/**
+	 * Compute the first length nodes of every token's preference list: the
+	 * distinct physical nodes met walking backwards around the ring from that
+	 * token.
+	 */
+	private void computePreferenceLists(final LongHashRing<Token> ring,
+			int nodeCount, int length) {
+		// map physical ids to dense indexes for cheap duplicate checks
+		Map<Integer, Integer> physicalIndexes = new HashMap<Integer, Integer>();
+		final int[] tokenPhysical = new int[ring.size()];
+		for (int i = 0; i < ring.size(); ++i) {
+			int physicalId = ring.getValue(i).node.getPhysicalId();
+			Integer index = physicalIndexes.get(physicalId);
+			if (index == null) {
+				index = physicalIndexes.size();
+				physicalIndexes.put(physicalId, index);
+			}
+			tokenPhysical[i] = index;
+		}
+		final int distinct = physicalIndexes.size();
+		final int listLength = Math.min(length, distinct);
+
+		int threads = Math.min(rebuildThreads, ring.size()
+				/ MIN_TOKENS_PER_REBUILD_THREAD);
+		if ((nodeCount < PARALLEL_REBUILD_NODE_COUNT) || (threads <= 1)) {
+			computePreferenceLists(ring, tokenPhysical, distinct, listLength,
+					0, ring.size());
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+		ExecutorService executor = ExecutorUtils
+				.newFixedSizeDaemonThreadPool(threads);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>(threads);
+			int chunk = (ring.size() + threads - 1) / threads;
+			for (int from = 0; from < ring.size(); from += chunk) {
+				final int begin = from;
+				final int end = Math.min(from + chunk, ring.size());
+				futures.add(executor.submit(new Runnable() {
+					public void run() {
+						computePreferenceLists(ring, tokenPhysical, distinct,
+								listLength, begin, end);
+					}
+				}));
+			}
+			for (Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executor.shutdown();
+		}
+		if (log.isDebugEnabled())
+			log.debug(String.format(
+					"Computed %1$d preference lists using %2$d threads in %3$dms",
+					ring.size(), threads, System.currentTimeMillis() - start));
+	}
+
+	private void computePreferenceLists(LongHashRing<Token> ring,
+			int[] tokenPhysical, int distinct, int length, int from, int to) {
+		boolean[] seen = new boolean[distinct];
+		for (int token = from; token < to; ++token) {
+			Arrays.fill(seen, false);
+			Node[] list = new Node[length];
+			int count = 0;
+			int index = token;
+			for (int step = 0; (count < length) && (step < ring.size()); ++step) {
+				int physical = tokenPhysical[index];
+				if (!seen[physical]) {
+					seen[physical] = true;
+					list[count++] = ring.getValue(index).node;
+				}
+				index = ring.lower(index);
+			}
+			ring.getValue(token).preferenceList = list;
+		}
+	}
+
+	private static class Snapshot {
+		private Topology topology;
+
+		private LongHashRing<Token> ring;
+
+		// distinct physical nodes, the length of a full preference list
+		private int distinct;
+
+		public Snapshot(Topology topology, LongHashRing<Token> ring,
+				int distinct) {
+			this.topology = topology;
+			this.ring = ring;
+			this.distinct = distinct;
+		}
+	}
+
+	/**
+	 * The distinct physical nodes met walking backwards around the ring from
+	 * a token: its precomputed preference list, then nodes found by walking
+	 * the ring once a caller asks for one beyond it.
+	 */
+	private static class Walk {
+		private LongHashRing<Token> ring;
+
+		private int start;
+
+		private int size;
+
+		// the whole walk, once needed
+		private List<Node> nodes;
+
+		public Walk(LongHashRing<Token> ring, int start, int size) {
+			this.ring = ring;
+			this.start = start;
+			this.size = size;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public Node get(int index) {
+			Node[] precomputed = ring.getValue(start).preferenceList;
+			if (index < precomputed.length)
+				return precomputed[index];
+			if (nodes == null) {
+				nodes = new ArrayList<Node>(size);
+				Set<Integer> seen = new HashSet<Integer>();
+				int token = start;
+				for (int step = 0; (nodes.size() < size)
+						&& (step < ring.size()); ++step) {
+					Node node = ring.getValue(token).node;
+					if (seen.add(node.getPhysicalId()))
+						nodes.add(node);
+					token = ring.lower(token);
+				}
+			}
+			return nodes.get(index);
+		}
+	}
+
+	/**
+	 * A preference list read lazily from a walk: nodes the tracker reports
+	 * available in ring order, then the ejected ones rather than a short
+	 * list. Each request gets its own.
+	 */
+	private static class PreferenceList extends AbstractList<Node> {
+		private Walk candidates;
+
+		private NodeHealthTracker tracker;
+
+		private int size;
+
+		private List<Node> available = new ArrayList<Node>();
+
+		private List<Node> ejected = new ArrayList<Node>(0);
+
+		private int consumed = 0;
+
+		public PreferenceList(Walk candidates, NodeHealthTracker tracker,
+				int size) {
+			this.candidates = candidates;
+			this.tracker = tracker;
+			this.size = size;
+		}
+
+		public Node get(int index) {
+			if ((index < 0) || (index >= size))
+				throw new IndexOutOfBoundsException("Index: " + index
+						+ ", Size: " + size);
+			while ((available.size() <= index)
+					&& (consumed < candidates.size())) {
+				Node node = candidates.get(consumed++);
+				if ((tracker == null) || tracker.isAvailable(node))
+					available.add(node);
+				else
+					ejected.add(node);
+			}
+			return (index < available.size()) ? available.get(index)
+					: ejected.get(index - available.size());
+		}
+
+		public int size() {
+			return size;
 		}
-		maxNodeIterations = tokensPerNode * nodes.size();
-		outerRing = newRing;
-		nodeCount = nodes.size();
 	}
 
 	private static class Token {
@@ -164,6 +487,10 @@ public class DynamoNodeLocator implements NodeLocator, NodeChangeListener {
 
 		private Node node;
 
+		// the first distinct physical nodes in ring order starting at this
+		// token
+		private Node[] preferenceList;
+
 		public Token(int id, Node node) {
 			this.id = id;
 			this.node = node;
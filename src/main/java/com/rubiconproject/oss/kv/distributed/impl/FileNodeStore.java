@@ -0,0 +1,112 @@
+package com.rubiconproject.oss.kv.distributed.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Properties;
+
+import com.rubiconproject.oss.kv.distributed.AbstractRefreshingNodeStore;
+import com.rubiconproject.oss.kv.distributed.ConfigurationException;
+import com.rubiconproject.oss.kv.distributed.Node;
+import com.rubiconproject.oss.kv.distributed.NodeListParser;
+
+/**
+ * Reads nodes from a local file in the format of the parser, xml by default,
+ * and publishes them as soon as the file changes. The file's modification
+ * time and length are checked every poll interval (250ms by default), which
+ * costs a stat rather than a parse, and it is only read again when they
+ * differ.
+ *
+ * Replace the file by writing a new one and renaming it over the old one, so
+ * that a half written list is never read.
+ *
+ * @author sam
+ *
+ */
+public class FileNodeStore extends AbstractRefreshingNodeStore {
+	public static final String FILE_PROPERTY = "nodeStore.file";
+
+	public static final String POLL_INTERVAL_PROPERTY = "nodeStore.file.pollInterval";
+
+	public static final long DEFAULT_POLL_INTERVAL = 250l;
+
+	private File file;
+
+	private NodeListParser parser;
+
+	private long pollInterval = DEFAULT_POLL_INTERVAL;
+
+	private long lastModified = -1l;
+
+	private long length = -1l;
+
+	public FileNodeStore() {
+		parser = new XmlNodeListParser();
+	}
+
+	public FileNodeStore(String file) {
+		this(file, new XmlNodeListParser());
+	}
+
+	public FileNodeStore(String file, NodeListParser parser) {
+		this.file = new File(file);
+		this.parser = parser;
+	}
+
+	public void setProperties(Properties props) {
+		this.file = new File(props.getProperty(FILE_PROPERTY));
+		if (props.getProperty(POLL_INTERVAL_PROPERTY) != null)
+			pollInterval = Long.parseLong(props
+					.getProperty(POLL_INTERVAL_PROPERTY));
+		this.props = props;
+	}
+
+	public void setFile(String file) {
+		this.file = new File(file);
+	}
+
+	public void setParser(NodeListParser parser) {
+		this.parser = parser;
+	}
+
+	/**
+	 * Millis between checks of the file.
+	 */
+	public void setPollInterval(long pollInterval) {
+		this.pollInterval = pollInterval;
+	}
+
+	@Override
+	public void start() throws IOException, ConfigurationException {
+		if (!file.exists())
+			throw new FileNotFoundException(file.getPath());
+		super.start();
+	}
+
+	@Override
+	public synchronized List<Node> refreshActiveNodes() throws IOException,
+			ConfigurationException {
+		long modified = file.lastModified();
+		long size = file.length();
+		if ((modified == 0l) || ((modified == lastModified) && (size == length)))
+			// missing or unchanged; keep the current nodes
+			return null;
+		InputStream in = new FileInputStream(file);
+		try {
+			List<Node> nodes = parser.parse(in);
+			lastModified = modified;
+			length = size;
+			return nodes;
+		} finally {
+			in.close();
+		}
+	}
+
+	@Override
+	protected long getRefreshPeriod() {
+		return pollInterval;
+	}
+}
@@ -0,0 +1,537 @@
+package com.rubiconproject.oss.kv.distributed.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.rubiconproject.oss.kv.KeyValueStore;
+import com.rubiconproject.oss.kv.KeyValueStoreException;
+import com.rubiconproject.oss.kv.backends.ConnectionFactory;
+import com.rubiconproject.oss.kv.distributed.Node;
+import com.rubiconproject.oss.kv.distributed.NodeHealthTracker;
+import com.rubiconproject.oss.kv.distributed.Operation;
+import com.rubiconproject.oss.kv.distributed.OperationDeadline;
+import com.rubiconproject.oss.kv.transcoder.ByteArrayTranscoder;
+import com.rubiconproject.oss.kv.transcoder.Transcoder;
+
+/**
+ * Durable hinted handoff. Set and delete requests that could not be applied to
+ * a replica are appended to a per-node hint log on local disk and replayed to
+ * that node in batches once it is no longer ejected.
+ *
+ * Each node has one live file (&lt;id&gt;.hints) that hints are appended to.
+ * Before a replay the live file is renamed to &lt;id&gt;.&lt;seq&gt;.replay
+ * and a new live file is started on the next hint, so appends never wait on a
+ * replay. A replay file is deleted only once every record in it has been
+ * applied; if the node fails part way through the whole file is replayed
+ * again later. Hint files left behind by a previous process are picked up by
+ * start().
+ *
+ * Each hint is forced to disk before append returns; appends that arrive
+ * while a sync is under way share the next one.
+ *
+ * A hint is skipped on replay if this client has since written the same key
+ * to the same node. Hints and writes are both stamped with the time the
+ * request was issued, so an older write that completes late does not hide
+ * a newer hint. Writes made by other clients are not seen, and values
+ * carry no version to compare, so a replay can still overwrite a newer value
+ * written elsewhere while the node was down.
+ *
+ * @author sam
+ *
+ */
+public class HintedHandoff {
+	public static final long DEFAULT_REPLAY_INTERVAL = 10000l;
+
+	public static final int DEFAULT_BATCH_SIZE = 100;
+
+	private static final String HINTS_SUFFIX = ".hints";
+
+	private static final String REPLAY_SUFFIX = ".replay";
+
+	private static final byte SET = OperationCodec.SET;
+
+	private static final byte DELETE = OperationCodec.DELETE;
+
+	private Log log = LogFactory.getLog(getClass());
+
+	private File directory;
+
+	private ConnectionFactory connectionFactory;
+
+	private Map<?, ?> defaultProperties;
+
+	private NodeHealthTracker healthTracker;
+
+	private long replayInterval = DEFAULT_REPLAY_INTERVAL;
+
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	private Transcoder transcoder = new ByteArrayTranscoder();
+
+	private ConcurrentMap<Integer, HintLog> logs = new ConcurrentHashMap<Integer, HintLog>();
+
+	private Timer timer;
+
+	public HintedHandoff(File directory, ConnectionFactory connectionFactory,
+			Map<?, ?> defaultProperties) {
+		this.directory = directory;
+		this.connectionFactory = connectionFactory;
+		this.defaultProperties = defaultProperties;
+	}
+
+	/**
+	 * Hints for nodes the tracker reports as ejected are held back until the
+	 * node is re-admitted. May be null, in which case every replay attempt
+	 * goes to the node.
+	 */
+	public void setNodeHealthTracker(NodeHealthTracker tracker) {
+		this.healthTracker = tracker;
+	}
+
+	/**
+	 * Time between replay attempts (millis).
+	 */
+	public void setReplayInterval(long replayInterval) {
+		this.replayInterval = replayInterval;
+	}
+
+	/**
+	 * Maximum number of keys sent to a node in one setBulk() or deleteBulk()
+	 * request during replay.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	public void start() throws IOException {
+		if ((!directory.isDirectory()) && (!directory.mkdirs()))
+			throw new IOException("Unable to create hint directory "
+					+ directory);
+
+		// pick up hints left behind by a previous process. live files are
+		// rotated straight away since their last record may be incomplete.
+		File[] files = directory.listFiles();
+		for (File file : files) {
+			String name = file.getName();
+			if ((!name.endsWith(HINTS_SUFFIX)) && (!name.endsWith(REPLAY_SUFFIX)))
+				continue;
+			try {
+				Node node = readHeader(file);
+				HintLog hints = getHintLog(node);
+				hints.recover();
+			} catch (IOException e) {
+				log.error("Unable to read hint file " + file, e);
+			}
+		}
+
+		timer = new Timer(true);
+		timer.schedule(new TimerTask() {
+			public void run() {
+				try {
+					replay();
+				} catch (Exception e) {
+					log.error("Exception calling replay()", e);
+				}
+			}
+		}, replayInterval, replayInterval);
+	}
+
+	public void stop() {
+		if (timer != null)
+			timer.cancel();
+		for (HintLog hints : logs.values())
+			hints.close();
+	}
+
+	/**
+	 * Record an operation that could not be applied to the given node. Only
+	 * set and delete operations are recorded.
+	 *
+	 * @param node
+	 * @param operation
+	 * @return true if a hint was written
+	 */
+	public boolean hint(Node node, Operation<?> operation) {
+		try {
+			if (operation instanceof SetOperation) {
+				SetOperation<?> set = (SetOperation<?>) operation;
+				if (set.getTranscoder() == null) {
+					log.warn("Not writing hint for set without a transcoder "
+							+ set.getKey());
+					return false;
+				}
+				byte[] value = set.getTranscoder().encode(set.getValue());
+				getHintLog(node).append(SET, set.getKey(), value,
+						getIssued(operation));
+				return true;
+			} else if (operation instanceof DeleteOperation) {
+				getHintLog(node).append(DELETE, operation.getKey(), null,
+						getIssued(operation));
+				return true;
+			}
+		} catch (IOException e) {
+			log.error(String.format("Unable to write hint for node %1$d",
+					node.getId()), e);
+		}
+		return false;
+	}
+
+	/**
+	 * Record that a set or delete has been applied to the given node, so that
+	 * older hints for the same key are not replayed over it.
+	 *
+	 * @param node
+	 * @param operation
+	 */
+	public void written(Node node, Operation<?> operation) {
+		HintLog hints = logs.get(node.getId());
+		if ((hints != null)
+				&& ((operation instanceof SetOperation) || (operation instanceof DeleteOperation)))
+			hints.supersede(operation.getKey(), getIssued(operation));
+	}
+
+	/**
+	 * Return true if there are hints waiting to be replayed to the given node.
+	 */
+	public boolean hasHints(Node node) {
+		HintLog hints = logs.get(node.getId());
+		return (hints == null) ? false : hints.isPending();
+	}
+
+	/**
+	 * Replay pending hints to every node that is not ejected. Called
+	 * periodically once started.
+	 */
+	public synchronized void replay() {
+		for (HintLog hints : logs.values()) {
+			if (!hints.isPending())
+				continue;
+			if ((healthTracker != null) && (healthTracker.isEjected(hints.node)))
+				continue;
+			try {
+				replay(hints);
+			} catch (Exception e) {
+				log.warn(String.format("Unable to replay hints to node %1$d",
+						hints.node.getId()), e);
+			}
+		}
+	}
+
+	private void replay(HintLog hints) throws IOException,
+			KeyValueStoreException {
+		hints.rotate();
+		KeyValueStore store = null;
+		for (File file : hints.getReplayFiles()) {
+			if (store == null)
+				store = connectionFactory.getStore(defaultProperties,
+						hints.node.getConnectionURI());
+			int count = replay(hints, store, file);
+			if (!file.delete())
+				log.warn("Unable to delete replayed hint file " + file);
+			log.info(String.format("Replayed %1$d hints to node %2$d", count,
+					hints.node.getId()));
+		}
+		hints.replayed();
+	}
+
+	private int replay(HintLog hints, KeyValueStore store, File file)
+			throws IOException, KeyValueStoreException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			readHeader(in);
+			Map<String, Object> sets = new LinkedHashMap<String, Object>();
+			Set<String> deletes = new LinkedHashSet<String>();
+			int count = 0;
+			while (true) {
+				byte type;
+				long time;
+				String key;
+				byte[] value = null;
+				try {
+					type = in.readByte();
+					if ((type != SET) && (type != DELETE)) {
+						// records carry no length, so nothing after an
+						// unknown one can be read
+						log.error(String.format(
+								"Unknown hint type %1$d in %2$s, skipping the"
+										+ " rest of the file", type, file));
+						break;
+					}
+					time = in.readLong();
+					key = in.readUTF();
+					if (type == SET) {
+						value = new byte[in.readInt()];
+						in.readFully(value);
+					}
+				} catch (EOFException e) {
+					// end of file, or a record cut short by a crash
+					break;
+				}
+				if (hints.isSuperseded(key, time))
+					continue;
+
+				// keep batches to one type so that records are applied in
+				// order. a later record for a key in the batch replaces it.
+				if ((type == SET) && ((!deletes.isEmpty())
+						|| (sets.size() >= batchSize)))
+					flush(store, sets, deletes);
+				else if ((type == DELETE) && ((!sets.isEmpty())
+						|| (deletes.size() >= batchSize)))
+					flush(store, sets, deletes);
+				if (type == SET) {
+					sets.remove(key);
+					sets.put(key, value);
+				} else if (type == DELETE) {
+					deletes.add(key);
+				}
+				++count;
+			}
+			flush(store, sets, deletes);
+			return count;
+		} finally {
+			in.close();
+		}
+	}
+
+	private void flush(KeyValueStore store, Map<String, Object> sets,
+			Set<String> deletes) throws IOException, KeyValueStoreException {
+		if (!sets.isEmpty())
+			store.setBulk(sets, transcoder);
+		if (!deletes.isEmpty())
+			store.deleteBulk(deletes);
+		sets.clear();
+		deletes.clear();
+	}
+
+	/**
+	 * Returns when the operation's request was issued, or now if that is not
+	 * known.
+	 */
+	private long getIssued(Operation<?> operation) {
+		OperationDeadline deadline = operation.getDeadline();
+		return (deadline == null) ? System.currentTimeMillis() : deadline
+				.getIssued();
+	}
+
+	private HintLog getHintLog(Node node) {
+		HintLog hints = logs.get(node.getId());
+		if (hints == null) {
+			hints = new HintLog(node);
+			HintLog existing = logs.putIfAbsent(node.getId(), hints);
+			if (existing != null)
+				hints = existing;
+		}
+		return hints;
+	}
+
+	private Node readHeader(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+		try {
+			return readHeader(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private Node readHeader(DataInputStream in) throws IOException {
+		return OperationCodec.readNode(in);
+	}
+
+	private class HintLog {
+		private Node node;
+
+		private File file;
+
+		private FileOutputStream fileOut;
+
+		private DataOutputStream out;
+
+		private long lastSequence = 0l;
+
+		private Object syncLock = new Object();
+
+		// records appended to and forced to the live file
+		private volatile long appended = 0l;
+
+		private volatile long synced = 0l;
+
+		private boolean pending = false;
+
+		// key -> issue time of the newest successful write while hints are
+		// pending
+		private Map<String, Long> superseded = new HashMap<String, Long>();
+
+		public HintLog(Node node) {
+			this.node = node;
+			this.file = new File(directory, node.getId() + HINTS_SUFFIX);
+		}
+
+		public void append(byte type, String key, byte[] value, long time)
+				throws IOException {
+			long record;
+			FileOutputStream stream;
+			synchronized (this) {
+				if (out == null) {
+					fileOut = new FileOutputStream(file);
+					out = new DataOutputStream(new BufferedOutputStream(
+							fileOut));
+					OperationCodec.writeNode(out, node);
+				}
+				out.writeByte(type);
+				out.writeLong(time);
+				out.writeUTF(key);
+				if (type == SET) {
+					out.writeInt(value.length);
+					out.write(value);
+				}
+				out.flush();
+				pending = true;
+				record = ++appended;
+				stream = fileOut;
+			}
+			sync(stream, record);
+		}
+
+		/**
+		 * Force the file to disk unless a sync begun since the record was
+		 * appended has done so already.
+		 */
+		private void sync(FileOutputStream stream, long record)
+				throws IOException {
+			synchronized (syncLock) {
+				if (synced >= record)
+					return;
+				long upTo = appended;
+				try {
+					stream.getFD().sync();
+				} catch (IOException e) {
+					// close() syncs before closing the file
+					if (synced >= record)
+						return;
+					throw e;
+				}
+				synced = Math.max(synced, upTo);
+			}
+		}
+
+		public synchronized boolean isPending() {
+			return pending;
+		}
+
+		public synchronized void supersede(String key, long time) {
+			if (!pending)
+				return;
+			Long written = superseded.get(key);
+			if ((written == null) || (time > written))
+				superseded.put(key, time);
+		}
+
+		public synchronized boolean isSuperseded(String key, long time) {
+			Long written = superseded.get(key);
+			return ((written != null) && (written >= time));
+		}
+
+		/**
+		 * Mark files left behind by a previous process as pending and move
+		 * the live file aside.
+		 */
+		public synchronized void recover() throws IOException {
+			pending = true;
+			rotate();
+		}
+
+		/**
+		 * Move the live file aside for replay. The next hint starts a new
+		 * live file.
+		 */
+		public synchronized void rotate() throws IOException {
+			close();
+			if (!file.exists())
+				return;
+			long sequence = Math.max(lastSequence + 1, System
+					.currentTimeMillis());
+			File replayFile = new File(directory, node.getId() + "."
+					+ sequence + REPLAY_SUFFIX);
+			if (!file.renameTo(replayFile))
+				throw new IOException("Unable to rename hint file " + file);
+			lastSequence = sequence;
+		}
+
+		/**
+		 * Return this node's replay files, oldest first.
+		 */
+		public List<File> getReplayFiles() {
+			List<File> results = new ArrayList<File>();
+			final Map<File, Long> sequences = new HashMap<File, Long>();
+			String prefix = node.getId() + ".";
+			for (File f : directory.listFiles()) {
+				String name = f.getName();
+				if ((!name.startsWith(prefix)) || (!name.endsWith(REPLAY_SUFFIX)))
+					continue;
+				try {
+					sequences.put(f, Long.parseLong(name.substring(prefix
+							.length(), name.length() - REPLAY_SUFFIX.length())));
+					results.add(f);
+				} catch (NumberFormatException e) {
+					log.warn("Ignoring hint file " + f);
+				}
+			}
+			Collections.sort(results, new Comparator<File>() {
+				public int compare(File o1, File o2) {
+					return sequences.get(o1).compareTo(sequences.get(o2));
+				}
+			});
+			return results;
+		}
+
+		/**
+		 * Called once every replay file has been applied.
+		 */
+		public synchronized void replayed() {
+			if (out == null) {
+				pending = false;
+				superseded.clear();
+			}
+		}
+
+		public synchronized void close() {
+			if (out == null)
+				return;
+			try {
+				out.flush();
+				fileOut.getFD().sync();
+				synced = appended;
+				out.close();
+			} catch (IOException e) {
+				log.warn("Exception closing hint file " + file, e);
+			}
+			out = null;
+			fileOut = null;
+		}
+	}
+}
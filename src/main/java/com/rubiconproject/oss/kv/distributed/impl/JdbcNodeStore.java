@@ -30,6 +30,11 @@ import com.rubiconproject.oss.kv.distributed.NodeStore;
  * 
  * Nodes with a status other than 1 will be ignored.
  * 
+ * The table is read every nodeStore.refreshPeriod millis (default one
+ * minute). Changes made elsewhere can be published right away by calling
+ * notifyChanged(), e.g. from a database notification listener or the tool
+ * that changed the table.
+ * 
  * @author sam
  * 
  */
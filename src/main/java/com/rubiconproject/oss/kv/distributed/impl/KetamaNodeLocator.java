@@ -3,13 +3,14 @@ package com.rubiconproject.oss.kv.distributed.impl;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 
 import com.rubiconproject.oss.kv.distributed.Node;
-import com.rubiconproject.oss.kv.distributed.NodeChangeListener;
+import com.rubiconproject.oss.kv.distributed.NodeHealthTracker;
 import com.rubiconproject.oss.kv.distributed.NodeLocator;
+import com.rubiconproject.oss.kv.distributed.Topology;
+import com.rubiconproject.oss.kv.distributed.TopologyListener;
 import com.rubiconproject.oss.kv.distributed.hashing.HashAlgorithm;
-import com.rubiconproject.oss.kv.distributed.hashing.HashRing;
+import com.rubiconproject.oss.kv.distributed.hashing.LongHashRing;
 import com.rubiconproject.oss.kv.distributed.hashing.KetamaHashAlgorithm;
 
 /**
@@ -41,21 +42,38 @@ import com.rubiconproject.oss.kv.distributed.hashing.KetamaHashAlgorithm;
  * @author Dustin Sallings <dustin@spy.net>
  * @author Sam Tingleff <sam@tingleff.com>
  */
-public class KetamaNodeLocator implements NodeLocator, NodeChangeListener {
+public class KetamaNodeLocator implements NodeLocator, TopologyListener {
 	private static final int NUM_REPS = 160;
 
 	private KetamaHashAlgorithm hashAlg = new KetamaHashAlgorithm();
 
-	private volatile HashRing<Long, Node> ketamaNodes = null;
+	// the ring and the topology it was built from, swapped in together
+	private volatile Snapshot current;
 
-	private volatile int nodeCount = 0;
+	private volatile NodeHealthTracker healthTracker;
 
 	public KetamaNodeLocator() {
 	}
 
 	public void setActiveNodes(List<Node> nodes) {
-		ketamaNodes = build(nodes);
-		nodeCount = nodes.size();
+		setTopology(new Topology(getTopology().getEpoch(), nodes));
+	}
+
+	/**
+	 * Swap in a ring built from the topology, unless it is older than the
+	 * current one.
+	 */
+	public synchronized void setTopology(Topology topology) {
+		Snapshot snapshot = current;
+		if ((snapshot != null)
+				&& (topology.getEpoch() < snapshot.topology.getEpoch()))
+			return;
+		current = new Snapshot(topology, build(topology.getNodes()));
+	}
+
+	public Topology getTopology() {
+		Snapshot snapshot = current;
+		return (snapshot == null) ? Topology.EMPTY : snapshot.topology;
 	}
 
 	public int getPrimaryNode(HashAlgorithm hashAlg, String key) {
@@ -64,30 +82,54 @@ public class KetamaNodeLocator implements NodeLocator, NodeChangeListener {
 
 	public List<Node> getPreferenceList(final HashAlgorithm hashAlg,
 			final String key, int count) {
+		return getPreferenceList(hashAlg, key, count, healthTracker);
+	}
+
+	public List<Node> getNaturalPreferenceList(HashAlgorithm hashAlg,
+			String key, int count) {
+		return getPreferenceList(hashAlg, key, count, null);
+	}
+
+	private List<Node> getPreferenceList(HashAlgorithm hashAlg, String key,
+			int count, NodeHealthTracker tracker) {
+		LongHashRing<Node> ketamaNodes = current.ketamaNodes;
 		Iterator<Node> iter = new KetamaIterator(ketamaNodes, key, ketamaNodes
 				.size());
 		List<Node> results = new ArrayList<Node>(count);
+		List<Node> ejected = new ArrayList<Node>(0);
 		while ((results.size() < count) && (iter.hasNext())) {
 			Node n = iter.next();
-			if (!results.contains(n))
+			if (results.contains(n) || ejected.contains(n))
+				continue;
+			if ((tracker == null) || (tracker.isAvailable(n)))
 				results.add(n);
+			else
+				ejected.add(n);
 		}
+		// fall back to ejected nodes rather than return a short list
+		for (int i = 0; (results.size() < count) && (i < ejected.size()); ++i)
+			results.add(ejected.get(i));
 		return results;
 	}
 
 	public List<Node> getFullPreferenceList(HashAlgorithm hashAlg, String key) {
-		return getPreferenceList(hashAlg, key, nodeCount);
+		return getPreferenceList(hashAlg, key, current.ketamaNodes
+				.getNodeCount());
 	}
 
-	private HashRing<Long, Node> build(List<Node> nodes) {
-		HashRing<Long, Node> ketamaNodes = new HashRing<Long, Node>(nodes
-				.size());
+	public void setNodeHealthTracker(NodeHealthTracker tracker) {
+		this.healthTracker = tracker;
+	}
+
+	private LongHashRing<Node> build(List<Node> nodes) {
+		LongHashRing.Builder<Node> ketamaNodes = new LongHashRing.Builder<Node>(
+				nodes.size());
 		for (Node node : nodes) {
 			String nodeIdentifier = node.getSalt();
 			for (int i = 0; i < NUM_REPS / 4; ++i) {
 				byte[] digest = hashAlg.md5(nodeIdentifier + "-" + i);
 				for (int h = 0; h < 4; h++) {
-					Long k = ((long) (digest[3 + h * 4] & 0xFF) << 24)
+					long k = ((long) (digest[3 + h * 4] & 0xFF) << 24)
 							| ((long) (digest[2 + h * 4] & 0xFF) << 16)
 							| ((long) (digest[1 + h * 4] & 0xFF) << 8)
 							| (digest[h * 4] & 0xFF);
@@ -95,25 +137,33 @@ public class KetamaNodeLocator implements NodeLocator, NodeChangeListener {
 				}
 			}
 		}
-		return ketamaNodes;
+		return ketamaNodes.build();
 	}
 
-	private Node getNodeForKey(final HashRing<Long, Node> ketamaNodes, long hash) {
-		Node rv = null;
+	private Node getNodeForKey(final LongHashRing<Node> ketamaNodes, long hash) {
 		// dsallings:
 		// "Java 1.6 adds a ceilingKey method, but I'm still stuck in 1.5
 		// in a lot of places, so I'm doing this myself."
-		// sam: I'm not. modified to use jdk 1.6 ceilingEntry in the HashRing class
-		Map.Entry<Long, Node> entry = ketamaNodes.place(hash);
-		if (entry != null)
-			rv = entry.getValue();
+		// sam: I'm not. modified to use a binary search in the LongHashRing class
+		Node rv = ketamaNodes.get(hash);
 		assert rv != null : "Found no node for hash " + hash;
 		return rv;
 	}
 
+	private static class Snapshot {
+		private Topology topology;
+
+		private LongHashRing<Node> ketamaNodes;
+
+		public Snapshot(Topology topology, LongHashRing<Node> ketamaNodes) {
+			this.topology = topology;
+			this.ketamaNodes = ketamaNodes;
+		}
+	}
+
 	class KetamaIterator implements Iterator<Node> {
 
-		private HashRing<Long, Node> iteratorNodes;
+		private LongHashRing<Node> iteratorNodes;
 
 		final String key;
 
@@ -123,7 +173,7 @@ public class KetamaNodeLocator implements NodeLocator, NodeChangeListener {
 
 		int numTries = 0;
 
-		public KetamaIterator(final HashRing<Long, Node> nodes, final String k,
+		public KetamaIterator(final LongHashRing<Node> nodes, final String k,
 				final int t) {
 			super();
 			iteratorNodes = nodes;
@@ -0,0 +1,195 @@
+package com.rubiconproject.oss.kv.distributed.impl;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.rubiconproject.oss.kv.distributed.Node;
+import com.rubiconproject.oss.kv.distributed.NodeHealthTracker;
+import com.rubiconproject.oss.kv.distributed.NodeLocator;
+import com.rubiconproject.oss.kv.distributed.Topology;
+import com.rubiconproject.oss.kv.distributed.TopologyListener;
+import com.rubiconproject.oss.kv.distributed.hashing.HashAlgorithm;
+
+/**
+ * Decorates another node locator so that full preference lists (used for
+ * reads) have their first n nodes ordered by an exponentially weighted moving
+ * average of observed response times, fastest first. Nodes beyond the first n
+ * and the lists returned by getPreferenceList() (used for writes) keep the
+ * order of the underlying locator.
+ *
+ * Nodes with no recorded latency sort first so that they get measured. A
+ * failed request is recorded as FAILURE_PENALTY times the node's current
+ * score, and one that got no response in time as the time waited, so that a
+ * node that starts failing moves down the lists before it is ejected.
+ *
+ * @author sam
+ *
+ */
+public class LatencyAwareNodeLocator implements NodeLocator,
+		TopologyListener {
+	public static final double DEFAULT_ALPHA = 0.2d;
+
+	public static final double FAILURE_PENALTY = 4.0d;
+
+	private NodeLocator delegate;
+
+	private int reorderWindow;
+
+	private double alpha;
+
+	// node id -> Double.doubleToLongBits(ewma millis)
+	private ConcurrentMap<Integer, AtomicLong> scores = new ConcurrentHashMap<Integer, AtomicLong>();
+
+	public LatencyAwareNodeLocator(NodeLocator delegate, int reorderWindow) {
+		this(delegate, reorderWindow, DEFAULT_ALPHA);
+	}
+
+	/**
+	 * @param delegate
+	 * @param reorderWindow
+	 *            number of nodes at the head of each full preference list that
+	 *            may be reordered, normally the write replica count
+	 * @param alpha
+	 *            weight of each new sample (0.0 - 1.0)
+	 */
+	public LatencyAwareNodeLocator(NodeLocator delegate, int reorderWindow,
+			double alpha) {
+		this.delegate = delegate;
+		this.reorderWindow = reorderWindow;
+		this.alpha = alpha;
+	}
+
+	public NodeLocator getDelegate() {
+		return delegate;
+	}
+
+	/**
+	 * Record the duration of a request to the given node.
+	 *
+	 * @param node
+	 * @param duration
+	 *            millis
+	 */
+	public void record(Node node, long duration) {
+		AtomicLong score = scores.get(node.getId());
+		if (score == null) {
+			AtomicLong initial = new AtomicLong(Double
+					.doubleToLongBits(duration));
+			score = scores.putIfAbsent(node.getId(), initial);
+			if (score == null)
+				return;
+		}
+		while (true) {
+			long bits = score.get();
+			double current = Double.longBitsToDouble(bits);
+			double updated = current + (alpha * (duration - current));
+			if (score.compareAndSet(bits, Double.doubleToLongBits(updated)))
+				return;
+		}
+	}
+
+	/**
+	 * Record a request to the given node that failed after duration millis.
+	 */
+	public void recordFailure(Node node, long duration) {
+		record(node, Math.max(duration, (long) (FAILURE_PENALTY * getScore(
+				node))));
+	}
+
+	/**
+	 * Return the current latency score of the given node, or 0.0 if none has
+	 * been recorded.
+	 */
+	public double getScore(Node node) {
+		AtomicLong score = scores.get(node.getId());
+		return (score == null) ? 0.0d : Double.longBitsToDouble(score.get());
+	}
+
+	public void setActiveNodes(List<Node> nodes) {
+		delegate.setActiveNodes(nodes);
+	}
+
+	public void setTopology(Topology topology) {
+		if (delegate instanceof TopologyListener)
+			((TopologyListener) delegate).setTopology(topology);
+		else
+			delegate.setActiveNodes(topology.getNodes());
+	}
+
+	public Topology getTopology() {
+		return delegate.getTopology();
+	}
+
+	public int getPrimaryNode(HashAlgorithm hashAlg, String key) {
+		return delegate.getPrimaryNode(hashAlg, key);
+	}
+
+	public List<Node> getPreferenceList(HashAlgorithm hashAlg, String key,
+			int count) {
+		return delegate.getPreferenceList(hashAlg, key, count);
+	}
+
+	public List<Node> getNaturalPreferenceList(HashAlgorithm hashAlg,
+			String key, int count) {
+		return delegate.getNaturalPreferenceList(hashAlg, key, count);
+	}
+
+	public List<Node> getFullPreferenceList(HashAlgorithm hashAlg, String key) {
+		List<Node> nodes = delegate.getFullPreferenceList(hashAlg, key);
+		int n = Math.min(reorderWindow, nodes.size());
+		if (n < 2)
+			return nodes;
+
+		// snapshot scores so concurrent updates cannot affect the sort, then
+		// insertion sort the (small) window. ties keep hash order. the rest
+		// of the list is left to be read lazily.
+		List<Node> results = new ArrayList<Node>(nodes.subList(0, n));
+		double[] snapshot = new double[n];
+		for (int i = 0; i < n; ++i)
+			snapshot[i] = getScore(results.get(i));
+		for (int i = 1; i < n; ++i) {
+			Node node = results.get(i);
+			double score = snapshot[i];
+			int j = i - 1;
+			while ((j >= 0) && (snapshot[j] > score)) {
+				snapshot[j + 1] = snapshot[j];
+				results.set(j + 1, results.get(j));
+				--j;
+			}
+			snapshot[j + 1] = score;
+			results.set(j + 1, node);
+		}
+		return new ReorderedList(results, nodes);
+	}
+
+	public void setNodeHealthTracker(NodeHealthTracker tracker) {
+		delegate.setNodeHealthTracker(tracker);
+	}
+
+	/**
+	 * A list with its first nodes replaced by the reordered window.
+	 */
+	private static class ReorderedList extends AbstractList<Node> {
+		private List<Node> window;
+
+		private List<Node> nodes;
+
+		public ReorderedList(List<Node> window, List<Node> nodes) {
+			this.window = window;
+			this.nodes = nodes;
+		}
+
+		public Node get(int index) {
+			return (index < window.size()) ? window.get(index) : nodes
+					.get(index);
+		}
+
+		public int size() {
+			return nodes.size();
+		}
+	}
+}
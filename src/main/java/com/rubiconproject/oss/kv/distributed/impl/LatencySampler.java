@@ -0,0 +1,82 @@
+package com.rubiconproject.oss.kv.distributed.impl;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps the most recent n latency samples in a ring buffer and answers
+ * percentile queries over them. Writers never block; the sorted view used for
+ * percentile lookups is rebuilt at most once per refresh interval.
+ *
+ * @author sam
+ *
+ */
+public class LatencySampler {
+	public static final int DEFAULT_SAMPLE_SIZE = 1024;
+
+	public static final int DEFAULT_MINIMUM_SAMPLES = 100;
+
+	public static final long DEFAULT_REFRESH_INTERVAL = 1000l;
+
+	private AtomicLongArray samples;
+
+	private AtomicLong count = new AtomicLong(0);
+
+	private int minimumSamples;
+
+	private long refreshInterval;
+
+	private volatile long[] sorted;
+
+	private volatile long sortedAt = 0l;
+
+	public LatencySampler() {
+		this(DEFAULT_SAMPLE_SIZE, DEFAULT_MINIMUM_SAMPLES,
+				DEFAULT_REFRESH_INTERVAL);
+	}
+
+	public LatencySampler(int sampleSize, int minimumSamples,
+			long refreshInterval) {
+		this.samples = new AtomicLongArray(sampleSize);
+		this.minimumSamples = minimumSamples;
+		this.refreshInterval = refreshInterval;
+	}
+
+	public void add(long latency) {
+		long index = count.getAndIncrement();
+		samples.set((int) (index % samples.length()), latency);
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Return the given percentile (0.0 - 1.0) of recent samples, or
+	 * defaultValue if too few samples have been recorded.
+	 */
+	public long getPercentile(double percentile, long defaultValue) {
+		if (count.get() < minimumSamples)
+			return defaultValue;
+		long[] view = getSorted();
+		int index = (int) Math.ceil(percentile * view.length) - 1;
+		index = Math.max(0, Math.min(view.length - 1, index));
+		return view[index];
+	}
+
+	private long[] getSorted() {
+		long now = System.currentTimeMillis();
+		long[] view = sorted;
+		if ((view == null) || ((now - sortedAt) > refreshInterval)) {
+			int size = (int) Math.min(count.get(), samples.length());
+			view = new long[size];
+			for (int i = 0; i < size; ++i)
+				view[i] = samples.get(i);
+			Arrays.sort(view);
+			sorted = view;
+			sortedAt = now;
+		}
+		return view;
+	}
+}
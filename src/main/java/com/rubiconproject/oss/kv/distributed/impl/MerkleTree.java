@@ -0,0 +1,118 @@
+package com.rubiconproject.oss.kv.distributed.impl;
+
+import java.util.BitSet;
+import java.util.LinkedList;
+
+/**
+ * Fixed-depth hash tree over the keys of one range on one replica. Each key is
+ * placed in one of 2^depth leaves by the top bits of a hash of the key, and
+ * its digest (of key and value) is folded into that leaf with xor so that the
+ * order keys are added in does not matter. Inner nodes are computed from their
+ * children on demand.
+ *
+ * Two trees built from the same keys and values have the same root hash;
+ * otherwise difference() walks down only the subtrees whose hashes differ to
+ * find the leaves that need to be compared key by key.
+ *
+ * @author sam
+ *
+ */
+public class MerkleTree {
+	public static final int MAX_DEPTH = 24;
+
+	private int depth;
+
+	private int leafCount;
+
+	// allocated on first add()
+	private long[] leaves;
+
+	// inner nodes in heap order (1 is the root), null when stale
+	private long[] nodes;
+
+	public MerkleTree(int depth) {
+		if ((depth < 1) || (depth > MAX_DEPTH))
+			throw new IllegalArgumentException("Depth must be between 1 and "
+					+ MAX_DEPTH);
+		this.depth = depth;
+		this.leafCount = 1 << depth;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public int getLeafCount() {
+		return leafCount;
+	}
+
+	/**
+	 * Return the leaf a key with the given hash belongs in.
+	 */
+	public int getLeaf(long keyHash) {
+		return (int) (keyHash >>> (64 - depth));
+	}
+
+	/**
+	 * Add a key to the tree.
+	 *
+	 * @param keyHash
+	 *            hash of the key, decides the leaf
+	 * @param digest
+	 *            hash of key and value
+	 */
+	public void add(long keyHash, long digest) {
+		if (leaves == null)
+			leaves = new long[leafCount];
+		leaves[getLeaf(keyHash)] ^= digest;
+		nodes = null;
+	}
+
+	public long getRootHash() {
+		return getHash(1);
+	}
+
+	/**
+	 * Return the leaves whose hashes differ between this tree and the given
+	 * one, which must have the same depth.
+	 */
+	public BitSet difference(MerkleTree other) {
+		if (other.depth != depth)
+			throw new IllegalArgumentException("Trees differ in depth");
+		BitSet results = new BitSet(leafCount);
+		LinkedList<Integer> stack = new LinkedList<Integer>();
+		stack.add(1);
+		while (!stack.isEmpty()) {
+			int index = stack.removeLast();
+			if (getHash(index) == other.getHash(index))
+				continue;
+			if (index >= leafCount) {
+				results.set(index - leafCount);
+			} else {
+				stack.add(index * 2 + 1);
+				stack.add(index * 2);
+			}
+		}
+		return results;
+	}
+
+	private long getHash(int index) {
+		if (index >= leafCount)
+			return (leaves == null) ? 0l : leaves[index - leafCount];
+		if (nodes == null) {
+			nodes = new long[leafCount];
+			for (int i = leafCount - 1; i > 0; --i)
+				nodes[i] = combine(getHash(i * 2), getHash(i * 2 + 1));
+		}
+		return nodes[index];
+	}
+
+	private static long combine(long left, long right) {
+		// empty subtrees combine to 0
+		long h = (left * 0x9E3779B97F4A7C15l) ^ right;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdl;
+		h ^= h >>> 33;
+		return h;
+	}
+}
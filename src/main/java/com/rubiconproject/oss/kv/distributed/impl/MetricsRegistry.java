@@ -0,0 +1,127 @@
+package com.rubiconproject.oss.kv.distributed.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.rubiconproject.oss.kv.distributed.Node;
+import com.rubiconproject.oss.kv.distributed.OperationStatus;
+import com.rubiconproject.oss.kv.mgmt.JMXMbeanServerFactory;
+import com.rubiconproject.oss.kv.mgmt.OperationMetricsImplMXBean;
+
+/**
+ * Per node and per quorum operation metrics for every client in the jvm,
+ * alongside the {@link OperationLog}. Each new set of metrics is registered
+ * as an MXBean named
+ * OthersOnline:entity=OperationMetrics,node=&lt;id&gt;,operation=&lt;name&gt;
+ * or OthersOnline:entity=OperationMetrics,node=quorum,operation=&lt;name&gt;.
+ *
+ * Recording does not lock; metrics are only created, never removed, so
+ * after the first operation of a kind against a node lookups are plain
+ * concurrent map reads.
+ *
+ * @author sam
+ *
+ */
+public class MetricsRegistry {
+	private static MetricsRegistry instance = new MetricsRegistry();
+
+	private static final Integer QUORUM = Integer.valueOf(-1);
+
+	private Log log = LogFactory.getLog(getClass());
+
+	// node id (or QUORUM) -> operation name -> metrics
+	private ConcurrentMap<Integer, ConcurrentMap<String, OperationMetrics>> metrics = new ConcurrentHashMap<Integer, ConcurrentMap<String, OperationMetrics>>();
+
+	public static MetricsRegistry getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Record an operation against a node.
+	 *
+	 * @param queueMicros
+	 *            time spent waiting for a thread
+	 * @param serviceMicros
+	 *            time spent calling the backend
+	 */
+	public void recordNode(Node node, String operation,
+			OperationStatus status, long queueMicros, long serviceMicros) {
+		getNodeMetrics(node.getId(), operation).record(status, queueMicros,
+				serviceMicros);
+	}
+
+	/**
+	 * Record a quorum operation, from the caller's point of view.
+	 */
+	public void recordQuorum(String operation, boolean success, long micros) {
+		getQuorumMetrics(operation).record(
+				success ? OperationStatus.Success : OperationStatus.Error, -1,
+				micros);
+	}
+
+	public OperationMetrics getNodeMetrics(int nodeId, String operation) {
+		return get(Integer.valueOf(nodeId), operation);
+	}
+
+	public OperationMetrics getQuorumMetrics(String operation) {
+		return get(QUORUM, operation);
+	}
+
+	public List<OperationMetrics> getMetrics() {
+		List<OperationMetrics> results = new ArrayList<OperationMetrics>();
+		for (ConcurrentMap<String, OperationMetrics> ops : metrics.values())
+			results.addAll(ops.values());
+		return results;
+	}
+
+	public void reset() {
+		for (OperationMetrics m : getMetrics())
+			m.reset();
+	}
+
+	private OperationMetrics get(Integer id, String operation) {
+		ConcurrentMap<String, OperationMetrics> ops = metrics.get(id);
+		if (ops == null) {
+			ops = new ConcurrentHashMap<String, OperationMetrics>();
+			ConcurrentMap<String, OperationMetrics> existing = metrics
+					.putIfAbsent(id, ops);
+			if (existing != null)
+				ops = existing;
+		}
+		OperationMetrics m = ops.get(operation);
+		if (m == null) {
+			m = new OperationMetrics(QUORUM.equals(id) ? null : id, operation);
+			OperationMetrics existing = ops.putIfAbsent(operation, m);
+			if (existing != null)
+				m = existing;
+			else
+				register(m);
+		}
+		return m;
+	}
+
+	private void register(OperationMetrics m) {
+		String name = String.format(
+				"OthersOnline:entity=OperationMetrics,node=%1$s,operation=%2$s",
+				(m.getNodeId() == null) ? "quorum" : m.getNodeId().toString(),
+				ObjectName.quote(m.getOperation()));
+		try {
+			MBeanServer mbeanServer = JMXMbeanServerFactory.getMBeanServer();
+			ObjectName objectName = new ObjectName(name);
+			if (mbeanServer.isRegistered(objectName))
+				mbeanServer.unregisterMBean(objectName);
+			mbeanServer.registerMBean(new OperationMetricsImplMXBean(m),
+					objectName);
+		} catch (Exception e) {
+			log.warn("Exception registering " + name, e);
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package com.rubiconproject.oss.kv.distributed.impl;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A small local cache of the encoded values (or absence) of recently read
+ * and written keys, kept in front of the distributed store by
+ * {@link DistributedKeyValueStoreClientImpl}. Entries expire after a ttl and
+ * the least recently used are evicted once the estimated size of all entries
+ * passes maxBytes.
+ *
+ * Values are cached as bytes rather than decoded, so callers never share a
+ * mutable object and the size of each entry is known.
+ *
+ * A read that started before an invalidation of its key must not cache what
+ * it read, so callers take getVersion(key) before reading and pass it to
+ * put(), which is ignored if the key has been invalidated since. Versions are
+ * kept for a fixed number of stripes of keys rather than every key, so an
+ * invalidation may also stop a read of another key in its stripe from being
+ * cached, but never lets a stale one through.
+ *
+ * @author sam
+ *
+ */
+public class NearCache {
+	// rough per entry overhead of the map entry, Entry and array headers
+	private static final int ENTRY_OVERHEAD = 96;
+
+	// power of two
+	private static final int VERSION_STRIPES = 1024;
+
+	private long maxBytes;
+
+	private long ttl;
+
+	// guarded by itself
+	private LinkedHashMap<String, Entry> map = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+
+	private long bytes = 0;
+
+	// invalidations by stripe of keys, plus those of every key
+	private AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+
+	private AtomicLong allVersion = new AtomicLong();
+
+	private AtomicLong hits = new AtomicLong();
+
+	private AtomicLong misses = new AtomicLong();
+
+	private AtomicLong evictions = new AtomicLong();
+
+	private AtomicLong invalidations = new AtomicLong();
+
+	/**
+	 * @param maxBytes
+	 *            maximum estimated size of all entries
+	 * @param ttl
+	 *            time an entry may be used for (millis)
+	 */
+	public NearCache(long maxBytes, long ttl) {
+		this.maxBytes = maxBytes;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Return the cached entry for the key, or null if there is none. The
+	 * entry's value is null if the key was cached as not existing.
+	 */
+	public Entry get(String key) {
+		synchronized (map) {
+			Entry entry = map.get(key);
+			if ((entry != null)
+					&& (entry.expires <= System.currentTimeMillis())) {
+				remove(key);
+				entry = null;
+			}
+			if (entry == null)
+				misses.incrementAndGet();
+			else
+				hits.incrementAndGet();
+			return entry;
+		}
+	}
+
+	/**
+	 * Returns a version to pass to put() for a value of the key about to be
+	 * read.
+	 */
+	public long getVersion(String key) {
+		// both only grow, so the sum changes whenever either does
+		return allVersion.get() + versions.get(stripe(key));
+	}
+
+	/**
+	 * Cache a value (or null, for a key that does not exist) unless the key
+	 * was invalidated since the given version was taken.
+	 */
+	public void put(String key, byte[] value, long readVersion) {
+		Entry entry = new Entry(value, System.currentTimeMillis() + ttl,
+				ENTRY_OVERHEAD + key.length() * 2
+						+ ((value == null) ? 0 : value.length));
+		if (entry.size > maxBytes)
+			return;
+		synchronized (map) {
+			if (getVersion(key) != readVersion)
+				return;
+			remove(key);
+			map.put(key, entry);
+			bytes += entry.size;
+			Iterator<Entry> iter = map.values().iterator();
+			while ((bytes > maxBytes) && iter.hasNext()) {
+				bytes -= iter.next().size;
+				iter.remove();
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Drop the key, and stop reads in progress from caching what they read.
+	 */
+	public void invalidate(String key) {
+		synchronized (map) {
+			versions.incrementAndGet(stripe(key));
+			remove(key);
+		}
+		invalidations.incrementAndGet();
+	}
+
+	public void invalidateAll() {
+		synchronized (map) {
+			allVersion.incrementAndGet();
+			map.clear();
+			bytes = 0;
+		}
+		invalidations.incrementAndGet();
+	}
+
+	public int getSize() {
+		synchronized (map) {
+			return map.size();
+		}
+	}
+
+	/**
+	 * Returns the estimated size of all entries.
+	 */
+	public long getBytes() {
+		synchronized (map) {
+			return bytes;
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+
+	public Map<String, Long> getStatistics() {
+		Map<String, Long> results = new LinkedHashMap<String, Long>();
+		results.put("hits", getHits());
+		results.put("misses", getMisses());
+		results.put("evictions", getEvictions());
+		results.put("invalidations", getInvalidations());
+		results.put("size", (long) getSize());
+		results.put("bytes", getBytes());
+		return results;
+	}
+
+	private static int stripe(String key) {
+		int h = key.hashCode();
+		return (h ^ (h >>> 16)) & (VERSION_STRIPES - 1);
+	}
+
+	// called holding the map lock
+	private void remove(String key) {
+		Entry entry = map.remove(key);
+		if (entry != null)
+			bytes -= entry.size;
+	}
+
+	public static class Entry {
+		private byte[] value;
+
+		private long expires;
+
+		private int size;
+
+		private Entry(byte[] value, long expires, int size) {
+			this.value = value;
+			this.expires = expires;
+			this.size = size;
+		}
+
+		/**
+		 * Returns the encoded value, or null if the key does not exist.
+		 */
+		public byte[] getValue() {
+			return value;
+		}
+	}
+}
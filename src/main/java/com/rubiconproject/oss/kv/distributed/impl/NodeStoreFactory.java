@@ -21,6 +21,10 @@ public class NodeStoreFactory {
 				store = new UrlNodeStore(props
 						.getProperty(UrlNodeStore.URL_PROPERTY),
 						getNodeListParser(props));
+			} else if ("file".equals(name)) {
+				store = new FileNodeStore(props
+						.getProperty(FileNodeStore.FILE_PROPERTY),
+						getNodeListParser(props));
 			}
 			return store;
 		} catch (MalformedURLException e) {
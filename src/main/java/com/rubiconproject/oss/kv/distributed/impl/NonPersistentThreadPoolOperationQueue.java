@@ -4,24 +4,29 @@ import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
-
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.rubiconproject.oss.kv.KeyValueStore;
 import com.rubiconproject.oss.kv.backends.ConnectionFactory;
 import com.rubiconproject.oss.kv.backends.UriConnectionFactory;
 import com.rubiconproject.oss.kv.distributed.Node;
 import com.rubiconproject.oss.kv.distributed.Operation;
+import com.rubiconproject.oss.kv.distributed.OperationAbandonedException;
 import com.rubiconproject.oss.kv.distributed.OperationCallback;
+import com.rubiconproject.oss.kv.distributed.OperationDeadline;
 import com.rubiconproject.oss.kv.distributed.OperationQueue;
 import com.rubiconproject.oss.kv.distributed.OperationResult;
 import com.rubiconproject.oss.kv.distributed.OperationStatus;
+import com.rubiconproject.oss.kv.util.CallDeadline;
 
 public class NonPersistentThreadPoolOperationQueue extends
 		AbstractThreadPoolOperationQueue implements OperationQueue {
 
-	protected Log operationLog = LogFactory.getLog("haymitch.backendlog");
+	protected OperationLog operationLog = OperationLog.getInstance();
+
+	protected MetricsRegistry metrics = MetricsRegistry.getInstance();
+
+	private AtomicLong abandonedCount = new AtomicLong();
 
 	public NonPersistentThreadPoolOperationQueue(Map defaultProperties) {
 		this(defaultProperties, new UriConnectionFactory());
@@ -40,31 +45,54 @@ public class NonPersistentThreadPoolOperationQueue extends
 				maxQueueDepth);
 	}
 
+	/**
+	 * Returns the number of operations completed without being sent because
+	 * their deadline had passed or their request had finished.
+	 */
+	public long getAbandonedCount() {
+		return abandonedCount.get();
+	}
+
 	public <V> Future<OperationResult<V>> submit(Operation<V> operation)
 			throws RejectedExecutionException {
-		return super.execute(new CallbackCallable<V>(operation));
+		return super.execute(operation.getNode(), new CallbackCallable<V>(
+				operation));
 	}
 
-	private class CallbackCallable<V> implements Callable<OperationResult<V>> {
+	protected class CallbackCallable<V> implements
+			Callable<OperationResult<V>>, Abandonable<OperationResult<V>> {
 		private long enqueueTime;
 
+		private long enqueueNanos;
+
 		private Operation<V> op;
 
 		public CallbackCallable(Operation<V> op) {
 			this.op = op;
 			this.enqueueTime = System.currentTimeMillis();
+			this.enqueueNanos = System.nanoTime();
 		}
 
 		public OperationResult<V> call() throws Exception {
 			OperationResult<V> result = null;
 			Node node = null;
 			long start = System.currentTimeMillis();
+			long startNanos = System.nanoTime();
+			OperationDeadline deadline = op.getDeadline();
+			if ((deadline != null) && deadline.isAbandoned())
+				return abandon();
 			try {
 				node = op.getNode();
 				KeyValueStore store = connectionFactory.getStore(
 						defaultProperties, node.getConnectionURI());
 				Callable<OperationResult<V>> delegate = op.getCallable(store);
-				result = delegate.call();
+				if (deadline != null)
+					CallDeadline.set(deadline.getExpiry());
+				try {
+					result = delegate.call();
+				} finally {
+					CallDeadline.clear();
+				}
 			} catch (Exception e) {
 				log.error("Exception fetching node", e);
 				result = new DefaultOperationResult<V>(op, null,
@@ -72,14 +100,14 @@ public class NonPersistentThreadPoolOperationQueue extends
 								- start, e);
 			} finally {
 				try {
-					operationLog.info(String.format(
-							"%1$s_%2$s_%3$d %4$dms queue_time=%5$dms", op
-									.getName(), result.getStatus().toString()
-									.toLowerCase(), node.getId(), result
-									.getDuration(), start - enqueueTime));
+					operationLog.logBackend(op.getName(), result.getStatus(), node
+							.getId(), result.getDuration(), start - enqueueTime);
 				} catch (Exception e) {
 					log.error("Exception writing to operation log", e);
 				}
+				metrics.recordNode(node, op.getName(), result.getStatus(),
+						(startNanos - enqueueNanos) / 1000,
+						(System.nanoTime() - startNanos) / 1000);
 				OperationCallback<V> callback = op.getCallback();
 				if (callback != null) {
 					callback.completed(result);
@@ -88,5 +116,24 @@ public class NonPersistentThreadPoolOperationQueue extends
 			return result;
 		}
 
+		/**
+		 * Complete the operation without sending it. It is left out of the
+		 * operation log and metrics, which are about the node.
+		 */
+		private OperationResult<V> abandon() {
+			abandonedCount.incrementAndGet();
+			return abandon(new OperationAbandonedException(String.format(
+					"%1$s %2$s abandoned after %3$dms in queue", op.getName(),
+					op.getKey(), System.currentTimeMillis() - enqueueTime)));
+		}
+
+		public OperationResult<V> abandon(Exception reason) {
+			OperationResult<V> result = new DefaultOperationResult<V>(op,
+					null, OperationStatus.Error, 0l, reason);
+			OperationCallback<V> callback = op.getCallback();
+			if (callback != null)
+				callback.completed(result);
+			return result;
+		}
 	}
 }
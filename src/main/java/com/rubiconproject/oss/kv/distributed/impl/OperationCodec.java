@@ -0,0 +1,121 @@
+package com.rubiconproject.oss.kv.distributed.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import com.rubiconproject.oss.kv.distributed.Node;
+import com.rubiconproject.oss.kv.distributed.Operation;
+import com.rubiconproject.oss.kv.transcoder.ByteArrayTranscoder;
+import com.rubiconproject.oss.kv.transcoder.Transcoder;
+
+/**
+ * Binary encoding of nodes and of the set and delete operations that are
+ * written to local disk. Set values are stored as encoded by the operation's
+ * transcoder and decoded with a ByteArrayTranscoder, so the bytes written to
+ * the node are the same either way. Byte array values of sets without a
+ * transcoder (such as read backfills) are stored as they are and decoded
+ * without a transcoder, leaving encoding to the node's default as before.
+ *
+ * @author sam
+ *
+ */
+final class OperationCodec {
+	static final byte SET = 1;
+
+	static final byte DELETE = 2;
+
+	static final byte SET_UNTRANSCODED = 3;
+
+	private OperationCodec() {
+	}
+
+	/**
+	 * Return true if the given operation can be encoded.
+	 */
+	static boolean isEncodable(Operation<?> operation) {
+		if (operation instanceof SetOperation) {
+			SetOperation<?> set = (SetOperation<?>) operation;
+			return ((set.getTranscoder() != null) || (set.getValue() instanceof byte[]));
+		}
+		return (operation instanceof DeleteOperation);
+	}
+
+	/**
+	 * Encode a set or delete operation along with its node and rank.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if !isEncodable(operation)
+	 */
+	static byte[] encode(Operation<?> operation) throws IOException {
+		if (!isEncodable(operation))
+			throw new IllegalArgumentException("Cannot encode "
+					+ operation.getName() + " operation");
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		writeNode(out, operation.getNode());
+		out.writeInt(operation.getNodeRank());
+		if (operation instanceof SetOperation) {
+			SetOperation<?> set = (SetOperation<?>) operation;
+			byte[] value;
+			if (set.getTranscoder() == null) {
+				value = (byte[]) set.getValue();
+				out.writeByte(SET_UNTRANSCODED);
+			} else {
+				value = set.getTranscoder().encode(set.getValue());
+				out.writeByte(SET);
+			}
+			out.writeUTF(set.getKey());
+			out.writeInt(value.length);
+			out.write(value);
+		} else {
+			out.writeByte(DELETE);
+			out.writeUTF(operation.getKey());
+		}
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	static Operation<byte[]> decode(byte[] bytes) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				bytes));
+		Node node = readNode(in);
+		int nodeRank = in.readInt();
+		byte type = in.readByte();
+		String key = in.readUTF();
+		Operation<byte[]> operation;
+		if ((type == SET) || (type == SET_UNTRANSCODED)) {
+			byte[] value = new byte[in.readInt()];
+			in.readFully(value);
+			Transcoder transcoder = (type == SET) ? new ByteArrayTranscoder()
+					: null;
+			operation = new SetOperation<byte[]>(transcoder, key, value);
+		} else if (type == DELETE) {
+			operation = new DeleteOperation<byte[]>(key);
+		} else {
+			throw new IOException("Unknown operation type " + type);
+		}
+		operation.setNode(node);
+		operation.setNodeRank(nodeRank);
+		return operation;
+	}
+
+	static void writeNode(DataOutput out, Node node) throws IOException {
+		out.writeInt(node.getId());
+		out.writeInt(node.getPhysicalId());
+		out.writeUTF((node.getSalt() == null) ? "" : node.getSalt());
+		out.writeUTF(node.getConnectionURI());
+	}
+
+	static Node readNode(DataInput in) throws IOException {
+		int id = in.readInt();
+		int physicalId = in.readInt();
+		String salt = in.readUTF();
+		String connectionURI = in.readUTF();
+		return new DefaultNodeImpl(id, physicalId, salt, connectionURI);
+	}
+}
@@ -0,0 +1,150 @@
+package com.rubiconproject.oss.kv.distributed.impl;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.rubiconproject.oss.kv.distributed.OperationStatus;
+
+/**
+ * Reads the binary files written by {@link OperationEventSink}, one record
+ * at a time.
+ *
+ * @author sam
+ *
+ */
+public class OperationEventReader {
+	private DataInputStream in;
+
+	private int category;
+
+	private long time;
+
+	private String operation;
+
+	private String key;
+
+	private int status;
+
+	private int nodeId;
+
+	private long duration;
+
+	private long extra;
+
+	private int[] nodes = new int[OperationEventSink.MAX_NODES];
+
+	private int nodeCount;
+
+	public OperationEventReader(InputStream in) throws IOException {
+		this.in = new DataInputStream(new BufferedInputStream(in));
+		if (this.in.readInt() != OperationEventSink.MAGIC)
+			throw new IOException("Not an operation event log");
+		int version = this.in.readInt();
+		if (version != OperationEventSink.VERSION)
+			throw new IOException(String.format(
+					"Unsupported operation event log version %1$d", version));
+	}
+
+	/**
+	 * Read the next record, returning false at the end of the file.
+	 */
+	public boolean next() throws IOException {
+		try {
+			category = in.readByte();
+		} catch (EOFException e) {
+			return false;
+		}
+		time = in.readLong();
+		operation = readString();
+		key = readString();
+		status = in.readByte();
+		nodeId = in.readInt();
+		duration = in.readLong();
+		extra = in.readLong();
+		nodeCount = in.readByte();
+		for (int n = 0; n < nodeCount; ++n)
+			nodes[n] = in.readInt();
+		return true;
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private String readString() throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			throw new IOException("Corrupt operation event log");
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * One of OperationEventSink.BACKEND, OPERATION, PREFERENCE or ACCESS.
+	 */
+	public int getCategory() {
+		return category;
+	}
+
+	public String getCategoryName() {
+		return OperationEventSink.CATEGORIES[category];
+	}
+
+	public long getTime() {
+		return time;
+	}
+
+	public String getOperation() {
+		return operation;
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public OperationStatus getStatus() {
+		return OperationStatus.values()[status];
+	}
+
+	/**
+	 * Returns the node of a backend event, or -1.
+	 */
+	public int getNodeId() {
+		return nodeId;
+	}
+
+	public long getDuration() {
+		return duration;
+	}
+
+	/**
+	 * Returns the queue time of a backend event or the byte count of an
+	 * access event.
+	 */
+	public long getExtra() {
+		return extra;
+	}
+
+	/**
+	 * Returns the preference list of a preference event.
+	 */
+	public int[] getNodes() {
+		int[] results = new int[nodeCount];
+		System.arraycopy(nodes, 0, results, 0, nodeCount);
+		return results;
+	}
+
+	/**
+	 * Returns the current record in the format written by csv sinks.
+	 */
+	public String toCsv() {
+		StringBuilder sb = new StringBuilder();
+		OperationEventSink.appendCsv(sb, category, time, operation, key,
+				status, nodeId, duration, extra, nodes, 0, nodeCount);
+		return sb.toString();
+	}
+}
@@ -0,0 +1,418 @@
+package com.rubiconproject.oss.kv.distributed.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.rubiconproject.oss.kv.distributed.Node;
+import com.rubiconproject.oss.kv.distributed.OperationStatus;
+
+/**
+ * An asynchronous log of operation events, used by {@link OperationLog} in
+ * place of the haymitch.* log categories when installed.
+ *
+ * Events are copied into a preallocated ring buffer of fixed layout records
+ * (parallel arrays, so recording allocates nothing) and a background thread
+ * writes them to a file, either in a compact binary format or as csv. A
+ * full ring never blocks callers; the event is dropped and counted instead.
+ *
+ * Every record has the same fields: category, time (millis), operation,
+ * key, status, node id, duration (millis), extra, and up to MAX_NODES node
+ * ids. Extra is the queue time of backend events and the byte count of
+ * access events. Binary files start with MAGIC and VERSION, followed by
+ * records written with DataOutputStream, with strings as an int length and
+ * that many bytes of UTF-8; use {@link OperationEventReader} or the
+ * OperationLogDecode tool to read them.
+ *
+ * @author sam
+ *
+ */
+public class OperationEventSink {
+	public enum Format {
+		Binary, Csv
+	}
+
+	public static final int MAGIC = 0x564b4f4c;
+
+	public static final int VERSION = 2;
+
+	public static final int DEFAULT_BUFFER_SIZE = 65536;
+
+	public static final int MAX_NODES = 8;
+
+	// calls to a single node (haymitch.backendlog)
+	public static final byte BACKEND = 0;
+
+	// client requests (haymitch.operationlog)
+	public static final byte OPERATION = 1;
+
+	// preference lists of client requests (haymitch.preferencelog)
+	public static final byte PREFERENCE = 2;
+
+	// thrift server requests (haymitch.thrift.accesslog)
+	public static final byte ACCESS = 3;
+
+	static final String[] CATEGORIES = { "backend", "operation",
+			"preference", "access" };
+
+	private Log log = LogFactory.getLog(getClass());
+
+	private File file;
+
+	private Format format;
+
+	private int mask;
+
+	// the ring, one record per index
+	private byte[] categories;
+
+	private long[] times;
+
+	private String[] operations;
+
+	private String[] keys;
+
+	private byte[] statuses;
+
+	private int[] nodeIds;
+
+	private long[] durations;
+
+	private long[] extras;
+
+	private byte[] nodeCounts;
+
+	private int[] nodeLists;
+
+	// sequence number of the record held by each index once it is complete
+	private AtomicLongArray published;
+
+	// next sequence number to hand out
+	private AtomicLong next = new AtomicLong();
+
+	// next sequence number to write
+	private AtomicLong consumed = new AtomicLong();
+
+	private AtomicLong dropped = new AtomicLong();
+
+	private volatile boolean running = false;
+
+	private Thread writer;
+
+	private Thread shutdownHook;
+
+	/**
+	 * @param bufferSize
+	 *            records held in memory, rounded up to a power of two
+	 */
+	public OperationEventSink(File file, Format format, int bufferSize) {
+		this.file = file;
+		this.format = format;
+		int capacity = Integer.highestOneBit(Math.max(bufferSize, 2) - 1) << 1;
+		mask = capacity - 1;
+		categories = new byte[capacity];
+		times = new long[capacity];
+		operations = new String[capacity];
+		keys = new String[capacity];
+		statuses = new byte[capacity];
+		nodeIds = new int[capacity];
+		durations = new long[capacity];
+		extras = new long[capacity];
+		nodeCounts = new byte[capacity];
+		nodeLists = new int[capacity * MAX_NODES];
+		published = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; ++i)
+			published.set(i, -1);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Open the file (appending) and start writing events. Throws IOException
+	 * if a binary file already holds events of another version.
+	 */
+	public synchronized void start() throws IOException {
+		if ((format == Format.Binary) && (file.length() > 0))
+			checkVersion();
+		final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file, true),
+						65536));
+		if ((format == Format.Binary) && (file.length() == 0)) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+		}
+		running = true;
+		writer = new Thread(new Runnable() {
+			public void run() {
+				write(out);
+			}
+		}, "OperationEventSink");
+		writer.setDaemon(true);
+		writer.start();
+		shutdownHook = new Thread() {
+			public void run() {
+				close();
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(shutdownHook);
+	}
+
+	/**
+	 * Write out events already recorded, then close the file. Later events
+	 * are dropped.
+	 */
+	public void close() {
+		Thread thread;
+		synchronized (this) {
+			if (!running)
+				return;
+			running = false;
+			thread = writer;
+			if (Thread.currentThread() != shutdownHook) {
+				try {
+					Runtime.getRuntime().removeShutdownHook(shutdownHook);
+				} catch (IllegalStateException e) {
+					// already shutting down
+				}
+			}
+		}
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Returns the number of events dropped because the ring was full.
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Returns the number of events written so far.
+	 */
+	public long getWrittenCount() {
+		return consumed.get();
+	}
+
+	public boolean backend(String operation, OperationStatus status,
+			int nodeId, long duration, long queueTime) {
+		long seq = claim();
+		if (seq < 0)
+			return false;
+		int i = (int) (seq & mask);
+		fill(i, BACKEND, operation, null, status, nodeId, duration, queueTime);
+		published.set(i, seq);
+		return true;
+	}
+
+	public boolean operation(String key, String operation, long duration,
+			boolean success) {
+		long seq = claim();
+		if (seq < 0)
+			return false;
+		int i = (int) (seq & mask);
+		fill(i, OPERATION, operation, key, success ? OperationStatus.Success
+				: OperationStatus.Error, -1, duration, 0);
+		published.set(i, seq);
+		return true;
+	}
+
+	public boolean preference(String key, List<Node> preferenceList) {
+		long seq = claim();
+		if (seq < 0)
+			return false;
+		int i = (int) (seq & mask);
+		fill(i, PREFERENCE, null, key, OperationStatus.Success, -1, 0, 0);
+		int count = Math.min(preferenceList.size(), MAX_NODES);
+		for (int n = 0; n < count; ++n)
+			nodeLists[i * MAX_NODES + n] = preferenceList.get(n).getId();
+		nodeCounts[i] = (byte) count;
+		published.set(i, seq);
+		return true;
+	}
+
+	public boolean access(String operation, String key, long duration,
+			long bytes, boolean success) {
+		long seq = claim();
+		if (seq < 0)
+			return false;
+		int i = (int) (seq & mask);
+		fill(i, ACCESS, operation, key, success ? OperationStatus.Success
+				: OperationStatus.Error, -1, duration, bytes);
+		published.set(i, seq);
+		return true;
+	}
+
+	/**
+	 * Returns the next sequence number, or -1 if the ring is full or the sink
+	 * is closed.
+	 */
+	private long claim() {
+		while (running) {
+			long seq = next.get();
+			if (seq - consumed.get() > mask)
+				break;
+			if (next.compareAndSet(seq, seq + 1))
+				return seq;
+		}
+		dropped.incrementAndGet();
+		return -1;
+	}
+
+	private void fill(int i, byte category, String operation, String key,
+			OperationStatus status, int nodeId, long duration, long extra) {
+		categories[i] = category;
+		times[i] = System.currentTimeMillis();
+		operations[i] = operation;
+		keys[i] = key;
+		statuses[i] = (byte) status.ordinal();
+		nodeIds[i] = nodeId;
+		durations[i] = duration;
+		extras[i] = extra;
+		nodeCounts[i] = 0;
+	}
+
+	private void write(DataOutputStream out) {
+		StringBuilder sb = new StringBuilder();
+		try {
+			while (true) {
+				long seq = consumed.get();
+				int i = (int) (seq & mask);
+				if (published.get(i) != seq) {
+					// stop once everything claimed has been written
+					if (!running && (next.get() == seq))
+						break;
+					out.flush();
+					Thread.sleep(1);
+					continue;
+				}
+				if (format == Format.Binary)
+					writeBinary(out, i);
+				else {
+					sb.setLength(0);
+					appendCsv(sb, categories[i], times[i], operations[i],
+							keys[i], statuses[i], nodeIds[i], durations[i],
+							extras[i], nodeLists, i * MAX_NODES, nodeCounts[i]);
+					sb.append('\n');
+					out.write(sb.toString().getBytes("UTF-8"));
+				}
+				operations[i] = null;
+				keys[i] = null;
+				consumed.set(seq + 1);
+			}
+		} catch (InterruptedException e) {
+			log.warn("Interrupted writing operation events");
+		} catch (IOException e) {
+			log.error("IOException writing operation events", e);
+			running = false;
+		} finally {
+			try {
+				out.close();
+			} catch (IOException e) {
+				log.error("IOException closing operation event log", e);
+			}
+		}
+	}
+
+	private void checkVersion() throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			if ((in.readInt() != MAGIC) || (in.readInt() != VERSION))
+				throw new IOException(String.format(
+						"%1$s is not an operation event log of version %2$d",
+						file, VERSION));
+		} finally {
+			in.close();
+		}
+	}
+
+	private void writeBinary(DataOutputStream out, int i) throws IOException {
+		out.writeByte(categories[i]);
+		out.writeLong(times[i]);
+		writeString(out, operations[i]);
+		writeString(out, keys[i]);
+		out.writeByte(statuses[i]);
+		out.writeInt(nodeIds[i]);
+		out.writeLong(durations[i]);
+		out.writeLong(extras[i]);
+		out.writeByte(nodeCounts[i]);
+		for (int n = 0; n < nodeCounts[i]; ++n)
+			out.writeInt(nodeLists[i * MAX_NODES + n]);
+	}
+
+	/**
+	 * Write a string of any length; writeUTF() is limited to 64KB.
+	 */
+	private static void writeString(DataOutputStream out, String value)
+			throws IOException {
+		if (value == null) {
+			out.writeInt(0);
+			return;
+		}
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Append one record as a csv line (without the line separator), as
+	 * written by csv sinks and printed by the decode tool.
+	 */
+	static void appendCsv(StringBuilder sb, int category, long time,
+			String operation, String key, int status, int nodeId,
+			long duration, long extra, int[] nodes, int offset, int count) {
+		sb.append(CATEGORIES[category]).append(',');
+		sb.append(time).append(',');
+		appendCsvField(sb, operation);
+		sb.append(',');
+		appendCsvField(sb, key);
+		sb.append(',');
+		sb.append(OperationStatus.values()[status].toString().toLowerCase());
+		sb.append(',');
+		if (nodeId >= 0)
+			sb.append(nodeId);
+		sb.append(',').append(duration).append(',').append(extra).append(',');
+		for (int n = 0; n < count; ++n) {
+			if (n > 0)
+				sb.append(';');
+			sb.append(nodes[offset + n]);
+		}
+	}
+
+	private static void appendCsvField(StringBuilder sb, String value) {
+		if ((value == null) || (value.length() == 0))
+			return;
+		boolean quote = false;
+		for (int i = 0; i < value.length() && !quote; ++i) {
+			char c = value.charAt(i);
+			quote = (c == ',') || (c == '"') || (c == '\n') || (c == '\r');
+		}
+		if (!quote) {
+			sb.append(value);
+			return;
+		}
+		sb.append('"');
+		for (int i = 0; i < value.length(); ++i) {
+			char c = value.charAt(i);
+			if (c == '"')
+				sb.append('"');
+			sb.append(c);
+		}
+		sb.append('"');
+	}
+}
@@ -1,12 +1,20 @@
 package com.rubiconproject.oss.kv.distributed.impl;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.rubiconproject.oss.kv.distributed.Node;
+import com.rubiconproject.oss.kv.distributed.OperationStatus;
 
+/**
+ * Request, preference list, backend call and thrift access logs. These go to
+ * the haymitch.* log categories unless an {@link OperationEventSink} is
+ * installed, in which case they all go to the sink instead.
+ */
 public class OperationLog {
 	private static OperationLog instance = new OperationLog();
 
@@ -15,18 +23,86 @@ public class OperationLog {
 	private static Log preferenceLog = LogFactory
 			.getLog("haymitch.preferencelog");
 
+	private static Log backendLog = LogFactory.getLog("haymitch.backendlog");
+
+	private static Log accessLog = LogFactory
+			.getLog("haymitch.thrift.accesslog");
+
+	private static Log log = LogFactory.getLog(OperationLog.class);
+
+	private volatile OperationEventSink sink;
+
+	// openEventSink() calls not yet matched by closeEventSink()
+	private int sinkOpens = 0;
+
 	public static OperationLog getInstance() {
 		return instance;
 	}
 
+	/**
+	 * Returns the installed sink, or null if logging to the haymitch.*
+	 * categories.
+	 */
+	public OperationEventSink getEventSink() {
+		return sink;
+	}
+
+	/**
+	 * Send events to the given (started) sink rather than the haymitch.*
+	 * categories, or back to them if null.
+	 */
+	public synchronized void setEventSink(OperationEventSink sink) {
+		this.sink = sink;
+		sinkOpens = 0;
+	}
+
+	/**
+	 * Start and install a sink writing to the file, unless one is already
+	 * installed. Returns the installed sink, which stays installed until
+	 * every caller has passed it to closeEventSink().
+	 */
+	public synchronized OperationEventSink openEventSink(File file,
+			OperationEventSink.Format format, int bufferSize)
+			throws IOException {
+		if (sink == null) {
+			OperationEventSink opened = new OperationEventSink(file, format,
+					bufferSize);
+			opened.start();
+			sink = opened;
+			sinkOpens = 0;
+		} else if (!file.equals(sink.getFile()))
+			log.warn(String.format(
+					"Operation events already written to %1$s, not %2$s", sink
+							.getFile(), file));
+		++sinkOpens;
+		return sink;
+	}
+
+	/**
+	 * Release a sink returned by openEventSink(), closing and uninstalling it
+	 * once nothing else has it open.
+	 */
+	public synchronized void closeEventSink(OperationEventSink opened) {
+		if ((opened != sink) || (--sinkOpens > 0))
+			return;
+		sink = null;
+		opened.close();
+	}
+
 	public void log(String key, String op, long duration, boolean success) {
-		if (requestLog.isInfoEnabled())
+		OperationEventSink sink = this.sink;
+		if (sink != null)
+			sink.operation(key, op, duration, success);
+		else if (requestLog.isInfoEnabled())
 			requestLog.info(String.format("%1$s,%2$s,%3$d,%4$s", key, op,
 					duration, success));
 	}
 
 	public void logPreferenceList(String key, List<Node> preferenceList) {
-		if (preferenceLog.isInfoEnabled()) {
+		OperationEventSink sink = this.sink;
+		if (sink != null)
+			sink.preference(key, preferenceList);
+		else if (preferenceLog.isInfoEnabled()) {
 			// hack to avoid list iteration for common cases
 			if (preferenceList.size() == 1)
 				preferenceLog.info(String.format("%1$s,%2$d", key,
@@ -50,4 +126,35 @@ public class OperationLog {
 			}
 		}
 	}
+
+	/**
+	 * Log a call to one node.
+	 *
+	 * @param queueTime
+	 *            time the call waited for a thread (millis)
+	 */
+	public void logBackend(String op, OperationStatus status, int nodeId,
+			long duration, long queueTime) {
+		OperationEventSink sink = this.sink;
+		if (sink != null)
+			sink.backend(op, status, nodeId, duration, queueTime);
+		else if (backendLog.isInfoEnabled())
+			backendLog.info(String.format(
+					"%1$s_%2$s_%3$d %4$dms queue_time=%5$dms", op, status
+							.toString().toLowerCase(), nodeId, duration,
+					queueTime));
+	}
+
+	/**
+	 * Log a request to the thrift server.
+	 */
+	public void logAccess(String op, String key, long duration, long bytes,
+			boolean success) {
+		OperationEventSink sink = this.sink;
+		if (sink != null)
+			sink.access(op, key, duration, bytes, success);
+		else if (accessLog.isInfoEnabled())
+			accessLog.info(String.format("%1$s %2$s %3$d %4$d %5$s", op, key,
+					duration, bytes, success));
+	}
 }
@@ -0,0 +1,76 @@
+package com.rubiconproject.oss.kv.distributed.impl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.rubiconproject.oss.kv.distributed.OperationStatus;
+import com.rubiconproject.oss.kv.util.LatencyHistogram;
+
+/**
+ * Counts and latencies of one kind of operation, either against one node or
+ * for whole quorum operations. For a node, latency is the time spent calling
+ * the backend and queue time the time spent waiting for a thread; for a
+ * quorum operation latency is the time the caller waited and queue time is
+ * not recorded.
+ *
+ * @author sam
+ *
+ */
+public class OperationMetrics {
+	private Integer nodeId;
+
+	private String operation;
+
+	private AtomicLongArray statusCounts = new AtomicLongArray(
+			OperationStatus.values().length);
+
+	private LatencyHistogram queueTime = new LatencyHistogram();
+
+	private LatencyHistogram latency = new LatencyHistogram();
+
+	/**
+	 * @param nodeId
+	 *            the node, or null for quorum operations
+	 */
+	public OperationMetrics(Integer nodeId, String operation) {
+		this.nodeId = nodeId;
+		this.operation = operation;
+	}
+
+	/**
+	 * Returns the node id, or null for quorum operations.
+	 */
+	public Integer getNodeId() {
+		return nodeId;
+	}
+
+	public String getOperation() {
+		return operation;
+	}
+
+	public void record(OperationStatus status, long queueMicros,
+			long latencyMicros) {
+		statusCounts.incrementAndGet(status.ordinal());
+		if (queueMicros >= 0)
+			queueTime.recordMicros(queueMicros);
+		latency.recordMicros(latencyMicros);
+	}
+
+	public long getCount(OperationStatus status) {
+		return statusCounts.get(status.ordinal());
+	}
+
+	public LatencyHistogram getQueueTime() {
+		return queueTime;
+	}
+
+	public LatencyHistogram getLatency() {
+		return latency;
+	}
+
+	public void reset() {
+		for (int i = 0; i < statusCounts.length(); ++i)
+			statusCounts.set(i, 0);
+		queueTime.reset();
+		latency.reset();
+	}
+}
@@ -0,0 +1,996 @@
+package com.rubiconproject.oss.kv.distributed.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import com.rubiconproject.oss.kv.KeyValueStore;
+import com.rubiconproject.oss.kv.backends.ConnectionFactory;
+import com.rubiconproject.oss.kv.backends.UriConnectionFactory;
+import com.rubiconproject.oss.kv.distributed.Node;
+import com.rubiconproject.oss.kv.distributed.Operation;
+import com.rubiconproject.oss.kv.distributed.OperationCallback;
+import com.rubiconproject.oss.kv.distributed.OperationPriority;
+import com.rubiconproject.oss.kv.distributed.OperationQueue;
+import com.rubiconproject.oss.kv.distributed.OperationResult;
+import com.rubiconproject.oss.kv.distributed.OperationStatus;
+import com.rubiconproject.oss.kv.util.HashedWheelTimer;
+import com.rubiconproject.oss.kv.util.SettableFuture;
+
+/**
+ * Operation queue that writes set and delete operations to memory-mapped
+ * segment files before running them, so that backfill and replication work
+ * survives a restart and is not dropped when more is queued than the thread
+ * pool can keep up with. Other operations (gets) are run directly, as by
+ * NonPersistentThreadPoolOperationQueue.
+ *
+ * Records are appended to the current segment and a single commit thread
+ * forces dirty segments to disk. Every append waiting on a commit is covered
+ * by the same force (group commit); submit() returns once its record is on
+ * disk unless synchronousCommit is turned off. Once an operation has run
+ * successfully its record is acknowledged in place, and a segment file is
+ * unmapped and deleted as soon as every record in it has been acknowledged.
+ *
+ * An operation that fails is appended again after retryDelay, doubling with
+ * each attempt, up to maxRetries times; its first result is the one passed to
+ * the caller. The failed record is only acknowledged once its retry is on
+ * disk. A retry is dropped if an operation on the same node and key has been
+ * queued since the failed one, so that it can not overwrite a newer write.
+ *
+ * On start() records left unacknowledged by a previous process are run
+ * again, oldest first. A record cut short by a crash fails its checksum and
+ * ends recovery of that segment. Delivery is at least once: an operation that
+ * ran but whose acknowledgement had not reached the disk is run again.
+ *
+ * @author sam
+ *
+ */
+public class PersistentThreadPoolOperationQueue extends
+		AbstractThreadPoolOperationQueue implements OperationQueue {
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	public static final int DEFAULT_MAX_RETRIES = 5;
+
+	public static final long DEFAULT_RETRY_DELAY = 1000l;
+
+	private static final long MAX_RETRY_DELAY = 60000l;
+
+	// acknowledgements are forced with the next append, or after this long
+	private static final long ACK_COMMIT_INTERVAL = 100l;
+
+	private static final String SEGMENT_SUFFIX = ".segment";
+
+	// payload length, payload checksum, ack flag, attempts
+	private static final int RECORD_HEADER_SIZE = 10;
+
+	private static final byte ACKED = 1;
+
+	protected OperationLog operationLog = OperationLog.getInstance();
+
+	protected MetricsRegistry metrics = MetricsRegistry.getInstance();
+
+	private File directory;
+
+	private int segmentSize = DEFAULT_SEGMENT_SIZE;
+
+	private boolean synchronousCommit = true;
+
+	private int maxRetries = DEFAULT_MAX_RETRIES;
+
+	private long retryDelay = DEFAULT_RETRY_DELAY;
+
+	private HashedWheelTimer timer = HashedWheelTimer.getInstance();
+
+	// null unless replays are throttled
+	private PriorityScheduler scheduler;
+
+	private OperationPriority priority = OperationPriority.Backfill;
+
+	private ReentrantLock lock = new ReentrantLock();
+
+	private Condition readable = lock.newCondition();
+
+	private Condition commitNeeded = lock.newCondition();
+
+	private Condition committed = lock.newCondition();
+
+	// oldest first. the last one is the write segment.
+	private List<Segment> segments = new ArrayList<Segment>();
+
+	private Segment writeSegment;
+
+	private Segment readSegment;
+
+	private int readPosition;
+
+	private long nextSequence = 0l;
+
+	private long appendCount = 0l;
+
+	private long commitCount = 0l;
+
+	private int pendingCount = 0;
+
+	// record id -> future and callback of operations submitted since start
+	private ConcurrentMap<Long, Submission<?>> submissions = new ConcurrentHashMap<Long, Submission<?>>();
+
+	// node id and key -> id of the newest record queued for them. cleared
+	// whenever nothing is pending, as no retry can then be outstanding
+	private Map<String, Long> latest = new HashMap<String, Long>();
+
+	// failed records to acknowledge once the commit of their retry is done
+	private List<Retry> retried = new ArrayList<Retry>();
+
+	private Semaphore inFlight;
+
+	private volatile boolean running = false;
+
+	private Thread dispatcher;
+
+	private Thread committer;
+
+	public PersistentThreadPoolOperationQueue(Map<?, ?> defaultProperties,
+			File directory) {
+		this(defaultProperties, new UriConnectionFactory(), directory);
+	}
+
+	public PersistentThreadPoolOperationQueue(Map<?, ?> defaultProperties,
+			ConnectionFactory connectionFactory, File directory) {
+		this(defaultProperties, connectionFactory, directory,
+				DEFAULT_THREAD_POOL_COUNT, DEFAULT_MAX_QUEUE_DEPTH);
+	}
+
+	public PersistentThreadPoolOperationQueue(Map<?, ?> defaultProperties,
+			ConnectionFactory connectionFactory, File directory,
+			int threadPoolCount, int maxQueueDepth) {
+		super(defaultProperties, connectionFactory, threadPoolCount,
+				maxQueueDepth);
+		this.directory = directory;
+	}
+
+	/**
+	 * Size of each segment file in bytes. A record larger than this gets a
+	 * segment of its own.
+	 */
+	public void setSegmentSize(int segmentSize) {
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * If true (the default) submit() waits until the operation has been
+	 * forced to disk. If false a crash of the machine (but not of the process)
+	 * may lose operations submitted since the last commit.
+	 */
+	public void setSynchronousCommit(boolean synchronousCommit) {
+		this.synchronousCommit = synchronousCommit;
+	}
+
+	/**
+	 * Number of times a failed operation is retried before it is dropped.
+	 */
+	public void setMaxRetries(int maxRetries) {
+		this.maxRetries = Math.min(maxRetries, Byte.MAX_VALUE);
+	}
+
+	/**
+	 * Millis before the first retry of a failed operation. Doubles with each
+	 * further attempt, up to a minute.
+	 */
+	public void setRetryDelay(long retryDelay) {
+		this.retryDelay = retryDelay;
+	}
+
+	public void setTimer(HashedWheelTimer timer) {
+		this.timer = timer;
+	}
+
+	/**
+	 * Take a place in the scheduler's budget for the priority before running
+	 * each persisted operation, so that replays are throttled with other
+	 * background traffic. The queue itself can not be wrapped in a
+	 * {@link PriorityOperationQueue}, which holds operations in memory.
+	 */
+	public void setPriorityScheduler(PriorityScheduler scheduler,
+			OperationPriority priority) {
+		this.scheduler = scheduler;
+		this.priority = priority;
+	}
+
+	public void start() {
+		super.start();
+		inFlight = new Semaphore(threadPoolCount);
+		lock.lock();
+		try {
+			recover();
+			running = true;
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Unable to open queue directory "
+					+ directory, e);
+		} finally {
+			lock.unlock();
+		}
+
+		dispatcher = new Thread(new Runnable() {
+			public void run() {
+				dispatch();
+			}
+		}, "operation-queue-dispatcher");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+		committer = new Thread(new Runnable() {
+			public void run() {
+				commit();
+			}
+		}, "operation-queue-committer");
+		committer.setDaemon(true);
+		committer.start();
+	}
+
+	/**
+	 * Stop taking operations. Operations that have not run by the time the
+	 * thread pool has shut down are run on the next start().
+	 */
+	public void stop() {
+		if (dispatcher == null)
+			return; // never started
+		lock.lock();
+		try {
+			running = false;
+			readable.signalAll();
+			commitNeeded.signalAll();
+			committed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		dispatcher.interrupt();
+		try {
+			dispatcher.join();
+			committer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		super.stop();
+
+		// force acknowledgements from operations that ran during shutdown
+		lock.lock();
+		try {
+			for (Segment segment : segments)
+				segment.force();
+			// their retries are on disk now
+			commitCount = appendCount;
+			acknowledgeRetried();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of persisted operations that have not yet run.
+	 */
+	public int getQueueSize() {
+		lock.lock();
+		try {
+			return pendingCount;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public <V> Future<OperationResult<V>> submit(Operation<V> operation)
+			throws RejectedExecutionException {
+		if (!OperationCodec.isEncodable(operation))
+			return super.execute(operation.getNode(), new DirectCallable<V>(
+					operation));
+
+		byte[] payload;
+		try {
+			payload = OperationCodec.encode(operation);
+		} catch (IOException e) {
+			throw new RejectedExecutionException(e);
+		}
+		SettableFuture<OperationResult<V>> future = new SettableFuture<OperationResult<V>>();
+		lock.lock();
+		try {
+			if (!running)
+				throw new RejectedExecutionException("Queue is not running");
+			Segment segment = writeSegment;
+			if (segment.remaining() < (RECORD_HEADER_SIZE + payload.length))
+				segment = roll(payload.length);
+			int position = segment.append(payload, 0);
+			long id = id(segment, position);
+			submissions.put(id, new Submission<V>(future, operation));
+			supersede(operation, id);
+			++pendingCount;
+			long count = ++appendCount;
+			readable.signal();
+			commitNeeded.signal();
+			while ((synchronousCommit) && (running) && (commitCount < count))
+				committed.await();
+		} catch (IOException e) {
+			throw new RejectedExecutionException(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			lock.unlock();
+		}
+		return future;
+	}
+
+	private void recover() throws IOException {
+		if ((!directory.isDirectory()) && (!directory.mkdirs()))
+			throw new IOException("Unable to create queue directory "
+					+ directory);
+		File[] files = directory.listFiles();
+		Arrays.sort(files);
+		for (File file : files) {
+			String name = file.getName();
+			if (!name.endsWith(SEGMENT_SUFFIX))
+				continue;
+			long sequence;
+			try {
+				sequence = Long.parseLong(name.substring(0, name.length()
+						- SEGMENT_SUFFIX.length()));
+			} catch (NumberFormatException e) {
+				log.warn("Ignoring queue file " + file);
+				continue;
+			}
+			nextSequence = Math.max(nextSequence, sequence + 1);
+			Segment segment = new Segment(sequence, file, 0);
+			int pending = segment.recover();
+			if (pending == 0) {
+				delete(segment);
+			} else {
+				log.info(String.format("Recovered %1$d operations from %2$s",
+						pending, file));
+				segments.add(segment);
+				pendingCount += pending;
+			}
+		}
+		writeSegment = newSegment(segmentSize);
+		readSegment = segments.get(0);
+		readPosition = 0;
+	}
+
+	private Segment roll(int payloadLength) throws IOException {
+		writeSegment = newSegment(Math.max(segmentSize, RECORD_HEADER_SIZE
+				+ payloadLength));
+		return writeSegment;
+	}
+
+	private Segment newSegment(int size) throws IOException {
+		long sequence = nextSequence++;
+		File file = new File(directory, String.format("%1$020d%2$s",
+				sequence, SEGMENT_SUFFIX));
+		Segment segment = new Segment(sequence, file, size);
+		segments.add(segment);
+		return segment;
+	}
+
+	private void delete(Segment segment) {
+		segments.remove(segment);
+		segment.close();
+		if (!segment.file.delete())
+			log.warn("Unable to delete queue file " + segment.file);
+	}
+
+	private long id(Segment segment, int position) {
+		return (segment.sequence << 32) | position;
+	}
+
+	private String latestKey(Operation<?> op) {
+		return op.getNode().getId() + ":" + op.getKey();
+	}
+
+	/**
+	 * Note that the record with the given id is the newest for its node and
+	 * key, unless a newer one is known. Called with the lock held.
+	 */
+	private void supersede(Operation<?> op, long id) {
+		String key = latestKey(op);
+		Long newest = latest.get(key);
+		if ((newest == null) || (newest.longValue() < id))
+			latest.put(key, id);
+	}
+
+	/**
+	 * Returns true if a record newer than the given one has been queued for
+	 * the same node and key. Called with the lock held.
+	 */
+	private boolean isSuperseded(Record record) {
+		Long newest = latest.get(latestKey(record.operation));
+		return (newest != null)
+				&& (newest.longValue() > id(record.segment, record.position));
+	}
+
+	/**
+	 * Mark a record as done, deleting its segment if nothing in it is left to
+	 * run. Called with the lock held.
+	 */
+	private void acknowledge(Segment segment, int position) {
+		segment.acknowledge(position);
+		// with nothing left to run there is nothing left to retry
+		if (--pendingCount == 0)
+			latest.clear();
+		if ((segment.pending == 0) && (segment != writeSegment)
+				&& (segment != readSegment))
+			delete(segment);
+	}
+
+	private void dispatch() {
+		while (running) {
+			try {
+				inFlight.acquire();
+			} catch (InterruptedException e) {
+				return;
+			}
+			Record record = next();
+			if ((record == null) || !acquireScheduler()) {
+				inFlight.release();
+				return;
+			}
+			PersistentCallable callable = new PersistentCallable(record);
+			while (true) {
+				try {
+					super.execute(callable);
+					break;
+				} catch (RejectedExecutionException e) {
+					// the pool queue is full of direct operations
+					try {
+						Thread.sleep(10l);
+					} catch (InterruptedException ie) {
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wait for a place in the scheduler's budget, if there is a scheduler.
+	 * Returns false if interrupted.
+	 */
+	private boolean acquireScheduler() {
+		while (scheduler != null) {
+			try {
+				scheduler.acquire(priority);
+				return true;
+			} catch (RejectedExecutionException e) {
+				// too many background operations waiting already
+				try {
+					Thread.sleep(10l);
+				} catch (InterruptedException ie) {
+					return false;
+				}
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void releaseScheduler() {
+		if (scheduler != null)
+			scheduler.release(priority);
+	}
+
+	/**
+	 * Return the next unacknowledged record, waiting for one to be appended if
+	 * necessary, or null once stopped.
+	 */
+	private Record next() {
+		lock.lock();
+		try {
+			while (running) {
+				Segment segment = readSegment;
+				if (readPosition < segment.writePosition) {
+					int position = readPosition;
+					readPosition += RECORD_HEADER_SIZE
+							+ segment.getLength(position);
+					if (segment.isAcknowledged(position))
+						continue;
+					long id = id(segment, position);
+					try {
+						Operation<byte[]> op = OperationCodec.decode(segment
+								.read(position));
+						supersede(op, id);
+						return new Record(segment, position, op, segment
+								.getAttempts(position), submissions.remove(id));
+					} catch (IOException e) {
+						log.error("Dropping unreadable operation", e);
+						acknowledge(segment, position);
+						Submission<?> submission = submissions.remove(id);
+						if (submission != null)
+							submission.failed(e);
+						continue;
+					}
+				}
+				if (segment != writeSegment) {
+					// fully read; move on to the next segment
+					readSegment = segments.get(segments.indexOf(segment) + 1);
+					readPosition = 0;
+					if (segment.pending == 0)
+						delete(segment);
+					continue;
+				}
+				readable.await();
+			}
+		} catch (InterruptedException e) {
+			// stopping
+		} finally {
+			lock.unlock();
+		}
+		return null;
+	}
+
+	private void commit() {
+		while (true) {
+			List<Segment> dirty = new ArrayList<Segment>();
+			long target;
+			lock.lock();
+			try {
+				while ((running) && (commitCount == appendCount)) {
+					if ((!commitNeeded.await(ACK_COMMIT_INTERVAL,
+							TimeUnit.MILLISECONDS))
+							&& (hasDirtySegments()))
+						break;
+				}
+				if ((!running) && (!hasDirtySegments()))
+					return;
+				target = appendCount;
+				for (Segment segment : segments) {
+					if (segment.dirty) {
+						segment.dirty = false;
+						dirty.add(segment);
+					}
+				}
+			} catch (InterruptedException e) {
+				return;
+			} finally {
+				lock.unlock();
+			}
+
+			for (Segment segment : dirty)
+				segment.force();
+
+			lock.lock();
+			try {
+				commitCount = Math.max(commitCount, target);
+				committed.signalAll();
+				acknowledgeRetried();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Append a failed record again, acknowledging the original once the
+	 * commit thread has forced the copy to disk. If stopped the record is
+	 * left to be run on the next start().
+	 */
+	private void retry(Record record) {
+		lock.lock();
+		try {
+			if ((!running) || (!segments.contains(record.segment)))
+				return;
+			if (isSuperseded(record)) {
+				log.debug(String.format(
+						"Dropping retry of %1$s of %2$s, superseded",
+						record.operation.getName(), record.operation.getKey()));
+				acknowledge(record.segment, record.position);
+				return;
+			}
+			byte[] payload = record.segment.read(record.position);
+			Segment segment = writeSegment;
+			if (segment.remaining() < (RECORD_HEADER_SIZE + payload.length))
+				segment = roll(payload.length);
+			int position = segment.append(payload, record.attempts + 1);
+			latest.put(latestKey(record.operation), id(segment, position));
+			++pendingCount;
+			retried.add(new Retry(record, ++appendCount));
+			readable.signal();
+			commitNeeded.signal();
+		} catch (IOException e) {
+			log.error("Unable to requeue failed operation", e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Acknowledge failed records whose retry has been committed. Called with
+	 * the lock held.
+	 */
+	private void acknowledgeRetried() {
+		for (Iterator<Retry> i = retried.iterator(); i.hasNext();) {
+			Retry retry = i.next();
+			if (retry.commit <= commitCount) {
+				acknowledge(retry.record.segment, retry.record.position);
+				i.remove();
+			}
+		}
+	}
+
+	private boolean hasDirtySegments() {
+		for (Segment segment : segments) {
+			if (segment.dirty)
+				return true;
+		}
+		return false;
+	}
+
+	private <V> OperationResult<V> run(Operation<V> op, long enqueueTime,
+			long enqueueNanos) {
+		OperationResult<V> result = null;
+		Node node = op.getNode();
+		long start = System.currentTimeMillis();
+		long startNanos = System.nanoTime();
+		try {
+			KeyValueStore store = connectionFactory.getStore(
+					defaultProperties, node.getConnectionURI());
+			Callable<OperationResult<V>> delegate = op.getCallable(store);
+			result = delegate.call();
+		} catch (Exception e) {
+			log.error("Exception fetching node", e);
+			result = new DefaultOperationResult<V>(op, null,
+					OperationStatus.Error, System.currentTimeMillis() - start,
+					e);
+		}
+		try {
+			operationLog.logBackend(op.getName(), result.getStatus(), node
+					.getId(), result.getDuration(), start - enqueueTime);
+		} catch (Exception e) {
+			log.error("Exception writing to operation log", e);
+		}
+		metrics.recordNode(node, op.getName(), result.getStatus(),
+				(startNanos - enqueueNanos) / 1000,
+				(System.nanoTime() - startNanos) / 1000);
+		return result;
+	}
+
+	private class DirectCallable<V> implements Callable<OperationResult<V>>,
+			Abandonable<OperationResult<V>> {
+		private long enqueueTime;
+
+		private long enqueueNanos;
+
+		private Operation<V> op;
+
+		public DirectCallable(Operation<V> op) {
+			this.op = op;
+			this.enqueueTime = System.currentTimeMillis();
+			this.enqueueNanos = System.nanoTime();
+		}
+
+		public OperationResult<V> call() throws Exception {
+			OperationResult<V> result = run(op, enqueueTime, enqueueNanos);
+			OperationCallback<V> callback = op.getCallback();
+			if (callback != null)
+				callback.completed(result);
+			return result;
+		}
+
+		public OperationResult<V> abandon(Exception reason) {
+			OperationResult<V> result = new DefaultOperationResult<V>(op,
+					null, OperationStatus.Error, 0l, reason);
+			OperationCallback<V> callback = op.getCallback();
+			if (callback != null)
+				callback.completed(result);
+			return result;
+		}
+	}
+
+	private class PersistentCallable implements
+			Callable<OperationResult<byte[]>>,
+			Abandonable<OperationResult<byte[]>> {
+		private long enqueueTime;
+
+		private long enqueueNanos;
+
+		private Record record;
+
+		public PersistentCallable(Record record) {
+			this.record = record;
+			this.enqueueTime = System.currentTimeMillis();
+			this.enqueueNanos = System.nanoTime();
+		}
+
+		public OperationResult<byte[]> call() throws Exception {
+			OperationResult<byte[]> result = null;
+			boolean retry = false;
+			try {
+				result = run(record.operation, enqueueTime,
+						enqueueNanos);
+			} finally {
+				boolean failed = (result == null)
+						|| OperationStatus.Error.equals(result.getStatus());
+				retry = failed && (record.attempts < maxRetries);
+				if (!retry) {
+					if (failed)
+						log.warn(String.format(
+								"Dropping %1$s of %2$s after %3$d attempts",
+								record.operation.getName(), record.operation
+										.getKey(), record.attempts + 1));
+					lock.lock();
+					try {
+						acknowledge(record.segment, record.position);
+					} finally {
+						lock.unlock();
+					}
+				}
+				inFlight.release();
+				releaseScheduler();
+			}
+			if (retry) {
+				long delay = Math.min(MAX_RETRY_DELAY, retryDelay
+						<< Math.min(record.attempts, 16));
+				timer.newTimeout(new Runnable() {
+					public void run() {
+						retry(record);
+					}
+				}, delay, TimeUnit.MILLISECONDS);
+			}
+			if (record.submission != null)
+				record.submission.completed(result);
+			return result;
+		}
+
+		/**
+		 * Not run before the pool stopped; the record is left to be run on
+		 * the next start().
+		 */
+		public OperationResult<byte[]> abandon(Exception reason) {
+			inFlight.release();
+			releaseScheduler();
+			OperationResult<byte[]> result = new DefaultOperationResult<byte[]>(
+					record.operation, null, OperationStatus.Error, 0l, reason);
+			if (record.submission != null)
+				record.submission.completed(result);
+			return result;
+		}
+	}
+
+	private static class Submission<V> {
+		private SettableFuture<OperationResult<V>> future;
+
+		private Operation<V> operation;
+
+		public Submission(SettableFuture<OperationResult<V>> future,
+				Operation<V> operation) {
+			this.future = future;
+			this.operation = operation;
+		}
+
+		/**
+		 * Complete with the result of the decoded copy of the operation,
+		 * which is run with a byte[] value whatever V was.
+		 */
+		@SuppressWarnings("unchecked")
+		public void completed(OperationResult<byte[]> result) {
+			OperationResult<V> r = (OperationResult<V>) (OperationResult<?>) result;
+			future.set(r);
+			OperationCallback<V> callback = operation.getCallback();
+			if (callback != null)
+				callback.completed(r);
+		}
+
+		/**
+		 * Complete with an error, the record never having been run.
+		 */
+		public void failed(Exception reason) {
+			OperationResult<V> r = new DefaultOperationResult<V>(operation,
+					null, OperationStatus.Error, 0l, reason);
+			future.set(r);
+			OperationCallback<V> callback = operation.getCallback();
+			if (callback != null)
+				callback.completed(r);
+		}
+	}
+
+	private static class Retry {
+		private Record record;
+
+		// appendCount of the copy
+		private long commit;
+
+		public Retry(Record record, long commit) {
+			this.record = record;
+			this.commit = commit;
+		}
+	}
+
+	private static class Record {
+		private Segment segment;
+
+		private int position;
+
+		private Operation<byte[]> operation;
+
+		// earlier runs that failed
+		private int attempts;
+
+		private Submission<?> submission;
+
+		public Record(Segment segment, int position,
+				Operation<byte[]> operation, int attempts,
+				Submission<?> submission) {
+			this.segment = segment;
+			this.position = position;
+			this.operation = operation;
+			this.attempts = attempts;
+			this.submission = submission;
+		}
+	}
+
+	/**
+	 * A memory-mapped segment file. Only accessed with the queue lock held,
+	 * except for force(), which the commit thread calls without it.
+	 */
+	private static class Segment {
+		private long sequence;
+
+		private File file;
+
+		private MappedByteBuffer buffer;
+
+		private int writePosition = 0;
+
+		// records not yet acknowledged
+		private int pending = 0;
+
+		// modified since the last force
+		private boolean dirty = false;
+
+		// unmapped; guarded by this
+		private boolean closed = false;
+
+		/**
+		 * Map the given file, extending it to size bytes if it is shorter.
+		 */
+		public Segment(long sequence, File file, int size) throws IOException {
+			this.sequence = sequence;
+			this.file = file;
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				if (raf.length() < size)
+					raf.setLength(size);
+				buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,
+						0, raf.length());
+			} finally {
+				raf.close();
+			}
+		}
+
+		public int remaining() {
+			return buffer.capacity() - writePosition;
+		}
+
+		/**
+		 * Append a record, returning its position. The length is written last
+		 * and the checksum catches records torn by a crash.
+		 */
+		public int append(byte[] payload, int attempts) {
+			int position = writePosition;
+			ByteBuffer b = buffer.duplicate();
+			b.position(position + RECORD_HEADER_SIZE);
+			b.put(payload);
+			buffer.putInt(position + 4, checksum(payload));
+			buffer.put(position + 8, (byte) 0);
+			buffer.put(position + 9, (byte) attempts);
+			buffer.putInt(position, payload.length);
+			writePosition += RECORD_HEADER_SIZE + payload.length;
+			++pending;
+			dirty = true;
+			return position;
+		}
+
+		public int getLength(int position) {
+			return buffer.getInt(position);
+		}
+
+		public byte[] read(int position) {
+			byte[] payload = new byte[getLength(position)];
+			ByteBuffer b = buffer.duplicate();
+			b.position(position + RECORD_HEADER_SIZE);
+			b.get(payload);
+			return payload;
+		}
+
+		public int getAttempts(int position) {
+			return buffer.get(position + 9);
+		}
+
+		public boolean isAcknowledged(int position) {
+			return (buffer.get(position + 8) == ACKED);
+		}
+
+		public void acknowledge(int position) {
+			buffer.put(position + 8, ACKED);
+			--pending;
+			dirty = true;
+		}
+
+		/**
+		 * Find the end of the valid records in an existing file, returning the
+		 * number not yet acknowledged.
+		 */
+		public int recover() {
+			int position = 0;
+			while ((position + RECORD_HEADER_SIZE) <= buffer.capacity()) {
+				int length = getLength(position);
+				if ((length <= 0)
+						|| (length > (buffer.capacity() - position - RECORD_HEADER_SIZE)))
+					break;
+				if (buffer.getInt(position + 4) != checksum(read(position)))
+					break;
+				if (!isAcknowledged(position))
+					++pending;
+				position += RECORD_HEADER_SIZE + length;
+			}
+			writePosition = position;
+			return pending;
+		}
+
+		public synchronized void force() {
+			if (!closed)
+				buffer.force();
+		}
+
+		/**
+		 * Unmap the file now rather than when the buffer is collected, so
+		 * that its address space and file handle are released before it is
+		 * deleted. The buffer must not be used afterwards.
+		 */
+		public synchronized void close() {
+			if (closed)
+				return;
+			closed = true;
+			try {
+				// java 6 - 8
+				Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(buffer);
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+				return;
+			} catch (Exception e) {
+			}
+			try {
+				// java 9 and later
+				Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+				Field field = unsafeClass.getDeclaredField("theUnsafe");
+				field.setAccessible(true);
+				unsafeClass.getMethod("invokeCleaner", ByteBuffer.class)
+						.invoke(field.get(null), buffer);
+			} catch (Exception e) {
+				// left to the garbage collector
+			}
+		}
+
+		private static int checksum(byte[] payload) {
+			CRC32 crc = new CRC32();
+			crc.update(payload);
+			return (int) crc.getValue();
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package com.rubiconproject.oss.kv.distributed.impl;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.rubiconproject.oss.kv.backends.ConnectionFactory;
+import com.rubiconproject.oss.kv.distributed.Operation;
+import com.rubiconproject.oss.kv.distributed.OperationPriority;
+import com.rubiconproject.oss.kv.distributed.OperationQueue;
+import com.rubiconproject.oss.kv.distributed.OperationResult;
+
+/**
+ * An operation queue that passes operations to the wrapped queue through a
+ * {@link PriorityScheduler} shared with other queues, so that, say, the
+ * sync and async queues of a client draw on one set of per-class budgets.
+ *
+ * Operations are classed by the queue's default priority: a foreground
+ * queue sends gets as ForegroundRead and everything else as
+ * ForegroundWrite, a background queue sends everything at its priority.
+ * Callers may also pass a priority explicitly.
+ *
+ * Operations held by the scheduler are only in memory, so a
+ * {@link PersistentThreadPoolOperationQueue} should not be wrapped; give it
+ * the scheduler with setPriorityScheduler() instead.
+ *
+ * @author sam
+ *
+ */
+public class PriorityOperationQueue implements OperationQueue {
+	private OperationQueue delegate;
+
+	private PriorityScheduler scheduler;
+
+	private OperationPriority priority;
+
+	public PriorityOperationQueue(OperationQueue delegate,
+			PriorityScheduler scheduler, OperationPriority priority) {
+		this.delegate = delegate;
+		this.scheduler = scheduler;
+		this.priority = priority;
+	}
+
+	public OperationQueue getDelegate() {
+		return delegate;
+	}
+
+	public PriorityScheduler getScheduler() {
+		return scheduler;
+	}
+
+	public void setConnectionFactory(ConnectionFactory factory) {
+		delegate.setConnectionFactory(factory);
+	}
+
+	public void start() {
+		delegate.start();
+	}
+
+	public void stop() {
+		delegate.stop();
+	}
+
+	/**
+	 * Returns the number of operations waiting in the scheduler or the
+	 * wrapped queue.
+	 */
+	public int getQueueSize() {
+		return scheduler.getWaitingCount(delegate) + delegate.getQueueSize();
+	}
+
+	public <V> Future<OperationResult<V>> submit(Operation<V> operation)
+			throws RejectedExecutionException {
+		return submit(operation, getPriority(operation));
+	}
+
+	public <V> Future<OperationResult<V>> submit(Operation<V> operation,
+			OperationPriority priority) throws RejectedExecutionException {
+		return scheduler.submit(delegate, operation, priority);
+	}
+
+	private OperationPriority getPriority(Operation<?> operation) {
+		if (priority.isBackground())
+			return priority;
+		if ((operation instanceof GetOperation)
+				|| (operation instanceof GetBulkOperation))
+			return OperationPriority.ForegroundRead;
+		return OperationPriority.ForegroundWrite;
+	}
+}
@@ -0,0 +1,457 @@
+package com.rubiconproject.oss.kv.distributed.impl;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.rubiconproject.oss.kv.distributed.Operation;
+import com.rubiconproject.oss.kv.distributed.OperationCallback;
+import com.rubiconproject.oss.kv.distributed.OperationPriority;
+import com.rubiconproject.oss.kv.distributed.OperationQueue;
+import com.rubiconproject.oss.kv.distributed.OperationResult;
+import com.rubiconproject.oss.kv.distributed.OperationStatus;
+import com.rubiconproject.oss.kv.util.SettableFuture;
+
+/**
+ * Limits how many operations of each {@link OperationPriority} may be
+ * running at once, across every {@link PriorityOperationQueue} sharing it.
+ * Operations over their class's budget, or over maxConcurrency in total,
+ * wait here and are started highest priority first as others complete.
+ *
+ * Background (backfill and rebalance) budgets are throttled when foreground
+ * operations slow down: each adjustment interval, if the recent foreground
+ * latency is over latencyThreshold times its baseline the background budgets
+ * are halved (to no less than one), otherwise they grow by one back towards
+ * their configured size. The baseline follows latency down quickly and up
+ * slowly, so sustained overload does not become the new normal at once.
+ * Intervals in which no foreground operation completed count as fast, so
+ * budgets grow back once foreground traffic stops rather than staying
+ * throttled until it returns.
+ *
+ * Background work that is not sent as operations, such as the replay of a
+ * {@link PersistentThreadPoolOperationQueue} or the bulk reads and writes of
+ * {@link RangeRebalancer} and {@link AntiEntropyService}, takes its place in
+ * a budget with acquire() and gives it back with release().
+ *
+ * @author sam
+ *
+ */
+public class PriorityScheduler {
+	public static final int DEFAULT_BACKFILL_CONCURRENCY = 8;
+
+	public static final int DEFAULT_REBALANCE_CONCURRENCY = 2;
+
+	public static final int DEFAULT_MAX_WAITING = 10000;
+
+	public static final double DEFAULT_LATENCY_THRESHOLD = 2.0d;
+
+	public static final long DEFAULT_ADJUST_INTERVAL = 100l;
+
+	private static final OperationPriority[] PRIORITIES = OperationPriority
+			.values();
+
+	private Log log = LogFactory.getLog(getClass());
+
+	private int maxConcurrency = Integer.MAX_VALUE;
+
+	private int maxWaiting = DEFAULT_MAX_WAITING;
+
+	private double latencyThreshold = DEFAULT_LATENCY_THRESHOLD;
+
+	private long adjustInterval = DEFAULT_ADJUST_INTERVAL;
+
+	// all guarded by this
+	private int[] limits = new int[PRIORITIES.length];
+
+	private int[] throttled = new int[PRIORITIES.length];
+
+	private int[] running = new int[PRIORITIES.length];
+
+	private int totalRunning = 0;
+
+	private List<LinkedList<Waiter>> waiting = new ArrayList<LinkedList<Waiter>>(
+			PRIORITIES.length);
+
+	// recent and baseline foreground latency (millis)
+	private double recentLatency = 0d;
+
+	private double baselineLatency = 0d;
+
+	private long lastAdjustment = 0l;
+
+	private long lastForeground = 0l;
+
+	public PriorityScheduler() {
+		for (OperationPriority priority : PRIORITIES) {
+			waiting.add(new LinkedList<Waiter>());
+			limits[priority.ordinal()] = Integer.MAX_VALUE;
+		}
+		setConcurrency(OperationPriority.Backfill, DEFAULT_BACKFILL_CONCURRENCY);
+		setConcurrency(OperationPriority.Rebalance,
+				DEFAULT_REBALANCE_CONCURRENCY);
+	}
+
+	/**
+	 * Maximum operations of the class running at once.
+	 */
+	public synchronized void setConcurrency(OperationPriority priority,
+			int concurrency) {
+		limits[priority.ordinal()] = concurrency;
+		throttled[priority.ordinal()] = concurrency;
+	}
+
+	/**
+	 * Maximum operations of all classes running at once.
+	 */
+	public synchronized void setMaxConcurrency(int maxConcurrency) {
+		this.maxConcurrency = maxConcurrency;
+	}
+
+	/**
+	 * Maximum operations of one class waiting before submit() throws
+	 * RejectedExecutionException.
+	 */
+	public synchronized void setMaxWaiting(int maxWaiting) {
+		this.maxWaiting = maxWaiting;
+	}
+
+	/**
+	 * Ratio of recent to baseline foreground latency over which background
+	 * budgets are throttled.
+	 */
+	public synchronized void setLatencyThreshold(double latencyThreshold) {
+		this.latencyThreshold = latencyThreshold;
+	}
+
+	/**
+	 * Time between adjustments of background budgets (millis).
+	 */
+	public synchronized void setAdjustInterval(long adjustInterval) {
+		this.adjustInterval = adjustInterval;
+	}
+
+	/**
+	 * Returns the number of operations of the class that may currently run,
+	 * after any throttling.
+	 */
+	public synchronized int getConcurrency(OperationPriority priority) {
+		return getLimit(priority.ordinal());
+	}
+
+	public synchronized int getRunningCount(OperationPriority priority) {
+		return running[priority.ordinal()];
+	}
+
+	public synchronized int getWaitingCount(OperationPriority priority) {
+		return waiting.get(priority.ordinal()).size();
+	}
+
+	/**
+	 * Returns the number of operations waiting to be sent to the given queue.
+	 */
+	public synchronized int getWaitingCount(OperationQueue queue) {
+		int count = 0;
+		for (LinkedList<Waiter> list : waiting) {
+			for (Waiter waiter : list) {
+				if (waiter.getQueue() == queue)
+					++count;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns true if background budgets are currently reduced.
+	 */
+	public synchronized boolean isThrottled() {
+		for (OperationPriority priority : PRIORITIES) {
+			if (priority.isBackground()
+					&& (throttled[priority.ordinal()] < limits[priority
+							.ordinal()]))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Send the operation to the queue now if its class is within budget,
+	 * otherwise hold it until it is.
+	 */
+	public <V> Future<OperationResult<V>> submit(OperationQueue queue,
+			Operation<V> operation, OperationPriority priority)
+			throws RejectedExecutionException {
+		Pending<V> pending = new Pending<V>(queue, operation, priority);
+		int i = priority.ordinal();
+		synchronized (this) {
+			if (!waiting.get(i).isEmpty() || !start(i)) {
+				if (waiting.get(i).size() >= maxWaiting)
+					throw new RejectedExecutionException(String.format(
+							"%1$d %2$s operations already waiting",
+							maxWaiting, priority));
+				waiting.get(i).add(pending);
+				return pending.future;
+			}
+		}
+		operation.setCallback(pending);
+		pending.started = System.nanoTime();
+		try {
+			return queue.submit(operation);
+		} catch (RejectedExecutionException e) {
+			operation.setCallback(pending.callback);
+			finished(i);
+			throw e;
+		}
+	}
+
+	/**
+	 * Take a place in the class's budget, waiting behind operations of the
+	 * class already waiting if there is none. Every call must be followed by
+	 * release().
+	 */
+	public void acquire(OperationPriority priority)
+			throws InterruptedException, RejectedExecutionException {
+		int i = priority.ordinal();
+		Permit permit = new Permit();
+		synchronized (this) {
+			if (waiting.get(i).isEmpty() && start(i))
+				return;
+			if (waiting.get(i).size() >= maxWaiting)
+				throw new RejectedExecutionException(String.format(
+						"%1$d %2$s operations already waiting", maxWaiting,
+						priority));
+			waiting.get(i).add(permit);
+		}
+		try {
+			permit.await();
+		} catch (InterruptedException e) {
+			boolean removed;
+			synchronized (this) {
+				removed = waiting.get(i).remove(permit);
+			}
+			// otherwise the place was already handed to it
+			if (!removed)
+				finished(i);
+			throw e;
+		}
+	}
+
+	/**
+	 * Give back a place taken with acquire().
+	 */
+	public void release(OperationPriority priority) {
+		finished(priority.ordinal());
+	}
+
+	// called holding the lock
+	private boolean start(int i) {
+		if (PRIORITIES[i].isBackground())
+			refill();
+		if ((running[i] >= getLimit(i)) || (totalRunning >= maxConcurrency))
+			return false;
+		++running[i];
+		++totalRunning;
+		return true;
+	}
+
+	// called holding the lock
+	private int getLimit(int i) {
+		return PRIORITIES[i].isBackground() ? Math.min(limits[i], throttled[i])
+				: limits[i];
+	}
+
+	private void finished(int i) {
+		synchronized (this) {
+			--running[i];
+			--totalRunning;
+		}
+		startWaiting();
+	}
+
+	/**
+	 * Start waiting operations, highest priority first, while budgets allow.
+	 */
+	private void startWaiting() {
+		while (true) {
+			List<Waiter> ready = new ArrayList<Waiter>();
+			synchronized (this) {
+				for (int i = 0; i < PRIORITIES.length; ++i) {
+					LinkedList<Waiter> list = waiting.get(i);
+					while (!list.isEmpty() && start(i))
+						ready.add(list.removeFirst());
+				}
+			}
+			if (ready.isEmpty())
+				return;
+			for (Waiter waiter : ready)
+				waiter.send();
+		}
+	}
+
+	/**
+	 * Grow throttled budgets by one for each adjustment interval that has
+	 * passed without a foreground operation completing. Called holding the
+	 * lock.
+	 */
+	private void refill() {
+		long now = System.currentTimeMillis();
+		if ((now - lastForeground < adjustInterval)
+				|| (now - lastAdjustment < adjustInterval))
+			return;
+		long steps = (adjustInterval == 0l) ? 1l : (now - lastAdjustment)
+				/ adjustInterval;
+		lastAdjustment = now;
+		for (OperationPriority priority : PRIORITIES) {
+			if (!priority.isBackground())
+				continue;
+			int i = priority.ordinal();
+			if (throttled[i] >= limits[i])
+				continue;
+			throttled[i] = (int) Math.min(limits[i], throttled[i] + steps);
+			if (log.isDebugEnabled())
+				log.debug(String.format(
+						"%1$s budget %2$d (no recent foreground operations)",
+						priority, throttled[i]));
+		}
+	}
+
+	private synchronized void recordForeground(long nanos) {
+		double sample = nanos / 1000000d;
+		if (baselineLatency == 0d) {
+			recentLatency = sample;
+			baselineLatency = sample;
+		} else {
+			recentLatency += (sample - recentLatency) * 0.2d;
+			baselineLatency += (sample - baselineLatency)
+					* ((sample < baselineLatency) ? 0.1d : 0.001d);
+		}
+		long now = System.currentTimeMillis();
+		lastForeground = now;
+		if (now - lastAdjustment < adjustInterval)
+			return;
+		lastAdjustment = now;
+		boolean slow = recentLatency > baselineLatency * latencyThreshold;
+		for (OperationPriority priority : PRIORITIES) {
+			if (!priority.isBackground())
+				continue;
+			int i = priority.ordinal();
+			int before = throttled[i];
+			if (slow)
+				throttled[i] = Math.max(1, Math.min(limits[i], throttled[i]) / 2);
+			else if (throttled[i] < limits[i])
+				++throttled[i];
+			if ((throttled[i] != before) && log.isDebugEnabled())
+				log.debug(String.format(
+						"%1$s budget %2$d (foreground %3$.1fms, baseline %4$.1fms)",
+						priority, throttled[i], recentLatency, baselineLatency));
+		}
+	}
+
+	/**
+	 * Something waiting for a place in a budget.
+	 */
+	private interface Waiter {
+		/**
+		 * Returns the queue it will be sent to, or null.
+		 */
+		OperationQueue getQueue();
+
+		/**
+		 * Go ahead, its place in the budget already taken.
+		 */
+		void send();
+	}
+
+	/**
+	 * A thread blocked in acquire().
+	 */
+	private static class Permit implements Waiter {
+		private boolean sent = false;
+
+		public OperationQueue getQueue() {
+			return null;
+		}
+
+		public synchronized void send() {
+			sent = true;
+			notifyAll();
+		}
+
+		public synchronized void await() throws InterruptedException {
+			while (!sent)
+				wait();
+		}
+	}
+
+	/**
+	 * An operation, its original callback and the future handed to the
+	 * caller if it had to wait. Also the callback it runs with, which frees
+	 * its place in the budget.
+	 */
+	private class Pending<V> implements OperationCallback<V>, Waiter {
+		private OperationQueue queue;
+
+		private Operation<V> operation;
+
+		private OperationPriority priority;
+
+		private OperationCallback<V> callback;
+
+		private SettableFuture<OperationResult<V>> future = new SettableFuture<OperationResult<V>>();
+
+		private long started;
+
+		public Pending(OperationQueue queue, Operation<V> operation,
+				OperationPriority priority) {
+			this.queue = queue;
+			this.operation = operation;
+			this.priority = priority;
+			this.callback = operation.getCallback();
+		}
+
+		public OperationQueue getQueue() {
+			return queue;
+		}
+
+		public void completed(OperationResult<V> result) {
+			try {
+				if (callback != null)
+					callback.completed(result);
+			} finally {
+				if (!priority.isBackground())
+					recordForeground(System.nanoTime() - started);
+				finished(priority.ordinal());
+				// only once its place is free, so that a caller waiting on
+				// the future sees it released
+				future.set(result);
+			}
+		}
+
+		/**
+		 * Send a waiting operation, its place in the budget already taken.
+		 */
+		public void send() {
+			operation.setCallback(this);
+			started = System.nanoTime();
+			try {
+				queue.submit(operation);
+			} catch (RejectedExecutionException e) {
+				log.warn("RejectedExecutionException sending waiting operation",
+						e);
+				synchronized (PriorityScheduler.this) {
+					--running[priority.ordinal()];
+					--totalRunning;
+				}
+				OperationResult<V> result = new DefaultOperationResult<V>(
+						operation, null, OperationStatus.Error, 0l, e);
+				future.set(result);
+				if (callback != null)
+					callback.completed(result);
+			}
+		}
+	}
+}
@@ -12,18 +12,73 @@ import com.rubiconproject.oss.kv.backends.UriConnectionFactory;
 import com.rubiconproject.oss.kv.distributed.Configuration;
 import com.rubiconproject.oss.kv.distributed.Configurator;
 import com.rubiconproject.oss.kv.distributed.NodeStore;
+import com.rubiconproject.oss.kv.distributed.OperationPriority;
+import com.rubiconproject.oss.kv.distributed.OperationQueue;
+import com.rubiconproject.oss.kv.distributed.hashing.HashAlgorithms;
 
 public class PropertiesConfigurator implements Configurator {
 	public static final String SYNC_OP_THREAD_POOL = "syncpool.threads";
 
 	public static final String SYNC_OP_MAX_QUEUE_SIZE = "syncpool.maxQueueSize";
 
+	public static final String SYNC_OP_NODE_THREADS = "syncpool.nodeThreads";
+
+	public static final String SYNC_OP_NODE_MAX_QUEUE_SIZE = "syncpool.nodeMaxQueueSize";
+
+	public static final String SYNC_OP_WORK_STEALING = "syncpool.workStealing";
+
+	public static final String SYNC_OP_VIRTUAL_THREADS = "syncpool.virtualThreads";
+
+	public static final String SYNC_OP_NODE_CONCURRENCY = "syncpool.nodeConcurrency";
+
+	public static final String SYNC_OP_BATCH_SIZE = "syncpool.batchSize";
+
+	public static final String SYNC_OP_BATCH_WINDOW = "syncpool.batchWindow";
+
 	public static final String ASYNC_OP_THREAD_POOL = "asyncpool.threads";
 
 	public static final String ASYNC_OP_MAX_QUEUE_SIZE = "asyncpool.maxQueueSize";
 
+	public static final String ASYNC_OP_QUEUE_DIRECTORY = "asyncpool.directory";
+
+	public static final String ASYNC_OP_NODE_THREADS = "asyncpool.nodeThreads";
+
+	public static final String ASYNC_OP_NODE_MAX_QUEUE_SIZE = "asyncpool.nodeMaxQueueSize";
+
+	public static final String ASYNC_OP_WORK_STEALING = "asyncpool.workStealing";
+
+	public static final String ASYNC_OP_VIRTUAL_THREADS = "asyncpool.virtualThreads";
+
+	public static final String ASYNC_OP_NODE_CONCURRENCY = "asyncpool.nodeConcurrency";
+
+	public static final String ASYNC_OP_BATCH_SIZE = "asyncpool.batchSize";
+
+	public static final String ASYNC_OP_BATCH_WINDOW = "asyncpool.batchWindow";
+
+	public static final String PRIORITY_SCHEDULING = "priority.enabled";
+
+	public static final String PRIORITY_MAX_CONCURRENCY = "priority.maxConcurrency";
+
+	public static final String PRIORITY_READ_CONCURRENCY = "priority.reads";
+
+	public static final String PRIORITY_WRITE_CONCURRENCY = "priority.writes";
+
+	public static final String PRIORITY_BACKFILL_CONCURRENCY = "priority.backfill";
+
+	public static final String PRIORITY_REBALANCE_CONCURRENCY = "priority.rebalance";
+
+	public static final String PRIORITY_LATENCY_THRESHOLD = "priority.latencyThreshold";
+
 	public static final String MAX_NODE_ERROR_COUNT = "node.maxErrorCount";
 
+	public static final String NODE_EJECTION_TIME = "node.ejectionTime";
+
+	public static final String SLOW_NODE_RESPONSE_TIME = "node.slowResponseTime";
+
+	public static final String HASH_ALGORITHM = "hash.algorithm";
+
+	public static final String PREVIOUS_HASH_ALGORITHM = "hash.previousAlgorithm";
+
 	public static final String NODE_STORE = "nodestore.implementation";
 
 	public static final String NODE_STORE_URL = "nodestore.url";
@@ -34,6 +89,30 @@ public class PropertiesConfigurator implements Configurator {
 
 	public static final String REQUIRED_READS = "read.required";
 
+	public static final String HEDGED_READS = "read.hedge.enabled";
+
+	public static final String HEDGED_READ_PERCENTILE = "read.hedge.percentile";
+
+	public static final String HEDGED_READ_MINIMUM_DELAY = "read.hedge.minDelay";
+
+	public static final String LATENCY_AWARE_READS = "read.latencyAware";
+
+	public static final String COALESCE_READS = "read.coalesce";
+
+	public static final String ADMISSION_CONTROL = "admission.enabled";
+
+	public static final String ADMISSION_INITIAL_LIMIT = "admission.initialLimit";
+
+	public static final String ADMISSION_MIN_LIMIT = "admission.minLimit";
+
+	public static final String ADMISSION_MAX_LIMIT = "admission.maxLimit";
+
+	public static final String ADMISSION_MAX_OPERATIONS = "admission.maxOperations";
+
+	public static final String NEAR_CACHE_MAX_BYTES = "nearcache.maxBytes";
+
+	public static final String NEAR_CACHE_TTL = "nearcache.ttl";
+
 	public static final String REQUIRED_WRITES = "write.required";
 
 	public static final String WRITE_OPERATION_TIMEOUT = "write.timeout";
@@ -44,6 +123,22 @@ public class PropertiesConfigurator implements Configurator {
 
 	public static final String BACKFILL_FAILED_GET_REQUESTS = "backfill.failedGets";
 
+	public static final String HINT_DIRECTORY = "handoff.directory";
+
+	public static final String HINT_REPLAY_INTERVAL = "handoff.replayInterval";
+
+	public static final String HINT_REPLAY_BATCH_SIZE = "handoff.batchSize";
+
+	public static final String ANTI_ENTROPY_INTERVAL = "antientropy.interval";
+
+	public static final String MERKLE_TREE_DEPTH = "antientropy.treeDepth";
+
+	public static final String OPERATION_LOG_FILE = "oplog.file";
+
+	public static final String OPERATION_LOG_FORMAT = "oplog.format";
+
+	public static final String OPERATION_LOG_BUFFER_SIZE = "oplog.bufferSize";
+
 	private volatile Configuration config;
 
 	public PropertiesConfigurator() {
@@ -105,26 +200,102 @@ public class PropertiesConfigurator implements Configurator {
 		int asyncOperationMaxQueueSize = getIntProperty(p,
 				ASYNC_OP_MAX_QUEUE_SIZE, 100);
 
+		String asyncOperationQueueDirectory = p
+				.getProperty(ASYNC_OP_QUEUE_DIRECTORY);
+
 		Configuration config = new Configuration();
-		config
-				.setAsyncOperationQueue(new NonPersistentThreadPoolOperationQueue(
-						p, cf, asyncOperationThreadPoolCount,
-						asyncOperationMaxQueueSize));
+		PriorityScheduler scheduler = getPriorityScheduler(p);
+		AbstractThreadPoolOperationQueue asyncOperationQueue;
+		if (asyncOperationQueueDirectory != null)
+			asyncOperationQueue = new PersistentThreadPoolOperationQueue(p, cf,
+					new File(asyncOperationQueueDirectory),
+					asyncOperationThreadPoolCount, asyncOperationMaxQueueSize);
+		else if (getBooleanProperty(p, ASYNC_OP_VIRTUAL_THREADS, false))
+			asyncOperationQueue = new VirtualThreadOperationQueue(p, cf,
+					getIntProperty(p, ASYNC_OP_NODE_CONCURRENCY,
+							VirtualThreadOperationQueue.DEFAULT_NODE_CONCURRENCY));
+		else
+			asyncOperationQueue = new NonPersistentThreadPoolOperationQueue(p,
+					cf, asyncOperationThreadPoolCount,
+					asyncOperationMaxQueueSize);
+		setBulkheads(p, asyncOperationQueue, ASYNC_OP_NODE_THREADS,
+				ASYNC_OP_NODE_MAX_QUEUE_SIZE, ASYNC_OP_WORK_STEALING);
+		// batched writes would bypass the persistent queue's log, and the
+		// scheduler would hold its operations in memory, so it throttles
+		// replays itself
+		if (asyncOperationQueueDirectory == null)
+			config.setAsyncOperationQueue(getPriorityQueue(scheduler,
+					getBatchingQueue(p, asyncOperationQueue,
+							ASYNC_OP_BATCH_SIZE, ASYNC_OP_BATCH_WINDOW),
+					OperationPriority.Backfill));
+		else {
+			if (scheduler != null)
+				((PersistentThreadPoolOperationQueue) asyncOperationQueue)
+						.setPriorityScheduler(scheduler,
+								OperationPriority.Backfill);
+			config.setAsyncOperationQueue(asyncOperationQueue);
+		}
+		config.setPriorityScheduler(scheduler);
 		config.setConnectionFactory(cf);
 		config
 				.setMaxNodeErrorCount(getIntProperty(p, MAX_NODE_ERROR_COUNT,
 						100));
 		config.setNodeErrorCountPeriod(TimeUnit.MINUTES);
+		config.setNodeEjectionTime(getIntProperty(p, NODE_EJECTION_TIME,
+				10000));
+		config.setSlowNodeResponseTime(getIntProperty(p,
+				SLOW_NODE_RESPONSE_TIME, 0));
 		config.setNodeStore(getNodeStore(NODE_STORE, p));
+		config.setHashAlgorithm(HashAlgorithms.forName(p.getProperty(
+				HASH_ALGORITHM, HashAlgorithms.MD5)));
+		String previousHash = p.getProperty(PREVIOUS_HASH_ALGORITHM);
+		if (previousHash != null)
+			config.setPreviousHashAlgorithm(HashAlgorithms
+					.forName(previousHash));
 		config.setReadOperationTimeout(getIntProperty(p,
 				READ_OPERATION_TIMEOUT, 500));
 		config.setReadReplicas(getIntProperty(p, READ_REPLICAS, 3));
 		config.setRequiredReads(getIntProperty(p, REQUIRED_READS, 2));
+		config.setHedgedReads(getBooleanProperty(p, HEDGED_READS, false));
+		config.setHedgedReadPercentile(getDoubleProperty(p,
+				HEDGED_READ_PERCENTILE, 0.95d));
+		config.setHedgedReadMinimumDelay(getIntProperty(p,
+				HEDGED_READ_MINIMUM_DELAY, 5));
+		config.setLatencyAwareReads(getBooleanProperty(p,
+				LATENCY_AWARE_READS, false));
+		config.setCoalesceReads(getBooleanProperty(p, COALESCE_READS, false));
+		config.setNearCacheMaxBytes(getIntProperty(p, NEAR_CACHE_MAX_BYTES, 0));
+		config.setNearCacheTtl(getIntProperty(p, NEAR_CACHE_TTL, 1000));
 		config.setRequiredWrites(getIntProperty(p, REQUIRED_WRITES, 2));
-		config
-				.setSyncOperationQueue(new NonPersistentThreadPoolOperationQueue(
-						p, cf, syncOperationThreadPoolCount,
-						syncOperationMaxQueueSize));
+		AbstractThreadPoolOperationQueue syncOperationQueue;
+		if (getBooleanProperty(p, SYNC_OP_VIRTUAL_THREADS, false))
+			syncOperationQueue = new VirtualThreadOperationQueue(p, cf,
+					getIntProperty(p, SYNC_OP_NODE_CONCURRENCY,
+							VirtualThreadOperationQueue.DEFAULT_NODE_CONCURRENCY));
+		else
+			syncOperationQueue = new NonPersistentThreadPoolOperationQueue(p,
+					cf, syncOperationThreadPoolCount, syncOperationMaxQueueSize);
+		setBulkheads(p, syncOperationQueue, SYNC_OP_NODE_THREADS,
+				SYNC_OP_NODE_MAX_QUEUE_SIZE, SYNC_OP_WORK_STEALING);
+		config.setAdmissionControl(getBooleanProperty(p, ADMISSION_CONTROL,
+				false));
+		config.setAdmissionInitialLimit(getIntProperty(p,
+				ADMISSION_INITIAL_LIMIT,
+				AdmissionController.DEFAULT_INITIAL_LIMIT));
+		config.setAdmissionMinLimit(getIntProperty(p, ADMISSION_MIN_LIMIT,
+				AdmissionController.DEFAULT_MIN_LIMIT));
+		config.setAdmissionMaxLimit(getIntProperty(p, ADMISSION_MAX_LIMIT,
+				AdmissionController.DEFAULT_MAX_LIMIT));
+		// a thread per operation queue has no fixed capacity
+		config.setAdmissionMaxOperations(getIntProperty(p,
+				ADMISSION_MAX_OPERATIONS,
+				(syncOperationQueue instanceof VirtualThreadOperationQueue) ? 0
+						: syncOperationThreadPoolCount
+								+ syncOperationMaxQueueSize));
+		config.setSyncOperationQueue(getPriorityQueue(scheduler,
+				getBatchingQueue(p, syncOperationQueue, SYNC_OP_BATCH_SIZE,
+						SYNC_OP_BATCH_WINDOW),
+				OperationPriority.ForegroundRead));
 		config.setWriteOperationTimeout(getIntProperty(p,
 				WRITE_OPERATION_TIMEOUT, 500));
 		config.setWriteReplicas(getIntProperty(p, WRITE_REPLICAS, 3));
@@ -132,6 +303,20 @@ public class PropertiesConfigurator implements Configurator {
 				BACKFILL_NULL_GET_REQUESTS, true));
 		config.setFillErrorGetResults(getBooleanProperty(p,
 				BACKFILL_FAILED_GET_REQUESTS, false));
+		config.setHintDirectory(p.getProperty(HINT_DIRECTORY));
+		config.setHintReplayInterval(getIntProperty(p, HINT_REPLAY_INTERVAL,
+				10000));
+		config.setHintReplayBatchSize(getIntProperty(p,
+				HINT_REPLAY_BATCH_SIZE, 100));
+		config.setAntiEntropyInterval(getIntProperty(p, ANTI_ENTROPY_INTERVAL,
+				0));
+		config.setMerkleTreeDepth(getIntProperty(p, MERKLE_TREE_DEPTH, 8));
+		config.setOperationLogFile(p.getProperty(OPERATION_LOG_FILE));
+		config.setOperationLogFormat(p.getProperty(OPERATION_LOG_FORMAT,
+				"binary"));
+		config.setOperationLogBufferSize(getIntProperty(p,
+				OPERATION_LOG_BUFFER_SIZE,
+				OperationEventSink.DEFAULT_BUFFER_SIZE));
 		return config;
 	}
 
@@ -149,6 +334,56 @@ public class PropertiesConfigurator implements Configurator {
 		}
 	}
 
+	private void setBulkheads(Properties p,
+			AbstractThreadPoolOperationQueue queue, String threads,
+			String maxQueueSize, String workStealing) {
+		queue.setNodeThreadCount(getIntProperty(p, threads, 0));
+		queue.setNodeMaxQueueDepth(getIntProperty(p, maxQueueSize,
+				AbstractThreadPoolOperationQueue.DEFAULT_MAX_QUEUE_DEPTH));
+		queue.setWorkStealing(getBooleanProperty(p, workStealing, false));
+	}
+
+	private OperationQueue getBatchingQueue(Properties p,
+			OperationQueue queue, String batchSize, String batchWindow) {
+		int size = getIntProperty(p, batchSize, 0);
+		if (size <= 1)
+			return queue;
+		return new BatchingOperationQueue(queue, size, getIntProperty(p,
+				batchWindow, (int) BatchingOperationQueue.DEFAULT_BATCH_WINDOW));
+	}
+
+	private PriorityScheduler getPriorityScheduler(Properties p) {
+		if (!getBooleanProperty(p, PRIORITY_SCHEDULING, false))
+			return null;
+		PriorityScheduler scheduler = new PriorityScheduler();
+		scheduler.setMaxConcurrency(getIntProperty(p,
+				PRIORITY_MAX_CONCURRENCY, Integer.MAX_VALUE));
+		scheduler.setConcurrency(OperationPriority.ForegroundRead,
+				getIntProperty(p, PRIORITY_READ_CONCURRENCY,
+						Integer.MAX_VALUE));
+		scheduler.setConcurrency(OperationPriority.ForegroundWrite,
+				getIntProperty(p, PRIORITY_WRITE_CONCURRENCY,
+						Integer.MAX_VALUE));
+		scheduler.setConcurrency(OperationPriority.Backfill, getIntProperty(
+				p, PRIORITY_BACKFILL_CONCURRENCY,
+				PriorityScheduler.DEFAULT_BACKFILL_CONCURRENCY));
+		scheduler.setConcurrency(OperationPriority.Rebalance,
+				getIntProperty(p, PRIORITY_REBALANCE_CONCURRENCY,
+						PriorityScheduler.DEFAULT_REBALANCE_CONCURRENCY));
+		scheduler.setLatencyThreshold(getDoubleProperty(p,
+				PRIORITY_LATENCY_THRESHOLD,
+				PriorityScheduler.DEFAULT_LATENCY_THRESHOLD));
+		return scheduler;
+	}
+
+	// the persistent async queue is never wrapped, see PriorityOperationQueue
+	private OperationQueue getPriorityQueue(PriorityScheduler scheduler,
+			OperationQueue queue, OperationPriority priority) {
+		if (scheduler == null)
+			return queue;
+		return new PriorityOperationQueue(queue, scheduler, priority);
+	}
+
 	private int getIntProperty(Properties p, String name, int defaultValue) {
 		String value = p.getProperty(name);
 		if (value == null) {
@@ -157,6 +392,15 @@ public class PropertiesConfigurator implements Configurator {
 		return Integer.parseInt(value);
 	}
 
+	private double getDoubleProperty(Properties p, String name,
+			double defaultValue) {
+		String value = p.getProperty(name);
+		if (value == null) {
+			value = Double.toString(defaultValue);
+		}
+		return Double.parseDouble(value);
+	}
+
 	public boolean getBooleanProperty(Properties p, String name,
 			boolean defaultValue) {
 		String value = p.getProperty(name);
@@ -0,0 +1,129 @@
+package com.rubiconproject.oss.kv.distributed.impl;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.rubiconproject.oss.kv.distributed.OperationCallback;
+import com.rubiconproject.oss.kv.distributed.OperationResult;
+import com.rubiconproject.oss.kv.distributed.OperationStatus;
+import com.rubiconproject.oss.kv.util.SettableFuture;
+
+/**
+ * Counts responses to an operation sent to a set of nodes as they arrive and
+ * completes as soon as the outcome is decided: either requiredResponses
+ * successes have been received, or so many nodes have failed that quorum can
+ * no longer be reached. Responses arriving after that point are ignored.
+ *
+ * The future completes with the collected results in both cases; use
+ * isQuorumReached() to tell them apart.
+ *
+ * @author sam
+ *
+ * @param <V>
+ */
+public class QuorumTracker<V> implements OperationCallback<V>,
+		Future<ResultsCollecter<OperationResult<V>>> {
+	private SettableFuture<ResultsCollecter<OperationResult<V>>> future = new SettableFuture<ResultsCollecter<OperationResult<V>>>();
+
+	private ResultsCollecter<OperationResult<V>> results;
+
+	private int expectedResponses;
+
+	private int requiredResponses;
+
+	private boolean considerNullAsSuccess;
+
+	private int received = 0;
+
+	private int successes = 0;
+
+	public QuorumTracker(int expectedResponses, int requiredResponses,
+			boolean considerNullAsSuccess) {
+		this.expectedResponses = expectedResponses;
+		this.requiredResponses = requiredResponses;
+		this.considerNullAsSuccess = considerNullAsSuccess;
+		this.results = new ResultsCollecter<OperationResult<V>>(
+				expectedResponses);
+		evaluate();
+	}
+
+	public synchronized void completed(OperationResult<V> result) {
+		if (future.isDone())
+			return;
+		results.add(result);
+		++received;
+		OperationStatus status = result.getStatus();
+		if ((status.equals(OperationStatus.Success))
+				|| ((status.equals(OperationStatus.NullValue)) && (considerNullAsSuccess)))
+			++successes;
+		evaluate();
+	}
+
+	public synchronized int getSuccessCount() {
+		return successes;
+	}
+
+	public synchronized int getResponseCount() {
+		return received;
+	}
+
+	public synchronized boolean isQuorumReached() {
+		return (successes >= requiredResponses);
+	}
+
+	/**
+	 * Return the results collected so far, whether or not the outcome has
+	 * been decided.
+	 */
+	public ResultsCollecter<OperationResult<V>> getResults() {
+		return results;
+	}
+
+	/**
+	 * Complete with the results received so far, as when the request's
+	 * deadline has passed.
+	 */
+	public synchronized void expire() {
+		results.stop();
+		future.set(results);
+	}
+
+	/**
+	 * Stop collecting responses. Results received so far remain available
+	 * from getResults().
+	 */
+	public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+		results.stop();
+		return future.cancel(mayInterruptIfRunning);
+	}
+
+	public ResultsCollecter<OperationResult<V>> get()
+			throws InterruptedException, ExecutionException {
+		return future.get();
+	}
+
+	public ResultsCollecter<OperationResult<V>> get(long timeout,
+			TimeUnit unit) throws InterruptedException, ExecutionException,
+			TimeoutException {
+		return future.get(timeout, unit);
+	}
+
+	public boolean isCancelled() {
+		return future.isCancelled();
+	}
+
+	public boolean isDone() {
+		return future.isDone();
+	}
+
+	private void evaluate() {
+		// done once quorum is reached or can no longer be reached
+		if ((successes >= requiredResponses)
+				|| ((successes + (expectedResponses - received)) < requiredResponses)) {
+			results.stop();
+			future.set(results);
+		}
+	}
+}
@@ -0,0 +1,547 @@
+package com.rubiconproject.oss.kv.distributed.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.rubiconproject.oss.kv.KeyValueStore;
+import com.rubiconproject.oss.kv.KeyValueStoreException;
+import com.rubiconproject.oss.kv.backends.ConnectionFactory;
+import com.rubiconproject.oss.kv.backends.IterableKeyValueStore;
+import com.rubiconproject.oss.kv.backends.KeyValueStoreIterator;
+import com.rubiconproject.oss.kv.distributed.Node;
+import com.rubiconproject.oss.kv.distributed.OperationPriority;
+import com.rubiconproject.oss.kv.distributed.hashing.HashAlgorithm;
+import com.rubiconproject.oss.kv.transcoder.ByteArrayTranscoder;
+import com.rubiconproject.oss.kv.transcoder.Transcoder;
+import com.rubiconproject.oss.kv.util.ExecutorUtils;
+import com.rubiconproject.oss.kv.util.RateLimiter;
+import com.rubiconproject.oss.kv.util.SimpleRateLimiter;
+
+/**
+ * Moves the data of ranges that changed owners, as computed by
+ * {@link DynamoNodeLocator#getChangedRanges(List, List, int)}, directly from
+ * old replicas to new ones.
+ *
+ * Each replica a range gains is paired with a replica it lost, which is the
+ * source and, if delete is enabled, has the range removed once every range of
+ * the transfer has been copied. When a
+ * range gained more replicas than it lost its first old owner is the source
+ * and nothing is deleted.
+ *
+ * Backends can only be scanned in full, so rather than scan a source once for
+ * every node it sends ranges to, there is one transfer per source node. It
+ * scans the source once, reads each key that hashes into one of its ranges
+ * and writes it to that range's destinations, so every source and
+ * destination pair is streamed together. Transfers of different sources run
+ * in parallel and nodes that are not a source are never scanned.
+ *
+ * If a checkpoint file is set, progress of every transfer (keys scanned,
+ * copied or done) is saved to it and a later run with the same ranges resumes
+ * from it. Resuming relies on the source iterating keys in a stable order, as
+ * --skip does for {@link com.rubiconproject.oss.kv.tools.ValkyrieRebalance};
+ * copies are idempotent so rescanning part of a range is harmless. Deleting
+ * keys would shift that order, so deletes are made by a second scan that is
+ * started over rather than resumed by count.
+ *
+ * @author sam
+ *
+ */
+public class RangeRebalancer implements Callable<Map<String, Long>> {
+	public static final int DEFAULT_THREADS = 4;
+
+	public static final int DEFAULT_BATCH_SIZE = 100;
+
+	public static final int DEFAULT_CHECKPOINT_INTERVAL = 10000;
+
+	private static final String PLAN_PROPERTY = "plan";
+
+	private static final String COPIED = "copied";
+
+	private static final String DONE = "done";
+
+	private Log log = LogFactory.getLog(getClass());
+
+	private ConnectionFactory connectionFactory;
+
+	private Map<?, ?> defaultProperties;
+
+	private HashAlgorithm hash;
+
+	private List<TokenRange> ranges;
+
+	private int threads = DEFAULT_THREADS;
+
+	private int batchSize = DEFAULT_BATCH_SIZE;
+
+	private long maxKeysPerSecond = 0;
+
+	private boolean delete = false;
+
+	private File checkpointFile;
+
+	private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+
+	private Properties checkpoint = new Properties();
+
+	// null unless throttled with other background traffic
+	private PriorityScheduler scheduler;
+
+	private Transcoder transcoder = new ByteArrayTranscoder();
+
+	private AtomicLong examined = new AtomicLong();
+
+	private AtomicLong moved = new AtomicLong();
+
+	private AtomicLong deleted = new AtomicLong();
+
+	private AtomicLong failures = new AtomicLong();
+
+	/**
+	 * @param connectionFactory
+	 * @param defaultProperties
+	 * @param hash
+	 *            hash algorithm the ranges were computed for
+	 * @param ranges
+	 *            changed ranges
+	 */
+	public RangeRebalancer(ConnectionFactory connectionFactory,
+			Map<?, ?> defaultProperties, HashAlgorithm hash,
+			List<TokenRange> ranges) {
+		this.connectionFactory = connectionFactory;
+		this.defaultProperties = defaultProperties;
+		this.hash = hash;
+		this.ranges = ranges;
+	}
+
+	/**
+	 * Number of source nodes scanned at once.
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * Number of keys read and written in one getBulk()/setBulk().
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Maximum keys read per second from each source. 0 to disable.
+	 */
+	public void setMaxKeysPerSecond(long maxKeysPerSecond) {
+		this.maxKeysPerSecond = maxKeysPerSecond;
+	}
+
+	/**
+	 * Delete ranges from sources that no longer own them once every range of
+	 * the source has been copied.
+	 */
+	public void setDelete(boolean delete) {
+		this.delete = delete;
+	}
+
+	public void setCheckpointFile(File checkpointFile) {
+		this.checkpointFile = checkpointFile;
+	}
+
+	/**
+	 * Take a Rebalance place in the scheduler's budget for each bulk read,
+	 * write or delete.
+	 */
+	public void setPriorityScheduler(PriorityScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Number of keys a transfer scans between checkpoints.
+	 */
+	public void setCheckpointInterval(int checkpointInterval) {
+		this.checkpointInterval = checkpointInterval;
+	}
+
+	/**
+	 * Run every transfer, returning counters.
+	 */
+	public Map<String, Long> call() throws IOException, InterruptedException {
+		List<Transfer> transfers = getTransfers();
+		loadCheckpoint();
+
+		long skipped = 0;
+		List<Transfer> pending = new ArrayList<Transfer>(transfers.size());
+		for (Transfer transfer : transfers) {
+			if (DONE.equals(checkpoint.getProperty(transfer.id)))
+				++skipped;
+			else
+				pending.add(transfer);
+		}
+
+		long failed = 0;
+		if (!pending.isEmpty()) {
+			ExecutorService executor = ExecutorUtils
+					.newFixedSizeDaemonThreadPool(Math.min(threads, pending
+							.size()));
+			try {
+				List<Future<Object>> futures = new ArrayList<Future<Object>>(
+						pending.size());
+				for (Transfer transfer : pending)
+					futures.add(executor.submit(transfer));
+				for (int i = 0; i < futures.size(); ++i) {
+					try {
+						futures.get(i).get();
+					} catch (ExecutionException e) {
+						log.error("Transfer " + pending.get(i).id + " failed",
+								e.getCause());
+						++failed;
+					}
+				}
+			} finally {
+				executor.shutdown();
+			}
+		}
+
+		Map<String, Long> results = new LinkedHashMap<String, Long>();
+		results.put("ranges", (long) ranges.size());
+		results.put("transfers", (long) transfers.size());
+		results.put("transfers-skipped", skipped);
+		results.put("transfers-failed", failed);
+		results.put("examined", examined.get());
+		results.put("moved", moved.get());
+		results.put("deleted", deleted.get());
+		results.put("failures", failures.get());
+		return results;
+	}
+
+	private List<Transfer> getTransfers() {
+		Map<Integer, Transfer> transfers = new LinkedHashMap<Integer, Transfer>();
+		for (TokenRange range : ranges) {
+			if (range.getOldOwners().isEmpty())
+				continue;
+			List<Node> added = range.getAddedOwners();
+			List<Node> removed = range.getRemovedOwners();
+			for (int i = 0; i < added.size(); ++i) {
+				boolean paired = (i < removed.size());
+				Node source = paired ? removed.get(i) : range.getOldOwners()
+						.get(0);
+				Transfer transfer = transfers.get(source.getId());
+				if (transfer == null) {
+					transfer = new Transfer(source);
+					transfers.put(source.getId(), transfer);
+				}
+				transfer.add(range, added.get(i), paired && delete);
+			}
+		}
+		return new ArrayList<Transfer>(transfers.values());
+	}
+
+	private void loadCheckpoint() throws IOException {
+		String plan = getPlan();
+		if ((checkpointFile != null) && checkpointFile.exists()) {
+			FileInputStream fis = new FileInputStream(checkpointFile);
+			try {
+				checkpoint.load(fis);
+			} finally {
+				fis.close();
+			}
+			if (!plan.equals(checkpoint.getProperty(PLAN_PROPERTY))) {
+				log.warn(String.format(
+						"Ignoring checkpoint %1$s written for other ranges",
+						checkpointFile));
+				checkpoint.clear();
+			}
+		}
+		checkpoint.setProperty(PLAN_PROPERTY, plan);
+	}
+
+	private synchronized void saveCheckpoint(String id, String value)
+			throws IOException {
+		checkpoint.setProperty(id, value);
+		if (checkpointFile == null)
+			return;
+		File tmp = new File(checkpointFile.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			checkpoint.store(fos, null);
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		if (!tmp.renameTo(checkpointFile)) {
+			checkpointFile.delete();
+			if (!tmp.renameTo(checkpointFile))
+				throw new IOException("Unable to write " + checkpointFile);
+		}
+	}
+
+	private String getPlan() {
+		long h = 17;
+		for (TokenRange range : ranges) {
+			h = h * 31 + range.getStart();
+			h = h * 31 + range.getEnd();
+			h = h * 31 + range.toString().hashCode();
+		}
+		return Long.toHexString(h);
+	}
+
+	private KeyValueStore getStore(Node node) throws IOException,
+			KeyValueStoreException {
+		return connectionFactory.getStore(defaultProperties, node
+				.getConnectionURI());
+	}
+
+	private class Transfer implements Callable<Object> {
+		private String id;
+
+		private Node source;
+
+		// sorted by end before the scan; at most one wraps
+		private List<TokenRange> ranges = new ArrayList<TokenRange>();
+
+		private Map<TokenRange, List<Node>> destinations = new HashMap<TokenRange, List<Node>>();
+
+		private Map<TokenRange, Boolean> deleteRanges = new HashMap<TokenRange, Boolean>();
+
+		private long[] ends;
+
+		private RateLimiter limiter;
+
+		// once a batch fails progress is no longer checkpointed
+		private boolean failed = false;
+
+		public Transfer(Node source) {
+			this.id = Integer.toString(source.getId());
+			this.source = source;
+		}
+
+		public void add(TokenRange range, Node destination,
+				boolean deleteFromSource) {
+			List<Node> nodes = destinations.get(range);
+			if (nodes == null) {
+				nodes = new ArrayList<Node>(1);
+				destinations.put(range, nodes);
+				deleteRanges.put(range, deleteFromSource);
+				ranges.add(range);
+			} else if (!deleteFromSource)
+				deleteRanges.put(range, false);
+			nodes.add(destination);
+		}
+
+		public Object call() throws Exception {
+			Collections.sort(ranges, new Comparator<TokenRange>() {
+				public int compare(TokenRange o1, TokenRange o2) {
+					return (o1.getEnd() < o2.getEnd()) ? -1 : ((o1.getEnd() == o2
+							.getEnd()) ? 0 : 1);
+				}
+			});
+			ends = new long[ranges.size()];
+			for (int i = 0; i < ends.length; ++i)
+				ends[i] = ranges.get(i).getEnd();
+			if (maxKeysPerSecond > 0)
+				limiter = new SimpleRateLimiter(TimeUnit.SECONDS, 1,
+						maxKeysPerSecond);
+
+			KeyValueStore store = getStore(source);
+			if (!(store instanceof IterableKeyValueStore))
+				throw new IllegalArgumentException(String.format(
+						"%1$s does not implement IterableKeyValueStore", source
+								.getConnectionURI()));
+			IterableKeyValueStore src = (IterableKeyValueStore) store;
+
+			String saved = checkpoint.getProperty(id);
+			if (!COPIED.equals(saved))
+				copyRanges(src, (saved == null) ? 0 : Long.parseLong(saved));
+			if (deleteRanges.containsValue(Boolean.TRUE)) {
+				saveCheckpoint(id, COPIED);
+				deleteRanges(src);
+			}
+			saveCheckpoint(id, DONE);
+			if (log.isInfoEnabled())
+				log.info(String.format(
+						"Transfer of %1$d ranges from node %2$s completed",
+						ranges.size(), id));
+			return null;
+		}
+
+		/**
+		 * Copy every range to its destinations, skipping the first skip keys
+		 * scanned.
+		 */
+		private void copyRanges(IterableKeyValueStore src, long skip)
+				throws Exception {
+			long scanned = 0;
+			List<String> batch = new ArrayList<String>(batchSize);
+			List<TokenRange> batchRanges = new ArrayList<TokenRange>(batchSize);
+			KeyValueStoreIterator keys = src.iterkeys();
+			try {
+				Iterator<String> iter = keys.iterator();
+				while (iter.hasNext()) {
+					String key = iter.next();
+					if (++scanned <= skip)
+						continue;
+					examined.incrementAndGet();
+					TokenRange range = getRange(hash.hash(key));
+					if (range != null) {
+						batch.add(key);
+						batchRanges.add(range);
+						if (batch.size() >= batchSize)
+							copy(src, batch, batchRanges);
+					}
+					if (scanned % checkpointInterval == 0) {
+						copy(src, batch, batchRanges);
+						if (!failed)
+							saveCheckpoint(id, Long.toString(scanned));
+					}
+				}
+				copy(src, batch, batchRanges);
+			} finally {
+				keys.close();
+			}
+			if (failed)
+				throw new IOException(String.format(
+						"Transfer from node %1$s failed to copy some keys", id));
+		}
+
+		/**
+		 * Delete the keys of ranges the source lost from it. Started over on
+		 * resume, as deletes change what a count of scanned keys refers to.
+		 */
+		private void deleteRanges(IterableKeyValueStore src) throws Exception {
+			List<String> deletes = new ArrayList<String>(batchSize);
+			KeyValueStoreIterator keys = src.iterkeys();
+			try {
+				Iterator<String> iter = keys.iterator();
+				while (iter.hasNext()) {
+					String key = iter.next();
+					TokenRange range = getRange(hash.hash(key));
+					if ((range != null) && deleteRanges.get(range)) {
+						deletes.add(key);
+						if (deletes.size() >= batchSize)
+							delete(src, deletes);
+					}
+				}
+				delete(src, deletes);
+			} finally {
+				keys.close();
+			}
+		}
+
+		private TokenRange getRange(long hashCode) {
+			int index = Arrays.binarySearch(ends, hashCode);
+			if (index < 0)
+				index = -(index + 1);
+			if ((index < ends.length) && ranges.get(index).contains(hashCode))
+				return ranges.get(index);
+			// the wrapping range covers both ends of the ring
+			for (int i = ranges.size() - 1; i >= 0; --i) {
+				TokenRange range = ranges.get(i);
+				if (range.isWrapping())
+					return range.contains(hashCode) ? range : null;
+			}
+			return null;
+		}
+
+		private void copy(KeyValueStore src, List<String> batch,
+				List<TokenRange> batchRanges) throws InterruptedException {
+			if (batch.isEmpty())
+				return;
+			throttle(batch.size());
+			acquire();
+			try {
+				Map<String, Object> values = src.getBulk(batch, transcoder);
+				// group the values by destination
+				Map<Integer, Map<String, Object>> writes = new LinkedHashMap<Integer, Map<String, Object>>();
+				Map<Integer, Node> nodes = new HashMap<Integer, Node>();
+				for (int i = 0; i < batch.size(); ++i) {
+					String key = batch.get(i);
+					Object value = values.get(key);
+					if (value == null)
+						continue; // deleted since the scan started
+					TokenRange range = batchRanges.get(i);
+					for (Node destination : destinations.get(range)) {
+						Map<String, Object> write = writes.get(destination
+								.getId());
+						if (write == null) {
+							write = new HashMap<String, Object>();
+							writes.put(destination.getId(), write);
+							nodes.put(destination.getId(), destination);
+						}
+						write.put(key, value);
+					}
+				}
+				for (Map.Entry<Integer, Map<String, Object>> entry : writes
+						.entrySet()) {
+					getStore(nodes.get(entry.getKey())).setBulk(
+							entry.getValue(), transcoder);
+					moved.addAndGet(entry.getValue().size());
+				}
+			} catch (Exception e) {
+				log.warn(String.format(
+						"Unable to copy %1$d keys from node %2$s", batch
+								.size(), id), e);
+				failures.addAndGet(batch.size());
+				failed = true;
+			} finally {
+				release();
+				batch.clear();
+				batchRanges.clear();
+			}
+		}
+
+		private void delete(KeyValueStore src, List<String> deletes)
+				throws Exception {
+			if (deletes.isEmpty())
+				return;
+			throttle(deletes.size());
+			acquire();
+			try {
+				src.deleteBulk(deletes);
+			} finally {
+				release();
+			}
+			deleted.addAndGet(deletes.size());
+			deletes.clear();
+		}
+
+		private void acquire() throws InterruptedException {
+			if (scheduler != null)
+				scheduler.acquire(OperationPriority.Rebalance);
+		}
+
+		private void release() {
+			if (scheduler != null)
+				scheduler.release(OperationPriority.Rebalance);
+		}
+
+		private void throttle(int count) throws InterruptedException {
+			if (limiter == null)
+				return;
+			for (int i = 0; i < count; ++i) {
+				while (!limiter.allowNextEvent())
+					Thread.sleep(10l);
+				limiter.nextEvent();
+			}
+		}
+	}
+}
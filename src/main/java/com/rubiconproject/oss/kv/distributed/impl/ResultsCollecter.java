@@ -8,22 +8,22 @@ import java.util.List;
 public class ResultsCollecter<V> implements Iterable<V> {
 	private List<V> results;
 
-	private boolean stopped = false;
+	private volatile boolean stopped = false;
 
 	public ResultsCollecter(int size) {
 		results = new ArrayList<V>(size);
 	}
 
-	public void add(V result) {
+	public synchronized void add(V result) {
 		if (!stopped)
 			results.add(result);
 	}
 
-	public int size() {
+	public synchronized int size() {
 		return results.size();
 	}
 
-	public void stop() {
+	public synchronized void stop() {
 		this.stopped = true;
 	}
 
@@ -23,6 +23,10 @@ public class SetOperation<V> extends AbstractOperation<V> implements
 		return "set";
 	}
 
+	public V getValue() {
+		return value;
+	}
+
 	public SetOperation<V> copy() {
 		return new SetOperation<V>(this.transcoder, this.key, this.value);
 	}
@@ -0,0 +1,116 @@
+package com.rubiconproject.oss.kv.distributed.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.rubiconproject.oss.kv.distributed.Node;
+
+/**
+ * A range of the hash ring, (start, end], whose natural replicas differ
+ * between two rings. A range with start >= end wraps around from
+ * Long.MAX_VALUE to Long.MIN_VALUE.
+ *
+ * @author sam
+ *
+ */
+public class TokenRange {
+	private long start;
+
+	private long end;
+
+	private List<Node> oldOwners;
+
+	private List<Node> newOwners;
+
+	public TokenRange(long start, long end, List<Node> oldOwners,
+			List<Node> newOwners) {
+		this.start = start;
+		this.end = end;
+		this.oldOwners = oldOwners;
+		this.newOwners = newOwners;
+	}
+
+	/**
+	 * Exclusive lower bound of the range.
+	 */
+	public long getStart() {
+		return start;
+	}
+
+	/**
+	 * Inclusive upper bound of the range.
+	 */
+	public long getEnd() {
+		return end;
+	}
+
+	public boolean isWrapping() {
+		return start >= end;
+	}
+
+	public boolean contains(long hash) {
+		if (isWrapping())
+			return (hash > start) || (hash <= end);
+		return (hash > start) && (hash <= end);
+	}
+
+	/**
+	 * Replicas of the range on the old ring, in rank order.
+	 */
+	public List<Node> getOldOwners() {
+		return oldOwners;
+	}
+
+	/**
+	 * Replicas of the range on the new ring, in rank order.
+	 */
+	public List<Node> getNewOwners() {
+		return newOwners;
+	}
+
+	/**
+	 * New owners that did not own the range before and need its data.
+	 */
+	public List<Node> getAddedOwners() {
+		return difference(newOwners, oldOwners);
+	}
+
+	/**
+	 * Old owners that no longer own the range.
+	 */
+	public List<Node> getRemovedOwners() {
+		return difference(oldOwners, newOwners);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("(%1$d, %2$d] %3$s -> %4$s", start, end,
+				getIds(oldOwners), getIds(newOwners));
+	}
+
+	static String getIds(List<Node> nodes) {
+		StringBuilder sb = new StringBuilder();
+		for (Node node : nodes) {
+			if (sb.length() > 0)
+				sb.append(',');
+			sb.append(node.getId());
+		}
+		return sb.toString();
+	}
+
+	static List<Node> difference(List<Node> nodes, List<Node> remove) {
+		List<Node> results = new ArrayList<Node>(nodes.size());
+		for (Node node : nodes) {
+			boolean found = false;
+			for (Node other : remove) {
+				if (other.getId() == node.getId()) {
+					found = true;
+					break;
+				}
+			}
+			if (!found)
+				results.add(node);
+		}
+		return results;
+	}
+}
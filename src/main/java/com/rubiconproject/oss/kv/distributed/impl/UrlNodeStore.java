@@ -2,6 +2,7 @@ package com.rubiconproject.oss.kv.distributed.impl;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
@@ -13,13 +14,38 @@ import com.rubiconproject.oss.kv.distributed.ConfigurationException;
 import com.rubiconproject.oss.kv.distributed.Node;
 import com.rubiconproject.oss.kv.distributed.NodeListParser;
 
+/**
+ * Reads nodes from a url in the format of the parser, xml by default.
+ *
+ * With a long poll timeout set, http requests carry the ETag of the last
+ * response in If-None-Match and ask the server to hold the request open
+ * until the list changes (Prefer: wait=seconds). A 304 response means it
+ * has not, and the next request is sent right away, so changes are seen as
+ * soon as the server answers. Servers that ignore the headers are simply
+ * polled every LONG_POLL_INTERVAL. A failed request is retried after the
+ * normal refresh period, backing off from there.
+ *
+ * @author sam
+ *
+ */
 public class UrlNodeStore extends AbstractRefreshingNodeStore {
 	public static final String URL_PROPERTY = "nodeStore.url";
 
+	public static final String LONG_POLL_PROPERTY = "nodeStore.url.longPoll";
+
+	public static final long LONG_POLL_INTERVAL = 100l;
+
+	// time allowed for the response beyond the long poll timeout
+	private static final int LONG_POLL_GRACE = 5000;
+
 	private URL url;
 
 	private NodeListParser parser;
 
+	private long longPollTimeout = 0l;
+
+	private String etag;
+
 	public UrlNodeStore() {
 		parser = new XmlNodeListParser();
 	}
@@ -41,6 +67,10 @@ public class UrlNodeStore extends AbstractRefreshingNodeStore {
 		} catch (MalformedURLException e) {
 			throw new IllegalArgumentException(e);
 		}
+		if (props.getProperty(LONG_POLL_PROPERTY) != null)
+			longPollTimeout = Long.parseLong(props
+					.getProperty(LONG_POLL_PROPERTY));
+		this.props = props;
 	}
 
 	public void setUrl(String url) throws MalformedURLException {
@@ -51,13 +81,34 @@ public class UrlNodeStore extends AbstractRefreshingNodeStore {
 		this.parser = parser;
 	}
 
+	/**
+	 * Millis the server may hold a request open waiting for the nodes to
+	 * change, or 0 to poll every refresh period.
+	 */
+	public void setLongPollTimeout(long longPollTimeout) {
+		this.longPollTimeout = longPollTimeout;
+	}
+
 	@Override
 	public List<Node> refreshActiveNodes() throws IOException,
 			ConfigurationException {
 		URLConnection conn = url.openConnection();
+		boolean longPoll = (longPollTimeout > 0)
+				&& (conn instanceof HttpURLConnection);
+		if (longPoll) {
+			if (etag != null)
+				conn.setRequestProperty("If-None-Match", etag);
+			conn.setRequestProperty("Prefer", "wait="
+					+ Math.max(1l, longPollTimeout / 1000l));
+			conn.setReadTimeout((int) longPollTimeout + LONG_POLL_GRACE);
+			if (((HttpURLConnection) conn).getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED)
+				return null;
+		}
 		InputStream in = conn.getInputStream();
 		try {
 			List<Node> nodes = parser.parse(in);
+			if (longPoll)
+				etag = conn.getHeaderField("ETag");
 			return nodes;
 		} finally {
 			if (in != null)
@@ -65,4 +116,14 @@ public class UrlNodeStore extends AbstractRefreshingNodeStore {
 		}
 	}
 
+	@Override
+	protected long getRefreshPeriod() {
+		return (longPollTimeout > 0) ? LONG_POLL_INTERVAL : super
+				.getRefreshPeriod();
+	}
+
+	@Override
+	protected long getRetryPeriod() {
+		return super.getRefreshPeriod();
+	}
 }
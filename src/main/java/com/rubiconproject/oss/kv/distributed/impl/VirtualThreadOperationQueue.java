@@ -0,0 +1,135 @@
+package com.rubiconproject.oss.kv.distributed.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.rubiconproject.oss.kv.backends.ConnectionFactory;
+import com.rubiconproject.oss.kv.backends.UriConnectionFactory;
+import com.rubiconproject.oss.kv.distributed.Node;
+import com.rubiconproject.oss.kv.distributed.Operation;
+import com.rubiconproject.oss.kv.distributed.OperationQueue;
+import com.rubiconproject.oss.kv.distributed.OperationResult;
+import com.rubiconproject.oss.kv.util.ExecutorUtils;
+
+/**
+ * An operation queue that runs every operation on its own thread rather than
+ * in a fixed size pool, so the number of concurrent backend calls is not
+ * limited by pool sizing. Threads are virtual threads when the runtime has
+ * them and otherwise come from a cached pool (see
+ * {@link ExecutorUtils#newThreadPerTaskExecutor()}).
+ *
+ * Operations never wait for a thread. Instead each node may have at most
+ * nodeConcurrency operations running at once, and submit() throws
+ * RejectedExecutionException beyond that, which callers count as a failed
+ * response as they do for a full pool queue.
+ *
+ * @author sam
+ *
+ */
+public class VirtualThreadOperationQueue extends
+		NonPersistentThreadPoolOperationQueue implements OperationQueue {
+	public static final int DEFAULT_NODE_CONCURRENCY = 256;
+
+	private int nodeConcurrency = DEFAULT_NODE_CONCURRENCY;
+
+	// node id -> permits, guarded by itself
+	private Map<Integer, Semaphore> permits = new HashMap<Integer, Semaphore>();
+
+	private AtomicInteger running = new AtomicInteger();
+
+	public VirtualThreadOperationQueue(Map<?, ?> defaultProperties) {
+		this(defaultProperties, new UriConnectionFactory());
+	}
+
+	public VirtualThreadOperationQueue(Map<?, ?> defaultProperties,
+			ConnectionFactory connectionFactory) {
+		this(defaultProperties, connectionFactory, DEFAULT_NODE_CONCURRENCY);
+	}
+
+	public VirtualThreadOperationQueue(Map<?, ?> defaultProperties,
+			ConnectionFactory connectionFactory, int nodeConcurrency) {
+		super(defaultProperties, connectionFactory);
+		this.nodeConcurrency = nodeConcurrency;
+	}
+
+	/**
+	 * Maximum operations running at once against one node.
+	 */
+	public void setNodeConcurrency(int nodeConcurrency) {
+		this.nodeConcurrency = nodeConcurrency;
+	}
+
+	public void start() {
+		executor = ExecutorUtils.newThreadPerTaskExecutor();
+	}
+
+	/**
+	 * Returns the number of operations running. Nothing waits for a thread.
+	 */
+	public int getQueueSize() {
+		return running.get();
+	}
+
+	/**
+	 * Returns the number of operations running against the given node.
+	 */
+	public int getActiveCount(Node node) {
+		return nodeConcurrency - getPermits(node).availablePermits();
+	}
+
+	public <V> Future<OperationResult<V>> submit(Operation<V> operation)
+			throws RejectedExecutionException {
+		Node node = operation.getNode();
+		Semaphore semaphore = getPermits(node);
+		if (!semaphore.tryAcquire())
+			throw new RejectedExecutionException(String.format(
+					"%1$d operations already running for node %2$d",
+					nodeConcurrency, node.getId()));
+		running.incrementAndGet();
+		try {
+			return executor.submit(new PermitCallable<V>(semaphore,
+					new CallbackCallable<V>(operation)));
+		} catch (RejectedExecutionException e) {
+			running.decrementAndGet();
+			semaphore.release();
+			throw e;
+		}
+	}
+
+	private Semaphore getPermits(Node node) {
+		synchronized (permits) {
+			Semaphore semaphore = permits.get(node.getId());
+			if (semaphore == null) {
+				semaphore = new Semaphore(nodeConcurrency);
+				permits.put(node.getId(), semaphore);
+			}
+			return semaphore;
+		}
+	}
+
+	private class PermitCallable<V> implements Callable<OperationResult<V>> {
+		private Semaphore semaphore;
+
+		private Callable<OperationResult<V>> delegate;
+
+		public PermitCallable(Semaphore semaphore,
+				Callable<OperationResult<V>> delegate) {
+			this.semaphore = semaphore;
+			this.delegate = delegate;
+		}
+
+		public OperationResult<V> call() throws Exception {
+			try {
+				return delegate.call();
+			} finally {
+				running.decrementAndGet();
+				semaphore.release();
+			}
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package com.rubiconproject.oss.kv.mgmt;
+
+import com.rubiconproject.oss.kv.distributed.OperationStatus;
+import com.rubiconproject.oss.kv.distributed.impl.OperationMetrics;
+
+public class OperationMetricsImplMXBean implements OperationMetricsMXBean {
+	private OperationMetrics metrics;
+
+	public OperationMetricsImplMXBean(OperationMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public String getNode() {
+		return (metrics.getNodeId() == null) ? "quorum" : metrics.getNodeId()
+				.toString();
+	}
+
+	public String getOperation() {
+		return metrics.getOperation();
+	}
+
+	public long getSuccessCount() {
+		return metrics.getCount(OperationStatus.Success);
+	}
+
+	public long getNullValueCount() {
+		return metrics.getCount(OperationStatus.NullValue);
+	}
+
+	public long getErrorCount() {
+		return metrics.getCount(OperationStatus.Error);
+	}
+
+	public double getLatencyMeanMicros() {
+		return metrics.getLatency().getMean();
+	}
+
+	public long getLatencyMedianMicros() {
+		return metrics.getLatency().getPercentile(50);
+	}
+
+	public long getLatency99thPercentileMicros() {
+		return metrics.getLatency().getPercentile(99);
+	}
+
+	public long getLatency999thPercentileMicros() {
+		return metrics.getLatency().getPercentile(99.9);
+	}
+
+	public long getLatencyMaxMicros() {
+		return metrics.getLatency().getMax();
+	}
+
+	public long getQueueTimeMedianMicros() {
+		return metrics.getQueueTime().getPercentile(50);
+	}
+
+	public long getQueueTime99thPercentileMicros() {
+		return metrics.getQueueTime().getPercentile(99);
+	}
+
+	public long getQueueTimeMaxMicros() {
+		return metrics.getQueueTime().getMax();
+	}
+
+	public void reset() {
+		metrics.reset();
+	}
+}
@@ -0,0 +1,31 @@
+package com.rubiconproject.oss.kv.mgmt;
+
+public interface OperationMetricsMXBean {
+	public String getNode();
+
+	public String getOperation();
+
+	public long getSuccessCount();
+
+	public long getNullValueCount();
+
+	public long getErrorCount();
+
+	public double getLatencyMeanMicros();
+
+	public long getLatencyMedianMicros();
+
+	public long getLatency99thPercentileMicros();
+
+	public long getLatency999thPercentileMicros();
+
+	public long getLatencyMaxMicros();
+
+	public long getQueueTimeMedianMicros();
+
+	public long getQueueTime99thPercentileMicros();
+
+	public long getQueueTimeMaxMicros();
+
+	public void reset();
+}
@@ -8,6 +8,7 @@ import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.thrift.TBaseHelper;
 import org.apache.thrift.TException;
 import org.apache.thrift.protocol.TBinaryProtocol;
 import org.apache.thrift.protocol.TProtocolFactory;
@@ -19,6 +20,7 @@ import org.apache.thrift.transport.TTransportException;
 import org.apache.thrift.transport.TTransportFactory;
 
 import com.rubiconproject.oss.kv.KeyValueStore;
+import com.rubiconproject.oss.kv.distributed.impl.OperationLog;
 import com.rubiconproject.oss.kv.gen.Constants;
 import com.rubiconproject.oss.kv.gen.GetResult;
 import com.rubiconproject.oss.kv.gen.KeyValueService;
@@ -102,7 +104,7 @@ public class ThriftKeyValueServer {
 			KeyValueService.Iface {
 		private Log log = LogFactory.getLog(getClass());
 
-		private Log accessLog = LogFactory.getLog("haymitch.thrift.accesslog");
+		private OperationLog accessLog = OperationLog.getInstance();
 
 		private Transcoder transcoder = new ByteArrayTranscoder();
 
@@ -128,11 +130,8 @@ public class ThriftKeyValueServer {
 				log.error("IOException inside exists()", e);
 				throw new KeyValueStoreIOException();
 			} finally {
-				if (accessLog.isInfoEnabled()) {
-					long time = System.currentTimeMillis() - start;
-					accessLog.info(String.format("exists %1$s %2$d 0 %3$s",
-							key, time, success));
-				}
+				accessLog.logAccess("exists", key, System.currentTimeMillis()
+						- start, 0, success);
 			}
 		}
 
@@ -161,11 +160,8 @@ public class ThriftKeyValueServer {
 				log.error("IOException inside getValue()", e);
 				throw new KeyValueStoreIOException();
 			} finally {
-				if (accessLog.isInfoEnabled()) {
-					long time = System.currentTimeMillis() - start;
-					accessLog.info(String.format("get %1$s %2$d %3$d %4$s",
-							key, time, byteCount, success));
-				}
+				accessLog.logAccess("get", key, System.currentTimeMillis()
+						- start, byteCount, success);
 			}
 		}
 
@@ -195,11 +191,8 @@ public class ThriftKeyValueServer {
 				log.error("IOException inside getValue()", e);
 				throw new KeyValueStoreIOException();
 			} finally {
-				if (accessLog.isInfoEnabled()) {
-					long time = System.currentTimeMillis() - start;
-					accessLog.info(String.format("getbulk %1$s %2$d %3$d %4$s",
-							"_", time, byteCount, success));
-				}
+				accessLog.logAccess("getbulk", "_", System.currentTimeMillis()
+						- start, byteCount, success);
 			}
 		}
 
@@ -222,11 +215,38 @@ public class ThriftKeyValueServer {
 				log.error("IOException inside setValue()", e);
 				throw new KeyValueStoreIOException();
 			} finally {
-				if (accessLog.isInfoEnabled()) {
-					long time = System.currentTimeMillis() - start;
-					accessLog.info(String.format("set %1$s %2$d %3$d %4$s",
-							key, time, byteCount, success));
+				accessLog.logAccess("set", key, System.currentTimeMillis()
+						- start, byteCount, success);
+			}
+		}
+
+		public void setBulk(Map<String, ByteBuffer> values)
+				throws KeyValueStoreIOException, KeyValueStoreException,
+				TException {
+			log.trace("setBulk()");
+			long start = System.currentTimeMillis();
+			long byteCount = 0;
+			boolean success = false;
+			try {
+				Map<String, Object> backendValues = new HashMap<String, Object>(
+						values.size());
+				for (Map.Entry<String, ByteBuffer> entry : values.entrySet()) {
+					byte[] bytes = TBaseHelper.byteBufferToByteArray(entry
+							.getValue());
+					backendValues.put(entry.getKey(), bytes);
+					byteCount += bytes.length;
 				}
+				backend.setBulk(backendValues, transcoder);
+				success = true;
+			} catch (com.rubiconproject.oss.kv.KeyValueStoreException e) {
+				log.error("KeyValueStoreException inside setBulk()", e);
+				throw new KeyValueStoreException();
+			} catch (IOException e) {
+				log.error("IOException inside setBulk()", e);
+				throw new KeyValueStoreIOException();
+			} finally {
+				accessLog.logAccess("setbulk", "_", System.currentTimeMillis()
+						- start, byteCount, success);
 			}
 		}
 
@@ -245,11 +265,8 @@ public class ThriftKeyValueServer {
 				log.error("IOException inside deleteValue()", e);
 				throw new KeyValueStoreIOException();
 			} finally {
-				if (accessLog.isInfoEnabled()) {
-					long time = System.currentTimeMillis() - start;
-					accessLog.info(String.format("delete %1$s %2$d 0 %3$s",
-							key, time, success));
-				}
+				accessLog.logAccess("delete", key, System.currentTimeMillis()
+						- start, 0, success);
 			}
 		}
 	}
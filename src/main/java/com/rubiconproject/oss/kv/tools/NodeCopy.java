@@ -1,8 +1,10 @@
 package com.rubiconproject.oss.kv.tools;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 
@@ -52,8 +54,14 @@ public class NodeCopy implements Runnable, Callable<Map<String, Long>> {
 	@Option(name = "--delete", usage = "Delete from source (default: false")
 	private boolean delete = false;
 
+	@Option(name = "--batch", usage = "Keys copied per bulk get/set (default: 1)")
+	private int batch = 1;
+
 	private Transcoder byteTranscoder = new ByteArrayTranscoder();
 
+	private long examined = 0, moved = 0, notMoved = 0, getFailures = 0,
+			setFailures = 0, deleteFailures = 0;
+
 	public static void main(String[] args) throws Exception {
 		NodeCopy vr = new NodeCopy();
 		CmdLineParser parser = new CmdLineParser(vr);
@@ -79,7 +87,7 @@ public class NodeCopy implements Runnable, Callable<Map<String, Long>> {
 		IterableKeyValueStore src = (IterableKeyValueStore) getKeyValueStore(source);
 		KeyValueStore kv = getKeyValueStore(dest);
 
-		long examined = 0, moved = 0, notMoved = 0, getFailures = 0, setFailures = 0, deleteFailures = 0;
+		List<String> keys = new ArrayList<String>(batch);
 		KeyValueStoreIterator keyIterator = src.iterkeys();
 		try {
 			Iterator<String> iter = keyIterator.iterator();
@@ -92,33 +100,10 @@ public class NodeCopy implements Runnable, Callable<Map<String, Long>> {
 					continue;
 				}
 
-				byte[] bytes = null;
-				try {
-					bytes = (byte[]) src.get(key, byteTranscoder);
-				} catch (Exception e) {
-					e.printStackTrace();
-					++getFailures;
-				}
-				boolean successfulMove = false;
-				try {
-					if (bytes != null) {
-						kv.set(key, bytes, byteTranscoder);
-						successfulMove = true;
-						++moved;
-					} else
-						++notMoved;
-				} catch (Exception e) {
-					e.printStackTrace();
-					++setFailures;
-				}
-
-				try {
-					if (successfulMove && delete) {
-						src.delete(key);
-					}
-				} catch (Exception e) {
-					e.printStackTrace();
-					++deleteFailures;
+				keys.add(key);
+				if (keys.size() >= batch) {
+					copy(src, kv, keys);
+					keys.clear();
 				}
 
 				if (examined % 1000 == 0) {
@@ -135,6 +120,8 @@ public class NodeCopy implements Runnable, Callable<Map<String, Long>> {
 				if (sleep > 0)
 					Thread.sleep(sleep);
 			}
+			if (keys.size() > 0)
+				copy(src, kv, keys);
 		} finally {
 			keyIterator.close();
 			src.stop();
@@ -150,6 +137,74 @@ public class NodeCopy implements Runnable, Callable<Map<String, Long>> {
 		return results;
 	}
 
+	private void copy(KeyValueStore src, KeyValueStore kv, List<String> keys) {
+		// a batch of one is not worth a bulk call, which some stores emulate
+		if (keys.size() == 1) {
+			copy(src, kv, keys.get(0));
+			return;
+		}
+		Map<String, Object> values = null;
+		try {
+			values = src.getBulk(keys, byteTranscoder);
+		} catch (Exception e) {
+			e.printStackTrace();
+			getFailures += keys.size();
+			return;
+		}
+		notMoved += keys.size() - values.size();
+		if (values.isEmpty())
+			return;
+
+		try {
+			kv.setBulk(values, byteTranscoder);
+			moved += values.size();
+		} catch (Exception e) {
+			e.printStackTrace();
+			setFailures += values.size();
+			return;
+		}
+
+		try {
+			if (delete)
+				src.deleteBulk(values.keySet());
+		} catch (Exception e) {
+			e.printStackTrace();
+			deleteFailures += values.size();
+		}
+	}
+
+	private void copy(KeyValueStore src, KeyValueStore kv, String key) {
+		byte[] bytes = null;
+		try {
+			bytes = (byte[]) src.get(key, byteTranscoder);
+		} catch (Exception e) {
+			e.printStackTrace();
+			++getFailures;
+			return;
+		}
+		if (bytes == null) {
+			++notMoved;
+			return;
+		}
+
+		try {
+			kv.set(key, bytes, byteTranscoder);
+			++moved;
+		} catch (Exception e) {
+			e.printStackTrace();
+			++setFailures;
+			return;
+		}
+
+		try {
+			if (delete)
+				src.delete(key);
+		} catch (Exception e) {
+			e.printStackTrace();
+			++deleteFailures;
+		}
+	}
+
 	private KeyValueStore getKeyValueStore(String uri)
 			throws KeyValueStoreUnavailable, IOException {
 		UriConnectionFactory factory = new UriConnectionFactory();
@@ -0,0 +1,58 @@
+package com.rubiconproject.oss.kv.tools;
+
+import java.io.FileInputStream;
+import java.util.concurrent.Callable;
+
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import com.rubiconproject.oss.kv.distributed.impl.OperationEventReader;
+
+/**
+ * Prints a binary operation event log (see oplog.file) as csv lines of
+ * category,time,operation,key,status,node,duration,extra,nodes.
+ *
+ * Usage: java -classpath oo-kv-storage.jar:...
+ * com.rubiconproject.oss.kv.tools.OperationLogDecode --input /tmp/oplog.bin
+ * --category backend
+ *
+ * @author sam
+ *
+ */
+public class OperationLogDecode implements Callable<Long> {
+	@Option(name = "--input", usage = "Binary operation event log (default: none)", required = true)
+	private String input;
+
+	@Option(name = "--category", usage = "Only print backend, operation, preference or access events (default: all)")
+	private String category;
+
+	public static void main(String[] args) throws Exception {
+		OperationLogDecode decode = new OperationLogDecode();
+		CmdLineParser parser = new CmdLineParser(decode);
+		parser.parseArgument(args);
+		decode.call();
+		System.exit(0);
+	}
+
+	/**
+	 * Returns the number of events printed.
+	 */
+	public Long call() throws Exception {
+		long count = 0;
+		OperationEventReader reader = new OperationEventReader(
+				new FileInputStream(input));
+		try {
+			while (reader.next()) {
+				if ((category != null)
+						&& !category.equals(reader.getCategoryName()))
+					continue;
+				System.out.println(reader.toCsv());
+				++count;
+			}
+		} finally {
+			reader.close();
+		}
+		System.out.flush();
+		return count;
+	}
+}
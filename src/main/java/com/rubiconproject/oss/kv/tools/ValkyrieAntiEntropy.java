@@ -0,0 +1,108 @@
+package com.rubiconproject.oss.kv.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import com.rubiconproject.oss.kv.distributed.Configuration;
+import com.rubiconproject.oss.kv.distributed.ConfigurationException;
+import com.rubiconproject.oss.kv.distributed.impl.AntiEntropyService;
+import com.rubiconproject.oss.kv.distributed.impl.DynamoNodeLocator;
+import com.rubiconproject.oss.kv.distributed.impl.PropertiesConfigurator;
+
+/**
+ * Valkyrie anti-entropy job. Compares the replicas of every range and repairs
+ * the keys that differ, once or every antientropy.interval millis. See
+ * {@link AntiEntropyService}.
+ *
+ * Each repair scans every node, so run this from one process for the whole
+ * cluster.
+ *
+ * Usage:
+ *
+ * - Run it: java -classpath oo-kv-storage.jar:... com.rubiconproject.oss.kv.tools.ValkyrieAntiEntropy
+ * --properties /tmp/valkyrie.properties --interval 3600000
+ *
+ * @author sam
+ *
+ */
+public class ValkyrieAntiEntropy implements Callable<Map<String, Long>> {
+	@Option(name = "--properties", usage = "Properties file for valkyrie client (default: none)", required = true)
+	private String properties;
+
+	@Option(name = "--interval", usage = "Millis between repairs, 0 to repair once (default: antientropy.interval)")
+	private long interval = -1;
+
+	@Option(name = "--depth", usage = "Merkle tree depth (default: antientropy.treeDepth)")
+	private int treeDepth = -1;
+
+	@Option(name = "--batch", usage = "Keys read per bulk operation while scanning (default: 100)")
+	private int batchSize = AntiEntropyService.DEFAULT_BATCH_SIZE;
+
+	public static void main(String[] args) throws Exception {
+		ValkyrieAntiEntropy ae = new ValkyrieAntiEntropy();
+		CmdLineParser parser = new CmdLineParser(ae);
+		parser.parseArgument(args);
+		Map<String, Long> stats = ae.call();
+		for (Map.Entry<String, Long> entry : stats.entrySet()) {
+			System.out.println(String.format("%1$s\t%2$d", entry.getKey(),
+					entry.getValue()));
+		}
+		System.out.println("Completed successfully. Exiting.");
+		System.exit(0);
+	}
+
+	/**
+	 * Repair once, or forever if an interval is set.
+	 */
+	public Map<String, Long> call() throws Exception {
+		Properties props = getProperties();
+		PropertiesConfigurator configurator = new PropertiesConfigurator();
+		configurator.load(props);
+		Configuration config = configurator.getConfiguration();
+
+		DynamoNodeLocator locator = new DynamoNodeLocator();
+		AntiEntropyService service = new AntiEntropyService(locator, config
+				.getHashAlgorithm(), config.getConnectionFactory(), props,
+				config.getWriteReplicas());
+		service.setTreeDepth((treeDepth > 0) ? treeDepth : config
+				.getMerkleTreeDepth());
+		service.setBatchSize(batchSize);
+		service.setPriorityScheduler(config.getPriorityScheduler());
+		config.getNodeStore().addChangeListener(locator);
+		config.getNodeStore().addChangeListener(service);
+		try {
+			config.getNodeStore().start();
+		} catch (ConfigurationException e) {
+			throw new IOException(e);
+		}
+
+		long period = (interval >= 0) ? interval : config
+				.getAntiEntropyInterval();
+		while (true) {
+			Map<String, Long> stats = service.repair();
+			if (period <= 0)
+				return stats;
+			System.out.println("Anti-entropy completed: " + stats);
+			Thread.sleep(period);
+		}
+	}
+
+	private Properties getProperties() throws IOException {
+		Properties props = new Properties();
+		File file = new File(properties);
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			props.load(fis);
+		} finally {
+			fis.close();
+		}
+		return props;
+	}
+}
@@ -0,0 +1,139 @@
+package com.rubiconproject.oss.kv.tools;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+import com.rubiconproject.oss.kv.distributed.Configuration;
+import com.rubiconproject.oss.kv.distributed.ConfigurationException;
+import com.rubiconproject.oss.kv.distributed.Node;
+import com.rubiconproject.oss.kv.distributed.impl.DynamoNodeLocator;
+import com.rubiconproject.oss.kv.distributed.impl.PropertiesConfigurator;
+import com.rubiconproject.oss.kv.distributed.impl.RangeRebalancer;
+import com.rubiconproject.oss.kv.distributed.impl.TokenRange;
+
+/**
+ * Valkyrie range rebalancing job, for use after nodes join.
+ *
+ * Unlike {@link MultithreadedValkyrieRebalance}, which scans one node and
+ * checks every key, this computes the token ranges whose replicas changed
+ * between the ring without the added nodes and the current ring and moves
+ * only those, in parallel per source/destination node pair. See
+ * {@link RangeRebalancer}.
+ *
+ * Usage:
+ *
+ * - add the new node(s) to the node store and find their ids (say 14 and 15)
+ *
+ * - Run it: java -classpath oo-kv-storage.jar:... com.rubiconproject.oss.kv.tools.ValkyrieRangeRebalance
+ * --properties /tmp/valkyrie.properties --added 14,15 --rate 1000
+ * --checkpoint /tmp/rebalance.checkpoint
+ *
+ * Re-running with the same arguments resumes from the checkpoint.
+ *
+ * @author sam
+ *
+ */
+public class ValkyrieRangeRebalance implements Callable<Map<String, Long>> {
+	@Option(name = "--properties", usage = "Properties file for valkyrie client (default: none)", required = true)
+	private String properties;
+
+	@Option(name = "--added", usage = "Comma separated ids of the nodes that joined (default: none)", required = true)
+	private String added;
+
+	@Option(name = "--threads", usage = "Number of node pairs moved at once (default: 4)")
+	private int threads = RangeRebalancer.DEFAULT_THREADS;
+
+	@Option(name = "--batch", usage = "Keys copied per bulk operation (default: 100)")
+	private int batchSize = RangeRebalancer.DEFAULT_BATCH_SIZE;
+
+	@Option(name = "--rate", usage = "Max keys per second per node pair (default: disabled)")
+	private long rate = 0;
+
+	@Option(name = "--checkpoint", usage = "Checkpoint file to save progress to and resume from (default: none)")
+	private String checkpoint;
+
+	@Option(name = "--delete", usage = "Delete moved ranges from sources that no longer own them (default: false)")
+	private boolean delete = false;
+
+	@Option(name = "--dry-run", usage = "Print changed ranges without moving anything (default: false)")
+	private boolean dryRun = false;
+
+	public static void main(String[] args) throws Exception {
+		ValkyrieRangeRebalance vr = new ValkyrieRangeRebalance();
+		CmdLineParser parser = new CmdLineParser(vr);
+		parser.parseArgument(args);
+		Map<String, Long> stats = vr.call();
+		for (Map.Entry<String, Long> entry : stats.entrySet()) {
+			System.out.println(String.format("%1$s\t%2$d", entry.getKey(),
+					entry.getValue()));
+		}
+		System.out.println("Completed successfully. Exiting.");
+		System.exit(0);
+	}
+
+	public Map<String, Long> call() throws Exception {
+		Properties props = getProperties();
+		PropertiesConfigurator configurator = new PropertiesConfigurator();
+		configurator.load(props);
+		Configuration config = configurator.getConfiguration();
+		try {
+			config.getNodeStore().start();
+		} catch (ConfigurationException e) {
+			throw new IOException(e);
+		}
+
+		Set<Integer> addedIds = new HashSet<Integer>();
+		for (String id : added.split(","))
+			addedIds.add(Integer.parseInt(id.trim()));
+		List<Node> newNodes = config.getNodeStore().getActiveNodes();
+		List<Node> oldNodes = new ArrayList<Node>(newNodes.size());
+		for (Node node : newNodes) {
+			if (!addedIds.contains(node.getId()))
+				oldNodes.add(node);
+		}
+		if (oldNodes.size() + addedIds.size() != newNodes.size())
+			throw new IllegalArgumentException(
+					"Added nodes must all be active in the node store");
+
+		List<TokenRange> ranges = new DynamoNodeLocator().getChangedRanges(
+				oldNodes, newNodes, config.getWriteReplicas());
+		if (dryRun) {
+			for (TokenRange range : ranges)
+				System.out.println(range);
+		}
+		RangeRebalancer rebalancer = new RangeRebalancer(config
+				.getConnectionFactory(), props, config.getHashAlgorithm(),
+				dryRun ? new ArrayList<TokenRange>() : ranges);
+		rebalancer.setThreads(threads);
+		rebalancer.setBatchSize(batchSize);
+		rebalancer.setMaxKeysPerSecond(rate);
+		rebalancer.setDelete(delete);
+		rebalancer.setPriorityScheduler(config.getPriorityScheduler());
+		if (checkpoint != null)
+			rebalancer.setCheckpointFile(new File(checkpoint));
+		return rebalancer.call();
+	}
+
+	private Properties getProperties() throws IOException {
+		Properties props = new Properties();
+		File file = new File(properties);
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			props.load(fis);
+		} finally {
+			fis.close();
+		}
+		return props;
+	}
+}
@@ -0,0 +1,46 @@
+package com.rubiconproject.oss.kv.util;
+
+/**
+ * The time by which the caller needs the backend call made on this thread
+ * to return. Backends that take a timeout per call use what is left of it,
+ * if that is shorter than their own timeout, so that a call nobody will wait
+ * for does not keep holding a thread.
+ *
+ * @author sam
+ *
+ */
+public class CallDeadline {
+	private static ThreadLocal<Long> deadline = new ThreadLocal<Long>();
+
+	/**
+	 * Set the deadline (System.currentTimeMillis()) for calls made on this
+	 * thread until clear() is called.
+	 */
+	public static void set(long millis) {
+		deadline.set(millis);
+	}
+
+	public static void clear() {
+		deadline.remove();
+	}
+
+	/**
+	 * Returns the time left before the deadline, or timeout if there is no
+	 * deadline or it is further away. Never less than 1.
+	 */
+	public static long getTimeout(long timeout) {
+		Long millis = deadline.get();
+		if (millis == null)
+			return timeout;
+		long remaining = millis.longValue() - System.currentTimeMillis();
+		return Math.max(1l, Math.min(timeout, remaining));
+	}
+
+	/**
+	 * Returns the time left before the deadline as an int, or timeout if
+	 * there is no deadline or it is further away.
+	 */
+	public static int getTimeout(int timeout) {
+		return (int) getTimeout((long) timeout);
+	}
+}
@@ -1,5 +1,6 @@
 package com.rubiconproject.oss.kv.util;
 
+import java.lang.reflect.Method;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -18,6 +19,25 @@ public class ExecutorUtils {
 				new DaemonThreadFactory());
 	}
 
+	/**
+	 * Return an executor that starts a new thread for every task, using
+	 * virtual threads when the runtime has them (Java 21 and later) and
+	 * otherwise a cached pool of daemon threads, which reuses idle threads and
+	 * discards them after a minute.
+	 */
+	public static ExecutorService newThreadPerTaskExecutor() {
+		try {
+			Method method = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (NoSuchMethodException e) {
+			// older runtime
+		} catch (Exception e) {
+			log.warn("Unable to create virtual thread executor", e);
+		}
+		return Executors.newCachedThreadPool(new DaemonThreadFactory());
+	}
+
 	public static void shutdown(ExecutorService executor,
 			TimeUnit softTimeoutUnits, long softTimeout,
 			TimeUnit hardStopUnits, long hardStopTimeout) {
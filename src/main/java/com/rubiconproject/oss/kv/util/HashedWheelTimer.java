@@ -0,0 +1,229 @@
+package com.rubiconproject.oss.kv.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A timer for large numbers of short timeouts that are usually cancelled
+ * before they expire, such as operation deadlines. Timeouts are hashed by
+ * expiry tick into a ring of buckets; a single daemon thread moves to the
+ * next bucket every tickDuration and runs the tasks there whose last round
+ * has come. Adding and cancelling a timeout cost the same however many are
+ * pending, and no thread waits on any one of them, at the cost of timeouts
+ * firing up to one tick late.
+ *
+ * Tasks run on the timer thread, so they should be short. The thread is
+ * started by the first newTimeout().
+ *
+ * @author sam
+ *
+ */
+public class HashedWheelTimer {
+	public static final long DEFAULT_TICK_DURATION = 10l;
+
+	public static final int DEFAULT_WHEEL_SIZE = 512;
+
+	private static final int PENDING = 0;
+
+	private static final int CANCELLED = 1;
+
+	private static final int EXPIRED = 2;
+
+	private static HashedWheelTimer instance;
+
+	private Log log = LogFactory.getLog(getClass());
+
+	private long tickNanos;
+
+	private int mask;
+
+	// only used by the worker thread
+	private List<LinkedList<Timeout>> wheel;
+
+	private long tick = 0l;
+
+	// timeouts not yet placed in the wheel
+	private ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+
+	private AtomicInteger pendingCount = new AtomicInteger();
+
+	private long startTime = System.nanoTime();
+
+	private volatile boolean running = false;
+
+	private Thread worker;
+
+	/**
+	 * Returns a timer shared by everything in this JVM.
+	 */
+	public static synchronized HashedWheelTimer getInstance() {
+		if (instance == null)
+			instance = new HashedWheelTimer();
+		return instance;
+	}
+
+	public HashedWheelTimer() {
+		this(DEFAULT_TICK_DURATION, TimeUnit.MILLISECONDS, DEFAULT_WHEEL_SIZE);
+	}
+
+	/**
+	 * @param wheelSize
+	 *            number of buckets, rounded up to a power of two
+	 */
+	public HashedWheelTimer(long tickDuration, TimeUnit unit, int wheelSize) {
+		this.tickNanos = Math.max(1l, unit.toNanos(tickDuration));
+		int size = 1;
+		while (size < wheelSize)
+			size <<= 1;
+		this.mask = size - 1;
+		this.wheel = new ArrayList<LinkedList<Timeout>>(size);
+		for (int i = 0; i < size; ++i)
+			wheel.add(new LinkedList<Timeout>());
+	}
+
+	/**
+	 * Run the task once the delay has passed, unless the returned timeout is
+	 * cancelled first.
+	 */
+	public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+		start();
+		Timeout timeout = new Timeout(task, System.nanoTime() - startTime
+				+ unit.toNanos(Math.max(0l, delay)));
+		pendingCount.incrementAndGet();
+		added.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Returns the number of timeouts neither expired nor cancelled.
+	 */
+	public int getPendingCount() {
+		return pendingCount.get();
+	}
+
+	public synchronized void start() {
+		if (running)
+			return;
+		running = true;
+		worker = new DaemonThreadFactory().newThread(new Runnable() {
+			public void run() {
+				work();
+			}
+		});
+		worker.setName("HashedWheelTimer");
+		worker.start();
+	}
+
+	/**
+	 * Stop the timer thread. Timeouts still pending never expire.
+	 */
+	public synchronized void stop() {
+		if (!running)
+			return;
+		running = false;
+		worker.interrupt();
+		worker = null;
+	}
+
+	private void work() {
+		while (running) {
+			long deadline = (tick + 1) * tickNanos;
+			long wait;
+			while ((wait = deadline - (System.nanoTime() - startTime)) > 0) {
+				try {
+					Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+				} catch (InterruptedException e) {
+					if (!running)
+						return;
+				}
+			}
+			transferAdded();
+			expire(wheel.get((int) (tick & mask)));
+			++tick;
+		}
+	}
+
+	/**
+	 * Place newly added timeouts in the bucket of the tick they expire in.
+	 */
+	private void transferAdded() {
+		Timeout timeout;
+		while ((timeout = added.poll()) != null) {
+			if (timeout.state.get() != PENDING)
+				continue;
+			long expiryTick = Math.max(tick, timeout.deadline / tickNanos);
+			timeout.rounds = (expiryTick - tick) / wheel.size();
+			wheel.get((int) (expiryTick & mask)).add(timeout);
+		}
+	}
+
+	private void expire(LinkedList<Timeout> bucket) {
+		for (Iterator<Timeout> i = bucket.iterator(); i.hasNext();) {
+			Timeout timeout = i.next();
+			if (timeout.state.get() != PENDING) {
+				i.remove();
+			} else if (timeout.rounds <= 0) {
+				i.remove();
+				timeout.expire();
+			} else {
+				--timeout.rounds;
+			}
+		}
+	}
+
+	/**
+	 * A task scheduled with newTimeout().
+	 */
+	public class Timeout {
+		private Runnable task;
+
+		// nanos since the timer's start time
+		private long deadline;
+
+		private long rounds;
+
+		private AtomicInteger state = new AtomicInteger(PENDING);
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Returns true if this call stopped the task from running.
+		 */
+		public boolean cancel() {
+			if (!state.compareAndSet(PENDING, CANCELLED))
+				return false;
+			pendingCount.decrementAndGet();
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+
+		private void expire() {
+			if (!state.compareAndSet(PENDING, EXPIRED))
+				return;
+			pendingCount.decrementAndGet();
+			try {
+				task.run();
+			} catch (Throwable t) {
+				log.error("Exception running timeout task", t);
+			}
+		}
+	}
+}
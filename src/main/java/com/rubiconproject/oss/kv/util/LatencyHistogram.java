@@ -0,0 +1,107 @@
+package com.rubiconproject.oss.kv.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of latencies in microseconds, with log-linear
+ * buckets in the style of HdrHistogram: values below 64 have a bucket each
+ * and each power of two above that is split into 32 buckets, so a reported
+ * percentile is within about 3% of the recorded value. Latencies over an
+ * hour are counted as an hour.
+ *
+ * Recording is a few atomic increments and never blocks; reads are not a
+ * consistent snapshot while values are being recorded.
+ *
+ * @author sam
+ *
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 5;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private static final long MAX_VALUE = TimeUnit.HOURS.toMicros(1);
+
+	private AtomicLongArray counts = new AtomicLongArray(index(MAX_VALUE) + 1);
+
+	private AtomicLong count = new AtomicLong();
+
+	private AtomicLong sum = new AtomicLong();
+
+	private AtomicLong max = new AtomicLong();
+
+	public void record(long duration, TimeUnit unit) {
+		recordMicros(unit.toMicros(duration));
+	}
+
+	public void recordMicros(long micros) {
+		if (micros < 0)
+			micros = 0;
+		else if (micros > MAX_VALUE)
+			micros = MAX_VALUE;
+		counts.incrementAndGet(index(micros));
+		count.incrementAndGet();
+		sum.addAndGet(micros);
+		long current = max.get();
+		while ((micros > current) && !max.compareAndSet(current, micros))
+			current = max.get();
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = count.get();
+		return (n == 0) ? 0d : ((double) sum.get()) / n;
+	}
+
+	/**
+	 * Returns the highest value in the bucket holding the given percentile
+	 * (0-100) of recorded values, or 0 if nothing has been recorded.
+	 */
+	public long getPercentile(double percentile) {
+		long n = 0;
+		for (int i = 0; i < counts.length(); ++i)
+			n += counts.get(i);
+		if (n == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100d * n));
+		long seen = 0;
+		for (int i = 0; i < counts.length(); ++i) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(highestValue(i), max.get());
+		}
+		return max.get();
+	}
+
+	public void reset() {
+		for (int i = 0; i < counts.length(); ++i)
+			counts.set(i, 0);
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	private static int index(long value) {
+		if (value < SUB_BUCKETS)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+	}
+
+	private static long highestValue(int index) {
+		if (index < 2 * SUB_BUCKETS)
+			return index;
+		int shift = (index >>> SUB_BUCKET_BITS) - 1;
+		long sub = (index & (SUB_BUCKETS - 1)) + SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+}
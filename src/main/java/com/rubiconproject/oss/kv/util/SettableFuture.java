@@ -0,0 +1,98 @@
+package com.rubiconproject.oss.kv.util;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A Future that is completed explicitly by whoever holds a reference to it,
+ * typically a callback from an asynchronous transport. Only the first call to
+ * set(), setException() or cancel() has any effect.
+ *
+ * @author sam
+ *
+ * @param <V>
+ */
+public class SettableFuture<V> implements Future<V> {
+	private CountDownLatch latch = new CountDownLatch(1);
+
+	private AtomicBoolean completed = new AtomicBoolean(false);
+
+	private volatile V value;
+
+	private volatile Throwable error;
+
+	private volatile boolean cancelled = false;
+
+	public SettableFuture() {
+	}
+
+	/**
+	 * Complete this future successfully.
+	 *
+	 * @param value
+	 * @return true if this call completed the future
+	 */
+	public boolean set(V value) {
+		if (!completed.compareAndSet(false, true))
+			return false;
+		this.value = value;
+		latch.countDown();
+		return true;
+	}
+
+	/**
+	 * Complete this future with an error. get() will throw an
+	 * ExecutionException wrapping the given throwable.
+	 *
+	 * @param error
+	 * @return true if this call completed the future
+	 */
+	public boolean setException(Throwable error) {
+		if (!completed.compareAndSet(false, true))
+			return false;
+		this.error = error;
+		latch.countDown();
+		return true;
+	}
+
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		if (!completed.compareAndSet(false, true))
+			return false;
+		this.cancelled = true;
+		latch.countDown();
+		return true;
+	}
+
+	public V get() throws InterruptedException, ExecutionException {
+		latch.await();
+		return getValue();
+	}
+
+	public V get(long timeout, TimeUnit unit) throws InterruptedException,
+			ExecutionException, TimeoutException {
+		if (!latch.await(timeout, unit))
+			throw new TimeoutException();
+		return getValue();
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	public boolean isDone() {
+		return (latch.getCount() == 0);
+	}
+
+	private V getValue() throws ExecutionException {
+		if (cancelled)
+			throw new CancellationException();
+		if (error != null)
+			throw new ExecutionException(error);
+		return value;
+	}
+}
@@ -27,6 +27,9 @@ service KeyValueService {
   void setValue(1:string key, 2:binary data)
     throws (1:KeyValueStoreIOException ioException, 2:KeyValueStoreException keyValueStoreException),
 
+  void setBulk(1:map<string, binary> values)
+    throws (1:KeyValueStoreIOException ioException, 2:KeyValueStoreException keyValueStoreException),
+
   void deleteValue(1:string key)
     throws (1:KeyValueStoreIOException ioException, 2:KeyValueStoreException keyValueStoreException)
 }
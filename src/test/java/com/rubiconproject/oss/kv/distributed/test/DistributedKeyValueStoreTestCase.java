@@ -1,25 +1,89 @@
 package com.rubiconproject.oss.kv.distributed.test;
 
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Properties;
 import java.util.Random;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.rubiconproject.oss.kv.KeyValueStore;
+import com.rubiconproject.oss.kv.KeyValueStoreUnavailable;
 import com.rubiconproject.oss.kv.backends.ConnectionFactory;
 import com.rubiconproject.oss.kv.backends.UriConnectionFactory;
+import com.rubiconproject.oss.kv.distributed.BulkContext;
 import com.rubiconproject.oss.kv.distributed.Configuration;
 import com.rubiconproject.oss.kv.distributed.Context;
 import com.rubiconproject.oss.kv.distributed.DistributedKeyValueStore;
+import com.rubiconproject.oss.kv.distributed.InvalidationListener;
 import com.rubiconproject.oss.kv.distributed.Node;
+import com.rubiconproject.oss.kv.distributed.NodeLocator;
 import com.rubiconproject.oss.kv.distributed.NodeStore;
+import com.rubiconproject.oss.kv.distributed.Operation;
+import com.rubiconproject.oss.kv.distributed.OperationAbandonedException;
+import com.rubiconproject.oss.kv.distributed.OperationCallback;
+import com.rubiconproject.oss.kv.distributed.OperationDeadline;
+import com.rubiconproject.oss.kv.distributed.OperationPriority;
 import com.rubiconproject.oss.kv.distributed.OperationQueue;
+import com.rubiconproject.oss.kv.distributed.OperationResult;
+import com.rubiconproject.oss.kv.distributed.OperationStatus;
+import com.rubiconproject.oss.kv.distributed.Topology;
+import com.rubiconproject.oss.kv.distributed.hashing.HashAlgorithm;
+import com.rubiconproject.oss.kv.distributed.hashing.HashAlgorithms;
 import com.rubiconproject.oss.kv.distributed.hashing.MD5HashAlgorithm;
+import com.rubiconproject.oss.kv.distributed.impl.AddOperation;
+import com.rubiconproject.oss.kv.distributed.impl.AdmissionController;
+import com.rubiconproject.oss.kv.distributed.impl.AntiEntropyService;
+import com.rubiconproject.oss.kv.distributed.impl.BatchingOperationQueue;
 import com.rubiconproject.oss.kv.distributed.impl.DefaultDistributedKeyValueStore;
 import com.rubiconproject.oss.kv.distributed.impl.DefaultNodeImpl;
+import com.rubiconproject.oss.kv.distributed.impl.DefaultOperationHelper;
+import com.rubiconproject.oss.kv.distributed.impl.DefaultOperationResult;
+import com.rubiconproject.oss.kv.distributed.impl.DeleteOperation;
+import com.rubiconproject.oss.kv.distributed.impl.DistributedKeyValueStoreClientImpl;
 import com.rubiconproject.oss.kv.distributed.impl.DynamoNodeLocator;
+import com.rubiconproject.oss.kv.distributed.impl.FileNodeStore;
+import com.rubiconproject.oss.kv.distributed.impl.GetOperation;
+import com.rubiconproject.oss.kv.distributed.impl.HintedHandoff;
+import com.rubiconproject.oss.kv.distributed.impl.MetricsRegistry;
+import com.rubiconproject.oss.kv.distributed.impl.NearCache;
 import com.rubiconproject.oss.kv.distributed.impl.NodeRankContextFilter;
 import com.rubiconproject.oss.kv.distributed.impl.NonPersistentThreadPoolOperationQueue;
+import com.rubiconproject.oss.kv.distributed.impl.OperationEventReader;
+import com.rubiconproject.oss.kv.distributed.impl.OperationEventSink;
+import com.rubiconproject.oss.kv.distributed.impl.OperationLog;
+import com.rubiconproject.oss.kv.distributed.impl.OperationMetrics;
 import com.rubiconproject.oss.kv.distributed.impl.PassthroughContextSerializer;
+import com.rubiconproject.oss.kv.distributed.impl.PersistentThreadPoolOperationQueue;
+import com.rubiconproject.oss.kv.distributed.impl.PriorityOperationQueue;
+import com.rubiconproject.oss.kv.distributed.impl.PriorityScheduler;
+import com.rubiconproject.oss.kv.distributed.impl.PropertiesConfigurator;
+import com.rubiconproject.oss.kv.distributed.impl.QuorumTracker;
+import com.rubiconproject.oss.kv.distributed.impl.RangeRebalancer;
+import com.rubiconproject.oss.kv.distributed.impl.SetOperation;
+import com.rubiconproject.oss.kv.distributed.impl.TokenRange;
+import com.rubiconproject.oss.kv.distributed.impl.VirtualThreadOperationQueue;
+import com.rubiconproject.oss.kv.mgmt.JMXMbeanServerFactory;
+import com.rubiconproject.oss.kv.transcoder.ByteArrayTranscoder;
+import com.rubiconproject.oss.kv.util.CallDeadline;
+import com.rubiconproject.oss.kv.util.HashedWheelTimer;
+import com.rubiconproject.oss.kv.util.LatencyHistogram;
 
 import junit.framework.TestCase;
 
@@ -71,6 +135,1524 @@ public class DistributedKeyValueStoreTestCase extends TestCase {
 		testIncrementalScalability(nodeStore, kv);
 	}
 
+	public void testHedgedReads() throws Exception {
+		ConnectionFactory cf = new UriConnectionFactory();
+		List<Node> nodeList = new LinkedList<Node>();
+		nodeList.add(new DefaultNodeImpl(1, 1, "salt:1:1",
+				"hash://localhost?id=hedge1"));
+		nodeList.add(new DefaultNodeImpl(2, 2, "salt:2:2",
+				"hash://localhost?id=hedge2"));
+		nodeList.add(new DefaultNodeImpl(3, 3, "salt:3:3",
+				"hash://localhost?id=hedge3"));
+		Node slowNode = new DefaultNodeImpl(4, 4, "salt:4:4",
+				"hash://localhost?id=hedge4&readSleepTime=2000");
+		nodeList.add(slowNode);
+		NodeStore nodeStore = new DummyNodeStore(nodeList);
+
+		MD5HashAlgorithm hash = new MD5HashAlgorithm();
+		DynamoNodeLocator locator = new DynamoNodeLocator();
+		locator.setActiveNodes(nodeStore.getActiveNodes());
+
+		Configuration hedgedConfig = new Configuration();
+		hedgedConfig.setRequiredReads(2);
+		hedgedConfig.setReadReplicas(2);
+		hedgedConfig.setRequiredWrites(2);
+		hedgedConfig.setWriteReplicas(2);
+		hedgedConfig.setReadOperationTimeout(1000l);
+		hedgedConfig.setHedgedReads(true);
+		hedgedConfig.setHedgedReadMinimumDelay(20l);
+
+		DefaultDistributedKeyValueStore kv = new DefaultDistributedKeyValueStore();
+		OperationQueue asyncOpqueue = new NonPersistentThreadPoolOperationQueue(
+				null, cf);
+		asyncOpqueue.start();
+		RejectingOperationQueue syncOpqueue = new RejectingOperationQueue(
+				new NonPersistentThreadPoolOperationQueue(null, cf));
+		syncOpqueue.start();
+		kv.setAsyncOperationQueue(asyncOpqueue);
+		kv.setConfiguration(hedgedConfig);
+		kv.setContextSerializer(new PassthroughContextSerializer());
+		kv.setContextFilter(new NodeRankContextFilter<byte[]>(hedgedConfig));
+		kv.setHashAlgorithm(hash);
+		kv.setNodeLocator(locator);
+		kv.setSyncOperationQueue(syncOpqueue);
+		kv.start();
+
+		// find a key whose primary node is the slow one
+		String key = null;
+		for (int i = 0; key == null; ++i) {
+			String candidate = "hedge.key." + i;
+			if (locator.getPreferenceList(hash, candidate, 1).get(0).getId() == slowNode
+					.getId())
+				key = candidate;
+		}
+
+		// the slow node would hold the read for the full timeout. with
+		// hedging, the third node in the preference list completes the quorum.
+		// no latencies have been sampled yet so the hedge delay is half of
+		// the request timeout.
+		long start = System.currentTimeMillis();
+		List<Context<byte[]>> values = kv.getContexts(key, true, false,
+				1000l, 1000l);
+		long elapsed = System.currentTimeMillis() - start;
+		assertTrue(elapsed < 900l);
+		assertTrue(values.size() >= hedgedConfig.getRequiredReads());
+
+		// a rejected copy is a failed response from its node, which is
+		// backfilled like any other
+		hedgedConfig.setFillErrorGetResults(true);
+		kv.set(key, "hedged".getBytes());
+		syncOpqueue.reject(slowNode);
+		values = kv.getContexts(key, true, false, 1000l, 1000l);
+		for (Context<byte[]> context : values)
+			assertNotNull(context.getSourceNode());
+		assertEquals(new String(kv.get(key).getValue()), "hedged");
+		kv.stop();
+	}
+
+	public void testBulkContexts() throws Exception {
+		ConnectionFactory cf = new UriConnectionFactory();
+		List<Node> nodeList = new LinkedList<Node>();
+		for (int i = 1; i <= 5; ++i)
+			nodeList.add(new DefaultNodeImpl(i, i, "salt:" + i + ":" + i,
+					"hash://localhost?id=bulk" + i));
+		NodeStore nodeStore = new DummyNodeStore(nodeList);
+
+		DynamoNodeLocator locator = new DynamoNodeLocator();
+		locator.setActiveNodes(nodeStore.getActiveNodes());
+
+		Configuration bulkConfig = new Configuration();
+		bulkConfig.setRequiredReads(2);
+		bulkConfig.setReadReplicas(2);
+		bulkConfig.setRequiredWrites(2);
+		bulkConfig.setWriteReplicas(2);
+
+		DefaultDistributedKeyValueStore kv = new DefaultDistributedKeyValueStore();
+		OperationQueue asyncOpqueue = new NonPersistentThreadPoolOperationQueue(
+				null, cf);
+		asyncOpqueue.start();
+		OperationQueue syncOpqueue = new NonPersistentThreadPoolOperationQueue(
+				null, cf);
+		syncOpqueue.start();
+		kv.setAsyncOperationQueue(asyncOpqueue);
+		kv.setConfiguration(bulkConfig);
+		kv.setContextSerializer(new PassthroughContextSerializer());
+		kv.setHashAlgorithm(new MD5HashAlgorithm());
+		kv.setNodeLocator(locator);
+		kv.setSyncOperationQueue(syncOpqueue);
+		kv.start();
+
+		String[] keys = new String[20];
+		for (int i = 0; i < keys.length; ++i) {
+			keys[i] = "bulk.key." + i;
+			kv.set(keys[i], ("value " + i).getBytes());
+		}
+
+		// each node is only asked for the keys it holds
+		Set<String> found = new HashSet<String>();
+		List<BulkContext<byte[]>> contexts = kv.getBulkContexts(keys);
+		for (BulkContext<byte[]> context : contexts) {
+			assertTrue(context.getKeys().length < keys.length);
+			found.addAll(context.getValues().keySet());
+		}
+		assertEquals(found.size(), keys.length);
+		kv.stop();
+	}
+
+	public void testQuorumTracker() throws Exception {
+		// two failures out of three make a quorum of two impossible
+		QuorumTracker<byte[]> tracker = new QuorumTracker<byte[]>(3, 2, true);
+		tracker.completed(new DefaultOperationResult<byte[]>(null, null,
+				OperationStatus.Error, 0l, null));
+		assertFalse(tracker.isDone());
+		tracker.completed(new DefaultOperationResult<byte[]>(null, null,
+				OperationStatus.Error, 0l, null));
+		assertTrue(tracker.isDone());
+		assertFalse(tracker.isQuorumReached());
+		assertEquals(tracker.get().size(), 2);
+
+		// late responses are ignored once decided
+		tracker.completed(new DefaultOperationResult<byte[]>(null, null,
+				OperationStatus.Success, 0l, null));
+		assertEquals(tracker.getSuccessCount(), 0);
+		assertEquals(tracker.get().size(), 2);
+
+		// a success and a null value complete a quorum of two
+		tracker = new QuorumTracker<byte[]>(3, 2, true);
+		tracker.completed(new DefaultOperationResult<byte[]>(null, null,
+				OperationStatus.NullValue, 0l, null));
+		tracker.completed(new DefaultOperationResult<byte[]>(null,
+				"hello world".getBytes(), OperationStatus.Success, 0l, null));
+		assertTrue(tracker.isDone());
+		assertTrue(tracker.isQuorumReached());
+
+		// a rejected request is a failed response from its own node
+		List<Node> nodeList = new LinkedList<Node>();
+		for (int i = 1; i <= 3; ++i)
+			nodeList.add(new DefaultNodeImpl(i, i, "salt:" + i + ":" + i,
+					"hash://localhost?id=tracker" + i));
+		RejectingOperationQueue queue = new RejectingOperationQueue(
+				new DummyOperationQueue(new UriConnectionFactory()));
+		queue.reject(nodeList.get(1));
+		tracker = new DefaultOperationHelper().callAsync(queue,
+				new GetOperation<byte[]>(null, "tracker.key"), nodeList, 0, 2,
+				true);
+		assertEquals(tracker.get().size(), 3);
+		for (OperationResult<byte[]> result : tracker.get()) {
+			Operation<byte[]> op = result.getOperation();
+			assertEquals(OperationStatus.Error.equals(result.getStatus()), op
+					.getNode().equals(nodeList.get(1)));
+			assertEquals(op.getNodeRank(), nodeList.indexOf(op.getNode()));
+		}
+	}
+
+	public void testHintedHandoff() throws Exception {
+		File dir = File.createTempFile("hints", "");
+		dir.delete();
+		ConnectionFactory cf = new UriConnectionFactory();
+		Node node = new DefaultNodeImpl(1, 1, "salt:1:1",
+				"hash://localhost?id=handoff1");
+		KeyValueStore store = cf.getStore(null, node.getConnectionURI());
+		ByteArrayTranscoder transcoder = new ByteArrayTranscoder();
+		store.set("handoff.c", "old".getBytes(), transcoder);
+
+		HintedHandoff handoff = new HintedHandoff(dir, cf, null);
+		handoff.start();
+		assertTrue(handoff.hint(node, new SetOperation<byte[]>(transcoder,
+				"handoff.a", "hinted a".getBytes())));
+		assertTrue(handoff.hint(node, new SetOperation<byte[]>(transcoder,
+				"handoff.b", "hinted b".getBytes())));
+		assertTrue(handoff.hint(node, new DeleteOperation<byte[]>(
+				"handoff.c")));
+		handoff.stop();
+
+		// hints survive a restart
+		handoff = new HintedHandoff(dir, cf, null);
+		handoff.start();
+		assertTrue(handoff.hasHints(node));
+
+		// a later successful write is not overwritten by the hint
+		Thread.sleep(5l);
+		store.set("handoff.b", "newer b".getBytes(), transcoder);
+		handoff.written(node, new SetOperation<byte[]>(transcoder,
+				"handoff.b", "newer b".getBytes()));
+		handoff.replay();
+		assertFalse(handoff.hasHints(node));
+		handoff.stop();
+		assertEquals(new String((byte[]) store.get("handoff.a", transcoder)),
+				"hinted a");
+		assertEquals(new String((byte[]) store.get("handoff.b", transcoder)),
+				"newer b");
+		assertNull(store.get("handoff.c", transcoder));
+		assertEquals(dir.listFiles().length, 0);
+
+		// a write issued before a hint does not supersede it, however late
+		// it completes
+		handoff = new HintedHandoff(dir, cf, null);
+		handoff.start();
+		SetOperation<byte[]> older = new SetOperation<byte[]>(transcoder,
+				"handoff.d", "older d".getBytes());
+		older.setDeadline(new OperationDeadline(1000l));
+		Thread.sleep(5l);
+		assertTrue(handoff.hint(node, new SetOperation<byte[]>(transcoder,
+				"handoff.d", "hinted d".getBytes())));
+		handoff.written(node, older);
+		handoff.stop();
+
+		// an unknown record type is not replayed as a delete
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(
+				new File(dir, node.getId() + ".hints"), true));
+		out.writeByte(9);
+		out.writeLong(System.currentTimeMillis());
+		out.writeUTF("handoff.a");
+		out.close();
+		handoff = new HintedHandoff(dir, cf, null);
+		handoff.start();
+		handoff.replay();
+		handoff.stop();
+		assertEquals(new String((byte[]) store.get("handoff.d", transcoder)),
+				"hinted d");
+		assertEquals(new String((byte[]) store.get("handoff.a", transcoder)),
+				"hinted a");
+		assertEquals(dir.listFiles().length, 0);
+		dir.delete();
+	}
+
+	public void testPersistentOperationQueue() throws Exception {
+		File dir = File.createTempFile("queue", "");
+		dir.delete();
+		final ConnectionFactory cf = new UriConnectionFactory();
+		Node node = new DefaultNodeImpl(1, 1, "salt:1:1",
+				"hash://localhost?id=queue1");
+		KeyValueStore store = cf.getStore(null, node.getConnectionURI());
+		ByteArrayTranscoder transcoder = new ByteArrayTranscoder();
+
+		PersistentThreadPoolOperationQueue queue = new PersistentThreadPoolOperationQueue(
+				null, cf, dir);
+		queue.setSegmentSize(256);
+		PriorityScheduler scheduler = new PriorityScheduler();
+		queue.setPriorityScheduler(scheduler, OperationPriority.Backfill);
+		queue.start();
+		for (int i = 0; i < 20; ++i) {
+			SetOperation<byte[]> op = new SetOperation<byte[]>(transcoder,
+					"queue.key." + i, ("value " + i).getBytes());
+			op.setNode(node);
+			assertEquals(queue.submit(op).get().getStatus(),
+					OperationStatus.Success);
+		}
+		assertEquals(new String((byte[]) store.get("queue.key.19",
+				transcoder)), "value 19");
+		assertEquals(queue.getQueueSize(), 0);
+		// replays take and give back places in the backfill budget
+		assertEquals(scheduler.getRunningCount(OperationPriority.Backfill), 0);
+		queue.stop();
+
+		// a failed operation is retried until it succeeds
+		final AtomicInteger failures = new AtomicInteger(2);
+		PersistentThreadPoolOperationQueue flaky = new PersistentThreadPoolOperationQueue(
+				null, flakyFactory(cf, failures), dir);
+		flaky.setRetryDelay(10l);
+		flaky.start();
+		SetOperation<byte[]> retried = new SetOperation<byte[]>(transcoder,
+				"queue.key.retried", "retried".getBytes());
+		retried.setNode(node);
+		assertEquals(flaky.submit(retried).get().getStatus(),
+				OperationStatus.Error);
+		for (int i = 0; (i < 200) && (flaky.getQueueSize() > 0); ++i)
+			Thread.sleep(10l);
+		assertEquals(flaky.getQueueSize(), 0);
+		assertEquals(new String((byte[]) store.get("queue.key.retried",
+				transcoder)), "retried");
+		flaky.stop();
+
+		// a retry is dropped once a newer write of the key has been queued
+		failures.set(1);
+		flaky = new PersistentThreadPoolOperationQueue(null,
+				flakyFactory(cf, failures), dir);
+		flaky.setRetryDelay(50l);
+		flaky.start();
+		SetOperation<byte[]> older = new SetOperation<byte[]>(transcoder,
+				"queue.key.superseded", "older".getBytes());
+		older.setNode(node);
+		assertEquals(flaky.submit(older).get().getStatus(),
+				OperationStatus.Error);
+		SetOperation<byte[]> newer = new SetOperation<byte[]>(transcoder,
+				"queue.key.superseded", "newer".getBytes());
+		newer.setNode(node);
+		assertEquals(flaky.submit(newer).get().getStatus(),
+				OperationStatus.Success);
+		for (int i = 0; (i < 200) && (flaky.getQueueSize() > 0); ++i)
+			Thread.sleep(10l);
+		Thread.sleep(100l);
+		assertEquals(flaky.getQueueSize(), 0);
+		assertEquals(new String((byte[]) store.get("queue.key.superseded",
+				transcoder)), "newer");
+		flaky.stop();
+
+		// stopping a queue that never started does nothing
+		new PersistentThreadPoolOperationQueue(null, cf, dir).stop();
+
+		// an operation stuck in a queue that goes away is run on recovery
+		final CountDownLatch latch = new CountDownLatch(1);
+		PersistentThreadPoolOperationQueue stuck = new PersistentThreadPoolOperationQueue(
+				null, new ConnectionFactory() {
+					public KeyValueStore getStore(Map defaultProperties,
+							String uri) throws KeyValueStoreUnavailable {
+						try {
+							latch.await();
+							return cf.getStore(defaultProperties, uri);
+						} catch (Exception e) {
+							throw new KeyValueStoreUnavailable(e);
+						}
+					}
+				}, dir);
+		stuck.start();
+		DeleteOperation<byte[]> delete = new DeleteOperation<byte[]>(
+				"queue.key.19");
+		delete.setNode(node);
+		stuck.submit(delete);
+		assertEquals(stuck.getQueueSize(), 1);
+
+		queue = new PersistentThreadPoolOperationQueue(null, cf, dir);
+		queue.start();
+		for (int i = 0; (i < 100) && (queue.getQueueSize() > 0); ++i)
+			Thread.sleep(10l);
+		assertEquals(queue.getQueueSize(), 0);
+		assertNull(store.get("queue.key.19", transcoder));
+		queue.stop();
+		latch.countDown();
+		stuck.stop();
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	/**
+	 * Returns a factory that fails while the counter is above zero.
+	 */
+	private ConnectionFactory flakyFactory(final ConnectionFactory cf,
+			final AtomicInteger failures) {
+		return new ConnectionFactory() {
+			public KeyValueStore getStore(Map defaultProperties, String uri)
+					throws KeyValueStoreUnavailable {
+				if (failures.getAndDecrement() > 0)
+					throw new KeyValueStoreUnavailable();
+				try {
+					return cf.getStore(defaultProperties, uri);
+				} catch (Exception e) {
+					throw new KeyValueStoreUnavailable(e);
+				}
+			}
+		};
+	}
+
+	public void testBulkheadOperationQueue() throws Exception {
+		final ConnectionFactory cf = new UriConnectionFactory();
+		final Node slow = new DefaultNodeImpl(1, 1, "salt:1:1",
+				"hash://localhost?id=bulkhead1");
+		Node fast = new DefaultNodeImpl(2, 2, "salt:2:2",
+				"hash://localhost?id=bulkhead2");
+		final CountDownLatch latch = new CountDownLatch(1);
+		NonPersistentThreadPoolOperationQueue queue = new NonPersistentThreadPoolOperationQueue(
+				null, new ConnectionFactory() {
+					public KeyValueStore getStore(Map defaultProperties,
+							String uri) throws KeyValueStoreUnavailable {
+						try {
+							if (uri.equals(slow.getConnectionURI()))
+								latch.await();
+							return cf.getStore(defaultProperties, uri);
+						} catch (Exception e) {
+							throw new KeyValueStoreUnavailable(e);
+						}
+					}
+				}, 4, 10);
+		queue.setNodeThreadCount(2);
+		queue.setNodeMaxQueueDepth(3);
+		queue.start();
+		ByteArrayTranscoder transcoder = new ByteArrayTranscoder();
+
+		List<Future<OperationResult<Object>>> stuck = new ArrayList<Future<OperationResult<Object>>>();
+		for (int i = 0; i < 5; ++i) {
+			SetOperation<Object> op = new SetOperation<Object>(transcoder,
+					"bulkhead.key." + i, "value".getBytes());
+			op.setNode(slow);
+			stuck.add(queue.submit(op));
+		}
+		try {
+			SetOperation<Object> op = new SetOperation<Object>(transcoder,
+					"bulkhead.key.5", "value".getBytes());
+			op.setNode(slow);
+			queue.submit(op);
+			fail("Slow node queue should be full");
+		} catch (RejectedExecutionException expected) {
+		}
+		assertEquals(queue.getActiveCount(slow), 2);
+		assertEquals(queue.getQueueSize(slow), 3);
+		assertEquals(queue.getRejectedCount(slow), 1l);
+		assertEquals(queue.getQueueSize(), 3);
+
+		// the slow node does not hold up the other
+		for (int i = 0; i < 10; ++i) {
+			SetOperation<Object> op = new SetOperation<Object>(transcoder,
+					"bulkhead.key." + i, "value".getBytes());
+			op.setNode(fast);
+			assertEquals(queue.submit(op).get(1000l, TimeUnit.MILLISECONDS)
+					.getStatus(), OperationStatus.Success);
+		}
+
+		latch.countDown();
+		for (Future<OperationResult<Object>> future : stuck)
+			assertEquals(future.get().getStatus(), OperationStatus.Success);
+		assertEquals(queue.getQueueSize(), 0);
+		queue.stop();
+
+		// operations still waiting when the queue stops are completed with an
+		// error rather than dropped
+		final CountDownLatch stuckLatch = new CountDownLatch(1);
+		queue = new NonPersistentThreadPoolOperationQueue(null,
+				new ConnectionFactory() {
+					public KeyValueStore getStore(Map defaultProperties,
+							String uri) throws KeyValueStoreUnavailable {
+						try {
+							stuckLatch.await();
+							return cf.getStore(defaultProperties, uri);
+						} catch (Exception e) {
+							throw new KeyValueStoreUnavailable(e);
+						}
+					}
+				}, 1, 10);
+		queue.setNodeThreadCount(1);
+		queue.start();
+		final AtomicInteger abandoned = new AtomicInteger();
+		stuck.clear();
+		for (int i = 0; i < 3; ++i) {
+			SetOperation<Object> op = new SetOperation<Object>(transcoder,
+					"bulkhead.key." + i, "value".getBytes());
+			op.setNode(slow);
+			op.setCallback(new OperationCallback<Object>() {
+				public void completed(OperationResult<Object> result) {
+					if (result.getError() instanceof OperationAbandonedException)
+						abandoned.incrementAndGet();
+				}
+			});
+			stuck.add(queue.submit(op));
+		}
+		queue.stop();
+		assertEquals(abandoned.get(), 2);
+		for (Future<OperationResult<Object>> future : stuck)
+			assertEquals(future.get().getStatus(), OperationStatus.Error);
+	}
+
+	public void testVirtualThreadOperationQueue() throws Exception {
+		final ConnectionFactory cf = new UriConnectionFactory();
+		final Node slow = new DefaultNodeImpl(1, 1, "salt:1:1",
+				"hash://localhost?id=virtual1");
+		Node fast = new DefaultNodeImpl(2, 2, "salt:2:2",
+				"hash://localhost?id=virtual2");
+		final CountDownLatch latch = new CountDownLatch(1);
+		VirtualThreadOperationQueue queue = new VirtualThreadOperationQueue(
+				null, new ConnectionFactory() {
+					public KeyValueStore getStore(Map defaultProperties,
+							String uri) throws KeyValueStoreUnavailable {
+						try {
+							if (uri.equals(slow.getConnectionURI()))
+								latch.await();
+							return cf.getStore(defaultProperties, uri);
+						} catch (Exception e) {
+							throw new KeyValueStoreUnavailable(e);
+						}
+					}
+				}, 50);
+		queue.start();
+		ByteArrayTranscoder transcoder = new ByteArrayTranscoder();
+
+		List<Future<OperationResult<Object>>> running = new ArrayList<Future<OperationResult<Object>>>();
+		for (int i = 0; i < 50; ++i) {
+			SetOperation<Object> op = new SetOperation<Object>(transcoder,
+					"virtual.key." + i, "value".getBytes());
+			op.setNode(slow);
+			running.add(queue.submit(op));
+		}
+		try {
+			SetOperation<Object> op = new SetOperation<Object>(transcoder,
+					"virtual.key.50", "value".getBytes());
+			op.setNode(slow);
+			queue.submit(op);
+			fail("Slow node should be at its concurrency limit");
+		} catch (RejectedExecutionException expected) {
+		}
+		assertEquals(queue.getActiveCount(slow), 50);
+		SetOperation<Object> op = new SetOperation<Object>(transcoder,
+				"virtual.key.0", "value".getBytes());
+		op.setNode(fast);
+		assertEquals(queue.submit(op).get(1000l, TimeUnit.MILLISECONDS)
+				.getStatus(), OperationStatus.Success);
+
+		latch.countDown();
+		for (Future<OperationResult<Object>> future : running)
+			assertEquals(future.get().getStatus(), OperationStatus.Success);
+		assertEquals(queue.getQueueSize(), 0);
+		queue.stop();
+	}
+
+	public void testBatchingOperationQueue() throws Exception {
+		final ConnectionFactory cf = new UriConnectionFactory();
+		final AtomicInteger calls = new AtomicInteger();
+		NonPersistentThreadPoolOperationQueue delegate = new NonPersistentThreadPoolOperationQueue(
+				null, new ConnectionFactory() {
+					public KeyValueStore getStore(Map defaultProperties,
+							String uri) throws KeyValueStoreUnavailable {
+						calls.incrementAndGet();
+						try {
+							return cf.getStore(defaultProperties, uri);
+						} catch (Exception e) {
+							throw new KeyValueStoreUnavailable(e);
+						}
+					}
+				});
+		BatchingOperationQueue queue = new BatchingOperationQueue(delegate,
+				32, 50l);
+		queue.start();
+		Node node = new DefaultNodeImpl(1, 1, "salt:1:1",
+				"hash://localhost?id=batch1");
+		ByteArrayTranscoder transcoder = new ByteArrayTranscoder();
+
+		List<Future<OperationResult<Object>>> futures = new ArrayList<Future<OperationResult<Object>>>();
+		for (int i = 0; i < 10; ++i) {
+			SetOperation<Object> op = new SetOperation<Object>(transcoder,
+					"batch.key." + i, ("value " + i).getBytes());
+			op.setNode(node);
+			futures.add(queue.submit(op));
+		}
+		for (Future<OperationResult<Object>> future : futures)
+			assertEquals(future.get().getStatus(), OperationStatus.Success);
+		assertEquals(calls.get(), 1);
+
+		futures.clear();
+		for (int i = 0; i <= 10; ++i) {
+			GetOperation<Object> op = new GetOperation<Object>(transcoder,
+					"batch.key." + i);
+			op.setNode(node);
+			futures.add(queue.submit(op));
+		}
+		for (int i = 0; i < 10; ++i)
+			assertEquals(new String((byte[]) futures.get(i).get().getValue()),
+					"value " + i);
+		assertEquals(futures.get(10).get().getStatus(),
+				OperationStatus.NullValue);
+		assertEquals(calls.get(), 2);
+		assertEquals(queue.getQueueSize(), 0);
+		queue.stop();
+	}
+
+	public void testPriorityScheduler() throws Exception {
+		NonPersistentThreadPoolOperationQueue delegate = new NonPersistentThreadPoolOperationQueue(
+				null, new UriConnectionFactory());
+		delegate.start();
+		PriorityScheduler scheduler = new PriorityScheduler();
+		scheduler.setConcurrency(OperationPriority.Backfill, 2);
+		scheduler.setAdjustInterval(0);
+		PriorityOperationQueue foreground = new PriorityOperationQueue(
+				delegate, scheduler, OperationPriority.ForegroundRead);
+		PriorityOperationQueue background = new PriorityOperationQueue(
+				delegate, scheduler, OperationPriority.Backfill);
+		Node slowWrites = new DefaultNodeImpl(1, 1, "salt:1:1",
+				"hash://localhost?id=priority1&writeSleepTime=100");
+		ByteArrayTranscoder transcoder = new ByteArrayTranscoder();
+
+		// background work beyond its budget waits
+		List<Future<OperationResult<Object>>> futures = new ArrayList<Future<OperationResult<Object>>>();
+		for (int i = 0; i < 6; ++i) {
+			SetOperation<Object> op = new SetOperation<Object>(transcoder,
+					"priority.key." + i, "value".getBytes());
+			op.setNode(slowWrites);
+			futures.add(background.submit(op));
+		}
+		assertEquals(scheduler.getRunningCount(OperationPriority.Backfill), 2);
+		assertEquals(scheduler.getWaitingCount(OperationPriority.Backfill), 4);
+		assertEquals(background.getQueueSize(), 4);
+		for (Future<OperationResult<Object>> future : futures)
+			assertEquals(future.get().getStatus(), OperationStatus.Success);
+		assertEquals(scheduler.getRunningCount(OperationPriority.Backfill), 0);
+
+		// and is throttled when foreground reads slow down
+		Node fast = new DefaultNodeImpl(2, 2, "salt:2:2",
+				"hash://localhost?id=priority2");
+		Node slowReads = new DefaultNodeImpl(3, 3, "salt:3:3",
+				"hash://localhost?id=priority3&readSleepTime=50");
+		for (Node node : new Node[] { fast, slowReads }) {
+			for (int i = 0; i < 20; ++i) {
+				GetOperation<Object> op = new GetOperation<Object>(
+						transcoder, "priority.key");
+				op.setNode(node);
+				foreground.submit(op).get();
+			}
+		}
+		assertTrue(scheduler.isThrottled());
+		assertEquals(scheduler.getConcurrency(OperationPriority.Backfill), 1);
+		// and recovers once they are fast again
+		for (int i = 0; (i < 500) && scheduler.isThrottled(); ++i) {
+			GetOperation<Object> op = new GetOperation<Object>(transcoder,
+					"priority.key");
+			op.setNode(fast);
+			foreground.submit(op).get();
+		}
+		assertFalse(scheduler.isThrottled());
+		// and also recovers once there are no foreground reads at all
+		for (int i = 0; i < 10; ++i) {
+			GetOperation<Object> op = new GetOperation<Object>(transcoder,
+					"priority.key");
+			op.setNode(slowReads);
+			foreground.submit(op).get();
+		}
+		assertTrue(scheduler.isThrottled());
+		scheduler.setAdjustInterval(20l);
+		Thread.sleep(100l);
+		scheduler.acquire(OperationPriority.Backfill);
+		scheduler.release(OperationPriority.Backfill);
+		assertFalse(scheduler.isThrottled());
+		delegate.stop();
+
+		// work outside the queues takes places in the same budgets
+		final PriorityScheduler shared = new PriorityScheduler();
+		shared.setConcurrency(OperationPriority.Rebalance, 1);
+		shared.acquire(OperationPriority.Rebalance);
+		final CountDownLatch acquired = new CountDownLatch(1);
+		Thread waiter = new Thread() {
+			public void run() {
+				try {
+					shared.acquire(OperationPriority.Rebalance);
+					acquired.countDown();
+				} catch (InterruptedException e) {
+				}
+			}
+		};
+		waiter.start();
+		for (int i = 0; (i < 100)
+				&& (shared.getWaitingCount(OperationPriority.Rebalance) == 0); ++i)
+			Thread.sleep(10l);
+		assertEquals(shared.getWaitingCount(OperationPriority.Rebalance), 1);
+		assertEquals(acquired.getCount(), 1l);
+		shared.release(OperationPriority.Rebalance);
+		assertTrue(acquired.await(1000l, TimeUnit.MILLISECONDS));
+		assertEquals(shared.getRunningCount(OperationPriority.Rebalance), 1);
+		shared.release(OperationPriority.Rebalance);
+		assertEquals(shared.getRunningCount(OperationPriority.Rebalance), 0);
+	}
+
+	public void testHashMigration() throws Exception {
+		ConnectionFactory cf = new UriConnectionFactory();
+		List<Node> nodeList = new LinkedList<Node>();
+		for (int i = 1; i <= 6; ++i)
+			nodeList.add(new DefaultNodeImpl(i, i, "salt:" + i + ":" + i,
+					"hash://localhost?id=migration" + i));
+		DynamoNodeLocator locator = new DynamoNodeLocator();
+		locator.setActiveNodes(nodeList);
+		HashAlgorithm previousHash = HashAlgorithms
+				.forName(HashAlgorithms.MD5);
+		DefaultDistributedKeyValueStore old = createStore(config, cf,
+				locator, previousHash);
+		Configuration migrating = new Configuration();
+		// every replica is waited for and none is repaired, so that no
+		// write lands after the delete that follows a read
+		migrating.setRequiredReads(2);
+		migrating.setRequiredWrites(3);
+		migrating.setWriteReplicas(3);
+		migrating.setReadReplicas(3);
+		migrating.setFillNullGetResults(false);
+		migrating.setPreviousHashAlgorithm(previousHash);
+		DefaultDistributedKeyValueStore kv = createStore(migrating, cf,
+				locator, HashAlgorithms.forName(HashAlgorithms.MURMUR3));
+
+		for (int i = 0; i < 20; ++i)
+			old.set("migration.key." + i, ("value " + i).getBytes());
+		for (int i = 0; i < 20; ++i) {
+			String key = "migration.key." + i;
+			assertEquals(new String(kv.get(key).getValue()), "value " + i);
+			// a deleted key is not found again in its previous placement
+			kv.delete(key);
+			assertNull(kv.get(key).getValue());
+		}
+		old.stop();
+		kv.stop();
+
+		// a copy never replaces a value the node already holds
+		KeyValueStore node = cf.getStore(null, nodeList.get(0)
+				.getConnectionURI());
+		node.set("migration.add", "newer".getBytes());
+		AddOperation<byte[]> add = new AddOperation<byte[]>(
+				new ByteArrayTranscoder(), "migration.add", "older".getBytes());
+		add.getCallable(node).call();
+		assertEquals(new String((byte[]) node.get("migration.add")), "newer");
+		add = new AddOperation<byte[]>(new ByteArrayTranscoder(),
+				"migration.added", "added".getBytes());
+		add.getCallable(node).call();
+		assertEquals(new String((byte[]) node.get("migration.added")),
+				"added");
+	}
+
+	public void testAdmissionControl() throws Exception {
+		final ConnectionFactory cf = new UriConnectionFactory();
+		// reads wait on the gate while it is closed
+		final AtomicReference<CountDownLatch> gate = new AtomicReference<CountDownLatch>();
+		ConnectionFactory gated = new ConnectionFactory() {
+			public KeyValueStore getStore(Map defaultProperties, String uri)
+					throws KeyValueStoreUnavailable {
+				try {
+					CountDownLatch latch = gate.get();
+					if (latch != null)
+						latch.await();
+					return cf.getStore(defaultProperties, uri);
+				} catch (Exception e) {
+					throw new KeyValueStoreUnavailable(e);
+				}
+			}
+		};
+		List<Node> nodeList = new LinkedList<Node>();
+		for (int i = 1; i <= 3; ++i)
+			nodeList.add(new DefaultNodeImpl(i, i, "salt:" + i + ":" + i,
+					"hash://localhost?id=admission" + i));
+		DynamoNodeLocator locator = new DynamoNodeLocator();
+		locator.setActiveNodes(nodeList);
+		config.setReadOperationTimeout(3000l);
+
+		final DefaultDistributedKeyValueStore kv = new DefaultDistributedKeyValueStore();
+		OperationQueue asyncOpqueue = new NonPersistentThreadPoolOperationQueue(
+				null, gated);
+		asyncOpqueue.start();
+		OperationQueue syncOpqueue = new NonPersistentThreadPoolOperationQueue(
+				null, gated);
+		syncOpqueue.start();
+		kv.setAsyncOperationQueue(asyncOpqueue);
+		kv.setConfiguration(config);
+		kv.setContextSerializer(new PassthroughContextSerializer());
+		kv.setContextFilter(new NodeRankContextFilter<byte[]>(config));
+		kv.setHashAlgorithm(new MD5HashAlgorithm());
+		kv.setNodeLocator(locator);
+		kv.setSyncOperationQueue(syncOpqueue);
+		// room for one quorum of three operations
+		AdmissionController admission = new AdmissionController(3);
+		kv.setAdmissionController(admission);
+		kv.start();
+		kv.set("admission.key", "value".getBytes());
+		// the last replica's write returns its reservation
+		waitForReservations(admission, 0);
+
+		// a request that does not fit is refused without waiting
+		CountDownLatch closed = new CountDownLatch(1);
+		gate.set(closed);
+		final AtomicReference<byte[]> result = new AtomicReference<byte[]>();
+		final AtomicReference<Exception> error = new AtomicReference<Exception>();
+		Thread reader = new Thread() {
+			public void run() {
+				try {
+					result.set(kv.get("admission.key").getValue());
+				} catch (Exception e) {
+					error.set(e);
+				}
+			}
+		};
+		reader.start();
+		waitForReservations(admission, 3);
+		try {
+			kv.set("admission.key", "other".getBytes());
+			fail("Expected KeyValueStoreUnavailable");
+		} catch (KeyValueStoreUnavailable expected) {
+		}
+		assertEquals(admission.getRejectedCount(), 1l);
+		gate.set(null);
+		closed.countDown();
+		reader.join();
+		assertNull(error.get());
+		assertEquals(new String(result.get()), "value");
+		waitForReservations(admission, 0);
+		kv.set("admission.key", "other".getBytes());
+		kv.stop();
+
+		// operations beyond those reserved, e.g. hedges, are only sent while
+		// there is room for them
+		AdmissionController small = new AdmissionController(2);
+		NonPersistentThreadPoolOperationQueue gatedQueue = new NonPersistentThreadPoolOperationQueue(
+				null, gated);
+		gatedQueue.start();
+		closed = new CountDownLatch(1);
+		gate.set(closed);
+		AdmissionController.Permit reservation = small.tryAcquire(1);
+		OperationQueue reserving = reservation.wrap(gatedQueue);
+		for (int i = 0; i < 3; ++i) {
+			GetOperation<byte[]> op = new GetOperation<byte[]>(
+					new ByteArrayTranscoder(), "admission.key");
+			op.setNode(nodeList.get(i));
+			try {
+				reserving.submit(op);
+				assertTrue(i < 2);
+			} catch (RejectedExecutionException expected) {
+				assertEquals(i, 2);
+			}
+		}
+		assertEquals(small.getReservedOperationCount(), 2);
+		gate.set(null);
+		closed.countDown();
+		waitForReservations(small, 0);
+		reservation.release(true);
+		assertEquals(small.getReservedOperationCount(), 0);
+		gatedQueue.stop();
+
+		// the limit backs off on failures and grows again under load
+		AdmissionController controller = new AdmissionController(
+				Integer.MAX_VALUE, 20);
+		AdmissionController.Permit[] permits = new AdmissionController.Permit[20];
+		for (int i = 0; i < permits.length; ++i)
+			permits[i] = controller.tryAcquire(1);
+		assertNull(controller.tryAcquire(1));
+		assertEquals(controller.getRejectedCount(), 1l);
+		for (AdmissionController.Permit permit : permits)
+			permit.release(false);
+		assertEquals(controller.getLimit(), AdmissionController.DEFAULT_MIN_LIMIT);
+		assertEquals(controller.getInFlightCount(), 0);
+		for (int round = 0; round < 20; ++round) {
+			permits = new AdmissionController.Permit[controller.getLimit()];
+			for (int i = 0; i < permits.length; ++i)
+				permits[i] = controller.tryAcquire(1);
+			Thread.sleep(10);
+			for (AdmissionController.Permit permit : permits)
+				permit.release(true);
+		}
+		assertTrue(controller.getLimit() > AdmissionController.DEFAULT_MIN_LIMIT);
+		assertEquals(controller.getReservedOperationCount(), 0);
+	}
+
+	public void testOperationDeadlines() throws Exception {
+		// timeouts run once their delay has passed unless cancelled
+		HashedWheelTimer timer = new HashedWheelTimer(5, TimeUnit.MILLISECONDS,
+				64);
+		final CountDownLatch fired = new CountDownLatch(1);
+		final AtomicInteger cancelledRuns = new AtomicInteger();
+		long start = System.currentTimeMillis();
+		HashedWheelTimer.Timeout timeout = timer.newTimeout(new Runnable() {
+			public void run() {
+				fired.countDown();
+			}
+		}, 50, TimeUnit.MILLISECONDS);
+		HashedWheelTimer.Timeout cancelled = timer.newTimeout(new Runnable() {
+			public void run() {
+				cancelledRuns.incrementAndGet();
+			}
+		}, 20, TimeUnit.MILLISECONDS);
+		assertTrue(cancelled.cancel());
+		// longer than one turn of the wheel
+		HashedWheelTimer.Timeout later = timer.newTimeout(new Runnable() {
+			public void run() {
+			}
+		}, 500, TimeUnit.MILLISECONDS);
+		assertTrue(fired.await(1000, TimeUnit.MILLISECONDS));
+		assertTrue(System.currentTimeMillis() - start >= 50);
+		assertTrue(timeout.isExpired());
+		assertFalse(later.isExpired());
+		Thread.sleep(600);
+		assertTrue(later.isExpired());
+		assertEquals(cancelledRuns.get(), 0);
+		assertEquals(timer.getPendingCount(), 0);
+		timer.stop();
+
+		// backends are given what is left of the deadline
+		assertEquals(CallDeadline.getTimeout(1000l), 1000l);
+		CallDeadline.set(System.currentTimeMillis() + 100);
+		assertTrue(CallDeadline.getTimeout(1000l) <= 100l);
+		CallDeadline.clear();
+
+		// operations still queued at their deadline are not sent
+		NonPersistentThreadPoolOperationQueue queue = new NonPersistentThreadPoolOperationQueue(
+				null, new UriConnectionFactory(), 1, 10);
+		queue.start();
+		Node slow = new DefaultNodeImpl(1, 1, "salt:1:1",
+				"hash://localhost?id=deadline1&readSleepTime=200");
+		ByteArrayTranscoder transcoder = new ByteArrayTranscoder();
+		OperationDeadline deadline = new OperationDeadline(100);
+		final List<OperationResult<Object>> results = new ArrayList<OperationResult<Object>>();
+		List<Future<OperationResult<Object>>> futures = new ArrayList<Future<OperationResult<Object>>>();
+		for (int i = 0; i < 3; ++i) {
+			GetOperation<Object> op = new GetOperation<Object>(transcoder,
+					"deadline.key");
+			op.setNode(slow);
+			op.setDeadline(deadline);
+			op.setCallback(new OperationCallback<Object>() {
+				public void completed(OperationResult<Object> result) {
+					synchronized (results) {
+						results.add(result);
+					}
+				}
+			});
+			futures.add(queue.submit(op));
+		}
+		start = System.currentTimeMillis();
+		for (Future<OperationResult<Object>> future : futures)
+			future.get();
+		assertTrue(System.currentTimeMillis() - start < 400);
+		assertEquals(queue.getAbandonedCount(), 2l);
+		assertEquals(results.size(), 3);
+		assertTrue(futures.get(2).get().getError()
+				instanceof OperationAbandonedException);
+
+		// or once their request no longer needs them
+		deadline = new OperationDeadline(10000);
+		deadline.abandon();
+		GetOperation<Object> op = new GetOperation<Object>(transcoder,
+				"deadline.key");
+		op.setNode(slow);
+		op.setDeadline(deadline);
+		assertEquals(queue.submit(op).get().getStatus(), OperationStatus.Error);
+		assertEquals(queue.getAbandonedCount(), 3l);
+		queue.stop();
+	}
+
+	public void testTopology() throws Exception {
+		List<Node> nodeList = new LinkedList<Node>();
+		for (int i = 1; i <= 3; ++i)
+			nodeList.add(new DefaultNodeImpl(i, i, "salt:" + i + ":" + i,
+					"hash://localhost?id=" + i));
+		DummyNodeStore nodeStore = new DummyNodeStore(nodeList);
+		DynamoNodeLocator locator = new DynamoNodeLocator();
+		nodeStore.addChangeListener(locator);
+		nodeStore.start();
+		Topology first = locator.getTopology();
+		assertEquals(first.getEpoch(), 1l);
+		assertEquals(first.size(), 3);
+		try {
+			first.getNodes().clear();
+			fail("topology nodes should not be modifiable");
+		} catch (UnsupportedOperationException expected) {
+		}
+
+		// each change is a new snapshot in the next epoch
+		nodeStore.removeNode(nodeList.get(2));
+		Topology second = locator.getTopology();
+		assertEquals(second.getEpoch(), 2l);
+		assertEquals(second.size(), 2);
+		assertEquals(first.size(), 3);
+		assertEquals(locator.getFullPreferenceList(new MD5HashAlgorithm(),
+				"key").size(), 2);
+
+		// a late publish of an older epoch is ignored
+		locator.setTopology(first);
+		assertSame(locator.getTopology(), second);
+		nodeStore.stop();
+
+		// notifyChanged() refreshes without waiting for the period
+		final AtomicReference<List<Node>> source = new AtomicReference<List<Node>>(
+				nodeList);
+		DummyNodeStore pushStore = new DummyNodeStore() {
+			public List<Node> refreshActiveNodes() {
+				return source.get();
+			}
+		};
+		locator = new DynamoNodeLocator();
+		pushStore.addChangeListener(locator);
+		pushStore.start();
+		long epoch = locator.getTopology().getEpoch();
+		source.set(nodeList.subList(0, 2));
+		pushStore.notifyChanged();
+		waitForTopology(locator, 2);
+		assertEquals(locator.getTopology().getEpoch(), epoch + 1);
+		pushStore.stop();
+
+		// a failed refresh waits for the retry period, not the short one
+		final AtomicInteger refreshes = new AtomicInteger();
+		DummyNodeStore failingStore = new DummyNodeStore() {
+			public List<Node> refreshActiveNodes() {
+				if (refreshes.incrementAndGet() > 1)
+					throw new IllegalStateException("source unavailable");
+				return getActiveNodes();
+			}
+
+			protected long getRefreshPeriod() {
+				return 10l;
+			}
+
+			protected long getRetryPeriod() {
+				return 1000l;
+			}
+		};
+		failingStore.start();
+		for (int i = 0; (i < 100) && (refreshes.get() < 2); ++i)
+			Thread.sleep(10l);
+		Thread.sleep(200l);
+		assertEquals(refreshes.get(), 2);
+
+		// stopping and starting again leaves a single refresher
+		failingStore.stop();
+		refreshes.set(0);
+		failingStore.start();
+		String name = failingStore.getClass().getSimpleName() + " refresher";
+		for (int i = 0; (i < 100) && (countThreads(name) > 1); ++i)
+			Thread.sleep(10l);
+		assertEquals(countThreads(name), 1);
+		failingStore.stop();
+
+		// a rewritten node list file is picked up within a second
+		File file = File.createTempFile("nodes", ".xml");
+		file.deleteOnExit();
+		writeNodeList(file, 3);
+		FileNodeStore fileStore = new FileNodeStore(file.getPath());
+		locator = new DynamoNodeLocator();
+		fileStore.addChangeListener(locator);
+		fileStore.start();
+		assertEquals(locator.getTopology().size(), 3);
+		File updated = File.createTempFile("nodes", ".xml");
+		writeNodeList(updated, 4);
+		assertTrue(updated.renameTo(file));
+		waitForTopology(locator, 4);
+		assertEquals(locator.getTopology().getEpoch(), 2l);
+		fileStore.stop();
+	}
+
+	private DefaultDistributedKeyValueStore createStore(Configuration config,
+			ConnectionFactory cf, NodeLocator locator, HashAlgorithm hash) {
+		DefaultDistributedKeyValueStore kv = new DefaultDistributedKeyValueStore();
+		OperationQueue asyncOpqueue = new NonPersistentThreadPoolOperationQueue(
+				null, cf);
+		asyncOpqueue.start();
+		OperationQueue syncOpqueue = new NonPersistentThreadPoolOperationQueue(
+				null, cf);
+		syncOpqueue.start();
+		kv.setAsyncOperationQueue(asyncOpqueue);
+		kv.setConfiguration(config);
+		kv.setContextSerializer(new PassthroughContextSerializer());
+		kv.setContextFilter(new NodeRankContextFilter<byte[]>(config));
+		kv.setHashAlgorithm(hash);
+		kv.setNodeLocator(locator);
+		kv.setSyncOperationQueue(syncOpqueue);
+		kv.start();
+		return kv;
+	}
+
+	private void waitForReservations(AdmissionController controller,
+			int operations) throws InterruptedException {
+		long start = System.currentTimeMillis();
+		while ((controller.getReservedOperationCount() != operations)
+				&& (System.currentTimeMillis() - start < 3000l))
+			Thread.sleep(10l);
+		assertEquals(controller.getReservedOperationCount(), operations);
+	}
+
+	private int countThreads(String name) {
+		int count = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet())
+			if (thread.isAlive() && name.equals(thread.getName()))
+				++count;
+		return count;
+	}
+
+	private void waitForTopology(DynamoNodeLocator locator, int size)
+			throws InterruptedException {
+		long start = System.currentTimeMillis();
+		while ((locator.getTopology().size() != size)
+				&& (System.currentTimeMillis() - start < 1000l))
+			Thread.sleep(10l);
+		assertEquals(locator.getTopology().size(), size);
+	}
+
+	private void writeNodeList(File file, int count) throws Exception {
+		PrintWriter out = new PrintWriter(file);
+		out.println("<node-list>");
+		for (int i = 1; i <= count; ++i) {
+			out.println("<node><id>" + i + "</id><physical-id>" + i
+					+ "</physical-id><salt>salt:" + i + ":" + i
+					+ "</salt><connection-uri>hash://localhost?id=" + i
+					+ "</connection-uri></node>");
+		}
+		out.println("</node-list>");
+		out.close();
+	}
+
+	public void testCoalescedReads() throws Exception {
+		Properties props = new Properties();
+		props.setProperty(PropertiesConfigurator.NODE_STORE,
+				DummyNodeStore.class.getName());
+		props.setProperty(PropertiesConfigurator.READ_OPERATION_TIMEOUT,
+				"2000");
+		props.setProperty(PropertiesConfigurator.COALESCE_READS, "true");
+		PropertiesConfigurator configurator = new PropertiesConfigurator();
+		configurator.load(props);
+		List<Node> nodeList = new LinkedList<Node>();
+		for (int i = 1; i <= 3; ++i)
+			nodeList.add(new DefaultNodeImpl(i, i, "salt:" + i + ":" + i,
+					"hash://localhost?id=coalesce" + i + "&readSleepTime=200"));
+		configurator.getConfiguration().setNodeStore(
+				new DummyNodeStore(nodeList));
+		final DistributedKeyValueStoreClientImpl client = new DistributedKeyValueStoreClientImpl(
+				configurator);
+		client.start();
+		final ByteArrayTranscoder transcoder = new ByteArrayTranscoder();
+		client.set("coalesce.key", "value".getBytes(), transcoder);
+
+		final Object[] results = new Object[10];
+		Thread[] threads = new Thread[results.length];
+		for (int i = 0; i < threads.length; ++i) {
+			final int index = i;
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						results[index] = client.get("coalesce.key", transcoder);
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+		assertTrue(client.getCoalescedReadCount() > 0);
+		for (Object result : results)
+			assertEquals(new String((byte[]) result), "value");
+
+		// a get after a write does not see the older read
+		client.set("coalesce.key", "newer".getBytes(), transcoder);
+		assertEquals(new String((byte[]) client.get("coalesce.key",
+				transcoder)), "newer");
+		client.stop();
+	}
+
+	public void testNearCache() throws Exception {
+		Properties props = new Properties();
+		props.setProperty(PropertiesConfigurator.NODE_STORE,
+				DummyNodeStore.class.getName());
+		props.setProperty(PropertiesConfigurator.NEAR_CACHE_MAX_BYTES,
+				"100000");
+		props.setProperty(PropertiesConfigurator.NEAR_CACHE_TTL, "60000");
+		// wait for every replica so a read never sees an older value
+		props.setProperty(PropertiesConfigurator.REQUIRED_WRITES, "3");
+		PropertiesConfigurator configurator = new PropertiesConfigurator();
+		configurator.load(props);
+		List<Node> nodeList = new LinkedList<Node>();
+		for (int i = 1; i <= 3; ++i)
+			nodeList.add(new DefaultNodeImpl(i, i, "salt:" + i + ":" + i,
+					"hash://localhost?id=near" + i));
+		configurator.getConfiguration().setNodeStore(
+				new DummyNodeStore(nodeList));
+		DistributedKeyValueStoreClientImpl client = new DistributedKeyValueStoreClientImpl(
+				configurator);
+		client.start();
+		ByteArrayTranscoder transcoder = new ByteArrayTranscoder();
+		NearCache cache = client.getNearCache();
+		assertNotNull(cache);
+
+		client.set("near.key", "value".getBytes(), transcoder);
+		assertEquals(new String((byte[]) client.get("near.key", transcoder)),
+				"value");
+		assertEquals(cache.getMisses(), 1l);
+		assertEquals(new String((byte[]) client.get("near.key", transcoder)),
+				"value");
+		assertEquals(cache.getHits(), 1l);
+
+		// another client's write is not seen until it is invalidated
+		ConnectionFactory cf = client.getConfiguration().getConnectionFactory();
+		for (Node node : nodeList)
+			cf.getStore(null, node.getConnectionURI()).set("near.key",
+					"remote".getBytes(), transcoder);
+		assertEquals(new String((byte[]) client.get("near.key", transcoder)),
+				"value");
+		client.invalidate("near.key");
+		assertEquals(new String((byte[]) client.get("near.key", transcoder)),
+				"remote");
+
+		// local writes invalidate and are published
+		final List<String> invalidated = new LinkedList<String>();
+		client.addInvalidationListener(new InvalidationListener() {
+			public void invalidated(String key) {
+				invalidated.add(key);
+			}
+		});
+		client.set("near.key", "local".getBytes(), transcoder);
+		assertEquals(new String((byte[]) client.get("near.key", transcoder)),
+				"local");
+		client.delete("near.key");
+		assertNull(client.get("near.key", transcoder));
+		long hits = cache.getHits();
+		assertNull(client.get("near.key", transcoder));
+		assertEquals(cache.getHits(), hits + 1);
+		assertEquals(invalidated.size(), 2);
+		client.stop();
+
+		// least recently used entries are evicted past maxBytes
+		NearCache small = new NearCache(1000, 60000);
+		for (int i = 0; i < 20; ++i)
+			small.put("small.key." + i, new byte[100], small
+					.getVersion("small.key." + i));
+		assertTrue(small.getBytes() <= 1000);
+		assertTrue(small.getEvictions() > 0);
+		assertNotNull(small.get("small.key.19"));
+		assertNull(small.get("small.key.0"));
+
+		// reads begun before an invalidation of their key are not cached
+		long version = small.getVersion("small.key.19");
+		long otherVersion = small.getVersion("small.key.18");
+		small.invalidate("small.key.19");
+		small.put("small.key.19", new byte[1], version);
+		assertNull(small.get("small.key.19"));
+		small.put("small.key.18", new byte[1], otherVersion);
+		assertEquals(small.get("small.key.18").getValue().length, 1);
+	}
+
+	public void testOperationMetrics() throws Exception {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 1000; ++i)
+			histogram.recordMicros(i * 10);
+		assertEquals(histogram.getCount(), 1000l);
+		assertEquals(histogram.getMax(), 10000l);
+		long p50 = histogram.getPercentile(50);
+		long p99 = histogram.getPercentile(99);
+		assertTrue(Math.abs(p50 - 5000) <= 5000 / 32);
+		assertTrue(Math.abs(p99 - 9900) <= 9900 / 32);
+		assertEquals(histogram.getPercentile(100), 10000l);
+
+		Properties props = new Properties();
+		props.setProperty(PropertiesConfigurator.NODE_STORE,
+				DummyNodeStore.class.getName());
+		PropertiesConfigurator configurator = new PropertiesConfigurator();
+		configurator.load(props);
+		List<Node> nodeList = new LinkedList<Node>();
+		for (int i = 101; i <= 103; ++i)
+			nodeList.add(new DefaultNodeImpl(i, i, "salt:" + i + ":" + i,
+					"hash://localhost?id=metrics" + i));
+		configurator.getConfiguration().setNodeStore(
+				new DummyNodeStore(nodeList));
+		DistributedKeyValueStoreClientImpl client = new DistributedKeyValueStoreClientImpl(
+				configurator);
+		client.start();
+		MetricsRegistry registry = MetricsRegistry.getInstance();
+		long quorumGets = registry.getQuorumMetrics("get").getLatency()
+				.getCount();
+		ByteArrayTranscoder transcoder = new ByteArrayTranscoder();
+		for (int i = 0; i < 50; ++i) {
+			client.set("metrics.key." + i, "value".getBytes(), transcoder);
+			client.get("metrics.key." + i, transcoder);
+		}
+		client.stop();
+
+		assertEquals(registry.getQuorumMetrics("get").getLatency().getCount(),
+				quorumGets + 50);
+		long nodeGets = 0, nodeSets = 0;
+		for (Node node : nodeList) {
+			OperationMetrics gets = registry.getNodeMetrics(node.getId(),
+					"get");
+			nodeGets += gets.getCount(OperationStatus.Success);
+			nodeSets += registry.getNodeMetrics(node.getId(), "set")
+					.getCount(OperationStatus.Success);
+			assertEquals(gets.getQueueTime().getCount(), gets.getLatency()
+					.getCount());
+		}
+		// at least two of the three replicas answer each key
+		assertTrue(nodeGets >= 100);
+		assertTrue(nodeSets >= 100);
+
+		MBeanServer server = JMXMbeanServerFactory.getMBeanServer();
+		ObjectName name = new ObjectName(
+				"OthersOnline:entity=OperationMetrics,node=101,operation=\"get\"");
+		assertTrue(server.isRegistered(name));
+		assertEquals(server.getAttribute(name, "SuccessCount"), registry
+				.getNodeMetrics(101, "get").getCount(OperationStatus.Success));
+	}
+
+	public void testOperationEventSink() throws Exception {
+		File file = File.createTempFile("oplog", ".bin");
+		file.delete();
+		file.deleteOnExit();
+		OperationEventSink sink = new OperationEventSink(file,
+				OperationEventSink.Format.Binary, 16);
+		sink.start();
+		OperationLog log = OperationLog.getInstance();
+		log.setEventSink(sink);
+		List<Node> nodeList = new LinkedList<Node>();
+		for (int i = 1; i <= 3; ++i)
+			nodeList.add(new DefaultNodeImpl(i, i, "salt:" + i + ":" + i,
+					"hash://localhost?id=oplog" + i));
+		StringBuilder longKey = new StringBuilder();
+		while (longKey.length() < 70000)
+			longKey.append("oplog.key.");
+		try {
+			log.logBackend("get", OperationStatus.NullValue, 2, 5, 1);
+			log.log("oplog,key", "set", 12, true);
+			log.logPreferenceList("oplog,key", nodeList);
+			log.logAccess("get", "oplog.key", 3, 100, false);
+			// longer than writeUTF() allows
+			log.log(longKey.toString(), "get", 1, true);
+		} finally {
+			log.setEventSink(null);
+		}
+		// a full ring drops events rather than blocking
+		int written = 5;
+		for (int i = 0; i < 1000; ++i) {
+			if (sink.backend("set", OperationStatus.Success, 1, 0, 0))
+				++written;
+		}
+		sink.close();
+		assertEquals(sink.getWrittenCount() + sink.getDroppedCount(), 1005l);
+		assertEquals(sink.getWrittenCount(), (long) written);
+
+		OperationEventReader reader = new OperationEventReader(
+				new FileInputStream(file));
+		assertTrue(reader.next());
+		assertEquals(reader.getCategory(), OperationEventSink.BACKEND);
+		assertEquals(reader.getStatus(), OperationStatus.NullValue);
+		assertEquals(reader.getNodeId(), 2);
+		assertEquals(reader.getExtra(), 1l);
+		assertTrue(reader.toCsv().startsWith("backend,"));
+		assertTrue(reader.toCsv().endsWith(",get,,nullvalue,2,5,1,"));
+		assertTrue(reader.next());
+		assertEquals(reader.getCategory(), OperationEventSink.OPERATION);
+		assertEquals(reader.getKey(), "oplog,key");
+		assertTrue(reader.toCsv().endsWith(
+				",set,\"oplog,key\",success,,12,0,"));
+		assertTrue(reader.next());
+		assertEquals(reader.getCategory(), OperationEventSink.PREFERENCE);
+		assertEquals(reader.getNodes().length, 3);
+		assertTrue(reader.toCsv().endsWith(",1;2;3"));
+		assertTrue(reader.next());
+		assertEquals(reader.getCategory(), OperationEventSink.ACCESS);
+		assertEquals(reader.getStatus(), OperationStatus.Error);
+		assertEquals(reader.getExtra(), 100l);
+		assertTrue(reader.next());
+		assertEquals(reader.getKey(), longKey.toString());
+		int remaining = 0;
+		while (reader.next())
+			++remaining;
+		reader.close();
+		assertEquals(remaining, written - 5);
+
+		// a sink opened by two clients stays installed until both close it
+		File other = File.createTempFile("oplog", ".bin");
+		other.deleteOnExit();
+		sink = log.openEventSink(file, OperationEventSink.Format.Binary, 16);
+		assertSame(log.openEventSink(other,
+				OperationEventSink.Format.Binary, 16), sink);
+		log.closeEventSink(sink);
+		assertSame(log.getEventSink(), sink);
+		log.closeEventSink(sink);
+		assertNull(log.getEventSink());
+	}
+
+	public void testAntiEntropy() throws Exception {
+		ConnectionFactory cf = new UriConnectionFactory();
+		List<Node> nodeList = new LinkedList<Node>();
+		for (int i = 1; i <= 4; ++i)
+			nodeList.add(new DefaultNodeImpl(i, i, "salt:" + i + ":" + i,
+					"hash://localhost?id=entropy" + i));
+		MD5HashAlgorithm hash = new MD5HashAlgorithm();
+		DynamoNodeLocator locator = new DynamoNodeLocator();
+		locator.setActiveNodes(nodeList);
+		ByteArrayTranscoder transcoder = new ByteArrayTranscoder();
+
+		for (int i = 0; i < 500; ++i) {
+			String key = "entropy.key." + i;
+			for (Node node : locator.getPreferenceList(hash, key, 3))
+				cf.getStore(null, node.getConnectionURI()).set(key,
+						("value " + i).getBytes(), transcoder);
+		}
+		// lose a key on one replica and change it on another
+		List<Node> replicas = locator.getPreferenceList(hash,
+				"entropy.key.7", 3);
+		cf.getStore(null, replicas.get(0).getConnectionURI()).delete(
+				"entropy.key.7");
+		cf.getStore(null, replicas.get(2).getConnectionURI()).set(
+				"entropy.key.7", "stale".getBytes(), transcoder);
+
+		AntiEntropyService service = new AntiEntropyService(locator, hash, cf,
+				null, 3);
+		service.setActiveNodes(nodeList);
+		Map<String, Long> stats = service.repair();
+		assertEquals(stats.get("differing-ranges").longValue(), 1l);
+		assertTrue(stats.get("compared") < 10l);
+		assertEquals(stats.get("repaired").longValue(), 2l);
+		for (Node node : replicas)
+			assertEquals(new String((byte[]) cf.getStore(null,
+					node.getConnectionURI()).get("entropy.key.7", transcoder)),
+					"value 7");
+
+		stats = service.repair();
+		assertEquals(stats.get("differing-ranges").longValue(), 0l);
+		assertEquals(stats.get("repaired").longValue(), 0l);
+	}
+
+	public void testRangeRebalance() throws Exception {
+		ConnectionFactory cf = new UriConnectionFactory();
+		List<Node> oldNodes = new LinkedList<Node>();
+		for (int i = 1; i <= 4; ++i)
+			oldNodes.add(new DefaultNodeImpl(i, i, "salt:" + i + ":" + i,
+					"hash://localhost?id=range" + i));
+		List<Node> newNodes = new LinkedList<Node>(oldNodes);
+		newNodes.add(new DefaultNodeImpl(5, 5, "salt:5:5",
+				"hash://localhost?id=range5"));
+		MD5HashAlgorithm hash = new MD5HashAlgorithm();
+		DynamoNodeLocator oldLocator = new DynamoNodeLocator();
+		oldLocator.setActiveNodes(oldNodes);
+		DynamoNodeLocator newLocator = new DynamoNodeLocator();
+		newLocator.setActiveNodes(newNodes);
+		ByteArrayTranscoder transcoder = new ByteArrayTranscoder();
+
+		int count = 1000;
+		for (int i = 0; i < count; ++i) {
+			String key = "range.key." + i;
+			for (Node node : oldLocator.getPreferenceList(hash, key, 2))
+				cf.getStore(null, node.getConnectionURI()).set(key,
+						("value " + i).getBytes(), transcoder);
+		}
+
+		List<TokenRange> ranges = newLocator.getChangedRanges(oldNodes,
+				newNodes, 2);
+		int changed = 0, copies = 0;
+		for (int i = 0; i < count; ++i) {
+			String key = "range.key." + i;
+			List<Node> added = new ArrayList<Node>(newLocator
+					.getPreferenceList(hash, key, 2));
+			added.removeAll(oldLocator.getPreferenceList(hash, key, 2));
+			boolean inRange = false;
+			for (TokenRange range : ranges)
+				inRange |= range.contains(hash.hash(key));
+			assertEquals(!added.isEmpty(), inRange);
+			if (inRange)
+				++changed;
+			copies += added.size();
+		}
+		assertTrue(changed > 0);
+		assertTrue(changed < count);
+
+		File checkpoint = File.createTempFile("rebalance", ".checkpoint");
+		checkpoint.delete();
+		try {
+			RangeRebalancer rebalancer = new RangeRebalancer(cf, null, hash,
+					ranges);
+			rebalancer.setDelete(true);
+			rebalancer.setCheckpointFile(checkpoint);
+			Map<String, Long> stats = rebalancer.call();
+			assertEquals(stats.get("moved").longValue(), copies);
+			assertEquals(stats.get("failures").longValue(), 0l);
+			// one scan of each old node, none of node 5
+			assertEquals(stats.get("transfers").longValue(), 4l);
+			for (int i = 0; i < count; ++i) {
+				String key = "range.key." + i;
+				List<Node> owners = newLocator.getPreferenceList(hash, key, 2);
+				for (Node node : newNodes) {
+					Object value = cf.getStore(null, node.getConnectionURI())
+							.get(key, transcoder);
+					assertEquals(owners.contains(node), value != null);
+				}
+			}
+
+			// a run stopped after copying only deletes when resumed
+			int restored = 0;
+			for (int i = 0; i < count; ++i) {
+				String key = "range.key." + i;
+				List<Node> removed = new ArrayList<Node>(oldLocator
+						.getPreferenceList(hash, key, 2));
+				removed.removeAll(newLocator.getPreferenceList(hash, key, 2));
+				for (Node node : removed) {
+					cf.getStore(null, node.getConnectionURI()).set(key,
+							("value " + i).getBytes(), transcoder);
+					++restored;
+				}
+			}
+			assertTrue(restored > 0);
+			Properties saved = new Properties();
+			FileInputStream fis = new FileInputStream(checkpoint);
+			saved.load(fis);
+			fis.close();
+			for (String id : saved.stringPropertyNames()) {
+				if ("done".equals(saved.getProperty(id)))
+					saved.setProperty(id, "copied");
+			}
+			FileOutputStream fos = new FileOutputStream(checkpoint);
+			saved.store(fos, null);
+			fos.close();
+			rebalancer = new RangeRebalancer(cf, null, hash, ranges);
+			rebalancer.setDelete(true);
+			rebalancer.setCheckpointFile(checkpoint);
+			stats = rebalancer.call();
+			assertEquals(stats.get("moved").longValue(), 0l);
+			assertEquals(stats.get("deleted").longValue(), restored);
+			for (int i = 0; i < count; ++i) {
+				String key = "range.key." + i;
+				List<Node> owners = newLocator.getPreferenceList(hash, key, 2);
+				for (Node node : newNodes) {
+					Object value = cf.getStore(null, node.getConnectionURI())
+							.get(key, transcoder);
+					assertEquals(owners.contains(node), value != null);
+				}
+			}
+
+			// a second run resumes from the checkpoint and moves nothing
+			rebalancer = new RangeRebalancer(cf, null, hash, ranges);
+			rebalancer.setCheckpointFile(checkpoint);
+			stats = rebalancer.call();
+			assertEquals(stats.get("transfers-skipped"), stats
+					.get("transfers"));
+			assertEquals(stats.get("moved").longValue(), 0l);
+		} finally {
+			checkpoint.delete();
+		}
+	}
+
 	private void testBasicOperations(DistributedKeyValueStore store)
 			throws Exception {
 		String key = "test.key";
@@ -1,5 +1,6 @@
 package com.rubiconproject.oss.kv.distributed.test;
 
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Properties;
 
@@ -11,22 +12,24 @@ import com.rubiconproject.oss.kv.distributed.impl.DefaultNodeImpl;
 public class DummyNodeStore extends AbstractRefreshingNodeStore implements
 		NodeStore {
 	public DummyNodeStore() {
-		this.activeNodes.add(new DefaultNodeImpl(1, 1, "salt:1:1",
+		List<Node> nodes = new LinkedList<Node>();
+		nodes.add(new DefaultNodeImpl(1, 1, "salt:1:1",
 				"hash://localhost?id=1"));
-		this.activeNodes.add(new DefaultNodeImpl(2, 2, "salt:2:2",
+		nodes.add(new DefaultNodeImpl(2, 2, "salt:2:2",
 				"hash://localhost?id=2"));
-		this.activeNodes.add(new DefaultNodeImpl(3, 3, "salt:3:3",
+		nodes.add(new DefaultNodeImpl(3, 3, "salt:3:3",
 				"hash://localhost?id=3"));
+		update(nodes);
 	}
 
 	public DummyNodeStore(List<Node> nodes) {
-		this.activeNodes = nodes;
+		update(nodes);
 	}
 
 	public void setProperties(Properties props) {
 	}
 
 	public List<Node> refreshActiveNodes() {
-		return activeNodes;
+		return getActiveNodes();
 	}
 }
@@ -1,22 +1,30 @@
 package com.rubiconproject.oss.kv.distributed.test;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
 
 import junit.framework.TestCase;
 
 import org.apache.commons.math.stat.descriptive.DescriptiveStatistics;
 
 import com.rubiconproject.oss.kv.distributed.Node;
+import com.rubiconproject.oss.kv.distributed.NodeHealthTracker;
 import com.rubiconproject.oss.kv.distributed.NodeLocator;
 import com.rubiconproject.oss.kv.distributed.NodeStore;
+import com.rubiconproject.oss.kv.distributed.OperationStatus;
 import com.rubiconproject.oss.kv.distributed.hashing.HashAlgorithm;
+import com.rubiconproject.oss.kv.distributed.hashing.HashAlgorithms;
 import com.rubiconproject.oss.kv.distributed.hashing.KetamaHashAlgorithm;
+import com.rubiconproject.oss.kv.distributed.hashing.LongHashRing;
 import com.rubiconproject.oss.kv.distributed.hashing.MD5HashAlgorithm;
+import com.rubiconproject.oss.kv.distributed.impl.DefaultNodeHealthTracker;
 import com.rubiconproject.oss.kv.distributed.impl.DefaultNodeImpl;
 import com.rubiconproject.oss.kv.distributed.impl.DynamoNodeLocator;
 import com.rubiconproject.oss.kv.distributed.impl.KetamaNodeLocator;
+import com.rubiconproject.oss.kv.distributed.impl.LatencyAwareNodeLocator;
 
 public class NodeLocatorTestCase extends TestCase {
 	public void testKetamaNodeLocator() {
@@ -40,6 +48,150 @@ public class NodeLocatorTestCase extends TestCase {
 		testTokenKeyDistribution(locator, hashAlg, physicalHosts * nodesPerHost);
 	}
 
+	public void testDynamoPreferenceListRebuild() {
+		List<Node> nodes = createNodeList(40, 2);
+		DynamoNodeLocator serial = new DynamoNodeLocator();
+		serial.setRebuildThreads(1);
+		// every list precomputed, to check lists completed by walking the
+		// ring past the default length
+		serial.setPrecomputedLength(40);
+		serial.setActiveNodes(nodes);
+		DynamoNodeLocator parallel = new DynamoNodeLocator();
+		parallel.setRebuildThreads(4);
+		parallel.setActiveNodes(nodes);
+		HashAlgorithm hashAlg = new MD5HashAlgorithm();
+
+		for (int i = 0; i < 1000; ++i) {
+			String key = "rebuild.key." + i;
+			List<Node> full = parallel.getFullPreferenceList(hashAlg, key);
+			assertEquals(full, serial.getFullPreferenceList(hashAlg, key));
+			// one node per physical host
+			assertEquals(full.size(), 40);
+			Set<Integer> physicalIds = new HashSet<Integer>();
+			for (Node node : full)
+				assertTrue(physicalIds.add(node.getPhysicalId()));
+			assertEquals(parallel.getPreferenceList(hashAlg, key, 3), full
+					.subList(0, 3));
+		}
+	}
+
+	public void testHashAlgorithms() {
+		HashAlgorithm xxhash = HashAlgorithms.forName(HashAlgorithms.XXHASH64);
+		assertEquals(xxhash.hash(""), 0xef46db3751d8e999l);
+		assertEquals(xxhash.hash("a"), 0xd24ec4f1a98c6e5bl);
+		assertEquals(xxhash.hash("abc"), 0x44bc2cf5ad770999l);
+		String longKey = "/blobs/users/12/3456/789012345-long-key-for-stripes";
+		assertEquals(xxhash.hash(longKey), 4396112052866218775l);
+		assertEquals(xxhash.hash("h\u00e9llo w\u00f6rld"),
+				6918685708591841596l);
+
+		HashAlgorithm murmur = HashAlgorithms.forName(HashAlgorithms.MURMUR3);
+		assertEquals(murmur.hash(""), 0l);
+		assertEquals(murmur.hash("foo"), -2129773440516405919l);
+		assertEquals(murmur.hash(longKey), 5148206419453201516l);
+		assertEquals(murmur.hash("h\u00e9llo w\u00f6rld"),
+				7743223038208521019l);
+
+		// thread-local digest must not change md5 placement
+		HashAlgorithm md5 = HashAlgorithms.forName(HashAlgorithms.MD5);
+		assertEquals(md5.hash("test.key"), new MD5HashAlgorithm()
+				.hash("test.key"));
+		assertEquals(md5.hash("abc"), 0x900150983cd24fb0l);
+	}
+
+	public void testLongHashRing() {
+		LongHashRing<String> ring = new LongHashRing.Builder<String>(3).put(
+				100l, "b").put(-50l, "a").put(200l, "c").put(100l, "b2")
+				.build();
+		assertEquals(ring.size(), 3);
+		assertEquals(ring.get(-100l), "a");
+		assertEquals(ring.get(-50l), "a");
+		assertEquals(ring.get(0l), "b2");
+		assertEquals(ring.get(150l), "c");
+		// wraps around past the last position
+		assertEquals(ring.get(201l), "a");
+		assertEquals(ring.getValue(ring.lower(ring.place(-50l))), "c");
+		assertEquals(ring.getValue(ring.higher(ring.place(200l))), "a");
+	}
+
+	public void testNodeEjection() throws Exception {
+		NodeStore store = new DummyNodeStore(createNodeList(5, 1));
+		DynamoNodeLocator locator = new DynamoNodeLocator();
+		locator.setActiveNodes(store.getActiveNodes());
+		NodeHealthTracker tracker = new DefaultNodeHealthTracker(3, 60000l,
+				100l, 0l);
+		locator.setNodeHealthTracker(tracker);
+		HashAlgorithm hashAlg = new MD5HashAlgorithm();
+
+		String key = "test.key";
+		Node primary = locator.getPreferenceList(hashAlg, key, 1).get(0);
+		for (int i = 0; i < 3; ++i)
+			tracker.record(primary, OperationStatus.Error, 10l);
+		assertTrue(tracker.isEjected(primary));
+
+		// ejected node is replaced, or moved to the end of the full list
+		List<Node> nodes = locator.getPreferenceList(hashAlg, key, 3);
+		assertEquals(nodes.size(), 3);
+		assertFalse(nodes.contains(primary));
+		nodes = locator.getFullPreferenceList(hashAlg, key);
+		assertEquals(nodes.size(), 5);
+		assertEquals(nodes.get(4), primary);
+
+		// a single probe is let through after the ejection time, taken by
+		// the first request sent rather than by building a list
+		Thread.sleep(150l);
+		assertTrue(tracker.isAvailable(primary));
+		assertEquals(locator.getFullPreferenceList(hashAlg, key).get(0),
+				primary);
+		assertTrue(tracker.isAvailable(primary));
+		tracker.sending(primary);
+		assertFalse(tracker.isAvailable(primary));
+		// a probe the queue rejected is due again at once
+		tracker.unsent(primary);
+		assertTrue(tracker.isAvailable(primary));
+		tracker.sending(primary);
+		assertFalse(tracker.isAvailable(primary));
+		tracker.record(primary, OperationStatus.Success, 10l);
+		assertFalse(tracker.isEjected(primary));
+		assertEquals(locator.getPreferenceList(hashAlg, key, 1).get(0),
+				primary);
+	}
+
+	public void testLatencyAwareNodeLocator() {
+		NodeStore store = new DummyNodeStore(createNodeList(5, 1));
+		DynamoNodeLocator dynamo = new DynamoNodeLocator();
+		dynamo.setActiveNodes(store.getActiveNodes());
+		LatencyAwareNodeLocator locator = new LatencyAwareNodeLocator(dynamo,
+				3);
+		HashAlgorithm hashAlg = new MD5HashAlgorithm();
+
+		String key = "test.key";
+		List<Node> hashOrder = dynamo.getFullPreferenceList(hashAlg, key);
+		locator.record(hashOrder.get(0), 50l);
+		locator.record(hashOrder.get(1), 20l);
+		locator.record(hashOrder.get(2), 5l);
+		locator.record(hashOrder.get(3), 1l);
+
+		// first three reversed by latency, remainder untouched
+		List<Node> nodes = locator.getFullPreferenceList(hashAlg, key);
+		assertEquals(nodes.get(0), hashOrder.get(2));
+		assertEquals(nodes.get(1), hashOrder.get(1));
+		assertEquals(nodes.get(2), hashOrder.get(0));
+		assertEquals(nodes.get(3), hashOrder.get(3));
+		assertEquals(nodes.get(4), hashOrder.get(4));
+
+		// write placement unchanged
+		assertEquals(locator.getPreferenceList(hashAlg, key, 3), hashOrder
+				.subList(0, 3));
+
+		// a node that starts failing fast loses its place
+		for (int i = 0; i < 3; ++i)
+			locator.recordFailure(hashOrder.get(2), 1l);
+		nodes = locator.getFullPreferenceList(hashAlg, key);
+		assertEquals(nodes.get(0), hashOrder.get(1));
+		assertEquals(nodes.get(1), hashOrder.get(2));
+	}
+
 	private void testTokenKeyDistribution(NodeLocator nodeLocator,
 			HashAlgorithm hashAlg, int nodeCount) {
 		Random random = new Random();
@@ -0,0 +1,53 @@
+package com.rubiconproject.oss.kv.distributed.test;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import com.rubiconproject.oss.kv.backends.ConnectionFactory;
+import com.rubiconproject.oss.kv.distributed.Node;
+import com.rubiconproject.oss.kv.distributed.Operation;
+import com.rubiconproject.oss.kv.distributed.OperationQueue;
+import com.rubiconproject.oss.kv.distributed.OperationResult;
+
+/**
+ * Passes operations on to another queue, rejecting those sent to the node
+ * given to reject().
+ */
+public class RejectingOperationQueue implements OperationQueue {
+	private OperationQueue delegate;
+
+	private volatile Node rejected;
+
+	public RejectingOperationQueue(OperationQueue delegate) {
+		this.delegate = delegate;
+	}
+
+	public void reject(Node node) {
+		this.rejected = node;
+	}
+
+	public void setConnectionFactory(ConnectionFactory factory) {
+		delegate.setConnectionFactory(factory);
+	}
+
+	public void start() {
+		delegate.start();
+	}
+
+	public void stop() {
+		delegate.stop();
+	}
+
+	public int getQueueSize() {
+		return delegate.getQueueSize();
+	}
+
+	public <V> Future<OperationResult<V>> submit(Operation<V> operation)
+			throws RejectedExecutionException {
+		Node node = rejected;
+		if ((node != null) && node.equals(operation.getNode()))
+			throw new RejectedExecutionException("Rejecting node "
+					+ node.getId());
+		return delegate.submit(operation);
+	}
+}
@@ -2,9 +2,14 @@ package com.rubiconproject.oss.kv.test;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.management.MBeanInfo;
 import javax.management.MBeanServer;
@@ -13,6 +18,7 @@ import javax.management.ObjectName;
 
 import junit.framework.TestCase;
 
+import com.rubiconproject.oss.kv.AsyncKeyValueStore;
 import com.rubiconproject.oss.kv.KeyValueStore;
 import com.rubiconproject.oss.kv.KeyValueStoreStatus;
 import com.rubiconproject.oss.kv.KeyValueStoreUnavailable;
@@ -95,10 +101,27 @@ public abstract class KeyValueStoreBackendTestCase extends TestCase {
 				new ByteArrayTranscoder());
 		assertEquals(map.size(), 1);
 
+		// test setBulk() and deleteBulk()
+		Map<String, Object> bulk = new HashMap<String, Object>();
+		bulk.put("some.bulk.key.1", new SampleV(1, "bulk one", 1));
+		bulk.put("some.bulk.key.2", new SampleV(2, "bulk two", 2));
+		store.setBulk(bulk, serializer);
+		map = store.getBulk(new ArrayList<String>(bulk.keySet()), serializer);
+		assertEquals(map.size(), 2);
+		assertEquals(((SampleV) map.get("some.bulk.key.2")).someRequiredInt, 2);
+		store.deleteBulk(bulk.keySet());
+		Thread.sleep(100l);
+		map = store.getBulk(new ArrayList<String>(bulk.keySet()), serializer);
+		assertEquals(map.size(), 0);
+
 		// test iterator if applicable
 		if (store instanceof IterableKeyValueStore)
 			doTestIterator((IterableKeyValueStore) store);
 
+		// test async interface if applicable
+		if (store instanceof AsyncKeyValueStore)
+			doTestAsync((AsyncKeyValueStore) store);
+
 		// set status to read only
 		store.setStatus(KeyValueStoreStatus.ReadOnly);
 		SampleV v3 = (SampleV) store.get(objectKey, serializer);
@@ -126,6 +149,38 @@ public abstract class KeyValueStoreBackendTestCase extends TestCase {
 		doTestJMX(store);
 	}
 
+	protected void doTestAsync(AsyncKeyValueStore store) throws Exception {
+		String key = "some.async.key";
+		SerializableTranscoder serializer = new SerializableTranscoder();
+
+		Future<Boolean> deleteFuture = store.deleteAsync(key);
+		deleteFuture.get(1000l, TimeUnit.MILLISECONDS);
+		assertNull(store.getAsync(key).get(1000l, TimeUnit.MILLISECONDS));
+
+		Future<Boolean> setFuture = store.setAsync(key, "hello async");
+		setFuture.get(1000l, TimeUnit.MILLISECONDS);
+		assertTrue(setFuture.isDone());
+		assertEquals(store.getAsync(key).get(1000l, TimeUnit.MILLISECONDS),
+				"hello async");
+
+		SampleV v = new SampleV(11, "hello async", 13);
+		store.setAsync(key, v, serializer).get(1000l, TimeUnit.MILLISECONDS);
+		SampleV v2 = (SampleV) store.getAsync(key, serializer).get(1000l,
+				TimeUnit.MILLISECONDS);
+		assertNotNull(v2);
+		assertEquals(v2.someRequiredInt, v.someRequiredInt);
+
+		List<String> keys = Arrays.asList(new String[] { key, "xyz123async" });
+		Map<String, Object> map = store.getBulkAsync(keys, serializer).get(
+				1000l, TimeUnit.MILLISECONDS);
+		assertEquals(map.size(), 1);
+		assertEquals(((SampleV) map.get(key)).someRequiredInt,
+				v.someRequiredInt);
+
+		store.deleteAsync(key).get(1000l, TimeUnit.MILLISECONDS);
+		assertNull(store.getAsync(key).get(1000l, TimeUnit.MILLISECONDS));
+	}
+
 	private void doTestIterator(IterableKeyValueStore store) throws Exception {
 		int keyCount = 0;
 		KeyValueStoreIterator storeIterator = store.iterkeys();
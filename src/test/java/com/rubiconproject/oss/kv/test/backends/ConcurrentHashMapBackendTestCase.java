@@ -1,5 +1,6 @@
 package com.rubiconproject.oss.kv.test.backends;
 
+import com.rubiconproject.oss.kv.ThreadPoolAsyncKeyValueStore;
 import com.rubiconproject.oss.kv.backends.ConcurrentHashMapKeyValueStore;
 import com.rubiconproject.oss.kv.test.KeyValueStoreBackendTestCase;
 
@@ -19,6 +20,10 @@ public class ConcurrentHashMapBackendTestCase extends
 		store.get("some.key");
 		assertTrue(((System.currentTimeMillis() - start) >= 50)
 				&& ((System.currentTimeMillis() - start) <= 100));
+
+		store.setWriteSleepTime(0);
+		store.setReadSleepTime(0);
+		doTestAsync(new ThreadPoolAsyncKeyValueStore(store, 2));
 	}
 
 }